@@ -0,0 +1,255 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Strings;
+import com.google.common.collect.Iterables;
+import com.google.enterprise.connector.otex.client.Client;
+import com.google.enterprise.connector.otex.client.ClientValue;
+import com.google.enterprise.connector.spi.Principal;
+import com.google.enterprise.connector.spi.RepositoryDocumentException;
+import com.google.enterprise.connector.spi.RepositoryException;
+import com.google.enterprise.connector.spi.SpiConstants.CaseSensitivityType;
+import com.google.enterprise.connector.spi.SpiConstants.PrincipalType;
+import com.google.enterprise.connector.spi.Value;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An in-memory table of the ACL entries for a batch of documents,
+ * along with the users and groups that they refer to. The table is
+ * loaded with a few queries over DTreeACL and KUAF, rather than
+ * calling {@code GetObjectRights} and {@code GetUserOrGroupByID} for
+ * each document.
+ *
+ * @see LivelinkConnector#setBatchAcls
+ */
+class AclTable {
+  /** The logger for this class. */
+  private static final Logger LOGGER =
+      Logger.getLogger(AclTable.class.getName());
+
+  /** The user or group information needed to build principals. */
+  private static class UserInfo {
+    private final String name;
+    private final int type;
+    private final int groupId;
+    private final String namespace;
+
+    UserInfo(String name, int type, int groupId, String namespace) {
+      this.name = name;
+      this.type = type;
+      this.groupId = groupId;
+      this.namespace = namespace;
+    }
+  }
+
+  /** An ACL entry, the RightID and Permissions from DTreeACL. */
+  private static class AclEntry {
+    private final int rightId;
+    private final int permissions;
+
+    AclEntry(int rightId, int permissions) {
+      this.rightId = rightId;
+      this.permissions = permissions;
+    }
+  }
+
+  /** The connector contains configuration information. */
+  private final LivelinkConnector connector;
+
+  private final IdentityUtils identityUtils;
+
+  /** The ACL entries for each object ID. */
+  private final Map<Integer, List<AclEntry>> acls =
+      new HashMap<Integer, List<AclEntry>>();
+
+  /** The users and groups, by ID. */
+  private final Map<Integer, UserInfo> users =
+      new HashMap<Integer, UserInfo>();
+
+  /**
+   * Loads the ACL entries for the given objects, and the users and
+   * groups that they refer to, including the owners of the objects
+   * and the owners' default groups.
+   *
+   * @param connector the connector
+   * @param client the client to query with
+   * @param sqlQueries the SQL queries for the database type
+   * @param objectIds the object IDs
+   * @param ownerIds the owner user IDs of the objects
+   * @throws RepositoryException if an error occurs
+   */
+  AclTable(LivelinkConnector connector, Client client,
+      SqlQueries sqlQueries, Collection<Integer> objectIds,
+      Collection<Integer> ownerIds) throws RepositoryException {
+    this.connector = connector;
+    this.identityUtils = new IdentityUtils(connector);
+
+    Iterable<List<Integer>> objectChunks = Iterables.partition(
+        new LinkedHashSet<Integer>(objectIds), SqlQueries.MAX_IN_LIST);
+    for (List<Integer> chunk : objectChunks) {
+      ClientValue rights = sqlQueries.execute(client, "ACL QUERY",
+          "AclTable.getAcls", Joiner.on(',').join(chunk));
+      for (int i = 0; i < rights.size(); i++) {
+        int objectId = rights.toInteger(i, "DataID");
+        int rightId = rights.toInteger(i, "RightID");
+        List<AclEntry> entries = acls.get(objectId);
+        if (entries == null) {
+          entries = new ArrayList<AclEntry>();
+          acls.put(objectId, entries);
+        }
+        entries.add(new AclEntry(rightId, rights.toInteger(i, "Permissions")));
+        if (rightId > 0 && rights.isDefined(i, "UserType")) {
+          addUser(rightId, rights, i);
+        }
+      }
+    }
+
+    Iterable<List<Integer>> ownerChunks = Iterables.partition(
+        new LinkedHashSet<Integer>(ownerIds), SqlQueries.MAX_IN_LIST);
+    for (List<Integer> chunk : ownerChunks) {
+      ClientValue owners = sqlQueries.execute(client, "ACL OWNERS QUERY",
+          "AclTable.getOwners", Joiner.on(',').join(chunk));
+      for (int i = 0; i < owners.size(); i++) {
+        addUser(owners.toInteger(i, "DataID"), owners, i);
+      }
+    }
+
+    if (LOGGER.isLoggable(Level.FINEST)) {
+      LOGGER.finest("ACL TABLE: " + acls.size() + " objects, "
+          + users.size() + " users and groups");
+    }
+  }
+
+  /** Adds the user or group from the given row of a query result. */
+  private void addUser(int id, ClientValue row, int i)
+      throws RepositoryException {
+    String name = row.isDefined(i, "UserName")
+        ? row.toString(i, "UserName") : null;
+    int groupId = row.isDefined(i, "GroupID")
+        ? row.toInteger(i, "GroupID") : 0;
+    String userData = row.isDefined(i, "UserData")
+        ? row.toString(i, "UserData") : null;
+    if (LOGGER.isLoggable(Level.FINEST)) {
+      LOGGER.finest("ACE Info: UserData " + userData);
+    }
+    users.put(id, new UserInfo(name, row.toInteger(i, "UserType"), groupId,
+            identityUtils.getNamespace(userData)));
+  }
+
+  /**
+   * Adds the principals with read access to the given object. The
+   * System Administration group is not added.
+   *
+   * @param objectId the object ID
+   * @param ownerId the owner user ID of the object
+   * @param userPrincipals the list to add user principals to
+   * @param groupPrincipals the list to add group principals to
+   * @throws RepositoryException if an error occurs
+   */
+  public void addPrincipals(int objectId, int ownerId,
+      List<Value> userPrincipals, List<Value> groupPrincipals)
+      throws RepositoryException {
+    List<AclEntry> entries = acls.get(objectId);
+    if (entries == null) {
+      return;
+    }
+    for (AclEntry entry : entries) {
+      boolean canRead = ((entry.permissions & Client.PERM_SEECONTENTS)
+          == Client.PERM_SEECONTENTS);
+      if (canRead) {
+        addPrincipal(entry.rightId, ownerId, userPrincipals, groupPrincipals);
+      }
+      if (LOGGER.isLoggable(Level.FINEST)) {
+        LOGGER.finest("ACE Info: UserID " + entry.rightId + ", Permissions "
+            + entry.permissions + ", SeeContents " + canRead);
+      }
+    }
+  }
+
+  private void addPrincipal(int userId, int ownerId,
+      List<Value> userPrincipals, List<Value> groupPrincipals)
+      throws RepositoryException {
+    if (userId < 0) {
+      UserInfo ownerInfo;
+      switch (userId) {
+        case Client.RIGHT_WORLD:
+          groupPrincipals.add(asPrincipalValue(Client.PUBLIC_ACCESS_GROUP,
+                  connector.getGoogleLocalNamespace()));
+          break;
+        case Client.RIGHT_SYSTEM:
+          // Ignore this case, which Livelink does not implement.
+          break;
+        case Client.RIGHT_OWNER:
+          ownerInfo = getUser(ownerId);
+          if (ownerInfo != null) {
+            userPrincipals.add(
+                asPrincipalValue(ownerInfo.name, ownerInfo.namespace));
+          }
+          break;
+        case Client.RIGHT_GROUP:
+          ownerInfo = getUser(ownerId);
+          UserInfo groupInfo =
+              (ownerInfo == null) ? null : getUser(ownerInfo.groupId);
+          if (groupInfo != null) {
+            groupPrincipals.add(
+                asPrincipalValue(groupInfo.name, groupInfo.namespace));
+          }
+          break;
+        default:
+          if (LOGGER.isLoggable(Level.FINEST)) {
+            LOGGER.finest("Unexpected user or group id: " + userId);
+          }
+      }
+    } else {
+      UserInfo userInfo = users.get(userId);
+      if (userInfo != null && !Strings.isNullOrEmpty(userInfo.name)) {
+        switch (userInfo.type) {
+          case Client.USER:
+            userPrincipals.add(
+                asPrincipalValue(userInfo.name, userInfo.namespace));
+            break;
+          case Client.GROUP:
+            groupPrincipals.add(
+                asPrincipalValue(userInfo.name, userInfo.namespace));
+        }
+      }
+    }
+  }
+
+  /** Gets a user or group, logging a warning if it is missing. */
+  private UserInfo getUser(int id) {
+    UserInfo userInfo = users.get(id);
+    if (userInfo == null && LOGGER.isLoggable(Level.WARNING)) {
+      LOGGER.warning("No user or group name found for ID " + id);
+    }
+    return userInfo;
+  }
+
+  private Value asPrincipalValue(String name, String namespace)
+      throws RepositoryDocumentException {
+    return Value.getPrincipalValue(new Principal(PrincipalType.UNKNOWN,
+        namespace, name, CaseSensitivityType.EVERYTHING_CASE_SENSITIVE));
+  }
+}
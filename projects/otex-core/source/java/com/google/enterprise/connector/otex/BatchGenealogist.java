@@ -18,6 +18,7 @@ import static com.google.common.base.Preconditions.checkState;
 
 import com.google.enterprise.connector.otex.client.Client;
 import com.google.enterprise.connector.otex.client.ClientValue;
+import com.google.enterprise.connector.otex.client.ColumnarClientValue;
 import com.google.enterprise.connector.spi.RepositoryException;
 
 import java.util.ArrayList;
@@ -56,8 +57,10 @@ class BatchGenealogist extends HybridGenealogist {
       StringBuilder descendants) throws RepositoryException {
     // First, check the matching nodes themselves.
     StringBuilder undecideds = new StringBuilder();
-    for (int i = 0; i < matching.size(); i++) {
-      final int matchingId = matching.toInteger(i, "DataID");
+    int[] matchingIds =
+        ((ColumnarClientValue) matching).toIntegerColumn("DataID");
+    for (int i = 0; i < matchingIds.length; i++) {
+      final int matchingId = matchingIds[i];
       if (!matchParent(matchingId, matchingId,
               Collections.<Integer>emptyList(), descendants))
         undecideds.append(matchingId).append(',');
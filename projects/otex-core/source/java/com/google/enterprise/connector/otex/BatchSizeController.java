@@ -0,0 +1,198 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Chooses the number of candidates to query for each batch, based on
+ * what was observed in earlier batches. The controller keeps moving
+ * averages of the fraction of candidates that become results, the
+ * query time per candidate, and the time taken to consume each
+ * result, and picks the candidate count that should make a batch
+ * take about the target time.
+ * <p>
+ * Until there are enough observations, the batch hint is used. In
+ * sparse regions, where few candidates pass the filters, the
+ * candidate count grows as soon as the yield drops, and in dense
+ * regions the count is limited by the expected consumption time.
+ * <p>
+ * This class is not thread-safe. The traversal manager calls it from
+ * one thread at a time.
+ */
+class BatchSizeController {
+  /** The logger for this class. */
+  private static final Logger LOGGER =
+      Logger.getLogger(BatchSizeController.class.getName());
+
+  /** The weight of each new observation in the moving averages. */
+  @VisibleForTesting
+  static final double ALPHA = 0.3;
+
+  /** The lowest yield used, to bound the candidates per result. */
+  private static final double MIN_YIELD = 0.001;
+
+  /** The target time for each batch, in milliseconds. */
+  private final long targetMillis;
+
+  /** The smallest number of candidates to query. */
+  private final int minSize;
+
+  /** The largest number of candidates to query. */
+  private final int maxSize;
+
+  /** The average fraction of candidates that are results, or NaN. */
+  private double yield = Double.NaN;
+
+  /** The average query time per candidate in milliseconds, or NaN. */
+  private double queryMillisPerCandidate = Double.NaN;
+
+  /** The average consumption time per result in milliseconds, or NaN. */
+  private double documentMillis = Double.NaN;
+
+  /** When the last non-empty batch was returned, or -1. */
+  private long batchReturnedNanos = -1;
+
+  /** The number of results in the last non-empty batch. */
+  private int batchResults;
+
+  /**
+   * Constructs a controller.
+   *
+   * @param targetMillis the target time for each batch, in milliseconds
+   * @param minSize the smallest number of candidates to query
+   * @param maxSize the largest number of candidates to query
+   */
+  BatchSizeController(long targetMillis, int minSize, int maxSize) {
+    Preconditions.checkArgument(targetMillis > 0,
+        "targetMillis must be positive");
+    Preconditions.checkArgument(minSize > 0 && minSize <= maxSize,
+        "minSize must be positive and no larger than maxSize");
+    this.targetMillis = targetMillis;
+    this.minSize = minSize;
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Gets the number of candidates to query next.
+   *
+   * @param batchHint the number of results requested by the
+   *     connector manager
+   * @return the number of candidates
+   */
+  int getCandidateSize(int batchHint) {
+    if (Double.isNaN(yield)) {
+      return clamp(batchHint);
+    }
+
+    // The results that fit in the target time, given that each one
+    // costs its consumption time and its share of the query time.
+    double results = batchHint;
+    if (!Double.isNaN(documentMillis)
+        && !Double.isNaN(queryMillisPerCandidate)) {
+      double millisPerResult =
+          documentMillis + queryMillisPerCandidate / yield;
+      if (millisPerResult > 0) {
+        results = Math.min(results, targetMillis / millisPerResult);
+      }
+    }
+    return clamp(Math.ceil(results / yield));
+  }
+
+  private int clamp(double size) {
+    return (int) Math.max(minSize, Math.min(maxSize, size));
+  }
+
+  /**
+   * Records the results of a candidates query and the matching
+   * results query.
+   *
+   * @param candidates the number of candidates
+   * @param results the number of results
+   * @param queryNanos the time taken by the queries, or -1 if unknown
+   */
+  void recordQuery(int candidates, int results, long queryNanos) {
+    if (candidates <= 0) {
+      return;
+    }
+    yield = average(yield,
+        Math.max(MIN_YIELD, (double) results / candidates));
+    if (queryNanos >= 0) {
+      queryMillisPerCandidate = average(queryMillisPerCandidate,
+          queryNanos / 1000000.0 / candidates);
+    }
+    if (LOGGER.isLoggable(Level.FINEST)) {
+      LOGGER.finest("BATCH CONTROLLER: " + this);
+    }
+  }
+
+  /**
+   * Records that a batch with the given number of results has been
+   * returned to the connector manager.
+   *
+   * @param results the number of results, which may be zero
+   */
+  void recordBatchReturned(int results) {
+    if (results > 0) {
+      batchReturnedNanos = System.nanoTime();
+      batchResults = results;
+    } else {
+      batchReturnedNanos = -1;
+    }
+  }
+
+  /**
+   * Records the start of the next traversal call. The time since the
+   * previous non-empty batch was returned is taken as the time to
+   * consume it, unless it is much longer than the target time, which
+   * suggests that the connector manager was idle in between.
+   */
+  void recordBatchStart() {
+    if (batchReturnedNanos == -1) {
+      return;
+    }
+    double elapsedMillis =
+        (System.nanoTime() - batchReturnedNanos) / 1000000.0;
+    batchReturnedNanos = -1;
+    if (elapsedMillis <= 10 * targetMillis) {
+      recordConsumption(batchResults, elapsedMillis);
+    }
+  }
+
+  @VisibleForTesting
+  void recordConsumption(int results, double elapsedMillis) {
+    documentMillis = average(documentMillis, elapsedMillis / results);
+  }
+
+  private static double average(double average, double value) {
+    return Double.isNaN(average)
+        ? value : average + ALPHA * (value - average);
+  }
+
+  @VisibleForTesting
+  double getYield() {
+    return yield;
+  }
+
+  @Override
+  public String toString() {
+    return "yield " + yield + ", query " + queryMillisPerCandidate
+        + " ms/candidate, consume " + documentMillis + " ms/result";
+  }
+}
@@ -0,0 +1,241 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.enterprise.connector.otex.CacheMap.CacheStatistics;
+import com.google.enterprise.connector.otex.client.Client;
+import com.google.enterprise.connector.otex.client.ClientValue;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An LRU cache of category definitions, shared by all of the
+ * {@code CategoryHandler} instances for a connector. A definition
+ * holds the attribute names, types, and attribute info (including
+ * the Search flag) of one version of a category, and the attributes
+ * within each attribute set. Category definitions do not change
+ * within a version, so the entries never need to be refreshed.
+ *
+ * @see LivelinkConnector#setCategoryCacheSize
+ */
+class CategoryDefinitionCache {
+  /** The logger for this class. */
+  private static final Logger LOGGER =
+      Logger.getLogger(CategoryDefinitionCache.class.getName());
+
+  /** The initial capacity of the cache. */
+  private static final int MIN_CAPACITY = 16;
+
+  /** The definition of a single attribute. */
+  static class AttributeDefinition {
+    final String name;
+    final int type;
+
+    /** The attribute info from {@code AttrGetInfo}, which is read-only. */
+    final ClientValue info;
+
+    /** The attributes in the set, if this is an attribute set. */
+    final List<AttributeDefinition> members;
+
+    AttributeDefinition(String name, int type, ClientValue info,
+        List<AttributeDefinition> members) {
+      this.name = name;
+      this.type = type;
+      this.info = info;
+      this.members = members;
+    }
+  }
+
+  /** The definition of one version of a category. */
+  static class CategoryDefinition {
+    final int categoryId;
+    final int version;
+    final List<AttributeDefinition> attributes;
+
+    /** The attributes by set name, or null, and attribute name. */
+    private final Map<List<String>, AttributeDefinition> attributesByName =
+        new HashMap<List<String>, AttributeDefinition>();
+
+    CategoryDefinition(int categoryId, int version,
+        List<AttributeDefinition> attributes) {
+      this.categoryId = categoryId;
+      this.version = version;
+      this.attributes = Collections.unmodifiableList(attributes);
+      for (AttributeDefinition attr : attributes) {
+        if (attr.members == null) {
+          attributesByName.put(Arrays.asList((String) null, attr.name), attr);
+        } else {
+          for (AttributeDefinition member : attr.members) {
+            attributesByName.put(Arrays.asList(attr.name, member.name),
+                member);
+          }
+        }
+      }
+    }
+
+    /**
+     * Gets an attribute by name.
+     *
+     * @param setName the name of the containing attribute set, or
+     *     {@code null}
+     * @param attrName the attribute name
+     * @return the attribute, or {@code null} if it is not defined
+     */
+    AttributeDefinition getAttribute(String setName, String attrName) {
+      return attributesByName.get(Arrays.asList(setName, attrName));
+    }
+  }
+
+  /** A category ID and version. */
+  private static class Key {
+    private final int categoryId;
+    private final int version;
+
+    Key(int categoryId, int version) {
+      this.categoryId = categoryId;
+      this.version = version;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return categoryId == other.categoryId && version == other.version;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * categoryId + version;
+    }
+
+    @Override
+    public String toString() {
+      return categoryId + "/" + version;
+    }
+  }
+
+  /** The cached definitions. Accesses must be synchronized on the map. */
+  private final CacheMap<Key, CategoryDefinition> cache;
+
+  /**
+   * Constructs an empty cache.
+   *
+   * @param maxSize the maximum number of category versions to cache
+   */
+  CategoryDefinitionCache(int maxSize) {
+    this.cache = new CacheMap<Key, CategoryDefinition>(
+        Math.min(MIN_CAPACITY, maxSize), maxSize);
+  }
+
+  /**
+   * Gets a cached category definition.
+   *
+   * @param categoryId the category object ID
+   * @param version the category version number
+   * @return the definition, or {@code null} if it is not cached
+   */
+  CategoryDefinition get(int categoryId, int version) {
+    synchronized (cache) {
+      return cache.get(new Key(categoryId, version));
+    }
+  }
+
+  /**
+   * Reads a category definition from the server and caches it. Two
+   * threads that miss at the same time may both read the definition,
+   * which is harmless.
+   *
+   * @param client the client to use
+   * @param categoryId the category object ID
+   * @param version the category version number, or -1 if it is not
+   *     known, in which case the definition is not cached
+   * @param categoryVersion the category version value from
+   *     {@code GetObjectAttributesEx}
+   * @return the definition
+   * @throws RepositoryException if an error occurs
+   */
+  CategoryDefinition load(Client client, int categoryId, int version,
+      ClientValue categoryVersion) throws RepositoryException {
+    List<AttributeDefinition> attributes =
+        getAttributes(client, categoryVersion, null);
+    CategoryDefinition definition =
+        new CategoryDefinition(categoryId, version, attributes);
+
+    if (version != -1) {
+      synchronized (cache) {
+        cache.put(new Key(categoryId, version), definition);
+      }
+    }
+    if (LOGGER.isLoggable(Level.FINEST)) {
+      LOGGER.finest("CATEGORY DEFINITION: " + categoryId + "/" + version
+          + ", " + attributes.size() + " attributes");
+    }
+    return definition;
+  }
+
+  /**
+   * Gets the attributes at the top level of a category, or in an
+   * attribute set. Nested attribute sets are not supported.
+   */
+  private List<AttributeDefinition> getAttributes(Client client,
+      ClientValue categoryVersion, String setName)
+      throws RepositoryException {
+    ClientValue attrSetPath = null;
+    if (setName != null) {
+      attrSetPath = client.getClientValueFactory().createList();
+      attrSetPath.add(setName);
+    }
+
+    ClientValue attrNames = client.AttrListNames(categoryVersion,
+        attrSetPath);
+    List<AttributeDefinition> attributes =
+        new ArrayList<AttributeDefinition>(attrNames.size());
+    for (int i = 0; i < attrNames.size(); i++) {
+      String attrName = attrNames.toString(i);
+      ClientValue attrInfo =
+          client.AttrGetInfo(categoryVersion, attrName, attrSetPath);
+      int attrType = attrInfo.toInteger("Type");
+      List<AttributeDefinition> members = null;
+      if (Client.ATTR_TYPE_SET == attrType) {
+        if (setName != null) {
+          LOGGER.finer("Nested attributes sets are not supported.");
+          continue;
+        }
+        members = Collections.unmodifiableList(
+            getAttributes(client, categoryVersion, attrName));
+      }
+      attributes.add(
+          new AttributeDefinition(attrName, attrType, attrInfo, members));
+    }
+    return attributes;
+  }
+
+  /** Returns a snapshot of the cache statistics. */
+  CacheStatistics statistics() {
+    synchronized (cache) {
+      return cache.statistics();
+    }
+  }
+}
@@ -18,7 +18,12 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.enterprise.connector.otex.client.Client;
 import com.google.enterprise.connector.otex.client.ClientValue;
 import com.google.enterprise.connector.otex.client.ClientValueFactory;
+import com.google.enterprise.connector.otex.CategoryDefinitionCache.AttributeDefinition;
+import com.google.enterprise.connector.otex.CategoryDefinitionCache.CategoryDefinition;
+import com.google.enterprise.connector.otex.CategoryTable.AttributeValue;
+import com.google.enterprise.connector.otex.CategoryTable.CategoryValues;
 import com.google.enterprise.connector.spi.RepositoryException;
+import com.google.enterprise.connector.spi.Value;
 
 import java.util.HashSet;
 import java.util.logging.Level;
@@ -47,6 +52,9 @@ class CategoryHandler {
   /** The concrete ClientValue implementation associated with this Client. */
   private final ClientValueFactory valueFactory;
 
+  /** The category definitions, shared by all of the handlers. */
+  private final CategoryDefinitionCache definitions;
+
   /** The set of categories to include. */
   private HashSet<Object> includedCategories;
 
@@ -80,6 +88,7 @@ class CategoryHandler {
     this.connector = connector;
     this.client = client;
     this.valueFactory = client.getClientValueFactory();
+    this.definitions = connector.getCategoryDefinitionCache();
 
     // Fetch the set of categories to include and exclude.
     this.includedCategories = connector.getIncludedCategories();
@@ -172,24 +181,158 @@ class CategoryHandler {
 
       ClientValue categoryVersion =
           client.GetObjectAttributesEx(objIdAssoc, categoryId);
-      ClientValue attrNames =
-          client.AttrListNames(categoryVersion, null);
+      CategoryDefinition definition =
+          getCategoryDefinition(id, categoryId, categoryVersion);
 
       // Loop over the attributes for this category.
-      int numAttributes = attrNames.size();
-      for (int j = 0; j < numAttributes; j++) {
-        String attrName = attrNames.toString(j);
-        ClientValue attrInfo =
-            client.AttrGetInfo(categoryVersion, attrName, null);
-        int attrType = attrInfo.toInteger("Type");
-        if (Client.ATTR_TYPE_SET == attrType) {
+      for (AttributeDefinition attr : definition.attributes) {
+        if (Client.ATTR_TYPE_SET == attr.type) {
           getAttributeSetValues(nameHandler, props, id, categoryVersion,
-              attrName);
+              attr);
         } else {
           getAttributeValue(nameHandler, props, id, categoryVersion,
-              attrName, attrType, null, attrInfo);
+              attr.name, attr.type, null, attr.info);
+        }
+      }
+    }
+  }
+
+  /**
+   * Gets the category attribute values for the indicated object from
+   * a table of the attribute values for a batch of objects. The
+   * categories are filtered in the same way as by
+   * {@link #collectCategoryAttributes(int, UserNameHandler,
+   * LivelinkDocument)}.
+   *
+   * @param objectId the object ID
+   * @param nameHandler a handler that maps user IDs to user names
+   * @param props the collection of all document properties to add the
+   * category attribute values to
+   * @param categoryTable the attribute values for the batch
+   * @throws RepositoryException if an error occurs
+   */
+  public void collectCategoryAttributes(int objectId,
+      UserNameHandler nameHandler, LivelinkDocument props,
+      CategoryTable categoryTable) throws RepositoryException {
+    if (doCategories == false)
+      return;
+
+    for (CategoryValues category : categoryTable.getCategories(objectId)) {
+      // If this Category is not in the included list, or it is
+      // explicitly mentioned in the excluded list, then skip it.
+      Integer id = new Integer(category.categoryId);
+      if (((includedCategories != null) &&
+              !includedCategories.contains(id)) ||
+          ((excludedCategories != null) &&
+              excludedCategories.contains(id)))
+        continue;
+
+      if (includeCategoryNames && category.categoryName != null)
+        props.addProperty("Category",
+            Value.getStringValue(category.categoryName));
+
+      CategoryDefinition definition = includeSearchable
+          ? getCategoryDefinition(objectId, category) : null;
+      for (AttributeValue attr : category.values) {
+        // Skip attributes that are marked as not searchable.
+        if (includeSearchable
+            && !(searchableCache != null && searchableCache.contains(id))) {
+          AttributeDefinition attrDef = (definition == null) ? null
+              : definition.getAttribute(attr.setName, attr.attrName);
+          if (attrDef == null || !isSearchable(id, attrDef.info))
+            continue;
         }
+
+        if (Client.ATTR_TYPE_USER == attr.attrType)
+          nameHandler.addUserByName(client, attr.attrName, attr.value,
+              props);
+        else if (Client.ATTR_TYPE_BOOL == attr.attrType)
+          props.addProperty(attr.attrName,
+              Value.getBooleanValue(attr.value.toInteger() != 0));
+        else
+          props.addProperty(attr.attrName, attr.value);
+      }
+    }
+  }
+
+  /**
+   * Gets the definition of a category version applied to an object,
+   * from the cache if possible.
+   *
+   * @param id the category object ID
+   * @param categoryId the category ID assoc from
+   *     {@code ListObjectCategoryIDs}
+   * @param categoryVersion the category version applied to the object
+   * @return the category definition
+   * @throws RepositoryException if an error occurs
+   */
+  private CategoryDefinition getCategoryDefinition(Integer id,
+      ClientValue categoryId, ClientValue categoryVersion)
+      throws RepositoryException {
+    // Without a version number we cannot tell whether a cached
+    // definition is current, so read the definition each time.
+    int version = categoryId.isDefined("Version")
+        ? categoryId.toInteger("Version") : -1;
+    CategoryDefinition definition =
+        (version == -1) ? null : definitions.get(id, version);
+    if (definition == null) {
+      definition = definitions.load(client, id, version, categoryVersion);
+    }
+    return definition;
+  }
+
+  /**
+   * Gets the definition of a category version from a
+   * {@code CategoryTable}, from the cache if possible. On a cache
+   * miss, the definition is read using the category version applied
+   * to the given object.
+   *
+   * @param objectId an object that the category is applied to
+   * @param category the category values from the table
+   * @return the category definition, or null if the category is no
+   *     longer applied to the object
+   * @throws RepositoryException if an error occurs
+   */
+  private CategoryDefinition getCategoryDefinition(int objectId,
+      CategoryValues category) throws RepositoryException {
+    CategoryDefinition definition =
+        definitions.get(category.categoryId, category.categoryVersion);
+    if (definition != null)
+      return definition;
+
+    ClientValue objIdAssoc = valueFactory.createAssoc();
+    objIdAssoc.add("ID", objectId);
+    ClientValue categoryIds = client.ListObjectCategoryIDs(objIdAssoc);
+    for (int i = 0; i < categoryIds.size(); i++) {
+      ClientValue categoryId = categoryIds.toValue(i);
+      if (categoryId.toInteger("ID") == category.categoryId) {
+        ClientValue categoryVersion =
+            client.GetObjectAttributesEx(objIdAssoc, categoryId);
+        return definitions.load(client, category.categoryId,
+            category.categoryVersion, categoryVersion);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Checks the "Search" field of the attribute info. Categories
+   * created under old versions of Livelink do not have a Search
+   * attribute, and are added to the {@code searchableCache}.
+   */
+  private boolean isSearchable(Integer id, ClientValue attrInfo) {
+    try {
+      return attrInfo.toBoolean("Search");
+    } catch (RepositoryException e) {
+      if (searchableCache == null)
+        searchableCache = new HashSet<Integer>();
+      searchableCache.add(id);
+
+      if (LOGGER.isLoggable(Level.WARNING)) {
+        LOGGER.warning("Marking category ID " + id +
+            " as searchable after " + e.getMessage());
       }
+      return true;
     }
   }
 
@@ -200,34 +343,21 @@ class CategoryHandler {
    * @param props the collection of all document properties to add the
    * @param id the category object ID for use as a cache index
    * @param categoryVersion the category being read
-   * @param attributeName the name of the attribute set
+   * @param attrSet the definition of the attribute set
    * @throws RepositoryException if an error occurs
    */
   private void getAttributeSetValues(UserNameHandler nameHandler,
       LivelinkDocument props, Integer id, ClientValue categoryVersion,
-      String attrName) throws RepositoryException {
+      AttributeDefinition attrSet) throws RepositoryException {
     // The "path" indicates the set attribute name to look
-    // inside of in other methods like AttrListNames.
+    // inside of in other methods like AttrGetValues.
     ClientValue attrSetPath = valueFactory.createList();
-    attrSetPath.add(attrName);
-
-    // Get a list of the names of the attributes in the
-    // set. Look up and store the types to avoid repeating
-    // the type lookup when there's more than one instance of
-    // the attribute set.
-    ClientValue attrSetNames =
-        client.AttrListNames(categoryVersion, attrSetPath);
-
-    ClientValue[] attrInfo = new ClientValue[attrSetNames.size()];
-    for (int i = 0; i < attrSetNames.size(); i++) {
-      String name = attrSetNames.toString(i);
-      attrInfo[i] = client.AttrGetInfo(categoryVersion, name, attrSetPath);
-    }
+    attrSetPath.add(attrSet.name);
 
     // List the values for the set attribute itself. There
     // may be multiple instances of the set.
     ClientValue setValues =
-        client.AttrGetValues(categoryVersion, attrName, null);
+        client.AttrGetValues(categoryVersion, attrSet.name, null);
 
     // Update the path to hold index of the set instance.
     attrSetPath.setSize(2);
@@ -235,16 +365,11 @@ class CategoryHandler {
     for (int i = 0; i < numSets; i++) {
       attrSetPath.setInteger(1, i);
       // For each instance (row) of the attribute set, loop
-      // over the attribute names.
-      for (int j = 0; j < attrSetNames.size(); j++) {
-        int type = attrInfo[j].toInteger("Type");
-        if (Client.ATTR_TYPE_SET == type) {
-          LOGGER.finer("Nested attributes sets are not supported.");
-          continue;
-        }
-        //System.out.println("      " + attrSetNames.toString(j));
+      // over the attributes in the set. Nested attribute sets
+      // are not included in the category definition.
+      for (AttributeDefinition attr : attrSet.members) {
         getAttributeValue(nameHandler, props, id, categoryVersion,
-            attrSetNames.toString(j), type, attrSetPath, attrInfo[j]);
+            attr.name, attr.type, attrSetPath, attr.info);
       }
     }
   }
@@ -324,7 +449,7 @@ class CategoryHandler {
       // System.out.println("getAttributeValue: k = " + k +
       // " ; value = " + value.toString2());
       if (Client.ATTR_TYPE_USER == attrType)
-        nameHandler.addUserByName(attrName, value, props);
+        nameHandler.addUserByName(client, attrName, value, props);
       else
         props.addProperty(attrName, value);
     }
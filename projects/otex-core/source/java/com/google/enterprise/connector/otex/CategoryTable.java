@@ -0,0 +1,326 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Iterables;
+import com.google.enterprise.connector.otex.client.Client;
+import com.google.enterprise.connector.otex.client.ClientValue;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An in-memory table of the category attribute values for a batch of
+ * documents. The table is loaded with a few queries over the
+ * LLAttrData and CatRegionMap tables, rather than calling
+ * {@code GetObjectAttributesEx}, {@code AttrGetInfo}, and
+ * {@code AttrGetValues} for each document.
+ *
+ * @see LivelinkConnector#setBatchCategoryAttributes
+ * @see CategoryHandler#collectCategoryAttributes(int, UserNameHandler,
+ *     LivelinkDocument, CategoryTable)
+ */
+class CategoryTable {
+  /** The logger for this class. */
+  private static final Logger LOGGER =
+      Logger.getLogger(CategoryTable.class.getName());
+
+  /** The prefix of the CatRegionMap.RegionName values. */
+  private static final String REGION_PREFIX = "Attr_";
+
+  /** A single value of an attribute. */
+  static class AttributeValue {
+    /** The name of the containing attribute set, or {@code null}. */
+    final String setName;
+    final String attrName;
+    final int attrType;
+    final ClientValue value;
+
+    AttributeValue(String setName, String attrName, int attrType,
+        ClientValue value) {
+      this.setName = setName;
+      this.attrName = attrName;
+      this.attrType = attrType;
+      this.value = value;
+    }
+  }
+
+  /** The attribute values of one category applied to one object. */
+  static class CategoryValues {
+    final int categoryId;
+
+    /** The category definition version, from LLAttrData.DefVerN. */
+    final int categoryVersion;
+    final String categoryName;
+    final List<AttributeValue> values = new ArrayList<AttributeValue>();
+
+    CategoryValues(int categoryId, int categoryVersion,
+        String categoryName) {
+      this.categoryId = categoryId;
+      this.categoryVersion = categoryVersion;
+      this.categoryName = categoryName;
+    }
+  }
+
+  /** The names of an attribute from CatRegionMap. */
+  private static class AttributeName {
+    private final String categoryName;
+    private final String setName;
+    private final String attrName;
+
+    AttributeName(String categoryName, String setName, String attrName) {
+      this.categoryName = categoryName;
+      this.setName = setName;
+      this.attrName = attrName;
+    }
+  }
+
+  /** The categories on each object, in category ID order. */
+  private final Map<Integer, List<CategoryValues>> categories =
+      new HashMap<Integer, List<CategoryValues>>();
+
+  /**
+   * Loads the category attribute values for the given objects.
+   *
+   * @param client the client to query with
+   * @param sqlQueries the SQL queries for the database type
+   * @param objectIds the object IDs
+   * @throws RepositoryException if an error occurs
+   */
+  CategoryTable(Client client, SqlQueries sqlQueries,
+      Collection<Integer> objectIds) throws RepositoryException {
+    List<ClientValue> attrData = new ArrayList<ClientValue>();
+    Set<Integer> categoryIds = new TreeSet<Integer>();
+    Iterable<List<Integer>> objectChunks = Iterables.partition(
+        new LinkedHashSet<Integer>(objectIds), SqlQueries.MAX_IN_LIST);
+    for (List<Integer> chunk : objectChunks) {
+      ClientValue results = sqlQueries.execute(client,
+          "CATEGORY ATTRIBUTES QUERY", "CategoryTable.getAttrData",
+          Joiner.on(',').join(chunk));
+      attrData.add(results);
+      for (int i = 0; i < results.size(); i++) {
+        categoryIds.add(results.toInteger(i, "DefID"));
+      }
+    }
+
+    Map<Integer, Map<Integer, AttributeName>> names =
+        getAttributeNames(client, sqlQueries, categoryIds);
+
+    for (ClientValue results : attrData) {
+      for (int i = 0; i < results.size(); i++) {
+        addValue(results, i, names);
+      }
+    }
+
+    if (LOGGER.isLoggable(Level.FINEST)) {
+      LOGGER.finest("CATEGORY TABLE: " + categories.size() + " objects, "
+          + categoryIds.size() + " categories");
+    }
+  }
+
+  /**
+   * Gets the attribute names for the given categories, by category
+   * ID and then attribute ID.
+   */
+  private Map<Integer, Map<Integer, AttributeName>> getAttributeNames(
+      Client client, SqlQueries sqlQueries, Set<Integer> categoryIds)
+      throws RepositoryException {
+    Map<Integer, Map<Integer, AttributeName>> names =
+        new HashMap<Integer, Map<Integer, AttributeName>>();
+    for (List<Integer> chunk :
+             Iterables.partition(categoryIds, SqlQueries.MAX_IN_LIST)) {
+      ClientValue results = sqlQueries.execute(client,
+          "CATEGORY NAMES QUERY", "CategoryTable.getAttrNames",
+          Joiner.on(',').join(chunk));
+      for (int i = 0; i < results.size(); i++) {
+        // The RegionName is Attr_<CatID>_<AttrID>, with an extra
+        // <SetID>_ before the AttrID for attributes in a set.
+        String regionName = results.toString(i, "RegionName");
+        int attrId = getAttributeId(regionName);
+        if (attrId == -1) {
+          if (LOGGER.isLoggable(Level.FINEST)) {
+            LOGGER.finest("Ignoring category region " + regionName);
+          }
+          continue;
+        }
+
+        int categoryId = results.toInteger(i, "DataID");
+        Map<Integer, AttributeName> attrs = names.get(categoryId);
+        if (attrs == null) {
+          attrs = new HashMap<Integer, AttributeName>();
+          names.put(categoryId, attrs);
+        }
+        String setName = results.isDefined(i, "SetName")
+            ? results.toString(i, "SetName") : null;
+        if (setName != null && setName.length() == 0) {
+          setName = null;
+        }
+        attrs.put(attrId, new AttributeName(
+                results.toString(i, "CatName"), setName,
+                results.toString(i, "AttrName")));
+      }
+    }
+    return names;
+  }
+
+  /**
+   * Gets the attribute ID from a CatRegionMap.RegionName value.
+   *
+   * @return the attribute ID, or -1 if the region name is not valid
+   */
+  private static int getAttributeId(String regionName) {
+    if (!regionName.startsWith(REGION_PREFIX)) {
+      return -1;
+    }
+    try {
+      return Integer.parseInt(
+          regionName.substring(regionName.lastIndexOf('_') + 1));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /** Adds the attribute value in the given row of LLAttrData. */
+  private void addValue(ClientValue results, int i,
+      Map<Integer, Map<Integer, AttributeName>> names)
+      throws RepositoryException {
+    int objectId = results.toInteger(i, "DataID");
+    int categoryId = results.toInteger(i, "DefID");
+    int attrId = results.toInteger(i, "AttrID");
+    int attrType = results.toInteger(i, "AttrType");
+
+    Map<Integer, AttributeName> attrs = names.get(categoryId);
+    AttributeName name = (attrs == null) ? null : attrs.get(attrId);
+    if (name == null) {
+      if (LOGGER.isLoggable(Level.FINEST)) {
+        LOGGER.finest("No name for attribute " + attrId + " of category "
+            + categoryId);
+      }
+      return;
+    }
+
+    List<CategoryValues> objectCategories = categories.get(objectId);
+    if (objectCategories == null) {
+      objectCategories = new ArrayList<CategoryValues>();
+      categories.put(objectId, objectCategories);
+    }
+    CategoryValues category = objectCategories.isEmpty() ? null
+        : objectCategories.get(objectCategories.size() - 1);
+    if (category == null || category.categoryId != categoryId) {
+      category = new CategoryValues(categoryId,
+          results.toInteger(i, "DefVerN"), name.categoryName);
+      objectCategories.add(category);
+    }
+
+    String column = getValueColumn(attrType);
+    if (column == null) {
+      if (attrType == Client.ATTR_TYPE_SET) {
+        LOGGER.finest("Ignoring an attribute set row.");
+      } else {
+        LOGGER.finest("Ignoring an unknown attribute type.");
+      }
+      return;
+    }
+    if (attrType == Client.ATTR_TYPE_STRMULTI
+        && !results.isDefined(i, column)) {
+      // Shorter multi-line values may be stored in ValStr.
+      column = "ValStr";
+    }
+    // Avoid errors if the attribute hasn't been set.
+    if (results.isDefined(i, column)) {
+      category.values.add(new AttributeValue(name.setName, name.attrName,
+              attrType, results.toValue(i, column)));
+    }
+  }
+
+  /**
+   * Gets the LLAttrData column that holds values of the given
+   * attribute type.
+   *
+   * @return the column name, or {@code null} if the type is not
+   *     supported
+   */
+  private static String getValueColumn(int attrType) {
+    switch (attrType) {
+      case Client.ATTR_TYPE_BOOL:
+      case Client.ATTR_TYPE_INT:
+      case Client.ATTR_TYPE_INTPOPUP:
+      case Client.ATTR_TYPE_USER:
+        return "ValInt";
+      case Client.ATTR_TYPE_REAL:
+      case Client.ATTR_TYPE_REALPOPUP:
+        return "ValReal";
+      case Client.ATTR_TYPE_DATE:
+      case Client.ATTR_TYPE_DATEPOPUP:
+        return "ValDate";
+      case Client.ATTR_TYPE_STRFIELD:
+      case Client.ATTR_TYPE_STRPOPUP:
+        return "ValStr";
+      case Client.ATTR_TYPE_STRMULTI:
+        return "ValLong";
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Gets the user and group IDs in the user attribute values, so that
+   * the names can be resolved in bulk.
+   *
+   * @return the user and group IDs
+   * @throws RepositoryException if an error occurs
+   */
+  public Set<Integer> getUserIds() throws RepositoryException {
+    Set<Integer> userIds = new HashSet<Integer>();
+    for (List<CategoryValues> objectCategories : categories.values()) {
+      for (CategoryValues category : objectCategories) {
+        for (AttributeValue attr : category.values) {
+          if (attr.attrType == Client.ATTR_TYPE_USER) {
+            userIds.add(attr.value.toInteger());
+          }
+        }
+      }
+    }
+    return userIds;
+  }
+
+  /**
+   * Gets the categories applied to the given object, with their
+   * attribute values.
+   *
+   * @param objectId the object ID
+   * @return the categories, in category ID order, which may be empty
+   */
+  public List<CategoryValues> getCategories(int objectId) {
+    List<CategoryValues> objectCategories = categories.get(objectId);
+    if (objectCategories == null) {
+      return Collections.emptyList();
+    } else {
+      return objectCategories;
+    }
+  }
+}
@@ -17,19 +17,42 @@ package com.google.enterprise.connector.otex;
 import com.google.enterprise.connector.otex.client.ClientValue;
 import com.google.enterprise.connector.spi.RepositoryException;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Create and parse the checkpoint strings passed back and forth between
  * the connector and the Google appliance traverser.
+ * <p>
+ * A partitioned traversal adds a field for each unfinished window
+ * after the delete checkpoint, in the form
+ * <code>w=<em>date</em>;<em>dataId</em>;<em>endDate</em></code>.
+ * Older versions ignore these fields, so a downgrade while there are
+ * unfinished windows loses them, and the items in those windows are
+ * not fed until they are modified again or the traversal is reset.
+ * Once the windows are finished, the checkpoint string has the
+ * original format again. The change
+ * feed adds a field of the form <code>c=<em>eventId</em></code>, and
+ * the permission change re-feed adds a field of the form
+ * <code>a=<em>eventId</em>;<em>dataId</em></code>.
  */
 class Checkpoint {
     /** The logger for this class. */
     private static final Logger LOGGER =
         Logger.getLogger(Checkpoint.class.getName());
 
+    /** The prefix of the change feed field in a checkpoint string. */
+    private static final String CHANGE_PREFIX = "c=";
+
+    /** The prefix of the permission change field in a checkpoint string. */
+    private static final String ACL_PREFIX = "a=";
+
     /** The formatter used for the Date portions of checkpoints. */
     private static final LivelinkDateFormat dateFmt =
         LivelinkDateFormat.getInstance();
@@ -62,6 +85,66 @@ class Checkpoint {
     private long oldDeleteEventId;
     private Date oldDeleteDate;
 
+    /**
+     * The unfinished windows of a partitioned traversal, in ModifyDate
+     * order. The insert checkpoint covers the items after the last
+     * window.
+     */
+    private final List<Window> windows = new ArrayList<Window>();
+
+    /** Whether a window has been finished since this was created. */
+    private boolean windowRemoved;
+
+    /** EventID of the last audit event read by the change feed. */
+    public long changeEventId;
+
+    /** EventID of the last audit event in the current change batch. */
+    private long advChangeEventId;
+
+    /** Backup of the change feed checkpoint. */
+    private long oldChangeEventId;
+
+    /**
+     * Whether the current batch is from the change feed, in which case
+     * the inserted items do not move the insert checkpoint.
+     */
+    private boolean changeBatch;
+
+    /** The EventIDs of the audit events in the current change batch. */
+    private long[] changeEventIds;
+
+    /** The progress through the events of the current change batch. */
+    private Progress changeProgress;
+
+    /** EventID of the last permission change event re-fed. */
+    public long aclEventId;
+
+    /**
+     * DataID of the last item re-fed from the permission change events
+     * after {@code aclEventId}, if they have only been partly re-fed.
+     */
+    public int aclDataId;
+
+    /** The advance and backup permission change checkpoints. */
+    private long advAclEventId;
+    private int advAclDataId;
+    private long oldAclEventId;
+    private int oldAclDataId;
+
+    /**
+     * Whether the current batch is a permission change re-feed, in
+     * which case the inserted items do not move the insert checkpoint.
+     */
+    private boolean aclBatch;
+
+    /**
+     * The permission change checkpoint after each step of the current
+     * re-feed batch, and the progress through those steps.
+     */
+    private long[] aclStepEventIds;
+    private int[] aclStepDataIds;
+    private Progress aclProgress;
+
     /** Generic Constructor */
     Checkpoint() {
     }
@@ -77,7 +160,8 @@ class Checkpoint {
         if ((checkpoint != null) && (checkpoint.trim().length() > 0)) {
             try {
                 // Push entries beyond the first four into a fifth
-                // array element, which we ignore. This is to avoid
+                // array element, which holds the partitioned traversal
+                // windows. Other entries are ignored. This is to avoid
                 // failing completely on newer checkpoint strings.
                 String [] points = checkpoint.trim().split(",", 5);
                 if (points.length < 2)
@@ -107,6 +191,26 @@ class Checkpoint {
                         oldDeleteEventId = deleteEventId;
                     }
                 }
+
+                // The windows are optional.
+                if (points.length > 4) {
+                    for (String field : points[4].split(",")) {
+                        if (field.startsWith(Window.PREFIX)) {
+                            windows.add(new Window(field));
+                        } else if (field.startsWith(CHANGE_PREFIX)) {
+                            changeEventId = Long.parseLong(
+                                field.substring(CHANGE_PREFIX.length()));
+                            oldChangeEventId = changeEventId;
+                        } else if (field.startsWith(ACL_PREFIX)) {
+                            String[] parts = field.substring(
+                                ACL_PREFIX.length()).split(";");
+                            aclEventId = Long.parseLong(parts[0]);
+                            aclDataId = Integer.parseInt(parts[1]);
+                            oldAclEventId = aclEventId;
+                            oldAclDataId = aclDataId;
+                        }
+                    }
+                }
             } catch (Exception e) {
                 throw new LivelinkException(
                     "Invalid checkpoint: " + checkpoint, e, LOGGER);
@@ -136,6 +240,32 @@ class Checkpoint {
      * @param dataId the DataID of the last item inserted.
      */
     public void setInsertCheckpoint(Date date, int dataId) {
+        // Items from the change feed or a permission change re-feed are
+        // not in ModifyDate order, and are covered by their own
+        // checkpoints instead.
+        if (changeBatch) {
+            int done = changeProgress.returnItem(dataId);
+            if (done > 0) {
+                setChangeCheckpoint(changeEventIds[done - 1]);
+            }
+            return;
+        }
+        if (aclBatch) {
+            int done = aclProgress.returnItem(dataId);
+            if (done > 0) {
+                setAclCheckpoint(aclStepEventIds[done - 1],
+                    aclStepDataIds[done - 1]);
+            }
+            return;
+        }
+
+        // Items in a partitioned traversal window move that window.
+        Window window = getWindow(date);
+        if (window != null) {
+            window.setInsertCheckpoint(date, dataId);
+            return;
+        }
+
         // Remember previous insert checkpoint as a restore point.
         oldInsertDate = insertDate;
         oldInsertDataId = insertDataId;
@@ -173,21 +303,31 @@ class Checkpoint {
             return;
         }
 
+        deleteEventId = toEventId(eventId);
+        log("DELETE CHECKPOINT", date, deleteEventId);
+    }
+
+    /**
+     * Converts an EventID from the audit log to a long. See
+     * {@link #setDeleteCheckpoint} for the types that are supported.
+     *
+     * @param eventId the EventID
+     * @return the EventID as a long
+     * @throws RepositoryException if an unexpected runtime error occurs
+     */
+    static long toEventId(ClientValue eventId) throws RepositoryException {
         switch (eventId.type()) {
         case ClientValue.INTEGER:
             // Oracle, Livelink 9.7 and earlier.
-            deleteEventId = eventId.toInteger();
-            break;
+            return eventId.toInteger();
 
         case ClientValue.DOUBLE:
             // SQL Server, Livelink 9.7 and earlier.
-            deleteEventId = (long) eventId.toDouble();
-            break;
+            return (long) eventId.toDouble();
 
         case ClientValue.LONG:
             // Oracle and SQL Server, Livelink 9.7.1.
-            deleteEventId = eventId.toLong();
-            break;
+            return eventId.toLong();
 
         default:
             // XXX: EventID is a NUMBER(10) in Oracle, and a NUMERIC(10,0)
@@ -197,10 +337,115 @@ class Checkpoint {
             // deletes. That is better than an infinite loop.
             LOGGER.info("UNKNOWN EVENT ID TYPE: " + eventId.type() +
                 "; value = " + eventId.toString2());
-            deleteEventId = 9999999999L;
-            break;
+            return 9999999999L;
         }
-        log("DELETE CHECKPOINT", date, deleteEventId);
+    }
+
+    /**
+     * Sets the change feed portion of the checkpoint.
+     *
+     * @param eventId the EventID of the last audit event read
+     */
+    public void setChangeCheckpoint(long eventId) {
+        oldChangeEventId = changeEventId;
+        changeEventId = eventId;
+        if (LOGGER.isLoggable(Level.FINER)) {
+            LOGGER.finer("CHANGE CHECKPOINT: " + String.valueOf(eventId));
+        }
+    }
+
+    /**
+     * Marks the current batch as a change feed batch. The inserted
+     * items will not move the insert checkpoint. As the items are
+     * returned, the change feed checkpoint advances to the last event
+     * whose item, and every earlier event's item, has been returned or
+     * is not in the batch. At the end of the batch, it advances to the
+     * last event.
+     *
+     * @param eventIds the EventIDs of the audit events in the batch,
+     *     in order
+     * @param dataIds the DataIDs named by the events
+     * @param resultIds the DataIDs of the items in the batch
+     */
+    public void setChangeBatch(long[] eventIds, int[] dataIds,
+            int[] resultIds) {
+        changeBatch = true;
+        changeEventIds = eventIds;
+        changeProgress = new Progress(dataIds, resultIds);
+        advChangeEventId = eventIds[eventIds.length - 1];
+    }
+
+    /**
+     * Sets the permission change portion of the checkpoint.
+     *
+     * @param eventId the EventID of the last event re-fed
+     * @param dataId the DataID of the last item re-fed from the
+     *     following events, or 0 if none of them have been re-fed
+     */
+    public void setAclCheckpoint(long eventId, int dataId) {
+        oldAclEventId = aclEventId;
+        oldAclDataId = aclDataId;
+        aclEventId = eventId;
+        aclDataId = dataId;
+        if (LOGGER.isLoggable(Level.FINER)) {
+            LOGGER.finer("ACL CHECKPOINT: " + String.valueOf(eventId) + ","
+                + String.valueOf(dataId));
+        }
+    }
+
+    /**
+     * Marks the current batch as a permission change re-feed of the
+     * items named by the given events. The inserted items will not
+     * move the insert checkpoint. As the items are returned, the
+     * permission change checkpoint advances to the last event whose
+     * item, and every earlier event's item, has been returned or is
+     * not in the batch. At the end of the batch, it advances to the
+     * last event.
+     *
+     * @param eventIds the EventIDs of the events in the batch, in order
+     * @param dataIds the DataIDs named by the events
+     * @param resultIds the DataIDs of the items in the batch
+     */
+    public void setAclBatch(long[] eventIds, int[] dataIds,
+            int[] resultIds) {
+        setAclBatch(eventIds, new int[eventIds.length], dataIds, resultIds,
+            eventIds[eventIds.length - 1], 0);
+    }
+
+    /**
+     * Marks the current batch as a permission change re-feed of the
+     * given items, which are the next items in DataID order from the
+     * events after the current permission change checkpoint. The
+     * inserted items will not move the insert checkpoint. As the items
+     * are returned, the DataID in the permission change checkpoint
+     * advances to the last item that, along with every earlier item,
+     * has been returned or is not in the batch. At the end of the
+     * batch, the checkpoint advances to the given values.
+     *
+     * @param itemIds the DataIDs of the items, in order
+     * @param resultIds the DataIDs of the items in the batch
+     * @param eventId the EventID of the last event re-fed at the end
+     *     of the batch
+     * @param dataId the DataID of the last item re-fed from the
+     *     following events at the end of the batch, or 0 if all of the
+     *     items from the events have been re-fed
+     */
+    public void setAclBatch(int[] itemIds, int[] resultIds, long eventId,
+            int dataId) {
+        long[] stepEventIds = new long[itemIds.length];
+        Arrays.fill(stepEventIds, aclEventId);
+        setAclBatch(stepEventIds, itemIds, itemIds, resultIds, eventId,
+            dataId);
+    }
+
+    private void setAclBatch(long[] stepEventIds, int[] stepDataIds,
+            int[] itemIds, int[] resultIds, long eventId, int dataId) {
+        aclBatch = true;
+        aclStepEventIds = stepEventIds;
+        aclStepDataIds = stepDataIds;
+        aclProgress = new Progress(itemIds, resultIds);
+        advAclEventId = eventId;
+        advAclDataId = dataId;
     }
 
     /**
@@ -228,6 +473,28 @@ class Checkpoint {
             insertDate = advInsertDate;
             insertDataId = advInsertDataId;
         }
+        for (Window window : windows) {
+            window.advanceToEnd();
+        }
+        if (changeBatch) {
+            setChangeCheckpoint(advChangeEventId);
+        }
+        if (aclBatch) {
+            setAclCheckpoint(advAclEventId, advAclDataId);
+        }
+    }
+
+    /**
+     * Advance the checkpoint to just before a later item, skipping
+     * the candidates in between. The restore point is unchanged.
+     *
+     * @param date the ModifyDate of the last candidate to skip.
+     * @param dataId the DataID of the last candidate to skip.
+     */
+    public void skipTo(Date date, int dataId) {
+        insertDate = date;
+        insertDataId = dataId;
+        log("SKIP CHECKPOINT", date, dataId);
     }
 
     /**
@@ -245,10 +512,21 @@ class Checkpoint {
      * (In other words, restore() would result in a different checkpoint.)
      */
     public boolean hasChanged() {
+        if (windowRemoved) {
+            return true;
+        }
+        for (Window window : windows) {
+            if (window.hasChanged()) {
+                return true;
+            }
+        }
         return (insertDate != oldInsertDate ||
                 insertDataId != oldInsertDataId ||
                 deleteDate != oldDeleteDate ||
-                deleteEventId != oldDeleteEventId);
+                deleteEventId != oldDeleteEventId ||
+                changeEventId != oldChangeEventId ||
+                aclEventId != oldAclEventId ||
+                aclDataId != oldAclDataId);
     }
 
     /**
@@ -260,6 +538,65 @@ class Checkpoint {
         insertDataId = oldInsertDataId;
         deleteDate = oldDeleteDate;
         deleteEventId = oldDeleteEventId;
+        changeEventId = oldChangeEventId;
+        aclEventId = oldAclEventId;
+        aclDataId = oldAclDataId;
+        for (Window window : windows) {
+            window.restore();
+        }
+    }
+
+    /**
+     * Adds a window to a partitioned traversal. The windows must be
+     * added in order, and must all end before the insert checkpoint.
+     *
+     * @param date the ModifyDate of the window's starting point
+     * @param dataId the DataID of the window's starting point
+     * @param endDate the ModifyDate of the end of the window, exclusive
+     */
+    public void addWindow(Date date, int dataId, Date endDate) {
+        windows.add(new Window(date, dataId, endDate));
+        log("WINDOW CHECKPOINT", date, dataId);
+    }
+
+    /**
+     * Removes a finished window from a partitioned traversal. Once
+     * all of the windows are removed, only the insert checkpoint is
+     * left.
+     *
+     * @param window the window to remove
+     */
+    public void removeWindow(Window window) {
+        windows.remove(window);
+        windowRemoved = true;
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("WINDOW FINISHED: " + window + "; "
+                + windows.size() + " remaining");
+        }
+    }
+
+    /**
+     * Gets the unfinished windows of a partitioned traversal.
+     *
+     * @return a copy of the list of windows, in ModifyDate order
+     */
+    public List<Window> getWindows() {
+        return new ArrayList<Window>(windows);
+    }
+
+    /**
+     * Gets the window containing the given ModifyDate.
+     *
+     * @return the window, or {@code null} if the date is after the
+     *     last window
+     */
+    private Window getWindow(Date date) {
+        for (Window window : windows) {
+            if (date.before(window.endDate)) {
+                return window;
+            }
+        }
+        return null;
     }
 
     /**
@@ -267,7 +604,8 @@ class Checkpoint {
      */
     public String toString() {
         // A null checkpoint is OK.
-        if ((insertDate == null) && (deleteDate == null))
+        if ((insertDate == null) && (deleteDate == null) &&
+            windows.isEmpty() && changeEventId == 0 && aclEventId == 0)
             return null;
 
         StringBuffer buffer = new StringBuffer();
@@ -284,8 +622,162 @@ class Checkpoint {
             buffer.append(dateFmt.toSqlMillisString(deleteDate));
             buffer.append(',');
             buffer.append(deleteEventId);
+        } else if (!windows.isEmpty() || changeEventId != 0 ||
+                   aclEventId != 0) {
+            buffer.append(",,");
+        }
+
+        // The partitioned traversal windows are optional.
+        for (Window window : windows) {
+            buffer.append(',');
+            buffer.append(window);
+        }
+
+        // The change feed checkpoint is optional.
+        if (changeEventId != 0) {
+            buffer.append(',');
+            buffer.append(CHANGE_PREFIX);
+            buffer.append(changeEventId);
+        }
+
+        // The permission change checkpoint is optional.
+        if (aclEventId != 0) {
+            buffer.append(',');
+            buffer.append(ACL_PREFIX);
+            buffer.append(aclEventId);
+            buffer.append(';');
+            buffer.append(aclDataId);
         }
 
         return  buffer.toString();
     }
+
+    /**
+     * A ModifyDate window of a partitioned traversal. Each window is
+     * traversed concurrently with the others and with the insert
+     * checkpoint, and has its own starting point that moves forward
+     * like the insert checkpoint. A window covers the items after its
+     * starting point with a ModifyDate before its end date.
+     */
+    static class Window {
+        /** The prefix of a window in a checkpoint string. */
+        private static final String PREFIX = "w=";
+
+        /** DataID of the last item inserted from this window. */
+        public int insertDataId;
+
+        /** ModifyDate of the last item inserted from this window. */
+        public Date insertDate;
+
+        /** The ModifyDate of the end of this window, exclusive. */
+        public final Date endDate;
+
+        private int advInsertDataId;
+        private Date advInsertDate;
+        private int oldInsertDataId;
+        private Date oldInsertDate;
+
+        private Window(Date date, int dataId, Date endDate) {
+            this.insertDate = date;
+            this.insertDataId = dataId;
+            this.endDate = endDate;
+            this.oldInsertDate = date;
+            this.oldInsertDataId = dataId;
+        }
+
+        /** Parses a window field from a checkpoint string. */
+        private Window(String field) {
+            String[] parts = field.substring(PREFIX.length()).split(";");
+            this.insertDate = dateFmt.parse(parts[0]);
+            this.insertDataId = Integer.parseInt(parts[1]);
+            this.endDate = dateFmt.parse(parts[2]);
+            if (insertDate == null || endDate == null) {
+                throw new IllegalArgumentException(field);
+            }
+            this.oldInsertDate = insertDate;
+            this.oldInsertDataId = insertDataId;
+        }
+
+        private void setInsertCheckpoint(Date date, int dataId) {
+            oldInsertDate = insertDate;
+            oldInsertDataId = insertDataId;
+            insertDate = date;
+            insertDataId = dataId;
+        }
+
+        /**
+         * Set the checkpoint for the last Inserted Items Candidate
+         * from this window.
+         *
+         * @param date the ModifyDate of the last insert candidate.
+         * @param dataId the DataID of the last insert candidate.
+         */
+        public void setAdvanceCheckpoint(Date date, int dataId) {
+            advInsertDate = date;
+            advInsertDataId = dataId;
+        }
+
+        private void advanceToEnd() {
+            if (advInsertDate != null) {
+                insertDate = advInsertDate;
+                insertDataId = advInsertDataId;
+            }
+        }
+
+        private boolean hasChanged() {
+            return insertDate != oldInsertDate
+                || insertDataId != oldInsertDataId;
+        }
+
+        private void restore() {
+            insertDate = oldInsertDate;
+            insertDataId = oldInsertDataId;
+        }
+
+        /** @returns the window as a checkpoint string field */
+        public String toString() {
+            return PREFIX + dateFmt.toSqlString(insertDate) + ';'
+                + insertDataId + ';' + dateFmt.toSqlString(endDate);
+        }
+    }
+
+    /**
+     * The progress through the steps of a change feed or permission
+     * change batch, whose items are not returned in the order of the
+     * steps. Each step names an item, and is done once its item has
+     * been returned, or if its item is not in the batch.
+     */
+    private static class Progress {
+        /** The DataIDs named by the steps, in order. */
+        private final int[] dataIds;
+
+        /** The DataIDs in the batch that have not been returned. */
+        private final Set<Integer> pending = new HashSet<Integer>();
+
+        /** The number of leading steps that are done. */
+        private int done = 0;
+
+        Progress(int[] dataIds, int[] resultIds) {
+            this.dataIds = dataIds;
+            for (int resultId : resultIds) {
+                pending.add(resultId);
+            }
+        }
+
+        /**
+         * Records that an item has been returned.
+         *
+         * @param dataId the DataID of the returned item
+         * @return the number of leading steps that are done, if it
+         *     changed, or zero otherwise
+         */
+        int returnItem(int dataId) {
+            pending.remove(dataId);
+            int first = done;
+            while (done < dataIds.length && !pending.contains(dataIds[done])) {
+                done++;
+            }
+            return (done > first) ? done : 0;
+        }
+    }
 }
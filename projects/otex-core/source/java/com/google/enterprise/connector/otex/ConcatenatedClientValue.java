@@ -0,0 +1,527 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.enterprise.connector.otex.client.ClientValue;
+import com.google.enterprise.connector.otex.client.ColumnarClientValue;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * A read-only record array made from the rows of several record
+ * arrays with the same columns, in order. This is used to combine the
+ * results of a query that was split into several queries to keep the
+ * SQL IN lists short. The parts must implement
+ * {@link ColumnarClientValue}, and their columns are assumed to be in
+ * the same order.
+ * <p>
+ * Row-indexed methods are mapped to the part containing the row. The
+ * methods that do not take a row are delegated to the first part.
+ * The methods that modify the value throw an
+ * <code>IllegalArgumentException</code>, like the unimplemented
+ * methods of other record arrays.
+ */
+final class ConcatenatedClientValue implements ColumnarClientValue {
+  /**
+   * Combines the given record arrays.
+   *
+   * @param parts the record arrays to combine, in order; null values
+   *     are ignored
+   * @return the combined record array, the only non-empty part if
+   *     there is only one, the first part if they are all empty, or
+   *     null if they are all null
+   */
+  static ClientValue concat(List<ClientValue> parts) {
+    ClientValue first = null;
+    List<ColumnarClientValue> nonEmpty =
+        new ArrayList<ColumnarClientValue>();
+    for (ClientValue part : parts) {
+      if (part != null) {
+        if (first == null) {
+          first = part;
+        }
+        if (part.size() > 0) {
+          nonEmpty.add((ColumnarClientValue) part);
+        }
+      }
+    }
+    switch (nonEmpty.size()) {
+      case 0:
+        return first;
+      case 1:
+        return nonEmpty.get(0);
+      default:
+        return new ConcatenatedClientValue(nonEmpty);
+    }
+  }
+
+  private final ColumnarClientValue[] parts;
+
+  /** The first row of each part, plus the total number of rows. */
+  private final int[] starts;
+
+  private ConcatenatedClientValue(List<ColumnarClientValue> parts) {
+    this.parts = parts.toArray(new ColumnarClientValue[parts.size()]);
+    this.starts = new int[parts.size() + 1];
+    for (int i = 0; i < this.parts.length; i++) {
+      starts[i + 1] = starts[i] + this.parts[i].size();
+    }
+  }
+
+  /** Gets the index of the part containing the given row. */
+  private int getPart(int row) {
+    if (row < 0 || row >= size()) {
+      throw new IndexOutOfBoundsException("Row " + row + " of " + size());
+    }
+    // The parts are not empty, so the starts are strictly increasing.
+    int i = Arrays.binarySearch(starts, row);
+    return (i >= 0) ? i : -i - 2;
+  }
+
+  /** Gets the exception thrown by the methods that modify the value. */
+  private static IllegalArgumentException readOnly() {
+    return new IllegalArgumentException(
+        "ConcatenatedClientValue is read-only");
+  }
+
+  @Override
+  public int size() {
+    return starts[parts.length];
+  }
+
+  @Override
+  public void setSize(int size) {
+    throw readOnly();
+  }
+
+  @Override
+  public void setInteger(int index, int value) {
+    throw readOnly();
+  }
+
+  @Override
+  public boolean hasValue() {
+    return parts[0].hasValue();
+  }
+
+  @Override
+  public int type() {
+    return parts[0].type();
+  }
+
+  @Override
+  public Enumeration<String> enumerateNames() {
+    return parts[0].enumerateNames();
+  }
+
+  @Override
+  public ClientValue stringToValue() throws RepositoryException {
+    return parts[0].stringToValue();
+  }
+
+  @Override
+  public boolean isDefined(int row, String field) throws RepositoryException {
+    int i = getPart(row);
+    return parts[i].isDefined(row - starts[i], field);
+  }
+
+  @Override
+  public ClientValue toValue(int row, String field)
+      throws RepositoryException {
+    int i = getPart(row);
+    return parts[i].toValue(row - starts[i], field);
+  }
+
+  @Override
+  public ClientValue toValue(int index) throws RepositoryException {
+    int i = getPart(index);
+    return parts[i].toValue(index - starts[i]);
+  }
+
+  @Override
+  public String toString(int index) throws RepositoryException {
+    int i = getPart(index);
+    return parts[i].toString(index - starts[i]);
+  }
+
+  @Override
+  public int toInteger(int index) throws RepositoryException {
+    int i = getPart(index);
+    return parts[i].toInteger(index - starts[i]);
+  }
+
+  @Override
+  public long toLong(int index) throws RepositoryException {
+    int i = getPart(index);
+    return parts[i].toLong(index - starts[i]);
+  }
+
+  @Override
+  public boolean toBoolean(int row, String field) throws RepositoryException {
+    int i = getPart(row);
+    return parts[i].toBoolean(row - starts[i], field);
+  }
+
+  @Override
+  public Date toDate(int row, String field) throws RepositoryException {
+    int i = getPart(row);
+    return parts[i].toDate(row - starts[i], field);
+  }
+
+  @Override
+  public double toDouble(int row, String field) throws RepositoryException {
+    int i = getPart(row);
+    return parts[i].toDouble(row - starts[i], field);
+  }
+
+  @Override
+  public int toInteger(int row, String field) throws RepositoryException {
+    int i = getPart(row);
+    return parts[i].toInteger(row - starts[i], field);
+  }
+
+  @Override
+  public long toLong(int row, String field) throws RepositoryException {
+    int i = getPart(row);
+    return parts[i].toLong(row - starts[i], field);
+  }
+
+  @Override
+  public String toString(int row, String field) throws RepositoryException {
+    int i = getPart(row);
+    return parts[i].toString(row - starts[i], field);
+  }
+
+  @Override
+  public boolean isDefined(String field) throws RepositoryException {
+    return parts[0].isDefined(field);
+  }
+
+  @Override
+  public ClientValue toValue(String field) throws RepositoryException {
+    return parts[0].toValue(field);
+  }
+
+  @Override
+  public boolean toBoolean(String field) throws RepositoryException {
+    return parts[0].toBoolean(field);
+  }
+
+  @Override
+  public Date toDate(String field) throws RepositoryException {
+    return parts[0].toDate(field);
+  }
+
+  @Override
+  public double toDouble(String field) throws RepositoryException {
+    return parts[0].toDouble(field);
+  }
+
+  @Override
+  public int toInteger(String field) throws RepositoryException {
+    return parts[0].toInteger(field);
+  }
+
+  @Override
+  public long toLong(String field) throws RepositoryException {
+    return parts[0].toLong(field);
+  }
+
+  @Override
+  public String toString(String field) throws RepositoryException {
+    return parts[0].toString(field);
+  }
+
+  @Override
+  public boolean isDefined(int index) throws RepositoryException {
+    int i = getPart(index);
+    return parts[i].isDefined(index - starts[i]);
+  }
+
+  @Override
+  public boolean toBoolean(int index) throws RepositoryException {
+    int i = getPart(index);
+    return parts[i].toBoolean(index - starts[i]);
+  }
+
+  @Override
+  public Date toDate(int index) throws RepositoryException {
+    int i = getPart(index);
+    return parts[i].toDate(index - starts[i]);
+  }
+
+  @Override
+  public double toDouble(int index) throws RepositoryException {
+    int i = getPart(index);
+    return parts[i].toDouble(index - starts[i]);
+  }
+
+  @Override
+  public boolean isDefined() throws RepositoryException {
+    return parts[0].isDefined();
+  }
+
+  @Override
+  public boolean toBoolean() throws RepositoryException {
+    return parts[0].toBoolean();
+  }
+
+  @Override
+  public Date toDate() throws RepositoryException {
+    return parts[0].toDate();
+  }
+
+  @Override
+  public double toDouble() throws RepositoryException {
+    return parts[0].toDouble();
+  }
+
+  @Override
+  public int toInteger() throws RepositoryException {
+    return parts[0].toInteger();
+  }
+
+  @Override
+  public long toLong() throws RepositoryException {
+    return parts[0].toLong();
+  }
+
+  @Override
+  public String toString2() throws RepositoryException {
+    return parts[0].toString2();
+  }
+
+  @Override
+  public int add(String key, boolean obj) {
+    throw readOnly();
+  }
+
+  @Override
+  public int add(String key, char obj) {
+    throw readOnly();
+  }
+
+  @Override
+  public int add(String key, int obj) {
+    throw readOnly();
+  }
+
+  @Override
+  public int add(String key, long obj) {
+    throw readOnly();
+  }
+
+  @Override
+  public int add(String key, float obj) {
+    throw readOnly();
+  }
+
+  @Override
+  public int add(String key, double obj) {
+    throw readOnly();
+  }
+
+  @Override
+  public int add(String key, Boolean obj) {
+    throw readOnly();
+  }
+
+  @Override
+  public int add(String key, Double obj) {
+    throw readOnly();
+  }
+
+  @Override
+  public int add(String key, Float obj) {
+    throw readOnly();
+  }
+
+  @Override
+  public int add(String key, Integer obj) {
+    throw readOnly();
+  }
+
+  @Override
+  public int add(String key, Long obj) {
+    throw readOnly();
+  }
+
+  @Override
+  public int add(String key, String obj) {
+    throw readOnly();
+  }
+
+  @Override
+  public int add(String key, Date obj) {
+    throw readOnly();
+  }
+
+  @Override
+  public int add(boolean obj) {
+    throw readOnly();
+  }
+
+  @Override
+  public int add(char obj) {
+    throw readOnly();
+  }
+
+  @Override
+  public int add(int obj) {
+    throw readOnly();
+  }
+
+  @Override
+  public int add(long obj) {
+    throw readOnly();
+  }
+
+  @Override
+  public int add(float obj) {
+    throw readOnly();
+  }
+
+  @Override
+  public int add(double obj) {
+    throw readOnly();
+  }
+
+  @Override
+  public int add(Boolean obj) {
+    throw readOnly();
+  }
+
+  @Override
+  public int add(Double obj) {
+    throw readOnly();
+  }
+
+  @Override
+  public int add(Float obj) {
+    throw readOnly();
+  }
+
+  @Override
+  public int add(Integer obj) {
+    throw readOnly();
+  }
+
+  @Override
+  public int add(Long obj) {
+    throw readOnly();
+  }
+
+  @Override
+  public int add(String obj) {
+    throw readOnly();
+  }
+
+  @Override
+  public int add(Date obj) {
+    throw readOnly();
+  }
+
+  @Override
+  public int getColumnIndex(String field) throws RepositoryException {
+    return parts[0].getColumnIndex(field);
+  }
+
+  @Override
+  public boolean isDefined(int row, int column) throws RepositoryException {
+    int i = getPart(row);
+    return parts[i].isDefined(row - starts[i], column);
+  }
+
+  @Override
+  public ClientValue toValue(int row, int column) throws RepositoryException {
+    int i = getPart(row);
+    return parts[i].toValue(row - starts[i], column);
+  }
+
+  @Override
+  public Date toDate(int row, int column) throws RepositoryException {
+    int i = getPart(row);
+    return parts[i].toDate(row - starts[i], column);
+  }
+
+  @Override
+  public int toInteger(int row, int column) throws RepositoryException {
+    int i = getPart(row);
+    return parts[i].toInteger(row - starts[i], column);
+  }
+
+  @Override
+  public long toLong(int row, int column) throws RepositoryException {
+    int i = getPart(row);
+    return parts[i].toLong(row - starts[i], column);
+  }
+
+  @Override
+  public String toString(int row, int column) throws RepositoryException {
+    int i = getPart(row);
+    return parts[i].toString(row - starts[i], column);
+  }
+
+  @Override
+  public int[] toIntegerColumn(String field) throws RepositoryException {
+    int[] values = new int[size()];
+    for (int i = 0; i < parts.length; i++) {
+      int[] part = parts[i].toIntegerColumn(field);
+      System.arraycopy(part, 0, values, starts[i], part.length);
+    }
+    return values;
+  }
+
+  @Override
+  public long[] toLongColumn(String field) throws RepositoryException {
+    long[] values = new long[size()];
+    for (int i = 0; i < parts.length; i++) {
+      long[] part = parts[i].toLongColumn(field);
+      System.arraycopy(part, 0, values, starts[i], part.length);
+    }
+    return values;
+  }
+
+  @Override
+  public long[] toEpochSecondColumn(String field) throws RepositoryException {
+    long[] values = new long[size()];
+    for (int i = 0; i < parts.length; i++) {
+      long[] part = parts[i].toEpochSecondColumn(field);
+      System.arraycopy(part, 0, values, starts[i], part.length);
+    }
+    return values;
+  }
+
+  @Override
+  public String[] toStringColumn(String field) throws RepositoryException {
+    String[] values = new String[size()];
+    for (int i = 0; i < parts.length; i++) {
+      String[] part = parts[i].toStringColumn(field);
+      System.arraycopy(part, 0, values, starts[i], part.length);
+    }
+    return values;
+  }
+
+  @Override
+  public String toString() {
+    return "ConcatenatedClientValue(" + size() + " rows in "
+        + parts.length + " parts)";
+  }
+}
@@ -0,0 +1,525 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.enterprise.connector.otex.client.Client;
+import com.google.enterprise.connector.otex.client.ClientValue;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This content handler implementation fetches content on a pool of
+ * worker threads, each with its own client, so that large downloads
+ * do not hold up the traversal client. Content announced with
+ * {@link #prefetch} is fetched into memory ahead of the consumer,
+ * subject to a global limit on the number of bytes that have been
+ * fetched or are being fetched but have not been consumed. Content
+ * that was not prefetched is fetched on demand into a temporary
+ * file, as with {@link FileContentHandler}.
+ * <p>
+ * Prefetched content is identified by its object and ModifyDate, so
+ * that content left over from an abandoned batch is not returned for
+ * a later version. The budget held by prefetched content is released
+ * when the returned stream is read to the end or closed.
+ * <p>
+ * The size limit uses the size hints, so a document whose actual
+ * size differs from its <code>DataSize</code> may briefly exceed it.
+ *
+ * @see ContentHandler
+ */
+class ConcurrentContentHandler implements PrefetchingContentHandler {
+  /** The logger for this class. */
+  private static final Logger LOGGER =
+      Logger.getLogger(ConcurrentContentHandler.class.getName());
+
+  /** The connector contains configuration information. */
+  private LivelinkConnector connector;
+
+  /** The number of worker threads. */
+  private int fetchThreads = 2;
+
+  /** The number of documents to prefetch ahead of the consumer. */
+  private int lookahead = 4;
+
+  /** The maximum number of prefetched bytes not yet consumed. */
+  private long maxBytesInFlight = 64L * 1024 * 1024;
+
+  /** The worker threads, created on demand. */
+  private ExecutorService executor = null;
+
+  /** The fetchers for the worker threads, one per thread. */
+  private BlockingQueue<Fetcher> fetchers = null;
+
+  /** The remaining prefetch budget, in kilobytes. */
+  private Semaphore budget = null;
+
+  /** The prefetched content that has not been consumed yet. */
+  private final Map<String, Prefetch> pending =
+      new HashMap<String, Prefetch>();
+
+  ConcurrentContentHandler() {
+  }
+
+  /**
+   * Sets the number of worker threads used to fetch content. Each
+   * thread uses its own client.
+   *
+   * @param fetchThreads the number of worker threads
+   */
+  public void setFetchThreads(int fetchThreads) {
+    LOGGER.log(Level.CONFIG, "CONTENT HANDLER FETCH THREADS: {0}",
+        fetchThreads);
+    if (fetchThreads <= 0) {
+      throw new IllegalArgumentException("fetchThreads must be positive");
+    }
+    this.fetchThreads = fetchThreads;
+  }
+
+  @VisibleForTesting
+  int getFetchThreads() {
+    return fetchThreads;
+  }
+
+  /**
+   * Sets the number of documents past the current one whose content
+   * is prefetched.
+   *
+   * @param lookahead the number of documents, or zero to disable
+   *     prefetching
+   */
+  public void setLookahead(int lookahead) {
+    LOGGER.log(Level.CONFIG, "CONTENT HANDLER LOOKAHEAD: {0}", lookahead);
+    if (lookahead < 0) {
+      throw new IllegalArgumentException("lookahead must not be negative");
+    }
+    this.lookahead = lookahead;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int getLookahead() {
+    return lookahead;
+  }
+
+  /**
+   * Sets the maximum number of bytes of prefetched content that may
+   * be held in memory before it is consumed. Content larger than
+   * this is never prefetched.
+   *
+   * @param maxBytesInFlight the maximum number of bytes
+   */
+  public void setMaxBytesInFlight(long maxBytesInFlight) {
+    LOGGER.log(Level.CONFIG, "CONTENT HANDLER MAX BYTES IN FLIGHT: {0}",
+        maxBytesInFlight);
+    if (maxBytesInFlight < 1024) {
+      throw new IllegalArgumentException(
+          "maxBytesInFlight must be at least 1024");
+    }
+    this.maxBytesInFlight = maxBytesInFlight;
+  }
+
+  @VisibleForTesting
+  long getMaxBytesInFlight() {
+    return maxBytesInFlight;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void initialize(LivelinkConnector connector, Client client)
+      throws RepositoryException {
+    this.connector = connector;
+  }
+
+  /**
+   * Creates the worker threads and their clients, if necessary.
+   * Each client impersonates the traversal user, if there is one.
+   */
+  private synchronized void start() throws RepositoryException {
+    if (executor != null) {
+      return;
+    }
+
+    BlockingQueue<Fetcher> newFetchers =
+        new ArrayBlockingQueue<Fetcher>(fetchThreads);
+    for (int i = 0; i < fetchThreads; i++) {
+      newFetchers.add(new Fetcher(createClient()));
+    }
+    fetchers = newFetchers;
+    budget = new Semaphore(toKilobytes(maxBytesInFlight));
+    executor = Executors.newFixedThreadPool(fetchThreads,
+        new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r,
+                "LivelinkContentFetch-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    if (LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.fine("CONTENT FETCH THREADS STARTED: " + fetchThreads);
+    }
+  }
+
+  /** Creates a client for a worker thread. */
+  private Client createClient() throws RepositoryException {
+    Client client = connector.getClientFactory().createClient();
+    String traversalUsername = connector.getTraversalUsername();
+    if (traversalUsername != null) {
+      ClientValue userInfo =
+          client.GetUserOrGroupByIDNoThrow(client.GetCurrentUserID());
+      if (userInfo == null
+          || !traversalUsername.equals(userInfo.toString("Name"))) {
+        client.ImpersonateUserEx(traversalUsername,
+            connector.getDomainName());
+      }
+    }
+    return client;
+  }
+
+  /** Converts a size in bytes to semaphore permits. */
+  private static int toKilobytes(long size) {
+    return (int) Math.min(Integer.MAX_VALUE,
+        Math.max(1, (size + 1023) / 1024));
+  }
+
+  private static String getKey(int volumeId, int objectId,
+      int versionNumber, Date modifyDate) {
+    return volumeId + ":" + objectId + ":" + versionNumber + ":"
+        + ((modifyDate == null) ? "" : modifyDate.getTime());
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void prefetch(final int volumeId, final int objectId,
+      final int versionNumber, Date modifyDate, final int size)
+      throws RepositoryException {
+    if (lookahead == 0 || size > maxBytesInFlight) {
+      return;
+    }
+    start();
+
+    String key = getKey(volumeId, objectId, versionNumber, modifyDate);
+    synchronized (this) {
+      if (pending.containsKey(key)) {
+        return;
+      }
+      // Skip the prefetch rather than wait for the budget. The
+      // content will be fetched on demand instead.
+      int permits = toKilobytes(size);
+      if (!budget.tryAcquire(permits)) {
+        if (LOGGER.isLoggable(Level.FINEST)) {
+          LOGGER.finest("PREFETCH BUDGET EXHAUSTED: " + objectId);
+        }
+        return;
+      }
+
+      final Prefetch prefetch = new Prefetch(permits);
+      prefetch.future = executor.submit(new Callable<ContentBuffer>() {
+          @Override
+          public ContentBuffer call() throws Exception {
+            if (!prefetch.start()) {
+              return null;
+            }
+            try {
+              return fetch(volumeId, objectId, versionNumber, size);
+            } finally {
+              prefetch.finish();
+            }
+          }
+        });
+      pending.put(key, prefetch);
+    }
+    if (LOGGER.isLoggable(Level.FINER)) {
+      LOGGER.finer("PREFETCHING CONTENT: " + objectId);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void cancelPrefetch(int volumeId, int objectId, int versionNumber,
+      Date modifyDate) {
+    Prefetch prefetch;
+    synchronized (this) {
+      prefetch = pending.remove(
+          getKey(volumeId, objectId, versionNumber, modifyDate));
+    }
+    if (prefetch != null) {
+      if (LOGGER.isLoggable(Level.FINER)) {
+        LOGGER.finer("CANCELING PREFETCH: " + objectId);
+      }
+      prefetch.cancel();
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public InputStream getInputStream(int volumeId, int objectId,
+      int versionNumber, Date modifyDate, int size)
+      throws RepositoryException {
+    Prefetch prefetch;
+    synchronized (this) {
+      prefetch = pending.remove(
+          getKey(volumeId, objectId, versionNumber, modifyDate));
+    }
+    if (prefetch == null) {
+      return getInputStream(volumeId, objectId, versionNumber, size);
+    }
+
+    boolean isReturned = false;
+    try {
+      InputStream in = new PrefetchInputStream(
+          getResult(prefetch.future).getInputStream(), prefetch);
+      isReturned = true;
+      return in;
+    } finally {
+      if (!isReturned) {
+        prefetch.release();
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * This method always fetches the content on demand, since the
+   * prefetched content cannot be matched without the ModifyDate.
+   */
+  @Override
+  public InputStream getInputStream(final int volumeId, final int objectId,
+      final int versionNumber, final int size) throws RepositoryException {
+    start();
+
+    return getResult(executor.submit(new Callable<InputStream>() {
+        @Override
+        public InputStream call() throws Exception {
+          Fetcher fetcher = fetchers.take();
+          try {
+            return fetcher.fileHandler.getInputStream(volumeId, objectId,
+                versionNumber, size);
+          } finally {
+            fetchers.put(fetcher);
+          }
+        }
+      }));
+  }
+
+  /** Fetches the content into memory on a worker thread. */
+  private ContentBuffer fetch(int volumeId, int objectId, int versionNumber,
+      int size) throws RepositoryException, InterruptedException {
+    Fetcher fetcher = fetchers.take();
+    try {
+      ContentBuffer buffer = new ContentBuffer(size);
+      fetcher.client.FetchVersion(volumeId, objectId, versionNumber, buffer);
+      return buffer;
+    } finally {
+      fetchers.put(fetcher);
+    }
+  }
+
+  /**
+   * Waits for a fetch to finish, rethrowing the original exception
+   * if it failed.
+   */
+  private <T> T getResult(Future<T> future) throws RepositoryException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RepositoryException)
+        throw (RepositoryException) cause;
+      else if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      else if (cause instanceof Error)
+        throw (Error) cause;
+      else
+        throw new LivelinkException(e, LOGGER);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new LivelinkException(e, LOGGER);
+    }
+  }
+
+  /**
+   * Cancels the pending prefetches, and stops the worker threads and
+   * discards their clients.
+   */
+  @Override
+  public void shutdown() {
+    List<Prefetch> canceled;
+    ExecutorService oldExecutor;
+    synchronized (this) {
+      canceled = new ArrayList<Prefetch>(pending.values());
+      pending.clear();
+      oldExecutor = executor;
+      executor = null;
+      fetchers = null;
+    }
+    for (Prefetch prefetch : canceled) {
+      prefetch.cancel();
+    }
+    if (oldExecutor != null) {
+      oldExecutor.shutdownNow();
+      LOGGER.fine("CONTENT FETCH THREADS STOPPED");
+    }
+  }
+
+  /** Gets the remaining prefetch budget, in kilobytes. */
+  @VisibleForTesting
+  synchronized int getAvailableBudget() {
+    return (budget == null)
+        ? toKilobytes(maxBytesInFlight) : budget.availablePermits();
+  }
+
+  /**
+   * A client and a file content handler that uses it, for use by one
+   * worker thread at a time.
+   */
+  private class Fetcher {
+    private final Client client;
+    private final FileContentHandler fileHandler;
+
+    Fetcher(Client client) throws RepositoryException {
+      this.client = client;
+      this.fileHandler = new FileContentHandler();
+      fileHandler.initialize(connector, client);
+    }
+  }
+
+  /**
+   * A prefetch task and the budget it holds. The budget is released
+   * exactly once, when the content is consumed, or when the prefetch
+   * is canceled and the task is not running.
+   */
+  private class Prefetch {
+    private final int permits;
+    private Future<ContentBuffer> future;
+    private boolean started = false;
+    private boolean finished = false;
+    private boolean canceled = false;
+    private boolean released = false;
+
+    Prefetch(int permits) {
+      this.permits = permits;
+    }
+
+    /** Returns {@code false} if the task should not run. */
+    synchronized boolean start() {
+      started = true;
+      return !canceled;
+    }
+
+    synchronized void finish() {
+      finished = true;
+      if (canceled) {
+        release();
+      }
+    }
+
+    synchronized void cancel() {
+      canceled = true;
+      future.cancel(false);
+      if (!started || finished) {
+        release();
+      }
+    }
+
+    synchronized void release() {
+      if (!released) {
+        released = true;
+        budget.release(permits);
+      }
+    }
+  }
+
+  /**
+   * A stream of prefetched content that releases the budget of the
+   * prefetch when it is read to the end or closed.
+   */
+  private static class PrefetchInputStream extends FilterInputStream {
+    private final Prefetch prefetch;
+
+    PrefetchInputStream(InputStream in, Prefetch prefetch) {
+      super(in);
+      this.prefetch = prefetch;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b == -1) {
+        prefetch.release();
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int count = super.read(b, off, len);
+      if (count == -1) {
+        prefetch.release();
+      }
+      return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        prefetch.release();
+      }
+    }
+  }
+
+  /**
+   * A byte array output stream whose buffer can be read without
+   * copying it.
+   */
+  private static class ContentBuffer extends ByteArrayOutputStream {
+    ContentBuffer(int size) {
+      super(Math.max(size, 32));
+    }
+
+    InputStream getInputStream() {
+      return new ByteArrayInputStream(buf, 0, count);
+    }
+  }
+}
@@ -22,7 +22,7 @@ import java.io.InputStream;
 /**
  * Retrieves the item content as an <code>InputStream</code>.
  * <p>
- * There are four implementations of this interface:
+ * There are six implementations of this interface:
  * <dl>
  * <dt><code>ByteArrayContentHandler</code>
  * <dd> The fastest implementation, but not a very scalable one
@@ -42,6 +42,15 @@ import java.io.InputStream;
  * <dd> Uses a pipe to match the in-memory performance characteristics
  * of the byte array handler without the scalability issues. A
  * consistently good performance with small memory consumption.
+ * 
+ * <dt><code>ConcurrentContentHandler</code>
+ * <dd> Fetches content on worker threads with their own clients,
+ * prefetching the content of upcoming documents into memory up to a
+ * configured limit, so that downloads overlap with other work.
+ * 
+ * <dt><code>HybridContentHandler</code>
+ * <dd> Fetches small documents into pooled memory buffers, and large
+ * documents into a recycled set of temporary files.
  * </dl>
  *
  * The default is <code>FileContentHandler</code>.
@@ -49,7 +58,7 @@ import java.io.InputStream;
  * @see LivelinkConnector#setContentHandler
  */
 /*
- * FIXME: PipedContentHandler has deadlocks, ByteArrayContentHandler
+ * FIXME: PipedContentHandler is not as well proven, ByteArrayContentHandler
  * isn't a general-purpose candidate, and Connector Manager issue 4
  * prohibits the use of HttpURLContentHandler. So the default is
  * FileContentHandler, which always works without consuming inordinate
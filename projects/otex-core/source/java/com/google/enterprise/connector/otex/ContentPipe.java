@@ -0,0 +1,258 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A pipe between one producer thread and one consumer thread, backed
+ * by a bounded ring buffer. Unlike {@code PipedInputStream}, reads and
+ * writes do not lock, and a blocked thread is woken as soon as the
+ * other thread makes progress, rather than polling once a second.
+ * <p/>
+ * The producer can pass an exception to the consumer with
+ * {@link #setException}, which is rethrown as an {@code IOException}
+ * by the next read. If the consumer closes its stream before the end
+ * of the content, subsequent writes throw an {@code IOException}
+ * rather than blocking forever.
+ */
+class ContentPipe {
+  /** The ring buffer. */
+  private final byte[] buffer;
+
+  /** The total number of bytes written. Only the producer updates this. */
+  private volatile long writePosition = 0;
+
+  /** The total number of bytes read. Only the consumer updates this. */
+  private volatile long readPosition = 0;
+
+  /** Whether the producer has finished writing. */
+  private volatile boolean writerClosed = false;
+
+  /** Whether the consumer has stopped reading. */
+  private volatile boolean readerClosed = false;
+
+  /** An exception to pass from the producer to the consumer. */
+  private volatile Throwable throwable = null;
+
+  /** The consumer thread, if it is waiting for data. */
+  private volatile Thread waitingReader = null;
+
+  /** The producer thread, if it is waiting for space. */
+  private volatile Thread waitingWriter = null;
+
+  /** The time the producer spent waiting for space, in nanoseconds. */
+  private volatile long writerWaitNanos = 0;
+
+  private final InputStream in = new PipeInputStream();
+
+  private final OutputStream out = new PipeOutputStream();
+
+  /**
+   * Constructs a pipe.
+   *
+   * @param size the size of the buffer, in bytes
+   */
+  ContentPipe(int size) {
+    Preconditions.checkArgument(size > 0, "size must be positive");
+    this.buffer = new byte[size];
+  }
+
+  /** Gets the consumer end of the pipe. */
+  InputStream getInputStream() {
+    return in;
+  }
+
+  /** Gets the producer end of the pipe. */
+  OutputStream getOutputStream() {
+    return out;
+  }
+
+  /** Gets the number of bytes written to the pipe. */
+  long getBytesWritten() {
+    return writePosition;
+  }
+
+  /**
+   * Gets the time the producer spent blocked on a full buffer, in
+   * nanoseconds.
+   */
+  long getWriterWaitNanos() {
+    return writerWaitNanos;
+  }
+
+  /**
+   * Passes an exception from the producer to the consumer, and closes
+   * the producer end of the pipe. Only the first exception is kept.
+   *
+   * @param t the exception thrown by the producer
+   */
+  void setException(Throwable t) {
+    if (throwable == null) {
+      throwable = t;
+    }
+    writerClosed = true;
+    LockSupport.unpark(waitingReader);
+  }
+
+  /** Throws the producer exception to the consumer, once. */
+  private void checkException() throws IOException {
+    Throwable t = throwable;
+    if (t != null) {
+      throwable = null;
+      throw new IOException(t.getMessage(), t);
+    }
+  }
+
+  /** Throws an {@code InterruptedIOException} if the thread is interrupted. */
+  private static void checkInterrupted() throws InterruptedIOException {
+    if (Thread.interrupted()) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+  }
+
+  private class PipeInputStream extends InputStream {
+    private final byte[] single = new byte[1];
+
+    @Override
+    public int read() throws IOException {
+      int count = read(single, 0, 1);
+      return (count == -1) ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (off < 0 || len < 0 || len > b.length - off) {
+        throw new IndexOutOfBoundsException();
+      }
+      if (readerClosed) {
+        throw new IOException("Pipe closed");
+      }
+      if (len == 0) {
+        return 0;
+      }
+
+      checkException();
+      while (true) {
+        // Read writerClosed first, so that no data written before the
+        // pipe was closed can be missed.
+        boolean closed = writerClosed;
+        long r = readPosition;
+        int available = (int) (writePosition - r);
+        if (available > 0) {
+          int count = Math.min(len, available);
+          int index = (int) (r % buffer.length);
+          int first = Math.min(count, buffer.length - index);
+          System.arraycopy(buffer, index, b, off, first);
+          System.arraycopy(buffer, 0, b, off + first, count - first);
+          readPosition = r + count;
+          LockSupport.unpark(waitingWriter);
+          return count;
+        } else if (closed) {
+          checkException();
+          return -1;
+        }
+
+        waitingReader = Thread.currentThread();
+        try {
+          while (writePosition == readPosition && !writerClosed) {
+            LockSupport.park(this);
+            checkInterrupted();
+          }
+        } finally {
+          waitingReader = null;
+        }
+        checkException();
+      }
+    }
+
+    @Override
+    public int available() {
+      return (int) (writePosition - readPosition);
+    }
+
+    @Override
+    public void close() {
+      readerClosed = true;
+      LockSupport.unpark(waitingWriter);
+    }
+  }
+
+  private class PipeOutputStream extends OutputStream {
+    private final byte[] single = new byte[1];
+
+    @Override
+    public void write(int b) throws IOException {
+      single[0] = (byte) b;
+      write(single, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (off < 0 || len < 0 || len > b.length - off) {
+        throw new IndexOutOfBoundsException();
+      }
+      if (writerClosed) {
+        throw new IOException("Pipe closed by writer");
+      }
+
+      while (len > 0) {
+        if (readerClosed) {
+          throw new IOException("Pipe closed by reader");
+        }
+        long w = writePosition;
+        int free = buffer.length - (int) (w - readPosition);
+        if (free > 0) {
+          int count = Math.min(len, free);
+          int index = (int) (w % buffer.length);
+          int first = Math.min(count, buffer.length - index);
+          System.arraycopy(b, off, buffer, index, first);
+          System.arraycopy(b, off + first, buffer, 0, count - first);
+          writePosition = w + count;
+          LockSupport.unpark(waitingReader);
+          off += count;
+          len -= count;
+          continue;
+        }
+
+        long start = System.nanoTime();
+        waitingWriter = Thread.currentThread();
+        try {
+          while (writePosition - readPosition == buffer.length
+              && !readerClosed) {
+            LockSupport.park(this);
+            checkInterrupted();
+          }
+        } finally {
+          waitingWriter = null;
+          writerWaitNanos += System.nanoTime() - start;
+        }
+      }
+    }
+
+    @Override
+    public void close() {
+      writerClosed = true;
+      LockSupport.unpark(waitingReader);
+    }
+  }
+}
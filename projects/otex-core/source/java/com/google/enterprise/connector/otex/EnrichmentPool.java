@@ -0,0 +1,122 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.enterprise.connector.otex.client.Client;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of worker threads and traversal clients used to collect the
+ * metadata for documents in a {@code LivelinkDocumentList} ahead of
+ * the consumer. Each worker thread uses one client at a time, and the
+ * pool is owned by the connector and shared by all of the document
+ * lists from its traversal managers, until the connector is shut
+ * down.
+ *
+ * @see LivelinkConnector#setEnrichmentThreads
+ */
+class EnrichmentPool {
+  /** The number of rows to submit ahead of the consumer, per thread. */
+  private static final int LOOKAHEAD_PER_THREAD = 2;
+
+  /** The impersonated traversal user, or {@code null}. */
+  private final String username;
+
+  /** The clients for the worker threads, one per thread. */
+  private final List<Client> clients;
+
+  /** The worker threads. */
+  private final ExecutorService executor;
+
+  /**
+   * Constructs a pool with one worker thread for each of the given
+   * clients.
+   *
+   * @param clients the traversal clients, which must already be
+   *     impersonating the traversal user, if there is one
+   */
+  EnrichmentPool(List<Client> clients) {
+    this(null, clients);
+  }
+
+  /**
+   * Constructs a pool with one worker thread for each of the given
+   * clients.
+   *
+   * @param username the traversal user impersonated by the clients,
+   *     or {@code null}
+   * @param clients the traversal clients
+   */
+  EnrichmentPool(String username, List<Client> clients) {
+    this.username = username;
+    this.clients = Collections.unmodifiableList(clients);
+    this.executor = Executors.newFixedThreadPool(clients.size(),
+        new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread thread =
+                new Thread(r, "LivelinkEnrichment-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+  }
+
+  /** Gets the traversal user impersonated by the clients, or null. */
+  String getUsername() {
+    return username;
+  }
+
+  /** Gets the clients, one for each worker thread. */
+  List<Client> getClients() {
+    return clients;
+  }
+
+  /**
+   * Gets the number of rows that should be submitted ahead of the
+   * row being consumed.
+   */
+  int getLookahead() {
+    return LOOKAHEAD_PER_THREAD * clients.size();
+  }
+
+  /**
+   * Submits a task to the worker threads.
+   *
+   * @param task the task to run
+   * @return a future for the result of the task
+   */
+  <T> Future<T> submit(Callable<T> task) {
+    return executor.submit(task);
+  }
+
+  /**
+   * Stops the worker threads. Running tasks are interrupted, and
+   * tasks that have not started are discarded.
+   */
+  void shutdown() {
+    executor.shutdownNow();
+  }
+}
@@ -0,0 +1,330 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.common.io.CountingInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The set of DataIDs that have been fed, stored in a file as a
+ * compressed bitmap. Delete actions are only needed for items in
+ * the set, but the set can only be trusted once it covers a whole
+ * traversal: it is started when a new traversal starts, and complete
+ * once that traversal has caught up for the first time.
+ * <p/>
+ * Added items are in the set right away, since a superset only
+ * leads to extra deletes. Removed items are pending until the set
+ * is flushed when the batch is checkpointed, so that a batch that is
+ * retried does not lose its deletes.
+ * <p/>
+ * The file holds a snapshot of the set followed by a log of the
+ * changes since the snapshot. Each flush appends the changes to the
+ * log, and the file is compacted into a new snapshot when the log
+ * grows larger than the set, or when the set is reset.
+ *
+ * @see LivelinkConnector#setFedItemsFile
+ * @see ReplaceableFile
+ */
+class FedItemSet {
+  /** The logger for this class. */
+  private static final Logger LOGGER =
+      Logger.getLogger(FedItemSet.class.getName());
+
+  /** The first int in the file, "LLFS". */
+  private static final int MAGIC = 0x4C4C4653;
+
+  /** The file format version. */
+  private static final int VERSION = 2;
+
+  /** The set does not cover the items fed before it was created. */
+  private static final int PARTIAL = 0;
+
+  /** The set was started with a new traversal. */
+  private static final int STARTED = 1;
+
+  /** The set covers all of the items that have been fed. */
+  private static final int COMPLETE = 2;
+
+  /** The log record operation for an added item. */
+  private static final int ADD = 1;
+
+  /** The log record operation for a removed item. */
+  private static final int REMOVE = 2;
+
+  /** The log record operation for a new state. */
+  private static final int STATE = 3;
+
+  /** The size of a log record in bytes: the operation and value. */
+  private static final int RECORD_SIZE = 8;
+
+  /** The number of log records allowed beyond the size of the set. */
+  private static final int MIN_LOG_RECORDS = 4096;
+
+  /** The file. */
+  private final ReplaceableFile file;
+
+  /** The DataIDs. */
+  private final IntBitmap items = new IntBitmap();
+
+  /** The DataIDs to remove when the set is flushed. */
+  private final List<Integer> pendingRemovals = new ArrayList<Integer>();
+
+  /** One of {@code PARTIAL}, {@code STARTED}, or {@code COMPLETE}. */
+  private int state = PARTIAL;
+
+  /** The size of the snapshot at the start of the file, in bytes. */
+  private long snapshotLength = 0;
+
+  /** The number of log records in the file. */
+  private int records = 0;
+
+  /** Whether the file must be rewritten rather than appended to. */
+  private boolean rewrite = false;
+
+  /** The log records that have not been written, in the file format. */
+  private ByteBuffer pending = ByteBuffer.allocate(RECORD_SIZE * 64);
+
+  /**
+   * Constructs a set stored in the given file, and reads the
+   * existing items from the file.
+   *
+   * @param file the set file
+   */
+  FedItemSet(File file) {
+    this.file = new ReplaceableFile(file);
+    try {
+      read();
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Ignoring invalid fed items file " + file, e);
+      items.clear();
+      state = PARTIAL;
+      rewrite = true;
+    }
+  }
+
+  File getFile() {
+    return file.getFile();
+  }
+
+  /** Gets the number of items in the set. */
+  synchronized int size() {
+    return items.size();
+  }
+
+  /**
+   * Checks whether the set covers all of the items that have been
+   * fed, so that items not in the set do not need delete actions.
+   */
+  synchronized boolean isComplete() {
+    return state == COMPLETE;
+  }
+
+  synchronized boolean contains(int dataId) {
+    return items.contains(dataId);
+  }
+
+  /** Adds an item that has been fed. */
+  synchronized void add(int dataId) {
+    if (items.add(dataId)) {
+      log(ADD, dataId);
+    }
+  }
+
+  /** Removes an item that has been deleted, when the set is flushed. */
+  synchronized void remove(int dataId) {
+    pendingRemovals.add(dataId);
+  }
+
+  /** Clears the set at the start of a new traversal. */
+  synchronized void reset() {
+    items.clear();
+    pendingRemovals.clear();
+    pending.clear();
+    state = STARTED;
+    rewrite = true;
+    LOGGER.fine("FED ITEMS: Started");
+  }
+
+  /**
+   * Marks the set complete, if it was started with the traversal that
+   * has now caught up.
+   */
+  synchronized void markCaughtUp() {
+    if (state == STARTED) {
+      state = COMPLETE;
+      log(STATE, state);
+      if (LOGGER.isLoggable(Level.FINE)) {
+        LOGGER.fine("FED ITEMS: Complete with " + items.size() + " items");
+      }
+    }
+  }
+
+  /**
+   * Applies the pending removals, and appends the changes to the
+   * file. Errors writing the file are logged rather than thrown, and
+   * the whole set is written on the next flush.
+   */
+  synchronized void flush() {
+    for (int dataId : pendingRemovals) {
+      if (items.remove(dataId)) {
+        log(REMOVE, dataId);
+      }
+    }
+    pendingRemovals.clear();
+    if (pending.position() == 0 && !rewrite) {
+      return;
+    }
+    pending.flip();
+    int count = pending.remaining() / RECORD_SIZE;
+    try {
+      if (rewrite || !file.getFile().exists()
+          || records + count > items.size() + MIN_LOG_RECORDS) {
+        compact();
+      } else {
+        append(pending);
+        records += count;
+      }
+      if (LOGGER.isLoggable(Level.FINEST)) {
+        LOGGER.finest("FED ITEMS: Wrote " + count + " changes to "
+            + file.getFile() + "; " + items.size() + " items total");
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Unable to write fed items file "
+          + file.getFile(), e);
+      rewrite = true;
+    } finally {
+      pending.clear();
+    }
+  }
+
+  /** Deletes a set file, if it exists. */
+  static void delete(File file) {
+    if (!new ReplaceableFile(file).delete()) {
+      LOGGER.warning("Unable to delete fed items file " + file);
+    }
+  }
+
+  /** Adds a record to the pending log. */
+  private void log(int op, int value) {
+    if (pending.remaining() < RECORD_SIZE) {
+      ByteBuffer larger = ByteBuffer.allocate(pending.capacity() * 2);
+      pending.flip();
+      larger.put(pending);
+      pending = larger;
+    }
+    pending.putInt(op);
+    pending.putInt(value);
+  }
+
+  private void read() throws IOException {
+    File source = file.getReadableFile();
+    if (source == null) {
+      return;
+    }
+    // Records are only appended to the file, not to a backup.
+    rewrite = (source != file.getFile());
+    CountingInputStream counter = new CountingInputStream(
+        new BufferedInputStream(new FileInputStream(source)));
+    DataInputStream in = new DataInputStream(counter);
+    try {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("Invalid header");
+      }
+      state = readState(in.readInt());
+      items.readFrom(in);
+      snapshotLength = counter.getCount();
+
+      // A partial record at the end was interrupted while writing.
+      long complete = (source.length() - snapshotLength) / RECORD_SIZE;
+      for (long n = 0; n < complete; n++) {
+        int op = in.readInt();
+        int value = in.readInt();
+        switch (op) {
+          case ADD:
+            items.add(value);
+            break;
+          case REMOVE:
+            items.remove(value);
+            break;
+          case STATE:
+            state = readState(value);
+            break;
+          default:
+            throw new IOException("Invalid record " + op);
+        }
+        records++;
+      }
+    } finally {
+      in.close();
+    }
+    if (LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.fine("FED ITEMS: Read " + items.size() + " items from "
+          + source);
+    }
+  }
+
+  private static int readState(int state) throws IOException {
+    if (state < PARTIAL || state > COMPLETE) {
+      throw new IOException("Invalid state " + state);
+    }
+    return state;
+  }
+
+  /** Appends the given records to the file. */
+  private void append(ByteBuffer buffer) throws IOException {
+    // Drop any partial record before appending.
+    long length = snapshotLength + (long) records * RECORD_SIZE;
+    RandomAccessFile raf = new RandomAccessFile(file.getFile(), "rw");
+    try {
+      FileChannel channel = raf.getChannel();
+      channel.truncate(length);
+      channel.position(length);
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      channel.force(true);
+    } finally {
+      raf.close();
+    }
+  }
+
+  /** Writes a snapshot of the set to a new file, with an empty log. */
+  private void compact() throws IOException {
+    file.write(new ReplaceableFile.Contents() {
+        public void writeTo(DataOutputStream out) throws IOException {
+          out.writeInt(MAGIC);
+          out.writeInt(VERSION);
+          out.writeInt(state);
+          items.writeTo(out);
+          snapshotLength = out.size();
+        }
+      });
+    records = 0;
+    rewrite = false;
+  }
+}
@@ -18,9 +18,13 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.enterprise.connector.otex.CacheMap.CacheStatistics;
 import com.google.enterprise.connector.otex.client.Client;
 import com.google.enterprise.connector.otex.client.ClientValue;
+import com.google.enterprise.connector.otex.client.ColumnarClientValue;
 import com.google.enterprise.connector.spi.RepositoryException;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -129,6 +133,12 @@ class Genealogist {
   /** The SQL queries resource bundle wrapper. */
   protected final SqlQueries sqlQueries;
 
+  /**
+   * Whether the database is SQL Server, for the few queries that
+   * are not DB agnostic.
+   */
+  protected boolean isSqlServer = true;
+
   /** A set based on the includedLocationNodes property value. */
   private final Set<Integer> includedSet;
 
@@ -137,11 +147,21 @@ class Genealogist {
 
   /** A cache of items known to be included. */
   @VisibleForTesting
-  final Cache<Integer> includedCache;
+  final IntCache includedCache;
 
   /** A cache of items known to be excluded. */
   @VisibleForTesting
-  final Cache<Integer> excludedCache;
+  final IntCache excludedCache;
+
+  /** How often to save the caches to the cache file, in milliseconds. */
+  @VisibleForTesting
+  static final long SAVE_INTERVAL = 10 * 60 * 1000L;
+
+  /** The file to save the caches in, or null if they are not saved. */
+  private GenealogistCacheFile cacheFile = null;
+
+  /** The time the caches were last loaded or saved. */
+  private long lastSaveTime;
 
   /** For logging statistics, the number of nodes processed by this instance.*/
   protected int nodeCount = 0;
@@ -174,8 +194,87 @@ class Genealogist {
       LOGGER.finest("DESCENDANTS: maxCacheSize = " + maxCacheSize);
     }
 
-    this.excludedCache = new Cache<Integer>(minCacheSize, maxCacheSize);
-    this.includedCache = new Cache<Integer>(minCacheSize, maxCacheSize);
+    this.excludedCache = new IntCache(minCacheSize, maxCacheSize);
+    this.includedCache = new IntCache(minCacheSize, maxCacheSize);
+  }
+
+  /**
+   * Sets whether the database is SQL Server or Oracle.
+   *
+   * @param isSqlServer {@code true} for SQL Server
+   */
+  public void setSqlServer(boolean isSqlServer) {
+    this.isSqlServer = isSqlServer;
+  }
+
+  /**
+   * Sets the file used to persist the caches across restarts, and
+   * loads the caches from it. The file also records the included and
+   * excluded nodes that the caches were computed for, and the saved
+   * caches are ignored if those nodes have changed.
+   *
+   * @param file the cache file
+   */
+  public synchronized void setCacheFile(File file) {
+    cacheFile = new GenealogistCacheFile(file);
+    lastSaveTime = System.currentTimeMillis();
+
+    int[][] sections;
+    try {
+      sections = cacheFile.read(4);
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Unable to read genealogist cache file "
+          + file, e);
+      return;
+    }
+    if (sections == null) {
+      return;
+    }
+    if (!Arrays.equals(sections[0], toSortedArray(includedSet))
+        || !Arrays.equals(sections[1], toSortedArray(excludedSet))) {
+      LOGGER.info("DESCENDANTS: Ignoring the saved caches in " + file
+          + " because the included or excluded nodes have changed.");
+      return;
+    }
+    for (int value : sections[2]) {
+      includedCache.add(value);
+    }
+    for (int value : sections[3]) {
+      excludedCache.add(value);
+    }
+    if (LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.fine("DESCENDANTS: Loaded " + sections[2].length
+          + " included and " + sections[3].length
+          + " excluded nodes from " + file);
+    }
+  }
+
+  /**
+   * Saves the caches to the cache file, if there is one. Errors are
+   * logged, since the caches can always be rebuilt.
+   */
+  public synchronized void saveCaches() {
+    if (cacheFile == null) {
+      return;
+    }
+    try {
+      cacheFile.write(toSortedArray(includedSet), toSortedArray(excludedSet),
+          includedCache.toArray(), excludedCache.toArray());
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Unable to write genealogist cache file "
+          + cacheFile.getFile(), e);
+    }
+    lastSaveTime = System.currentTimeMillis();
+  }
+
+  private static int[] toSortedArray(Set<Integer> set) {
+    int[] array = new int[set.size()];
+    int i = 0;
+    for (int value : set) {
+      array[i++] = value;
+    }
+    Arrays.sort(array);
+    return array;
   }
 
   /**
@@ -189,10 +288,12 @@ class Genealogist {
    */
   protected void matchDescendants(ClientValue matching,
       StringBuilder descendants) throws RepositoryException {
-    for (int i = 0; i < matching.size(); i++) {
+    int[] matchingIds =
+        ((ColumnarClientValue) matching).toIntegerColumn("DataID");
+    for (int i = 0; i < matchingIds.length; i++) {
       // We do not cache the matches, which are probably mostly documents.
       ArrayList<Integer> cachePossibles = new ArrayList<Integer>();
-      final int matchingId = matching.toInteger(i, "DataID");
+      final int matchingId = matchingIds[i];
       Integer parentId = matchingId;
 
       // TODO: Check for an interrupted traversal in this loop?
@@ -321,6 +422,11 @@ class Genealogist {
     StringBuilder descendants = new StringBuilder();
     matchDescendants(matching, descendants);
 
+    if (cacheFile != null
+        && System.currentTimeMillis() - lastSaveTime >= SAVE_INTERVAL) {
+      saveCaches();
+    }
+
     if (LOGGER.isLoggable(Level.FINEST)) {
       nodeCount += matching.size();
       LOGGER.finest("DESCENDANTS: Query statistics: " + nodeCount + " nodes, "
@@ -0,0 +1,147 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads and writes the genealogist caches in a file. The file holds
+ * a header followed by a fixed number of sections, each of which is
+ * a length and that many int values. The file is read and written
+ * with streams rather than mapped into memory, because a mapped file
+ * cannot be replaced or deleted on Windows until it is unmapped. The
+ * file is replaced as a whole, so a failure while writing leaves the
+ * previous file intact.
+ *
+ * @see ReplaceableFile
+ *
+ * @see LivelinkConnector#setGenealogistCacheFile
+ */
+class GenealogistCacheFile {
+  /** The logger for this class. */
+  private static final Logger LOGGER =
+      Logger.getLogger(GenealogistCacheFile.class.getName());
+
+  /** The first int in the file, "LLGC". */
+  private static final int MAGIC = 0x4C4C4743;
+
+  /** The file format version. */
+  private static final int VERSION = 1;
+
+  /** The file. */
+  private final ReplaceableFile file;
+
+  GenealogistCacheFile(File file) {
+    this.file = new ReplaceableFile(file);
+  }
+
+  File getFile() {
+    return file.getFile();
+  }
+
+  /**
+   * Reads the sections from the file.
+   *
+   * @param sectionCount the expected number of sections
+   * @return the sections, or {@code null} if the file does not exist
+   *     or is not a valid cache file
+   * @throws IOException if the file cannot be read
+   */
+  int[][] read(int sectionCount) throws IOException {
+    File source = file.getReadableFile();
+    if (source == null) {
+      return null;
+    }
+    long remaining = source.length() / 4;
+    DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(source)));
+    try {
+      if (remaining < 3 || in.readInt() != MAGIC
+          || in.readInt() != VERSION || in.readInt() != sectionCount) {
+        LOGGER.warning("Ignoring invalid genealogist cache file " + source);
+        return null;
+      }
+      remaining -= 3;
+      int[][] sections = new int[sectionCount][];
+      for (int i = 0; i < sectionCount; i++) {
+        int length = in.readInt();
+        remaining--;
+        if (length < 0 || length > remaining) {
+          LOGGER.warning("Ignoring truncated genealogist cache file "
+              + source);
+          return null;
+        }
+        remaining -= length;
+        sections[i] = new int[length];
+        for (int j = 0; j < length; j++) {
+          sections[i][j] = in.readInt();
+        }
+      }
+      return sections;
+    } catch (EOFException e) {
+      LOGGER.warning("Ignoring truncated genealogist cache file " + source);
+      return null;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Writes the sections to the file.
+   *
+   * @param sections the sections
+   * @throws IOException if the file cannot be written
+   */
+  void write(final int[]... sections) throws IOException {
+    long size = 3;
+    for (int[] section : sections) {
+      size += 1 + section.length;
+    }
+
+    file.write(new ReplaceableFile.Contents() {
+        public void writeTo(DataOutputStream out) throws IOException {
+          out.writeInt(MAGIC);
+          out.writeInt(VERSION);
+          out.writeInt(sections.length);
+          for (int[] section : sections) {
+            out.writeInt(section.length);
+            for (int value : section) {
+              out.writeInt(value);
+            }
+          }
+        }
+      });
+    if (LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.fine("GENEALOGIST CACHE: Wrote " + (size * 4) + " bytes to "
+          + file.getFile());
+    }
+  }
+
+  /** Deletes the file, if it exists. */
+  void delete() {
+    if (!file.delete()) {
+      LOGGER.warning("Unable to delete genealogist cache file "
+          + file.getFile());
+    }
+  }
+}
@@ -0,0 +1,639 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Downloads documents over HTTP for {@link HttpURLContentHandler}.
+ * <p>
+ * The number of open connections is bounded, and a download fails if
+ * no connection is free within a minute. Responses are read to the
+ * end or closed, so that the JDK keep-alive cache can reuse the
+ * connections. A 401 response or a redirect, which is how Livelink
+ * sends an expired cookie to the login page, renews the cookie and
+ * retries the request once. Redirects are never followed, so that a
+ * login page is not returned as document content. If a download
+ * fails partway through, it is resumed with a <code>Range</code>
+ * request, if the server supports them. Large documents are split
+ * into at most <code>rangeConnections</code> byte ranges, which are
+ * downloaded in parallel by a fixed number of threads into temporary
+ * files and read back in order.
+ */
+class HttpDownloader {
+  /** The logger for this class. */
+  private static final Logger LOGGER =
+      Logger.getLogger(HttpDownloader.class.getName());
+
+  /**
+   * How long to wait for a free connection before failing the
+   * download, in seconds. Consumers that never close their streams
+   * would otherwise block every later download.
+   */
+  private static final long CONNECTION_WAIT = 60;
+
+  /** Matches the total size in a <code>Content-Range</code> header. */
+  private static final Pattern CONTENT_RANGE_TOTAL =
+      Pattern.compile("bytes\\s+\\d+-\\d+/(\\d+)");
+
+  /** The source of the LLCookie value. */
+  interface Cookies {
+    /** Gets the current cookie value. */
+    String get() throws IOException;
+
+    /**
+     * Renews the cookie, if the given value is still the current
+     * one. The value may have been renewed by another thread already.
+     *
+     * @param staleCookie the rejected cookie value
+     */
+    void renew(String staleCookie) throws IOException;
+  }
+
+  private final Cookies cookies;
+
+  /** The permits for open connections. */
+  private final Semaphore connections;
+
+  /** The connect timeout in milliseconds. */
+  private final int connectTimeout;
+
+  /** The read timeout in milliseconds. */
+  private final int readTimeout;
+
+  /** The smallest size downloaded in parallel ranges, or zero. */
+  private final long rangeThreshold;
+
+  /** The number of parallel ranges for a large document. */
+  private final int rangeConnections;
+
+  /** The number of times a failed download is resumed. */
+  private final int maxRetries;
+
+  /** The threads for downloading ranges, created on demand. */
+  private ExecutorService executor = null;
+
+  /**
+   * Constructs a downloader.
+   *
+   * @param cookies the source of the LLCookie value
+   * @param maxConnections the maximum number of open connections
+   * @param connectTimeout the connect timeout in milliseconds
+   * @param readTimeout the read timeout in milliseconds
+   * @param rangeThreshold the smallest document size that is
+   *     downloaded in parallel ranges, or zero to disable them
+   * @param rangeConnections the number of ranges for large documents
+   * @param maxRetries the number of times to resume a failed download
+   */
+  HttpDownloader(Cookies cookies, int maxConnections, int connectTimeout,
+      int readTimeout, long rangeThreshold, int rangeConnections,
+      int maxRetries) {
+    this.cookies = cookies;
+    this.connections = new Semaphore(maxConnections);
+    this.connectTimeout = connectTimeout;
+    this.readTimeout = readTimeout;
+    this.rangeThreshold = rangeThreshold;
+    this.rangeConnections = rangeConnections;
+    this.maxRetries = maxRetries;
+  }
+
+  /**
+   * Downloads a document.
+   *
+   * @param url the download URL
+   * @param size the expected document size, as a hint
+   * @return an input stream for the document content
+   */
+  InputStream download(URL url, long size) throws IOException {
+    if (rangeThreshold <= 0 || rangeConnections < 2 || size < rangeThreshold) {
+      return new RangeInputStream(url, 0, -1);
+    }
+
+    // Request the first range. If the server ignores the Range
+    // header, that response is the whole document.
+    long firstSize = (size + rangeConnections - 1) / rangeConnections;
+    RangeInputStream first = new RangeInputStream(url, 0, firstSize - 1);
+    long total = first.getTotalSize();
+    if (total == -1 || total <= firstSize) {
+      return first;
+    }
+
+    // The size is only a hint, so split the rest of the actual
+    // document into the remaining number of ranges.
+    long rest = total - firstSize;
+    long rangeSize = (rest + rangeConnections - 2) / (rangeConnections - 1);
+    List<Range> ranges = new ArrayList<Range>();
+    for (long start = firstSize; start < total; start += rangeSize) {
+      ranges.add(new Range(url, start, Math.min(total, start + rangeSize) - 1));
+    }
+    if (LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.fine("DOWNLOADING " + total + " BYTES IN " + (ranges.size() + 1)
+          + " RANGES: " + url);
+    }
+    return new RangesInputStream(first, ranges);
+  }
+
+  /** Gets the executor for range downloads, creating it if necessary. */
+  private synchronized ExecutorService getExecutor() {
+    if (executor == null) {
+      // A fixed number of threads, which exit when they are idle.
+      ThreadPoolExecutor pool = new ThreadPoolExecutor(rangeConnections,
+          rangeConnections, 60L, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+              Thread thread = new Thread(r,
+                  "LivelinkRangeDownload-" + count.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+      pool.allowCoreThreadTimeOut(true);
+      executor = pool;
+    }
+    return executor;
+  }
+
+  /**
+   * Waits for a connection permit.
+   *
+   * @throws IOException if the wait times out or is interrupted
+   */
+  private void acquireConnection() throws IOException {
+    try {
+      if (!connections.tryAcquire(CONNECTION_WAIT, TimeUnit.SECONDS)) {
+        throw new IOException("Timed out waiting for an HTTP connection; "
+            + "content streams may not be closed.");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted waiting for a connection", e);
+    }
+  }
+
+  /**
+   * Opens a connection for the given byte range. A 401 response or
+   * a redirect renews the cookie and retries the request once. A
+   * second redirect is an error rather than the document content.
+   *
+   * @param url the download URL
+   * @param start the first byte
+   * @param end the last byte, or -1 for the end of the document
+   * @return a connection with a successful response
+   */
+  private HttpURLConnection open(URL url, long start, long end)
+      throws IOException {
+    for (int attempt = 0; ; attempt++) {
+      URLConnection connection = url.openConnection();
+      if (!(connection instanceof HttpURLConnection)) {
+        throw new IOException("Not an HTTP URL: " + url);
+      }
+      HttpURLConnection download = (HttpURLConnection) connection;
+      String cookie = cookies.get();
+      download.addRequestProperty("Cookie", "LLCookie=" + cookie);
+      download.setConnectTimeout(connectTimeout);
+      download.setReadTimeout(readTimeout);
+      download.setInstanceFollowRedirects(false);
+      if (start > 0 || end != -1) {
+        download.setRequestProperty("Range",
+            "bytes=" + start + "-" + ((end == -1) ? "" : end));
+      }
+
+      int code = download.getResponseCode();
+      if (code == HttpURLConnection.HTTP_UNAUTHORIZED && attempt == 0) {
+        LOGGER.fine("HTTP 401 RESPONSE; RENEWING LLCOOKIE");
+        discard(download);
+        cookies.renew(cookie);
+      } else if (code >= 300 && code < 400) {
+        String location = download.getHeaderField("Location");
+        discard(download);
+        if (attempt > 0) {
+          throw new IOException("Server redirected to " + location
+              + " for URL: " + url);
+        }
+        LOGGER.log(Level.FINE,
+            "HTTP {0} REDIRECT TO {1}; RENEWING LLCOOKIE",
+            new Object[] { code, location });
+        cookies.renew(cookie);
+      } else if (code >= 400) {
+        String message = download.getResponseMessage();
+        discard(download);
+        throw new IOException(
+            "Server returned HTTP response code " + code + " (" + message
+            + ") for URL: " + url);
+      } else {
+        return download;
+      }
+    }
+  }
+
+  /**
+   * Reads and closes the error stream or, for a redirect, the response
+   * body of a connection, so that the connection can be reused.
+   */
+  private static void discard(HttpURLConnection download) {
+    try {
+      InputStream in = download.getErrorStream();
+      if (in == null && download.getResponseCode() < 400) {
+        in = download.getInputStream();
+      }
+      if (in != null) {
+        try {
+          byte[] buffer = new byte[4096];
+          while (in.read(buffer) != -1) {
+          }
+        } finally {
+          in.close();
+        }
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.FINEST, "Ignored exception discarding response", e);
+    }
+  }
+
+  /**
+   * Reads one byte range of a document, resuming the download after
+   * an error or a premature end of the response.
+   */
+  private class RangeInputStream extends InputStream {
+    private final URL url;
+
+    /** The absolute position of the next byte to read. */
+    private long position;
+
+    /** The last byte to read, or -1 if unknown. */
+    private long end;
+
+    /** The total document size, or -1 if the server ignored the range. */
+    private long totalSize = -1;
+
+    private InputStream in;
+    private boolean hasPermit;
+    private int retries = 0;
+
+    RangeInputStream(URL url, long start, long end) throws IOException {
+      this.url = url;
+      this.position = start;
+      this.end = end;
+      acquireConnection();
+      this.hasPermit = true;
+      try {
+        HttpURLConnection download = open(url, start, end);
+        if (download.getResponseCode() == HttpURLConnection.HTTP_PARTIAL) {
+          totalSize = getTotalSize(download);
+        } else if (start > 0) {
+          download.getInputStream().close();
+          throw new IOException("Server does not support ranges: " + url);
+        } else {
+          // The whole document, regardless of the requested range.
+          long length = download.getContentLength();
+          this.end = (length == -1) ? -1 : length - 1;
+        }
+        in = download.getInputStream();
+      } catch (IOException e) {
+        release();
+        throw e;
+      } catch (RuntimeException e) {
+        release();
+        throw e;
+      }
+    }
+
+    /**
+     * Gets the total document size from a partial response.
+     *
+     * @return the size, or -1 if the server ignored the range
+     */
+    long getTotalSize() {
+      return totalSize;
+    }
+
+    private long getTotalSize(HttpURLConnection download) {
+      String contentRange = download.getHeaderField("Content-Range");
+      if (contentRange != null) {
+        Matcher matcher = CONTENT_RANGE_TOTAL.matcher(contentRange);
+        if (matcher.matches()) {
+          return Long.parseLong(matcher.group(1));
+        }
+      }
+      return -1;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      int count = read(b, 0, 1);
+      return (count == -1) ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      while (true) {
+        if (in == null || (end != -1 && position > end)) {
+          finish();
+          return -1;
+        }
+        int max = (end == -1) ? len : (int) Math.min(len, end - position + 1);
+        int count;
+        try {
+          count = in.read(b, off, max);
+        } catch (IOException e) {
+          resume(e);
+          continue;
+        }
+        if (count == -1) {
+          if (end != -1 && position <= end) {
+            resume(new IOException("Premature end of response at "
+                    + position + " of " + url));
+            continue;
+          }
+          finish();
+          return -1;
+        }
+        position += count;
+        return count;
+      }
+    }
+
+    /**
+     * Resumes the download at the current position.
+     *
+     * @param cause the failure
+     * @throws IOException the failure, if the download cannot be resumed
+     */
+    private void resume(IOException cause) throws IOException {
+      closeQuietly();
+      if (retries >= maxRetries) {
+        release();
+        throw cause;
+      }
+      retries++;
+      if (LOGGER.isLoggable(Level.FINE)) {
+        LOGGER.fine("RESUMING DOWNLOAD AT " + position + " (ATTEMPT "
+            + retries + "): " + url + ": " + cause);
+      }
+      HttpURLConnection download;
+      try {
+        download = open(url, position, end);
+      } catch (IOException e) {
+        LOGGER.log(Level.FINE, "RESUME FAILED", e);
+        release();
+        throw cause;
+      }
+      if (download.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+        try {
+          download.getInputStream().close();
+        } finally {
+          release();
+        }
+        throw cause;
+      }
+      in = download.getInputStream();
+    }
+
+    /** Closes the response at the end of the range. */
+    private void finish() throws IOException {
+      try {
+        if (in != null) {
+          in.close();
+        }
+      } finally {
+        in = null;
+        release();
+      }
+    }
+
+    private void closeQuietly() {
+      try {
+        if (in != null) {
+          in.close();
+        }
+      } catch (IOException e) {
+        LOGGER.log(Level.FINEST, "Ignored exception closing response", e);
+      }
+      in = null;
+    }
+
+    private void release() {
+      if (hasPermit) {
+        hasPermit = false;
+        connections.release();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      finish();
+    }
+  }
+
+  /** A byte range downloaded into a temporary file. */
+  private class Range {
+    private final URL url;
+    private final long start;
+    private final long end;
+    private Future<File> future;
+
+    Range(URL url, long start, long end) {
+      this.url = url;
+      this.start = start;
+      this.end = end;
+    }
+
+    /** Downloads the range into a new temporary file. */
+    File download() throws IOException {
+      File file = File.createTempFile("gsa-otex-range-", null);
+      boolean success = false;
+      try {
+        RangeInputStream in = new RangeInputStream(url, start, end);
+        try {
+          if (in.getTotalSize() == -1) {
+            throw new IOException("Server does not support ranges: " + url);
+          }
+          OutputStream out = new FileOutputStream(file);
+          try {
+            byte[] buffer = new byte[32768];
+            long length = 0;
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+              out.write(buffer, 0, count);
+              length += count;
+            }
+            if (length != end - start + 1) {
+              throw new IOException("Expected " + (end - start + 1)
+                  + " bytes but got " + length + " from " + url);
+            }
+          } finally {
+            out.close();
+          }
+        } finally {
+          in.close();
+        }
+        success = true;
+        return file;
+      } finally {
+        if (!success) {
+          file.delete();
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads the first range from its connection, and then each of the
+   * other ranges from the temporary files, in order.
+   */
+  private class RangesInputStream extends InputStream {
+    private final List<Range> ranges;
+
+    /** The temporary files that have not been consumed or deleted. */
+    private final Set<File> files = new HashSet<File>();
+
+    private InputStream in;
+    private File currentFile = null;
+    private int next = 0;
+    private boolean closed = false;
+
+    RangesInputStream(RangeInputStream first, List<Range> ranges) {
+      this.in = first;
+      this.ranges = ranges;
+      ExecutorService executor = getExecutor();
+      for (final Range range : ranges) {
+        range.future = executor.submit(new Callable<File>() {
+            @Override
+            public File call() throws IOException {
+              File file = range.download();
+              synchronized (RangesInputStream.this) {
+                if (closed) {
+                  file.delete();
+                } else {
+                  files.add(file);
+                }
+              }
+              return file;
+            }
+          });
+      }
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      int count = read(b, 0, 1);
+      return (count == -1) ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      while (in != null) {
+        int count = in.read(b, off, len);
+        if (count != -1) {
+          return count;
+        }
+        nextRange();
+      }
+      return -1;
+    }
+
+    /** Moves on to the next range, waiting for it if necessary. */
+    private void nextRange() throws IOException {
+      in.close();
+      in = null;
+      deleteCurrentFile();
+      if (next == ranges.size()) {
+        return;
+      }
+
+      Range range = ranges.get(next++);
+      try {
+        currentFile = range.future.get();
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+          throw (IOException) cause;
+        }
+        throw new IOException(cause);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted waiting for a range", e);
+      }
+      in = new FileInputStream(currentFile);
+    }
+
+    private synchronized void deleteCurrentFile() {
+      if (currentFile != null) {
+        files.remove(currentFile);
+        currentFile.delete();
+        currentFile = null;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        if (in != null) {
+          in.close();
+          in = null;
+        }
+      } finally {
+        synchronized (this) {
+          closed = true;
+          for (Range range : ranges) {
+            range.future.cancel(false);
+          }
+          if (currentFile != null) {
+            files.add(currentFile);
+            currentFile = null;
+          }
+          for (File file : files) {
+            file.delete();
+          }
+          files.clear();
+        }
+      }
+    }
+  }
+}
@@ -29,6 +29,11 @@ import java.util.logging.Logger;
 
 /**
  * This content handler implementation uses a Livelink download URL.
+ * The downloads are made by an {@link HttpDownloader}, which bounds
+ * and reuses the connections, downloads large documents in parallel
+ * byte ranges, and resumes failed downloads. The LLCookie is refreshed
+ * on every batch, and renewed when the server rejects it with a 401
+ * response or redirects to the login page.
  *
  * @see ContentHandler
  * @see RefreshableContentHandler
@@ -60,6 +65,21 @@ class HttpURLContentHandler implements RefreshableContentHandler {
     /** The read timeout in milliseconds. */
     private int readTimeout = 0;
 
+    /** The maximum number of open connections. */
+    private int maxConnections = 4;
+
+    /** The smallest document size downloaded in parallel ranges. */
+    private long rangeThreshold = 16L * 1024 * 1024;
+
+    /** The number of parallel ranges for a large document. */
+    private int rangeConnections = 4;
+
+    /** The number of times a failed download is resumed. */
+    private int maxRetries = 3;
+
+    /** The HTTP downloader, created by {@link #initialize}. */
+    private HttpDownloader downloader;
+
     HttpURLContentHandler() {
     }
 
@@ -75,6 +95,19 @@ class HttpURLContentHandler implements RefreshableContentHandler {
         if (urlBase == null) {
           urlBase = connector.getDisplayUrl();
         }
+
+        downloader = new HttpDownloader(new HttpDownloader.Cookies() {
+                @Override
+                public String get() {
+                    return getCookie();
+                }
+
+                @Override
+                public void renew(String staleCookie) throws IOException {
+                    renewCookie(staleCookie);
+                }
+            }, maxConnections, connectTimeout, readTimeout, rangeThreshold,
+            rangeConnections, maxRetries);
     }
 
     /**
@@ -87,6 +120,28 @@ class HttpURLContentHandler implements RefreshableContentHandler {
       llCookie = getLLCookie();
     }
 
+    /** Gets the current LLCookie value. */
+    private synchronized String getCookie() {
+        return llCookie;
+    }
+
+    /**
+     * Gets a new LLCookie value, unless another thread has already
+     * replaced the given stale value.
+     *
+     * @param staleCookie the value that the server rejected
+     */
+    private synchronized void renewCookie(String staleCookie)
+            throws IOException {
+        if (staleCookie.equals(llCookie)) {
+            try {
+                llCookie = getLLCookie();
+            } catch (RepositoryException e) {
+                throw new IOException("Unable to renew the LLCookie", e);
+            }
+        }
+    }
+
     /**
      * Sets the document base URL. By default the configured Livelink
      * URL is used.
@@ -179,6 +234,90 @@ class HttpURLContentHandler implements RefreshableContentHandler {
       return readTimeout;
     }
 
+    /**
+     * Sets the maximum number of connections that may be open at
+     * once. A download fails if no connection is free within a
+     * minute. The default is four.
+     *
+     * @param maxConnections the maximum number of connections
+     */
+    public void setMaxConnections(int maxConnections) {
+        LOGGER.log(Level.CONFIG, "CONTENT HANDLER MAX CONNECTIONS: {0}",
+            maxConnections);
+        if (maxConnections <= 0) {
+            throw new IllegalArgumentException(
+                "maxConnections must be positive");
+        }
+        this.maxConnections = maxConnections;
+    }
+
+    @VisibleForTesting
+    int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Sets the smallest document size that is downloaded in parallel
+     * byte ranges. The default is 16 MB, which is below the 30 MB
+     * limit on documents fed with content.
+     *
+     * @param rangeThreshold the size in bytes, or zero to always
+     * download documents with a single request
+     */
+    public void setRangeThreshold(long rangeThreshold) {
+        LOGGER.log(Level.CONFIG, "CONTENT HANDLER RANGE THRESHOLD: {0}",
+            rangeThreshold);
+        this.rangeThreshold = rangeThreshold;
+    }
+
+    @VisibleForTesting
+    long getRangeThreshold() {
+        return rangeThreshold;
+    }
+
+    /**
+     * Sets the number of byte ranges that a large document is split
+     * into, which is also the number of threads that download the
+     * ranges. The default is four.
+     *
+     * @param rangeConnections the number of ranges
+     */
+    public void setRangeConnections(int rangeConnections) {
+        LOGGER.log(Level.CONFIG, "CONTENT HANDLER RANGE CONNECTIONS: {0}",
+            rangeConnections);
+        if (rangeConnections <= 0) {
+            throw new IllegalArgumentException(
+                "rangeConnections must be positive");
+        }
+        this.rangeConnections = rangeConnections;
+    }
+
+    @VisibleForTesting
+    int getRangeConnections() {
+        return rangeConnections;
+    }
+
+    /**
+     * Sets the number of times that a failed download is resumed
+     * from where it stopped. The default is three.
+     *
+     * @param maxRetries the number of retries
+     */
+    public void setMaxRetries(int maxRetries) {
+        LOGGER.log(Level.CONFIG, "CONTENT HANDLER MAX RETRIES: {0}",
+            maxRetries);
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException(
+                "maxRetries must not be negative");
+        }
+        this.maxRetries = maxRetries;
+    }
+
+    @VisibleForTesting
+    int getMaxRetries() {
+        return maxRetries;
+    }
+
     /** {@inheritDoc} */
     @Override
     public InputStream getInputStream(int volumeId, int objectId,
@@ -186,13 +325,10 @@ class HttpURLContentHandler implements RefreshableContentHandler {
         try {
             URL downloadUrl = new URL(urlBase + urlPath + objectId);
             LOGGER.log(Level.FINEST, "DOWNLOAD URL: {0}", downloadUrl);
-            URLConnection download = downloadUrl.openConnection();
-            download.addRequestProperty("Cookie", "LLCookie=" + llCookie);
-            download.setConnectTimeout(connectTimeout);
-            download.setReadTimeout(readTimeout);
 
             // XXX: Does the BufferedInputStream help at all?
-            return new BufferedInputStream(download.getInputStream(), 32768);
+            return new BufferedInputStream(
+                downloader.download(downloadUrl, size), 32768);
         } catch (IOException e) {
             throw new LivelinkException(e, LOGGER);
         }
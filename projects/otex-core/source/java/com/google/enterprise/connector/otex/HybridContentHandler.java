@@ -0,0 +1,340 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
+import com.google.enterprise.connector.otex.client.Client;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This content handler implementation uses the size hint to choose
+ * where to put the content. Small documents are fetched into memory
+ * using a pool of reusable buffers, and large documents are fetched
+ * into one of a recycled set of temporary files, and read back
+ * through a <code>FileChannel</code>. Buffers and files are returned
+ * to their pools when the returned input stream is closed. If a pool
+ * is empty, a new buffer or file is used instead, and discarded when
+ * the stream is closed.
+ *
+ * @see ContentHandler
+ */
+class HybridContentHandler implements ContentHandler {
+  /** The logger for this class. */
+  private static final Logger LOGGER =
+      Logger.getLogger(HybridContentHandler.class.getName());
+
+  /** The connector contains configuration information. */
+  private LivelinkConnector connector;
+
+  /** The client provides access to the server. */
+  private Client client;
+
+  /** The largest size, in bytes, that is fetched into memory. */
+  private int memoryThreshold = 1024 * 1024;
+
+  /** The maximum number of idle buffers to keep. */
+  private int bufferPoolSize = 4;
+
+  /** The number of temporary files to recycle. */
+  private int tempFileCount = 4;
+
+  /** The directory for temporary files, or null for the default. */
+  private File tempDirectory = null;
+
+  /** The idle buffers, each <code>memoryThreshold</code> bytes long. */
+  private final LinkedList<byte[]> idleBuffers = new LinkedList<byte[]>();
+
+  /** The idle temporary files. */
+  private final LinkedList<File> idleFiles = new LinkedList<File>();
+
+  /** Whether the recycled temporary files have been created. */
+  private boolean filesCreated = false;
+
+  HybridContentHandler() {
+  }
+
+  /**
+   * Sets the largest document size, in bytes, that is fetched into a
+   * pooled memory buffer. Larger documents are fetched into a
+   * temporary file.
+   *
+   * @param memoryThreshold the size in bytes
+   */
+  public void setMemoryThreshold(int memoryThreshold) {
+    LOGGER.log(Level.CONFIG, "CONTENT HANDLER MEMORY THRESHOLD: {0}",
+        memoryThreshold);
+    if (memoryThreshold < 0) {
+      throw new IllegalArgumentException(
+          "memoryThreshold must not be negative");
+    }
+    this.memoryThreshold = memoryThreshold;
+  }
+
+  @VisibleForTesting
+  int getMemoryThreshold() {
+    return memoryThreshold;
+  }
+
+  /**
+   * Sets the maximum number of idle memory buffers to keep for reuse.
+   *
+   * @param bufferPoolSize the number of buffers
+   */
+  public void setBufferPoolSize(int bufferPoolSize) {
+    LOGGER.log(Level.CONFIG, "CONTENT HANDLER BUFFER POOL SIZE: {0}",
+        bufferPoolSize);
+    if (bufferPoolSize < 0) {
+      throw new IllegalArgumentException(
+          "bufferPoolSize must not be negative");
+    }
+    this.bufferPoolSize = bufferPoolSize;
+  }
+
+  @VisibleForTesting
+  int getBufferPoolSize() {
+    return bufferPoolSize;
+  }
+
+  /**
+   * Sets the number of temporary files that are created once and
+   * reused for large documents.
+   *
+   * @param tempFileCount the number of files
+   */
+  public void setTempFileCount(int tempFileCount) {
+    LOGGER.log(Level.CONFIG, "CONTENT HANDLER TEMP FILE COUNT: {0}",
+        tempFileCount);
+    if (tempFileCount < 0) {
+      throw new IllegalArgumentException(
+          "tempFileCount must not be negative");
+    }
+    this.tempFileCount = tempFileCount;
+  }
+
+  @VisibleForTesting
+  int getTempFileCount() {
+    return tempFileCount;
+  }
+
+  /**
+   * Sets the directory for temporary files.
+   *
+   * @param tempDirectory a directory path, or an empty string to use
+   *     the system default temporary directory
+   */
+  public void setTempDirectory(String tempDirectory) {
+    LOGGER.log(Level.CONFIG, "CONTENT HANDLER TEMP DIRECTORY: {0}",
+        tempDirectory);
+    this.tempDirectory = Strings.isNullOrEmpty(tempDirectory)
+        ? null : new File(tempDirectory);
+  }
+
+  @VisibleForTesting
+  File getTempDirectory() {
+    return tempDirectory;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void initialize(LivelinkConnector connector, Client client)
+      throws RepositoryException {
+    this.connector = connector;
+    this.client = client;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public InputStream getInputStream(int volumeId, int objectId,
+      int versionNumber, int size) throws RepositoryException {
+    if (size <= memoryThreshold) {
+      return getMemoryInputStream(volumeId, objectId, versionNumber);
+    } else {
+      return getFileInputStream(volumeId, objectId, versionNumber);
+    }
+  }
+
+  /** Fetches the content into a pooled buffer. */
+  private InputStream getMemoryInputStream(int volumeId, int objectId,
+      int versionNumber) throws RepositoryException {
+    final byte[] pooled = takeBuffer();
+    BufferOutputStream out = new BufferOutputStream(pooled);
+    try {
+      client.FetchVersion(volumeId, objectId, versionNumber, out);
+    } catch (RepositoryException e) {
+      returnBuffer(pooled);
+      throw e;
+    }
+
+    // If the content outgrew the pooled buffer, the buffer is free now.
+    final boolean isPooled = (out.getBuffer() == pooled);
+    if (!isPooled) {
+      returnBuffer(pooled);
+    }
+    return new ByteArrayInputStream(out.getBuffer(), 0, out.size()) {
+        private boolean isOpen = true;
+
+        @Override
+        public void close() throws IOException {
+          if (isOpen) {
+            isOpen = false;
+            if (isPooled) {
+              returnBuffer(pooled);
+            }
+          }
+        }
+      };
+  }
+
+  /** Fetches the content into a recycled temporary file. */
+  private InputStream getFileInputStream(int volumeId, int objectId,
+      int versionNumber) throws RepositoryException {
+    try {
+      File pooledFile = takeFile();
+      final boolean isPooled = (pooledFile != null);
+      final File file =
+          isPooled ? pooledFile : File.createTempFile("gsa-otex-", null,
+              tempDirectory);
+      if (LOGGER.isLoggable(Level.FINER))
+        LOGGER.finer("USING TEMP FILE: " + file);
+      try {
+        truncate(file);
+        client.FetchVersion(volumeId, objectId, versionNumber, file);
+      } catch (RepositoryException e) {
+        releaseFile(file, isPooled);
+        throw e;
+      } catch (IOException e) {
+        releaseFile(file, isPooled);
+        throw e;
+      }
+
+      FileChannel channel = new FileInputStream(file).getChannel();
+      return new FilterInputStream(Channels.newInputStream(channel)) {
+          private boolean isOpen = true;
+
+          @Override
+          public void close() throws IOException {
+            if (isOpen) {
+              isOpen = false;
+              try {
+                super.close();
+              } finally {
+                releaseFile(file, isPooled);
+              }
+            }
+          }
+        };
+    } catch (IOException e) {
+      throw new LivelinkException(e, LOGGER);
+    }
+  }
+
+  /** Empties a recycled file before it is fetched into again. */
+  private static void truncate(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(0);
+    } finally {
+      raf.close();
+    }
+  }
+
+  /** Gets an idle buffer, or allocates a new one. */
+  private synchronized byte[] takeBuffer() {
+    byte[] buffer = idleBuffers.poll();
+    return (buffer == null) ? new byte[memoryThreshold] : buffer;
+  }
+
+  /** Returns a buffer to the pool, unless the pool is full. */
+  private synchronized void returnBuffer(byte[] buffer) {
+    if (idleBuffers.size() < bufferPoolSize) {
+      idleBuffers.addFirst(buffer);
+    }
+  }
+
+  /**
+   * Gets an idle recycled file, creating the set of files the first
+   * time.
+   *
+   * @return a file, or {@code null} if all of them are in use
+   */
+  private synchronized File takeFile() throws IOException {
+    if (!filesCreated) {
+      filesCreated = true;
+      for (int i = 0; i < tempFileCount; i++) {
+        File file = File.createTempFile("gsa-otex-", null, tempDirectory);
+        file.deleteOnExit();
+        idleFiles.add(file);
+      }
+      if (LOGGER.isLoggable(Level.FINE)) {
+        LOGGER.fine("CREATED TEMP FILES: " + idleFiles);
+      }
+    }
+    return idleFiles.poll();
+  }
+
+  /**
+   * Returns a recycled file to the set, or deletes a one-off
+   * temporary file.
+   */
+  private synchronized void releaseFile(File file, boolean isPooled) {
+    if (isPooled) {
+      idleFiles.addFirst(file);
+    } else {
+      if (LOGGER.isLoggable(Level.FINER))
+        LOGGER.finer("DELETE TEMP FILE: " + file);
+      file.delete();
+    }
+  }
+
+  @VisibleForTesting
+  synchronized int getIdleBufferCount() {
+    return idleBuffers.size();
+  }
+
+  @VisibleForTesting
+  synchronized int getIdleFileCount() {
+    return idleFiles.size();
+  }
+
+  /**
+   * A byte array output stream that starts with the given buffer,
+   * and only allocates a new one if the content does not fit.
+   */
+  private static class BufferOutputStream extends ByteArrayOutputStream {
+    BufferOutputStream(byte[] buffer) {
+      super(0);
+      buf = buffer;
+    }
+
+    byte[] getBuffer() {
+      return buf;
+    }
+  }
+}
@@ -16,6 +16,7 @@ package com.google.enterprise.connector.otex;
 
 import com.google.enterprise.connector.otex.client.Client;
 import com.google.enterprise.connector.otex.client.ClientValue;
+import com.google.enterprise.connector.otex.client.ColumnarClientValue;
 import com.google.enterprise.connector.spi.RepositoryException;
 
 import java.util.ArrayList;
@@ -50,8 +51,10 @@ class HybridGenealogist extends Genealogist {
       StringBuilder descendants) throws RepositoryException {
     // First, check the matching nodes themselves.
     StringBuilder undecideds = new StringBuilder();
-    for (int i = 0; i < matching.size(); i++) {
-      final int matchingId = matching.toInteger(i, "DataID");
+    int[] matchingIds =
+        ((ColumnarClientValue) matching).toIntegerColumn("DataID");
+    for (int i = 0; i < matchingIds.length; i++) {
+      final int matchingId = matchingIds[i];
       if (!matchParent(matchingId, matchingId,
               Collections.<Integer>emptyList(), descendants))
         undecideds.append(matchingId).append(',');
@@ -122,10 +125,16 @@ class HybridGenealogist extends Genealogist {
    * mishandle stepparents.
    */
   protected static final class Parents {
-    private final ClientValue parents;
+    private final ColumnarClientValue parents;
+    private final int dataIdColumn;
+    private final int parentIdColumn;
+    private final int stepParentIdColumn;
 
-    public Parents(ClientValue parents) {
-      this.parents = parents;
+    public Parents(ClientValue parents) throws RepositoryException {
+      this.parents = (ColumnarClientValue) parents;
+      this.dataIdColumn = this.parents.getColumnIndex("DataID");
+      this.parentIdColumn = this.parents.getColumnIndex("ParentID");
+      this.stepParentIdColumn = this.parents.getColumnIndex("StepParentID");
     }
 
     public int size() {
@@ -133,7 +142,7 @@ class HybridGenealogist extends Genealogist {
     }
 
     public int getDataID(int i) throws RepositoryException {
-        return parents.toInteger(i, "DataID");
+        return parents.toInteger(i, dataIdColumn);
     }
 
     /**
@@ -143,9 +152,9 @@ class HybridGenealogist extends Genealogist {
      * @see HybridGenealogist#getParents
      */
     public int getParentID(int i) throws RepositoryException {
-      int parentId = parents.toInteger(i, "ParentID");
-      if (parentId == -1 && parents.isDefined(i, "StepParentID")) {
-        parentId = parents.toInteger(i, "StepParentID");
+      int parentId = parents.toInteger(i, parentIdColumn);
+      if (parentId == -1 && parents.isDefined(i, stepParentIdColumn)) {
+        parentId = parents.toInteger(i, stepParentIdColumn);
         if (LOGGER.isLoggable(Level.FINEST)) {
           LOGGER.finest("DESCENDANTS: Substituting " + parentId
               + " as stepparent for " + getDataID(i));
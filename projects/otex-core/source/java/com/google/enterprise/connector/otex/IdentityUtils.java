@@ -18,8 +18,19 @@ import com.google.enterprise.connector.otex.client.ClientValue;
 import com.google.enterprise.connector.spi.RepositoryException;
 
 import java.util.Enumeration;
+import java.util.regex.Pattern;
 
 class IdentityUtils {
+  /**
+   * Matches the external authentication markers in the serialized
+   * form of the KUAF.UserData column, for example,
+   * {@code A<1,?,'ExternalAuthentication'=true>}, or
+   * {@code ExternalAuthentication=true}. This mirrors the checks
+   * in {@link #isExternal(ClientValue)}.
+   */
+  private static final Pattern EXTERNAL_USER_DATA = Pattern.compile(
+      "(?:^|[<,?\\s])'?(?:ExternalAuthentication'?\\s*=\\s*true\\b"
+      + "|(?i:ldap|ntlm)'?\\s*=)");
 
   private LivelinkConnector connector;
 
@@ -55,4 +66,22 @@ class IdentityUtils {
     }
     return namespace;
   }
+
+  /**
+   * Gets the namespace for a user or group, given the UserData column
+   * value read directly from KUAF rather than the Assoc returned by
+   * {@code GetUserOrGroupByID}.
+   *
+   * @param userData the serialized UserData, which may be {@code null}
+   * @return the global or local namespace
+   */
+  public String getNamespace(String userData) {
+    String namespace;
+    if (userData != null && EXTERNAL_USER_DATA.matcher(userData).find()) {
+      namespace = connector.getGoogleGlobalNamespace();
+    } else {
+      namespace = connector.getGoogleLocalNamespace();
+    }
+    return namespace;
+  }
 }
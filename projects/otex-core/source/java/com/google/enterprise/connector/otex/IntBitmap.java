@@ -0,0 +1,295 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A compressed set of int values, in the style of a Roaring bitmap.
+ * The values are split into chunks by their high 16 bits. Each chunk
+ * holds its low 16 bits either in a sorted array, if there are at
+ * most {@code ARRAY_MAX} of them, or in a bitmap of 65536 bits.
+ * Dense ranges of DataIDs take about one bit per value, and sparse
+ * ones about two bytes per value.
+ * <p/>
+ * This class is not thread-safe.
+ */
+class IntBitmap {
+  /** The largest number of values in an array chunk. */
+  private static final int ARRAY_MAX = 4096;
+
+  /** The number of longs in a bitmap chunk. */
+  private static final int BITMAP_LONGS = 1024;
+
+  /** The high 16 bits of the chunks, in increasing order. */
+  private int[] keys = new int[4];
+
+  /**
+   * The chunks, by index. Each chunk is a {@code char[]} holding the
+   * sorted low 16 bits, or a {@code long[]} bitmap.
+   */
+  private Object[] chunks = new Object[4];
+
+  /** The number of values in each chunk. */
+  private int[] cardinalities = new int[4];
+
+  /** The number of chunks. */
+  private int chunkCount = 0;
+
+  /** The number of values in the set. */
+  private int size = 0;
+
+  /** Gets the number of values in the set. */
+  int size() {
+    return size;
+  }
+
+  /** Removes all of the values. */
+  void clear() {
+    keys = new int[4];
+    chunks = new Object[4];
+    cardinalities = new int[4];
+    chunkCount = 0;
+    size = 0;
+  }
+
+  /** Gets the index of the chunk for a key, or (-(insertion point) - 1). */
+  private int findChunk(int key) {
+    return Arrays.binarySearch(keys, 0, chunkCount, key);
+  }
+
+  boolean contains(int value) {
+    int i = findChunk(value >>> 16);
+    if (i < 0) {
+      return false;
+    }
+    char low = (char) value;
+    Object chunk = chunks[i];
+    if (chunk instanceof char[]) {
+      return Arrays.binarySearch((char[]) chunk, 0, cardinalities[i], low)
+          >= 0;
+    } else {
+      return (((long[]) chunk)[low >>> 6] & (1L << low)) != 0;
+    }
+  }
+
+  /**
+   * Adds a value to the set.
+   *
+   * @return {@code true} if the value was not already in the set
+   */
+  boolean add(int value) {
+    int key = value >>> 16;
+    int i = findChunk(key);
+    if (i < 0) {
+      i = -i - 1;
+      insertChunk(i, key);
+    }
+
+    char low = (char) value;
+    Object chunk = chunks[i];
+    int cardinality = cardinalities[i];
+    if (chunk instanceof char[]) {
+      char[] array = (char[]) chunk;
+      int j = Arrays.binarySearch(array, 0, cardinality, low);
+      if (j >= 0) {
+        return false;
+      }
+      if (cardinality == ARRAY_MAX) {
+        long[] bitmap = toBitmap(array, cardinality);
+        bitmap[low >>> 6] |= 1L << low;
+        chunks[i] = bitmap;
+      } else {
+        j = -j - 1;
+        if (cardinality == array.length) {
+          array = Arrays.copyOf(array,
+              Math.min(ARRAY_MAX, Math.max(4, cardinality * 2)));
+          chunks[i] = array;
+        }
+        System.arraycopy(array, j, array, j + 1, cardinality - j);
+        array[j] = low;
+      }
+    } else {
+      long[] bitmap = (long[]) chunk;
+      long bit = 1L << low;
+      if ((bitmap[low >>> 6] & bit) != 0) {
+        return false;
+      }
+      bitmap[low >>> 6] |= bit;
+    }
+    cardinalities[i]++;
+    size++;
+    return true;
+  }
+
+  /**
+   * Removes a value from the set.
+   *
+   * @return {@code true} if the value was in the set
+   */
+  boolean remove(int value) {
+    int i = findChunk(value >>> 16);
+    if (i < 0) {
+      return false;
+    }
+
+    char low = (char) value;
+    Object chunk = chunks[i];
+    int cardinality = cardinalities[i];
+    if (chunk instanceof char[]) {
+      char[] array = (char[]) chunk;
+      int j = Arrays.binarySearch(array, 0, cardinality, low);
+      if (j < 0) {
+        return false;
+      }
+      System.arraycopy(array, j + 1, array, j, cardinality - j - 1);
+    } else {
+      long[] bitmap = (long[]) chunk;
+      long bit = 1L << low;
+      if ((bitmap[low >>> 6] & bit) == 0) {
+        return false;
+      }
+      bitmap[low >>> 6] &= ~bit;
+      if (cardinality - 1 == ARRAY_MAX) {
+        chunks[i] = toArray(bitmap, ARRAY_MAX);
+      }
+    }
+    size--;
+    if (--cardinalities[i] == 0) {
+      removeChunk(i);
+    }
+    return true;
+  }
+
+  private void insertChunk(int i, int key) {
+    if (chunkCount == keys.length) {
+      int length = keys.length * 2;
+      keys = Arrays.copyOf(keys, length);
+      chunks = Arrays.copyOf(chunks, length);
+      cardinalities = Arrays.copyOf(cardinalities, length);
+    }
+    System.arraycopy(keys, i, keys, i + 1, chunkCount - i);
+    System.arraycopy(chunks, i, chunks, i + 1, chunkCount - i);
+    System.arraycopy(cardinalities, i, cardinalities, i + 1, chunkCount - i);
+    keys[i] = key;
+    chunks[i] = new char[4];
+    cardinalities[i] = 0;
+    chunkCount++;
+  }
+
+  private void removeChunk(int i) {
+    System.arraycopy(keys, i + 1, keys, i, chunkCount - i - 1);
+    System.arraycopy(chunks, i + 1, chunks, i, chunkCount - i - 1);
+    System.arraycopy(cardinalities, i + 1, cardinalities, i,
+        chunkCount - i - 1);
+    chunkCount--;
+    chunks[chunkCount] = null;
+  }
+
+  private static long[] toBitmap(char[] array, int cardinality) {
+    long[] bitmap = new long[BITMAP_LONGS];
+    for (int j = 0; j < cardinality; j++) {
+      char low = array[j];
+      bitmap[low >>> 6] |= 1L << low;
+    }
+    return bitmap;
+  }
+
+  private static char[] toArray(long[] bitmap, int cardinality) {
+    char[] array = new char[cardinality];
+    int j = 0;
+    for (int k = 0; k < BITMAP_LONGS; k++) {
+      long word = bitmap[k];
+      while (word != 0) {
+        array[j++] = (char) ((k << 6) + Long.numberOfTrailingZeros(word));
+        word &= word - 1;
+      }
+    }
+    return array;
+  }
+
+  /**
+   * Writes the set. The format is the number of chunks, followed by
+   * the key and cardinality of each chunk, and its array of chars or
+   * bitmap of longs, depending on the cardinality.
+   *
+   * @param out the output
+   */
+  void writeTo(DataOutput out) throws IOException {
+    out.writeInt(chunkCount);
+    for (int i = 0; i < chunkCount; i++) {
+      out.writeChar(keys[i]);
+      out.writeInt(cardinalities[i]);
+      Object chunk = chunks[i];
+      if (chunk instanceof char[]) {
+        char[] array = (char[]) chunk;
+        for (int j = 0; j < cardinalities[i]; j++) {
+          out.writeChar(array[j]);
+        }
+      } else {
+        for (long word : (long[]) chunk) {
+          out.writeLong(word);
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads a set written by {@link #writeTo}, replacing the values in
+   * this set.
+   *
+   * @param in the input
+   * @throws IOException if the input cannot be read or is invalid
+   */
+  void readFrom(DataInput in) throws IOException {
+    clear();
+    int count = in.readInt();
+    if (count < 0 || count > 65536) {
+      throw new IOException("Invalid chunk count " + count);
+    }
+    int length = Math.max(4, count);
+    keys = new int[length];
+    chunks = new Object[length];
+    cardinalities = new int[length];
+    for (int i = 0; i < count; i++) {
+      int key = in.readChar();
+      int cardinality = in.readInt();
+      if ((i > 0 && key <= keys[i - 1])
+          || cardinality <= 0 || cardinality > 65536) {
+        throw new IOException("Invalid chunk " + key + " of " + cardinality);
+      }
+      keys[i] = key;
+      cardinalities[i] = cardinality;
+      if (cardinality <= ARRAY_MAX) {
+        char[] array = new char[cardinality];
+        for (int j = 0; j < cardinality; j++) {
+          array[j] = in.readChar();
+        }
+        chunks[i] = array;
+      } else {
+        long[] bitmap = new long[BITMAP_LONGS];
+        for (int k = 0; k < BITMAP_LONGS; k++) {
+          bitmap[k] = in.readLong();
+        }
+        chunks[i] = bitmap;
+      }
+      chunkCount++;
+      size += cardinality;
+    }
+  }
+}
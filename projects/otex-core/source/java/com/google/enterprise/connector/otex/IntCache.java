@@ -0,0 +1,265 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.common.base.Preconditions;
+import com.google.enterprise.connector.otex.CacheMap.CacheStatistics;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A cache of int values that supports the same operations as
+ * {@code Cache<Integer>}, without boxing the values or allocating
+ * an entry for each value. The values are stored in an open
+ * addressing hash table with linear probing, and the least recently
+ * used values are approximated using the CLOCK algorithm: each
+ * lookup sets a reference bit, and when the cache is full, a hand
+ * sweeps the table clearing reference bits, and evicts the first
+ * value whose bit is already clear.
+ * <p/>
+ * {@code Integer.MIN_VALUE} marks the empty slots, so it is never
+ * cached.
+ */
+class IntCache {
+  /** The logger for this class. */
+  private static final Logger LOGGER =
+      Logger.getLogger(IntCache.class.getName());
+
+  /** The value stored in empty slots. */
+  private static final int EMPTY = Integer.MIN_VALUE;
+
+  /** The maximum number of values in the cache. */
+  private final int maxCapacity;
+
+  /** The size of the table when the cache is full. */
+  private final int maxTableSize;
+
+  /** The cached values, or {@code EMPTY}. */
+  private int[] values;
+
+  /** The reference bits for the CLOCK algorithm. */
+  private boolean[] referenced;
+
+  /** The number of values in the cache. */
+  private int size = 0;
+
+  /** The position of the CLOCK hand in the table. */
+  private int hand = 0;
+
+  /** Cache hit counter, for logging statistics. */
+  private int hits = 0;
+
+  /** Cache miss counter, for logging statistics. */
+  private int misses = 0;
+
+  /**
+   * Constructs a new IntCache that starts out at the minCapacity
+   * and grows to the maxCapacity before it starts removing LRU items.
+   *
+   * @param minCapacity the initial capacity of the cache
+   * @param maxCapacity the maximum capacity of the cache
+   */
+  public IntCache(int minCapacity, int maxCapacity) {
+    Preconditions.checkArgument(minCapacity > 0,
+        "minCapacity must be positive");
+    Preconditions.checkArgument(maxCapacity >= minCapacity,
+        "maxCapacity must be at least as large as minCapacity");
+    Preconditions.checkArgument(maxCapacity <= CacheMap.MAXIMUM_CAPACITY,
+        "maxCapacity must be less than " + CacheMap.MAXIMUM_CAPACITY);
+
+    this.maxCapacity = maxCapacity;
+    this.maxTableSize = getTableSize(maxCapacity);
+    allocate(getTableSize(minCapacity));
+  }
+
+  /**
+   * Gets the table size needed to hold the given number of values
+   * with a load factor of no more than 0.75.
+   */
+  private static int getTableSize(int capacity) {
+    int minTableSize = capacity + capacity / 3 + 1;
+    int tableSize = Integer.highestOneBit(minTableSize);
+    return (tableSize < minTableSize) ? tableSize << 1 : tableSize;
+  }
+
+  private void allocate(int tableSize) {
+    values = new int[tableSize];
+    referenced = new boolean[tableSize];
+    Arrays.fill(values, EMPTY);
+  }
+
+  /** Gets the home slot of a value. */
+  private int slot(int value) {
+    int h = value * 0x9E3779B9;
+    return (h ^ (h >>> 16)) & (values.length - 1);
+  }
+
+  /** Gets the slot containing a value, or the empty slot it belongs in. */
+  private int find(int value) {
+    int mask = values.length - 1;
+    int i = slot(value);
+    while (values[i] != EMPTY && values[i] != value) {
+      i = (i + 1) & mask;
+    }
+    return i;
+  }
+
+  public boolean addAll(Collection<Integer> collection) {
+    boolean modified = false;
+    for (int value : collection) {
+      if (add(value))
+        modified = true;
+    }
+    return modified;
+  }
+
+  /**
+   * Adds a value to the cache, evicting another value if the cache
+   * is full.
+   *
+   * @return {@code true} if the value was not already in the cache
+   */
+  public boolean add(int value) {
+    if (value == EMPTY) {
+      return false;
+    }
+    int i = find(value);
+    if (values[i] == value) {
+      return false;
+    }
+
+    if (size == maxCapacity) {
+      evict();
+      i = find(value);
+    } else if (size + 1 > values.length - (values.length >> 2)
+        && values.length < maxTableSize) {
+      resize(values.length << 1);
+      i = find(value);
+    }
+    values[i] = value;
+    referenced[i] = false;
+    size++;
+    return true;
+  }
+
+  public boolean contains(int value) {
+    if (value != EMPTY) {
+      int i = find(value);
+      if (values[i] == value) {
+        referenced[i] = true;
+        hits++;
+        return true;
+      }
+    }
+    misses++;
+    return false;
+  }
+
+  /** Removes the first unreferenced value found by the CLOCK hand. */
+  private void evict() {
+    int mask = values.length - 1;
+    while (true) {
+      if (values[hand] != EMPTY) {
+        if (referenced[hand]) {
+          referenced[hand] = false;
+        } else {
+          if (LOGGER.isLoggable(Level.FINEST)) {
+            LOGGER.finest("CACHE: removing entry " + values[hand]);
+          }
+          remove(hand);
+          return;
+        }
+      }
+      hand = (hand + 1) & mask;
+    }
+  }
+
+  /**
+   * Removes the value in the given slot, shifting back any following
+   * values that would otherwise be unreachable from their home slot.
+   */
+  private void remove(int hole) {
+    int mask = values.length - 1;
+    int i = (hole + 1) & mask;
+    while (values[i] != EMPTY) {
+      int home = slot(values[i]);
+      // Move the value if its home slot is not cyclically in (hole, i].
+      boolean reachable = (hole <= i)
+          ? (hole < home && home <= i)
+          : (hole < home || home <= i);
+      if (!reachable) {
+        values[hole] = values[i];
+        referenced[hole] = referenced[i];
+        hole = i;
+      }
+      i = (i + 1) & mask;
+    }
+    values[hole] = EMPTY;
+    referenced[hole] = false;
+    size--;
+  }
+
+  private void resize(int tableSize) {
+    int[] oldValues = values;
+    boolean[] oldReferenced = referenced;
+    allocate(tableSize);
+    for (int j = 0; j < oldValues.length; j++) {
+      if (oldValues[j] != EMPTY) {
+        int i = find(oldValues[j]);
+        values[i] = oldValues[j];
+        referenced[i] = oldReferenced[j];
+      }
+    }
+    hand = 0;
+  }
+
+  /**
+   * Gets the values in the cache, in no particular order. The
+   * reference bits are not included.
+   */
+  public int[] toArray() {
+    int[] array = new int[size];
+    int j = 0;
+    for (int value : values) {
+      if (value != EMPTY) {
+        array[j++] = value;
+      }
+    }
+    return array;
+  }
+
+  /** Returns a snapshot of the current cache statistics. */
+  public CacheStatistics statistics() {
+    return new CacheStatistics(size, hits, misses);
+  }
+
+  /** A convenience method for logging. */
+  public String toString() {
+    StringBuilder buffer = new StringBuilder();
+    buffer.append('[');
+    for (int value : values) {
+      if (value != EMPTY) {
+        if (buffer.length() > 1)
+          buffer.append(", ");
+        buffer.append(value);
+      }
+    }
+    buffer.append(']');
+    return buffer.toString();
+  }
+}
@@ -15,6 +15,7 @@
 package com.google.enterprise.connector.otex;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
 import com.google.common.base.Strings;
 import com.google.enterprise.connector.otex.client.Client;
 import com.google.enterprise.connector.otex.client.ClientFactory;
@@ -22,12 +23,14 @@ import com.google.enterprise.connector.otex.client.ClientValue;
 import com.google.enterprise.connector.spi.AuthenticationManager;
 import com.google.enterprise.connector.spi.AuthorizationManager;
 import com.google.enterprise.connector.spi.Connector;
+import com.google.enterprise.connector.spi.ConnectorShutdownAware;
 import com.google.enterprise.connector.spi.RepositoryException;
 import com.google.enterprise.connector.spi.RepositoryLoginException;
 import com.google.enterprise.connector.spi.Session;
 import com.google.enterprise.connector.spi.SpiConstants;
 import com.google.enterprise.connector.spi.SpiConstants.FeedType;
 
+import java.io.File;
 import java.text.Format;
 import java.text.MessageFormat;
 import java.text.NumberFormat;
@@ -42,12 +45,14 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-public class LivelinkConnector implements Connector {
+public class LivelinkConnector
+    implements Connector, ConnectorShutdownAware {
   /** The logger for this class. */
   private static final Logger LOGGER =
       Logger.getLogger(LivelinkConnector.class.getName());
@@ -150,6 +155,12 @@ public class LivelinkConnector implements Connector {
    */
   private ClientFactory authenticationClientFactory;
 
+  /** The maximum number of pooled clients, or zero to disable pooling. */
+  private int clientPoolSize = 0;
+
+  /** The pooled client factory, if pooling is enabled. */
+  private PooledClientFactory pooledClientFactory;
+
   /** Enables or disables HTTP tunneling. */
   private boolean useHttpTunneling;
 
@@ -254,6 +265,76 @@ public class LivelinkConnector implements Connector {
    */
   private int candidatesTimeWarpFuzz = -1;
 
+  /**
+   * Whether to query the next batch of candidates in the background
+   * while the current batch is being consumed.
+   */
+  private boolean prefetchCandidates = false;
+
+  /** The number of threads used to collect document metadata. */
+  private int enrichmentThreads = 0;
+
+  /**
+   * The target time in seconds for each traversal batch, or zero to
+   * use the batch hint for the number of candidates.
+   */
+  private int batchTargetTime = 0;
+
+  /**
+   * Whether to probe for the next matching item when a batch of
+   * candidates has no matches, to skip over sparse regions.
+   */
+  private boolean skipSparseRegions = false;
+
+  /**
+   * The largest size of the included subtrees, as a percentage of
+   * DTree, for which candidates are queried from the subtrees
+   * directly, or zero to always query all of DTree.
+   */
+  private int subtreeCandidatesThreshold = 1;
+
+  /**
+   * The number of ModifyDate windows traversed concurrently by a new
+   * traversal, or zero or one to traverse with a single cursor.
+   */
+  private int traversalPartitions = 0;
+
+  /**
+   * The number of backfill batches for each batch of recent changes
+   * in a new traversal, or zero to traverse with a single lane.
+   */
+  private int tailLaneRatio = 0;
+
+  /**
+   * The AuditIDs of the events that are traversed from the audit log,
+   * or the empty string to only traverse items by ModifyDate.
+   */
+  private String changeFeedAuditIds = "";
+
+  /**
+   * The number of minutes between reconciliation passes over DTree
+   * when the change feed is used.
+   */
+  private int reconciliationInterval = 60;
+
+  /**
+   * The AuditIDs of the permission change events that trigger a
+   * re-feed, or the empty string to disable the re-feed.
+   */
+  private String aclChangeAuditIds = "";
+
+  /** Whether to load the ACLs for each batch with bulk SQL queries. */
+  private boolean batchAcls = false;
+
+  /** Whether to load the category attributes for each batch with SQL. */
+  private boolean batchCategoryAttributes = false;
+
+  /** The maximum number of category definitions to cache. */
+  private int categoryCacheSize = 1000;
+
+  /** The category definitions shared by the category handlers. */
+  private CategoryDefinitionCache categoryDefinitionCache;
+
   /** Whether to track deleted items, sending delete notification to GSA. */
   private boolean trackDeletedItems = true;
 
@@ -269,6 +350,39 @@ public class LivelinkConnector implements Connector {
   /** The maximum of the <code>Genealogist</code> ancestor node caches. */
   private int genealogistMaxCacheSize;
 
+  /** The file to persist the <code>Genealogist</code> caches in. */
+  private String genealogistCacheFile = "";
+
+  /** The <code>Genealogist</code> used by the current traversal manager. */
+  private Genealogist activeGenealogist;
+
+  /** The file to record the fed content versions in. */
+  private String versionIndexFile = "";
+
+  /** The index of the fed content versions, opened on demand. */
+  private VersionIndex versionIndex;
+
+  /** The file to record the fed DataIDs in. */
+  private String fedItemsFile = "";
+
+  /** The set of fed DataIDs, opened on demand. */
+  private FedItemSet fedItemSet;
+
+  /** The user and group names shared by the traversals. */
+  private UserNameHandler userNameHandler;
+
+  /** The threads and clients used to collect metadata, created on demand. */
+  private EnrichmentPool enrichmentPool;
+
+  /**
+   * The traversal managers, whose threads and clients are released
+   * when the connector is shut down. The set does not keep abandoned
+   * traversal managers alive.
+   */
+  private final Set<LivelinkTraversalManager> traversalManagers =
+      Collections.newSetFromMap(
+          new WeakHashMap<LivelinkTraversalManager, Boolean>());
+
   /** An additional SQL WHERE clause condition. */
   private String sqlWhereCondition;
 
@@ -946,6 +1060,501 @@ public class LivelinkConnector implements Connector {
     return candidatesTimeWarpFuzz;
   }
 
+  /**
+   * Sets whether to prefetch the next batch of traversal candidates
+   * and results. When enabled, the queries for the next batch are run
+   * on separate clients while the current batch is being consumed.
+   *
+   * @param prefetchCandidates {@code true} to prefetch the next batch,
+   *     or {@code false} to run the queries for each batch on demand
+   */
+  public void setPrefetchCandidates(boolean prefetchCandidates) {
+    if (LOGGER.isLoggable(Level.CONFIG))
+      LOGGER.config("PREFETCH CANDIDATES: " + prefetchCandidates);
+    this.prefetchCandidates = prefetchCandidates;
+  }
+
+  /**
+   * Gets whether to prefetch the next batch of traversal candidates
+   * and results.
+   *
+   * @return {@code true} to prefetch the next batch, or {@code false}
+   *     otherwise
+   */
+  boolean getPrefetchCandidates() {
+    return prefetchCandidates;
+  }
+
+  /**
+   * Sets the number of worker threads used to collect the metadata
+   * for the documents in a batch, including the ObjectInfo, version,
+   * category attributes, and ACLs. Each thread uses its own client.
+   * The content is always fetched in order on the calling thread.
+   *
+   * @param enrichmentThreads the number of worker threads, or zero to
+   *     collect the metadata for each document on demand
+   */
+  public void setEnrichmentThreads(final int enrichmentThreads) {
+    propertyValidators.add(new PropertyValidator() {
+        void validate() {
+          if (enrichmentThreads < 0) {
+            throw new ConfigurationException(
+                "enrichmentThreads must not be negative.");
+          }
+          LivelinkConnector.this.enrichmentThreads = enrichmentThreads;
+          if (LOGGER.isLoggable(Level.CONFIG)) {
+            LOGGER.config("ENRICHMENT THREADS: " + enrichmentThreads);
+          }
+        }
+      });
+  }
+
+  /**
+   * Gets the number of worker threads used to collect document
+   * metadata.
+   *
+   * @return the number of threads, or zero if the metadata is
+   *     collected on demand
+   */
+  int getEnrichmentThreads() {
+    return enrichmentThreads;
+  }
+
+  /**
+   * Registers a traversal manager, so that its threads and clients
+   * are released when the connector is shut down.
+   *
+   * @param traversalManager the new traversal manager
+   */
+  synchronized void addTraversalManager(
+      LivelinkTraversalManager traversalManager) {
+    traversalManagers.add(traversalManager);
+  }
+
+  /**
+   * Gets the pool of worker threads and clients used to collect
+   * document metadata, creating it if necessary. The pool is shared
+   * by the traversal managers, and is shut down with the connector.
+   *
+   * @param username the traversal user to impersonate, or
+   *     {@code null} to use the configured user
+   * @return the enrichment pool, or {@code null} if the metadata
+   *     should be collected serially
+   */
+  synchronized EnrichmentPool getEnrichmentPool(String username)
+      throws RepositoryException {
+    if (enrichmentThreads == 0) {
+      return null;
+    }
+    if (enrichmentPool != null
+        && !Objects.equal(enrichmentPool.getUsername(), username)) {
+      enrichmentPool.shutdown();
+      enrichmentPool = null;
+    }
+    if (enrichmentPool == null) {
+      ClientFactory factory = getClientFactory();
+      List<Client> clients = new ArrayList<Client>(enrichmentThreads);
+      for (int i = 0; i < enrichmentThreads; i++) {
+        Client client = factory.createClient();
+        if (username != null) {
+          client.ImpersonateUserEx(username, domainName);
+        }
+        clients.add(client);
+      }
+      enrichmentPool = new EnrichmentPool(username, clients);
+    }
+    return enrichmentPool;
+  }
+
+  /**
+   * Sets the target time for each traversal batch. If non-zero, the
+   * number of candidates queried for each batch is adjusted based on
+   * the observed fraction of candidates that are indexed, the query
+   * time, and the time taken to consume earlier batches.
+   *
+   * @param batchTargetTime the target time in seconds, or zero to use
+   *     the batch hint for the number of candidates
+   */
+  public void setBatchTargetTime(final int batchTargetTime) {
+    propertyValidators.add(new PropertyValidator() {
+        void validate() {
+          if (batchTargetTime < 0) {
+            throw new ConfigurationException(
+                "batchTargetTime must not be negative.");
+          }
+          LivelinkConnector.this.batchTargetTime = batchTargetTime;
+          if (LOGGER.isLoggable(Level.CONFIG)) {
+            LOGGER.config("BATCH TARGET TIME: " + batchTargetTime);
+          }
+        }
+      });
+  }
+
+  /**
+   * Gets the target time for each traversal batch.
+   *
+   * @return the target time in seconds, or zero if the batch hint
+   *     is used
+   */
+  int getBatchTargetTime() {
+    return batchTargetTime;
+  }
+
+  /**
+   * Sets whether to skip over sparse regions of the repository. If
+   * {@code true}, when a batch of candidates has no matching items,
+   * an aggregate query finds the next item that matches the
+   * filters, and the traversal jumps directly to it instead of
+   * scanning the candidates in between one batch at a time. If
+   * included or excluded location nodes are configured, the probe
+   * requires DTreeAncestors, and is not used without it.
+   *
+   * @param skipSparseRegions {@code true} to probe for the next
+   *     matching item, or {@code false} to scan every candidate
+   */
+  public void setSkipSparseRegions(boolean skipSparseRegions) {
+    if (LOGGER.isLoggable(Level.CONFIG))
+      LOGGER.config("SKIP SPARSE REGIONS: " + skipSparseRegions);
+    this.skipSparseRegions = skipSparseRegions;
+  }
+
+  /**
+   * Gets whether to skip over sparse regions of the repository.
+   *
+   * @return {@code true} to probe for the next matching item, or
+   *     {@code false} otherwise
+   */
+  boolean getSkipSparseRegions() {
+    return skipSparseRegions;
+  }
+
+  /**
+   * Sets the threshold for querying candidates from the included
+   * subtrees. When DTreeAncestors is used and the included location
+   * nodes contain at most this percentage of the items in DTree, the
+   * candidates query is limited to the included subtrees, rather than
+   * scanning all of DTree and discarding the items outside them.
+   *
+   * @param subtreeCandidatesThreshold a percentage from 0 to 100, or
+   *     zero to always query all of DTree
+   */
+  public void setSubtreeCandidatesThreshold(
+      final int subtreeCandidatesThreshold) {
+    propertyValidators.add(new PropertyValidator() {
+        void validate() {
+          if (subtreeCandidatesThreshold < 0
+              || subtreeCandidatesThreshold > 100) {
+            throw new ConfigurationException(
+                "subtreeCandidatesThreshold must be between 0 and 100.");
+          }
+          LivelinkConnector.this.subtreeCandidatesThreshold =
+              subtreeCandidatesThreshold;
+          if (LOGGER.isLoggable(Level.CONFIG)) {
+            LOGGER.config("SUBTREE CANDIDATES THRESHOLD: "
+                + subtreeCandidatesThreshold);
+          }
+        }
+      });
+  }
+
+  /**
+   * Gets the threshold for querying candidates from the included
+   * subtrees.
+   *
+   * @return a percentage of DTree, or zero if candidates are always
+   *     queried from all of DTree
+   */
+  int getSubtreeCandidatesThreshold() {
+    return subtreeCandidatesThreshold;
+  }
+
+  /**
+   * Sets the number of partitions for a new traversal. If greater
+   * than one, the range of ModifyDate values is split into this many
+   * windows when a traversal starts, and each window is traversed
+   * concurrently with its own clients until it is complete. The
+   * checkpoint then reverts to a single cursor. Older versions of the
+   * connector ignore the unfinished windows in a checkpoint, so the
+   * connector should not be downgraded until they are finished,
+   * unless the traversal is reset.
+   *
+   * @param traversalPartitions the number of windows, or zero or one
+   *     to traverse with a single cursor
+   */
+  public void setTraversalPartitions(final int traversalPartitions) {
+    propertyValidators.add(new PropertyValidator() {
+        void validate() {
+          if (traversalPartitions < 0) {
+            throw new ConfigurationException(
+                "traversalPartitions must not be negative.");
+          }
+          LivelinkConnector.this.traversalPartitions = traversalPartitions;
+          if (LOGGER.isLoggable(Level.CONFIG)) {
+            LOGGER.config("TRAVERSAL PARTITIONS: " + traversalPartitions);
+          }
+        }
+      });
+  }
+
+  /**
+   * Gets the number of partitions for a new traversal.
+   *
+   * @return the number of windows, or zero or one if a single cursor
+   *     is used
+   */
+  int getTraversalPartitions() {
+    return traversalPartitions;
+  }
+
+  /**
+   * Sets the ratio of backfill batches to recent change batches for a
+   * new traversal. If greater than zero, a second cursor, the tail
+   * lane, starts at the latest ModifyDate when a traversal starts, so
+   * that recent changes are not held back until the backfill of the
+   * older items is complete. The batches alternate between the lanes,
+   * with this many backfill batches for each tail lane batch. Once the
+   * backfill is complete, the tail lane is the only cursor.
+   *
+   * @param tailLaneRatio the number of backfill batches for each
+   *     batch of recent changes, or zero to traverse with a single lane
+   */
+  public void setTailLaneRatio(final int tailLaneRatio) {
+    propertyValidators.add(new PropertyValidator() {
+        void validate() {
+          if (tailLaneRatio < 0) {
+            throw new ConfigurationException(
+                "tailLaneRatio must not be negative.");
+          }
+          LivelinkConnector.this.tailLaneRatio = tailLaneRatio;
+          if (LOGGER.isLoggable(Level.CONFIG)) {
+            LOGGER.config("TAIL LANE RATIO: " + tailLaneRatio);
+          }
+        }
+      });
+  }
+
+  /**
+   * Gets the ratio of backfill batches to recent change batches for a
+   * new traversal.
+   *
+   * @return the number of backfill batches for each batch of recent
+   *     changes, or zero if a single lane is used
+   */
+  int getTailLaneRatio() {
+    return tailLaneRatio;
+  }
+
+  /**
+   * Sets the AuditIDs of the events to read from the DAuditNew audit
+   * log, such as creates, modifies, moves, and permission changes.
+   * If set, the items affected by these events are traversed as the
+   * events occur, using an EventID checkpoint, and the ModifyDate
+   * traversal of DTree becomes a periodic reconciliation pass. The
+   * AuditID values depend on the Livelink version, and can be found
+   * in the AuditStr column of DAuditNew. Deletes are still tracked
+   * separately.
+   *
+   * @param changeFeedAuditIds a comma-separated list of AuditIDs, or
+   *     the empty string to disable the change feed
+   */
+  public void setChangeFeedAuditIds(final String changeFeedAuditIds) {
+    propertyValidators.add(new PropertyValidator() {
+        void validate() {
+          LivelinkConnector.this.changeFeedAuditIds =
+              sanitizeListOfIntegers(changeFeedAuditIds);
+          if (LOGGER.isLoggable(Level.CONFIG)) {
+            LOGGER.config("CHANGE FEED AUDIT IDS: "
+                + LivelinkConnector.this.changeFeedAuditIds);
+          }
+        }
+      });
+  }
+
+  /**
+   * Gets the AuditIDs of the events to read from the audit log.
+   *
+   * @return a comma-separated list of AuditIDs, or the empty string
+   *     if the change feed is disabled
+   */
+  String getChangeFeedAuditIds() {
+    return changeFeedAuditIds;
+  }
+
+  /**
+   * Sets the number of minutes between reconciliation passes when the
+   * change feed is used. A reconciliation pass traverses DTree by
+   * ModifyDate from the insert checkpoint until it is caught up, to
+   * pick up any changes that were not in the audit log.
+   *
+   * @param reconciliationInterval the number of minutes between passes
+   */
+  public void setReconciliationInterval(final int reconciliationInterval) {
+    propertyValidators.add(new PropertyValidator() {
+        void validate() {
+          if (reconciliationInterval < 0) {
+            throw new ConfigurationException(
+                "reconciliationInterval must not be negative.");
+          }
+          LivelinkConnector.this.reconciliationInterval =
+              reconciliationInterval;
+          if (LOGGER.isLoggable(Level.CONFIG)) {
+            LOGGER.config("RECONCILIATION INTERVAL: "
+                + reconciliationInterval);
+          }
+        }
+      });
+  }
+
+  /**
+   * Gets the number of minutes between reconciliation passes.
+   *
+   * @return the number of minutes between passes
+   */
+  int getReconciliationInterval() {
+    return reconciliationInterval;
+  }
+
+  /**
+   * Sets the AuditIDs of the permission change events to read from
+   * the DAuditNew audit log. Permission changes do not change the
+   * ModifyDate, so the items affected by these events, including the
+   * descendants of containers when DTreeAncestors is used, are
+   * re-fed with their metadata and ACLs. With the content URL feed
+   * type, the content is not re-fed, but with content feeds, the
+   * content is fetched and re-fed as well.
+   * The AuditID values depend on the Livelink version, and can be
+   * found in the AuditStr column of DAuditNew.
+   *
+   * @param aclChangeAuditIds a comma-separated list of AuditIDs, or
+   *     the empty string to disable the re-feed
+   */
+  public void setAclChangeAuditIds(final String aclChangeAuditIds) {
+    propertyValidators.add(new PropertyValidator() {
+        void validate() {
+          LivelinkConnector.this.aclChangeAuditIds =
+              sanitizeListOfIntegers(aclChangeAuditIds);
+          if (LOGGER.isLoggable(Level.CONFIG)) {
+            LOGGER.config("ACL CHANGE AUDIT IDS: "
+                + LivelinkConnector.this.aclChangeAuditIds);
+          }
+        }
+      });
+  }
+
+  /**
+   * Gets the AuditIDs of the permission change events.
+   *
+   * @return a comma-separated list of AuditIDs, or the empty string
+   *     if the re-feed is disabled
+   */
+  String getAclChangeAuditIds() {
+    return aclChangeAuditIds;
+  }
+
+  /**
+   * Sets whether to load the ACLs for all of the documents in a batch
+   * using SQL queries over the DTreeACL and KUAF tables, rather than
+   * calling {@code GetObjectRights} and {@code GetUserOrGroupByID}
+   * for each document.
+   *
+   * @param batchAcls {@code true} to query the ACLs for each batch, or
+   *     {@code false} to get the rights for each document
+   */
+  public void setBatchAcls(boolean batchAcls) {
+    if (LOGGER.isLoggable(Level.CONFIG))
+      LOGGER.config("BATCH ACLS: " + batchAcls);
+    this.batchAcls = batchAcls;
+  }
+
+  /**
+   * Gets whether to load the ACLs for each batch with SQL queries.
+   *
+   * @return {@code true} to query the ACLs for each batch, or
+   *     {@code false} otherwise
+   */
+  boolean getBatchAcls() {
+    return batchAcls;
+  }
+
+  /**
+   * Sets whether to load the category attribute values for all of the
+   * documents in a batch using SQL queries over the LLAttrData and
+   * CatRegionMap tables, rather than calling
+   * {@code GetObjectAttributesEx}, {@code AttrGetInfo}, and
+   * {@code AttrGetValues} for each document. The included and
+   * excluded categories are applied in the same way.
+   *
+   * @param batchCategoryAttributes {@code true} to query the category
+   *     attributes for each batch, or {@code false} to get the
+   *     attributes for each document
+   */
+  public void setBatchCategoryAttributes(boolean batchCategoryAttributes) {
+    if (LOGGER.isLoggable(Level.CONFIG)) {
+      LOGGER.config("BATCH CATEGORY ATTRIBUTES: "
+          + batchCategoryAttributes);
+    }
+    this.batchCategoryAttributes = batchCategoryAttributes;
+  }
+
+  /**
+   * Gets whether to load the category attributes for each batch with
+   * SQL queries.
+   *
+   * @return {@code true} to query the category attributes for each
+   *     batch, or {@code false} otherwise
+   */
+  boolean getBatchCategoryAttributes() {
+    return batchCategoryAttributes;
+  }
+
+  /**
+   * Sets the maximum number of category definitions to cache. Each
+   * version of a category is cached separately, and the least
+   * recently used definitions are removed when the cache is full.
+   *
+   * @param cacheSize the maximum number of category versions to cache
+   */
+  public void setCategoryCacheSize(final int cacheSize) {
+    propertyValidators.add(new PropertyValidator() {
+        void validate() {
+          if (cacheSize <= 0) {
+            throw new ConfigurationException(
+                "categoryCacheSize must be positive.");
+          }
+          if (cacheSize > CacheMap.MAXIMUM_CAPACITY) {
+            throw new ConfigurationException("categoryCacheSize must "
+                + "not exceed " + CacheMap.MAXIMUM_CAPACITY);
+          }
+          LivelinkConnector.this.categoryCacheSize = cacheSize;
+          if (LOGGER.isLoggable(Level.CONFIG)) {
+            LOGGER.config("CATEGORY CACHE SIZE: " + cacheSize);
+          }
+        }
+      });
+  }
+
+  /**
+   * Gets the maximum number of category definitions to cache.
+   *
+   * @return the maximum number of category versions to cache
+   */
+  int getCategoryCacheSize() {
+    return categoryCacheSize;
+  }
+
+  /**
+   * Gets the category definitions cache, which lives as long as the
+   * connector, across batches and traversals.
+   *
+   * @return the category definitions cache
+   */
+  synchronized CategoryDefinitionCache getCategoryDefinitionCache() {
+    if (categoryDefinitionCache == null) {
+      categoryDefinitionCache = new CategoryDefinitionCache(categoryCacheSize);
+    }
+    return categoryDefinitionCache;
+  }
+
   /**
    * Sets the Livelink public content username.
    *
@@ -1531,7 +2140,9 @@ public class LivelinkConnector implements Connector {
 
   /**
    * Sets the concrete implementation for the <code>Genealogist</code>
-   * interface.
+   * interface. The <code>SnapshotGenealogist</code> implementation
+   * keeps the parent of every node in memory, using about eight bytes
+   * per node, and does not query the parents of individual nodes.
    *
    * @param genealogist the fully-qualified name of the
    * <code>Genealogist</code> implementation to use
@@ -1632,6 +2243,143 @@ public class LivelinkConnector implements Connector {
     return genealogistMaxCacheSize;
   }
 
+  /**
+   * Sets the file used to save the <code>Genealogist</code> ancestor
+   * node caches, so that they survive connector restarts. The caches
+   * are saved periodically and when the connector is shut down, and
+   * are discarded when the included or excluded location nodes
+   * change. An empty value disables saving the caches.
+   *
+   * @param cacheFile the path of the cache file, or an empty string
+   */
+  public void setGenealogistCacheFile(String cacheFile) {
+    if (LOGGER.isLoggable(Level.CONFIG))
+      LOGGER.config("GENEALOGIST CACHE FILE: " + cacheFile);
+    this.genealogistCacheFile = cacheFile;
+  }
+
+  /**
+   * Gets the file used to save the <code>Genealogist</code> caches.
+   *
+   * @return the cache file, or {@code null} if the caches are not saved
+   */
+  File getGenealogistCacheFile() {
+    return Strings.isNullOrEmpty(genealogistCacheFile)
+        ? null : new File(genealogistCacheFile);
+  }
+
+  /**
+   * Sets the file used to record the version number, DataSize, and
+   * a digest of the content fed for each document. A document whose
+   * version number and DataSize have not changed is fed as a
+   * metadata-only update, without fetching the content again. Other
+   * documents are fed with their content, which is recorded in the
+   * index once it has been read. An empty value disables the index,
+   * and the content is always fed.
+   *
+   * @param indexFile the path of the index file, or an empty string
+   */
+  public void setVersionIndexFile(String indexFile) {
+    if (LOGGER.isLoggable(Level.CONFIG))
+      LOGGER.config("VERSION INDEX FILE: " + indexFile);
+    this.versionIndexFile = indexFile;
+  }
+
+  /**
+   * Gets the file used to record the fed content versions.
+   *
+   * @return the index file, or {@code null} if there is no index
+   */
+  File getVersionIndexFile() {
+    return Strings.isNullOrEmpty(versionIndexFile)
+        ? null : new File(versionIndexFile);
+  }
+
+  /**
+   * Gets the index of the fed content versions, reading it from the
+   * file the first time.
+   *
+   * @return the index, or {@code null} if there is no index
+   */
+  synchronized VersionIndex getVersionIndex() {
+    if (versionIndex == null) {
+      File indexFile = getVersionIndexFile();
+      if (indexFile != null) {
+        versionIndex = new VersionIndex(indexFile);
+      }
+    }
+    return versionIndex;
+  }
+
+  /**
+   * Sets the file used to record the DataIDs of the items that have
+   * been fed, as a compressed bitmap. Once a traversal started with
+   * the file has caught up, delete actions are only sent for items
+   * in the set, rather than for every deleted item of an included
+   * subtype, including items that were never indexed. An empty value
+   * disables the set, and all of the delete actions are sent.
+   *
+   * @param itemsFile the path of the set file, or an empty string
+   */
+  public void setFedItemsFile(String itemsFile) {
+    if (LOGGER.isLoggable(Level.CONFIG))
+      LOGGER.config("FED ITEMS FILE: " + itemsFile);
+    this.fedItemsFile = itemsFile;
+  }
+
+  /**
+   * Gets the file used to record the fed DataIDs.
+   *
+   * @return the set file, or {@code null} if there is no set
+   */
+  File getFedItemsFile() {
+    return Strings.isNullOrEmpty(fedItemsFile) ? null : new File(fedItemsFile);
+  }
+
+  /**
+   * Gets the set of fed DataIDs, reading it from the file the first
+   * time.
+   *
+   * @return the set, or {@code null} if there is no set
+   */
+  synchronized FedItemSet getFedItemSet() {
+    if (fedItemSet == null) {
+      File itemsFile = getFedItemsFile();
+      if (itemsFile != null) {
+        fedItemSet = new FedItemSet(itemsFile);
+      }
+    }
+    return fedItemSet;
+  }
+
+  /**
+   * Gets the handler that resolves and caches the user and group
+   * names, so that the cache is shared by the traversals and kept
+   * across batches.
+   *
+   * @return the name handler
+   */
+  synchronized UserNameHandler getUserNameHandler() {
+    if (userNameHandler == null) {
+      userNameHandler = new UserNameHandler(this);
+    }
+    return userNameHandler;
+  }
+
+  /**
+   * Sets the <code>Genealogist</code> whose caches are saved when
+   * the connector is shut down. The caches of the previous one, if
+   * any, are saved now.
+   *
+   * @param genealogist the <code>Genealogist</code> in use
+   */
+  synchronized void setActiveGenealogist(Genealogist genealogist) {
+    if (activeGenealogist != null) {
+      activeGenealogist.saveCaches();
+    }
+    activeGenealogist = genealogist;
+  }
+
   /**
    * Sets an additional SQL WHERE clause condition.
    *
@@ -2080,12 +2828,56 @@ public class LivelinkConnector implements Connector {
   }
 
   /**
-   * Gets the <code>ClientFactory</code> for this Connector.
+   * Sets the maximum number of Livelink sessions shared by the clients
+   * used for traversal, retrieval, and authorization. When pooling is
+   * enabled, each client call borrows an idle session from the pool,
+   * so threads that share a client can make calls concurrently, and
+   * new sessions are only created when the pool has no idle session
+   * for the impersonated user.
+   *
+   * @param clientPoolSize the maximum number of pooled sessions, or
+   *     zero to create a new session for each client
+   */
+  public void setClientPoolSize(final int clientPoolSize) {
+    propertyValidators.add(new PropertyValidator() {
+        void validate() {
+          if (clientPoolSize < 0) {
+            throw new ConfigurationException(
+                "clientPoolSize must not be negative.");
+          }
+          LivelinkConnector.this.clientPoolSize = clientPoolSize;
+          if (LOGGER.isLoggable(Level.CONFIG)) {
+            LOGGER.config("CLIENT POOL SIZE: " + clientPoolSize);
+          }
+        }
+      });
+  }
+
+  /**
+   * Gets the maximum number of pooled Livelink sessions.
+   *
+   * @return the pool size, or zero if pooling is disabled
+   */
+  int getClientPoolSize() {
+    return clientPoolSize;
+  }
+
+  /**
+   * Gets the <code>ClientFactory</code> for this Connector. If client
+   * pooling is enabled, this is a pool wrapped around the configured
+   * factory.
    *
    * @return the <code>ClientFactory</code>
    */
-  ClientFactory getClientFactory() {
-    return clientFactory;
+  synchronized ClientFactory getClientFactory() {
+    if (clientPoolSize == 0) {
+      return clientFactory;
+    }
+    if (pooledClientFactory == null) {
+      pooledClientFactory =
+          new PooledClientFactory(clientFactory, clientPoolSize);
+    }
+    return pooledClientFactory;
   }
 
   /**
@@ -2321,6 +3113,70 @@ public class LivelinkConnector implements Connector {
     }
   }
 
+  /** {@inheritDoc} */
+  @Override
+  public void shutdown() {
+    // The traversal managers call into the connector while holding
+    // their own locks, so they are shut down without holding ours.
+    List<LivelinkTraversalManager> managers;
+    synchronized (this) {
+      managers = new ArrayList<LivelinkTraversalManager>(traversalManagers);
+      traversalManagers.clear();
+    }
+    for (LivelinkTraversalManager traversalManager : managers) {
+      traversalManager.shutdown();
+    }
+    shutdownResources();
+  }
+
+  /** Saves the caches and releases the shared threads and clients. */
+  private synchronized void shutdownResources() {
+    if (activeGenealogist != null) {
+      activeGenealogist.saveCaches();
+      activeGenealogist = null;
+    }
+    if (versionIndex != null) {
+      versionIndex.flush();
+      versionIndex = null;
+    }
+    if (fedItemSet != null) {
+      fedItemSet.flush();
+      fedItemSet = null;
+    }
+    userNameHandler = null;
+    if (enrichmentPool != null) {
+      enrichmentPool.shutdown();
+      enrichmentPool = null;
+    }
+    if (pooledClientFactory != null) {
+      pooledClientFactory.shutdown();
+      pooledClientFactory = null;
+    }
+    if (contentHandler instanceof PrefetchingContentHandler) {
+      ((PrefetchingContentHandler) contentHandler).shutdown();
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public synchronized void delete() {
+    activeGenealogist = null;
+    File cacheFile = getGenealogistCacheFile();
+    if (cacheFile != null) {
+      new GenealogistCacheFile(cacheFile).delete();
+    }
+    versionIndex = null;
+    File indexFile = getVersionIndexFile();
+    if (indexFile != null) {
+      VersionIndex.delete(indexFile);
+    }
+    fedItemSet = null;
+    File itemsFile = getFedItemsFile();
+    if (itemsFile != null) {
+      FedItemSet.delete(itemsFile);
+    }
+  }
+
   /** {@inheritDoc} */
   @Override
   public Session login()
@@ -2424,7 +3280,7 @@ public class LivelinkConnector implements Connector {
       validateSqlWhereCondition(client);
     }
 
-    return new LivelinkSession(this, clientFactory, authenticationManager,
+    return new LivelinkSession(this, getClientFactory(), authenticationManager,
         authorizationManager);
   }
 }
@@ -19,6 +19,7 @@ import com.google.common.base.Strings;
 import com.google.common.primitives.Ints;
 import com.google.enterprise.connector.otex.client.Client;
 import com.google.enterprise.connector.otex.client.ClientValue;
+import com.google.enterprise.connector.otex.client.ColumnarClientValue;
 import com.google.enterprise.connector.spi.Document;
 import com.google.enterprise.connector.spi.DocumentList;
 import com.google.enterprise.connector.spi.Principal;
@@ -33,14 +34,26 @@ import com.google.enterprise.connector.spi.SpiConstants.PrincipalType;
 import com.google.enterprise.connector.spi.TraversalContext;
 import com.google.enterprise.connector.spi.Value;
 
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -90,6 +103,19 @@ class LivelinkDocumentList implements DocumentList {
   /** A handler for mapping user IDs to user names. */
   private final UserNameHandler nameHandler;
 
+  /**
+   * The worker threads for collecting document metadata ahead of the
+   * consumer, or {@code null} to collect it on demand.
+   */
+  private final EnrichmentPool enrichmentPool;
+
+  /**
+   * The clients and handlers available to the enrichment worker
+   * threads. Each enricher is used by one thread at a time, and the
+   * handlers are scoped to this DocumentList like the ones above.
+   */
+  private final BlockingQueue<Enricher> enrichers;
+
   /** The table of Livelink data, one row per doc, one column per field. */
   @VisibleForTesting
   final ClientValue recArray;
@@ -97,6 +123,12 @@ class LivelinkDocumentList implements DocumentList {
   /** The recarray fields. */
   private final Field[] fields;
 
+  /** The recarray column indexes of the fields, or -1 if not found. */
+  private final int[] fieldColumns;
+
+  /** The DataIDs of the recarray rows. */
+  private final int[] dataIds;
+
   /** The table of Livelink deleted data, one row per object */
   private final ClientValue delArray;
 
@@ -123,6 +155,27 @@ class LivelinkDocumentList implements DocumentList {
 
   private final IdentityUtils identityUtils;
 
+  /** Whether to load the ACLs for the whole batch with SQL queries. */
+  private final boolean batchAcls;
+
+  /** The ACLs for the batch, loaded on demand if batchAcls is true. */
+  private AclTable aclTable = null;
+
+  /** Whether to load the category attributes for the batch with SQL. */
+  private final boolean batchCategoryAttributes;
+
+  /**
+   * The category attributes for the batch, loaded on demand if
+   * batchCategoryAttributes is true.
+   */
+  private CategoryTable categoryTable = null;
+
+  /** The index of the fed content versions, or null if there is none. */
+  private final VersionIndex versionIndex;
+
+  /** The set of fed DataIDs, or null if there is none. */
+  private final FedItemSet fedItemSet;
+
   /**
    * Constructor for non-trivial document set.  Iterate over a
    * RecArray of items returned from Livelink.
@@ -132,17 +185,57 @@ class LivelinkDocumentList implements DocumentList {
       Field[] fields, ClientValue delArray,
       TraversalContext traversalContext, Checkpoint checkpoint,
       String currentUsername) throws RepositoryException {
+    this(connector, client, contentHandler, recArray, fields, delArray,
+        traversalContext, checkpoint, currentUsername, null);
+  }
+
+  /**
+   * Constructor for non-trivial document set, optionally collecting
+   * the document metadata using the given worker threads.
+   */
+  LivelinkDocumentList(LivelinkConnector connector, Client client,
+      ContentHandler contentHandler, ClientValue recArray,
+      Field[] fields, ClientValue delArray,
+      TraversalContext traversalContext, Checkpoint checkpoint,
+      String currentUsername, EnrichmentPool enrichmentPool)
+      throws RepositoryException {
     this.connector = connector;
     this.client = client;
     this.contentHandler = contentHandler;
     this.categoryHandler = new CategoryHandler(connector, client);
-    this.nameHandler = new UserNameHandler(client);
+    this.nameHandler = connector.getUserNameHandler();
+    this.enrichmentPool = enrichmentPool;
+    if (enrichmentPool == null) {
+      this.enrichers = null;
+    } else {
+      List<Client> clients = enrichmentPool.getClients();
+      this.enrichers = new ArrayBlockingQueue<Enricher>(clients.size());
+      for (Client enricherClient : clients) {
+        enrichers.add(new Enricher(enricherClient));
+      }
+    }
     this.recArray = recArray;
     this.delArray = delArray;
     this.fields = fields;
+    if (recArray == null) {
+      this.fieldColumns = null;
+      this.dataIds = new int[0];
+    } else {
+      // Look up the columns once, rather than by name for every row.
+      ColumnarClientValue columns = (ColumnarClientValue) recArray;
+      this.fieldColumns = new int[fields.length];
+      for (int i = 0; i < fields.length; i++) {
+        fieldColumns[i] = columns.getColumnIndex(fields[i].fieldName);
+      }
+      this.dataIds = columns.toIntegerColumn("DataID");
+    }
     this.traversalContext = traversalContext;
     this.checkpoint = checkpoint;
     this.identityUtils = new IdentityUtils(connector);
+    this.batchAcls = connector.getBatchAcls();
+    this.batchCategoryAttributes = connector.getBatchCategoryAttributes();
+    this.versionIndex = connector.getVersionIndex();
+    this.fedItemSet = connector.getFedItemSet();
 
     if (contentHandler instanceof RefreshableContentHandler) {
       ((RefreshableContentHandler) contentHandler).refresh();
@@ -151,6 +244,9 @@ class LivelinkDocumentList implements DocumentList {
     // Subset the docIds in the recArray into Public and Private Docs.
     findPublicContent(currentUsername);
 
+    // Look up the user and group names in the recArray in bulk.
+    resolveUserNames();
+
     // Prime the DocumentList.nextDocument() iterator
     docIterator = new LivelinkDocumentListIterator();
     docsProcessed = 0;
@@ -171,8 +267,10 @@ class LivelinkDocumentList implements DocumentList {
       // document, we want to simply skip it and go onto the next.
       try {
         Document doc = docIterator.nextDocument();
-        docsProcessed++;
-        return doc;
+        if (doc != null) {
+          docsProcessed++;
+          return doc;
+        }
       } catch (LivelinkIOException e) {
         return handleTransientException(e);
       } catch (RepositoryDocumentException e) {
@@ -205,6 +303,7 @@ class LivelinkDocumentList implements DocumentList {
     }
 
     // No more documents available.
+    docIterator.cancelPending();
     checkpoint.advanceToEnd();
     return null;
   }
@@ -219,6 +318,7 @@ class LivelinkDocumentList implements DocumentList {
    */
   private Document handleTransientException(RepositoryException e)
       throws RepositoryException {
+    docIterator.cancelPending();
     checkpoint.restore();
     if (docsProcessed > 0) {
       return null;
@@ -234,6 +334,16 @@ class LivelinkDocumentList implements DocumentList {
   public String checkpoint() throws RepositoryException {
     String cp = checkpoint.toString();
 
+    // The Connector Manager calls this when it is done with the
+    // batch, which may be abandoned before the end of the list.
+    docIterator.cancelPending();
+
+    // The content read so far has been fed, so record its versions.
+    if (versionIndex != null)
+      versionIndex.flush();
+    if (fedItemSet != null)
+      fedItemSet.flush();
+
     if (LOGGER.isLoggable(Level.FINE))
       LOGGER.fine("CHECKPOINT: " + cp);
 
@@ -272,6 +382,107 @@ class LivelinkDocumentList implements DocumentList {
     }
   }
 
+  /**
+   * Gets the size of the content to fetch for the given row. The
+   * content is not fetched if the subtype is not supported by
+   * <code>FetchVersion</code>, if there is no content, or if the
+   * content is not acceptable according to the TraversalContext.
+   *
+   * @param row the recArray row
+   * @param subType the object subtype of the row
+   * @return the content size, or -1 if the content should not be fetched
+   * @throws SkippedDocumentException if the whole document is
+   * excluded by its content type
+   */
+  // NOTE: Some of the logic here has been replicated in
+  // Retriever.getContent().  Changes here should probably be
+  // reflected there, and vice-versa.
+  // TODO: Extract the common logic out into a shared utility method.
+  private long getContentSize(int row, int subType)
+      throws RepositoryException {
+    if (LOGGER.isLoggable(Level.FINER))
+      LOGGER.finer("CONTENT WITH SUBTYPE = " + subType);
+
+    List<Integer> unsupportedTypes =
+        connector.getUnsupportedFetchVersionTypes();
+    if (unsupportedTypes.contains(subType)) {
+      if (LOGGER.isLoggable(Level.FINEST)) {
+        LOGGER.finest("NO CONTENT PROPERTY FOR FOR UNSUPPORTED SUBTYPE = "
+            + subType);
+      }
+      return -1;
+    }
+
+    // DataSize is the only non-nullable column from
+    // DVersData that appears in the WebNodes view,
+    // but there are cases (such as categories) where
+    // there are rows in DVersData but FetchVersion
+    // fails. So we're guessing here that if MimeType
+    // is non-null then there should be a blob.
+    ClientValue mimeType = recArray.toValue(row, "MimeType");
+    if (!mimeType.isDefined())
+      return -1;
+
+    // XXX: This value might be wrong. There are
+    // data size callbacks which can change this
+    // value. For example, the value returned by
+    // GetObjectInfo may be different than the
+    // value retrieved from the database.
+    long size = recArray.toLong(row, "DataSize");
+    if (LOGGER.isLoggable(Level.FINER))
+      LOGGER.finer("CONTENT DATASIZE = " + size);
+
+    // The TraversalContext Interface provides additional
+    // screening based upon content size and mimetype.
+    if (traversalContext != null) {
+      String mt = mimeType.toString2();
+      if (LOGGER.isLoggable(Level.FINER))
+        LOGGER.finer("CONTENT TYPE = " + mt);
+
+      // Is this MimeType supported?  If not, don't feed content.
+      int supportLevel = traversalContext.mimeTypeSupportLevel(mt);
+      if (supportLevel == 0)
+        return -1;
+
+      // Is this MimeType excluded?  If so, skip the whole document.
+      if (supportLevel < 0)
+        throw new SkippedDocumentException("Excluded by content type: " + mt);
+
+      // Is the content too large?
+      if (size > traversalContext.maxDocumentSize())
+        return -1;
+    } else {
+      // If there is no traversal context, we'll enforce a size
+      // limit of 30 MB. This limit is hard-coded in the GSA anyway.
+      if (size > 30 * 1024 * 1024)
+        return -1;
+    }
+
+    // If there is no actual data, don't feed empty content.
+    if (size <= 0)
+      return -1;
+
+    return size;
+  }
+
+  /**
+   * Checks whether the content for the given row has already been
+   * fed, according to the version index.
+   *
+   * @param row the recArray row
+   * @return {@code true} if the version number and DataSize of the
+   *     row match the last content fed
+   */
+  private boolean isContentUnchanged(int row) throws RepositoryException {
+    if (versionIndex == null)
+      return false;
+    ClientValue versionNum = recArray.toValue(row, "VersionNum");
+    ClientValue dataSize = recArray.toValue(row, "DataSize");
+    return versionNum.isDefined() && dataSize.isDefined()
+        && versionIndex.isUnchanged(dataIds[row], versionNum.toInteger(),
+            dataSize.toLong());
+  }
+
   /**
    * This iterates over the DocIDs in the recArray.
    */
@@ -284,7 +495,7 @@ class LivelinkDocumentList implements DocumentList {
 
     public DocIdIterator() {
       this.row = 0;
-      this.size = (recArray == null) ? 0 : recArray.size();
+      this.size = dataIds.length;
     }
 
     @Override
@@ -295,15 +506,7 @@ class LivelinkDocumentList implements DocumentList {
     @Override
     public String next() {
       if (row < size) {
-        try {
-          return recArray.toString(row, "DataID");
-        } catch (RepositoryException e) {
-          LOGGER.warning("LivelinkDocumentList.DocIdIterator.next " +
-              "caught exception - " + e.getMessage());
-          throw new RuntimeException(e);
-        } finally {
-          row++;
-        }
+        return Integer.toString(dataIds[row++]);
       }
       return null;
     }
@@ -314,6 +517,101 @@ class LivelinkDocumentList implements DocumentList {
     }
   }
 
+  /**
+   * Resolves the names for the UserID and GroupID fields in the
+   * recArray with bulk queries. The user fields in the ObjectInfo and
+   * VersionInfo are not known until those are fetched, so they are
+   * resolved in bulk for each document, and the user attributes are
+   * resolved when the batch category attributes are loaded. Failures
+   * here are not fatal, since any names that are not resolved in bulk
+   * are also looked up on demand.
+   */
+  private void resolveUserNames() {
+    if (recArray == null || recArray.size() == 0)
+      return;
+
+    Set<Integer> ids = new HashSet<Integer>();
+    try {
+      for (Field field : fields) {
+        if (field.propertyNames.length > 0
+            && isUserIdOrGroupId(field.fieldName)) {
+          for (int i = 0; i < recArray.size(); i++) {
+            if (recArray.isDefined(i, field.fieldName))
+              ids.add(recArray.toInteger(i, field.fieldName));
+          }
+        }
+      }
+      if (!ids.isEmpty())
+        nameHandler.resolveUserNames(client, ids);
+    } catch (RepositoryException e) {
+      LOGGER.log(Level.WARNING,
+          "Failed to resolve user names for the batch", e);
+    }
+  }
+
+  /**
+   * Determine whether this field contains a UserID or GroupID value.
+   *
+   * @param fieldName the name of the field in the ObjectInfo or
+   * VersionInfo assoc.
+   * @return true if the field contains a UserID or a GroupID value.
+   */
+  private static boolean isUserIdOrGroupId(String fieldName) {
+    for (int i = 0; i < USER_FIELD_NAMES.length; i++) {
+      if (USER_FIELD_NAMES[i].equalsIgnoreCase(fieldName))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Gets the ACLs for all of the inserted items in the recArray,
+   * loading them on first use.
+   */
+  private synchronized AclTable getAclTable() throws RepositoryException {
+    if (aclTable == null) {
+      List<Integer> objectIds = new ArrayList<Integer>();
+      Set<Integer> ownerIds = new HashSet<Integer>();
+      for (int dataId : dataIds) {
+        objectIds.add(dataId);
+      }
+      if (recArray != null) {
+        for (int userId
+                 : ((ColumnarClientValue) recArray).toIntegerColumn("UserID")) {
+          ownerIds.add(userId);
+        }
+      }
+      aclTable = new AclTable(connector, client,
+          new SqlQueries(connector.isSqlServer()), objectIds, ownerIds);
+    }
+    return aclTable;
+  }
+
+  /**
+   * Gets the category attributes for all of the inserted items in the
+   * recArray, loading them on first use.
+   */
+  private synchronized CategoryTable getCategoryTable()
+      throws RepositoryException {
+    if (categoryTable == null) {
+      List<Integer> objectIds = new ArrayList<Integer>();
+      for (int dataId : dataIds) {
+        objectIds.add(dataId);
+      }
+      categoryTable = new CategoryTable(client,
+          new SqlQueries(connector.isSqlServer()), objectIds);
+      try {
+        Set<Integer> userIds = categoryTable.getUserIds();
+        if (!userIds.isEmpty())
+          nameHandler.resolveUserNames(client, userIds);
+      } catch (RepositoryException e) {
+        LOGGER.log(Level.WARNING,
+            "Failed to resolve user attribute names for the batch", e);
+      }
+    }
+    return categoryTable;
+  }
+
   /**
    * Iterates over a <code>DocumentList</code>, returning each
    * <code>Document</code> it contains.
@@ -343,20 +641,22 @@ class LivelinkDocumentList implements DocumentList {
     /** The object ID of the current row. */
     private int objectId;
 
-    /** The volume ID of the current row. */
-    private int volumeId;
+    /** The Document Properties associated with the current row. */
+    private LivelinkDocument props;
 
-    /** The object Subtype. */
-    private int subType;
+    /** The next recArray row to submit to the enrichment pool. */
+    private int nextSubmitRow;
 
-    /** The ObjectInfo of the current row, [fetch delayed until needed] */
-    private ClientValue objectInfo;
+    /** The submitted enrichment tasks, by recArray row. */
+    private final Map<Integer, Future<DocumentBuilder>> pending =
+        new HashMap<Integer, Future<DocumentBuilder>>();
 
-    /** The VersionInfo of the current row, [fetch delayed until needed] */
-    private ClientValue versionInfo;
+    /** The next recArray row to announce to the content handler. */
+    private int nextPrefetchRow;
 
-    /** The Document Properties associated with the current row. */
-    private LivelinkDocument props;
+    /** The announced content, by recArray row. */
+    private final Map<Integer, Announcement> prefetched =
+        new HashMap<Integer, Announcement>();
 
     LivelinkDocumentListIterator() throws RepositoryException {
       this.delRow = 0;
@@ -364,23 +664,41 @@ class LivelinkDocumentList implements DocumentList {
 
       this.insRow = 0;
       this.insSize = (recArray == null) ? 0 : recArray.size();
+      this.nextSubmitRow = 0;
+      this.nextPrefetchRow = 0;
     }
 
     public boolean hasNext() {
       return (insRow < insSize) || (delRow < delSize);
     }
 
+    /**
+     * Gets the next document, skipping any delete actions that are
+     * not needed.
+     *
+     * @return the next document, or {@code null} if there are no more
+     */
     public LivelinkDocument nextDocument() throws RepositoryException {
-      if (!hasNext())
-        return null;
+      while (hasNext()) {
+        LivelinkDocument doc = nextRow();
+        if (doc != null)
+          return doc;
+      }
+      return null;
+    }
 
+    /**
+     * Gets the document for the next row.
+     *
+     * @return the next document, or {@code null} if the row is a
+     *     delete action for an item that was never fed
+     */
+    private LivelinkDocument nextRow() throws RepositoryException {
       // Walk two separate lists: inserts and deletes.
       // Process the request in date order.  If an insert and
       // a delete have the same date, process inserts first.
       Date insDate = null, delDate = null;
       int dateComp = 0;
-      objectInfo = null;
-      versionInfo = null;
 
       // Peek at the next item to insert,
       if (insRow < insSize) {
@@ -416,20 +734,19 @@ class LivelinkDocumentList implements DocumentList {
       if (dateComp <= 0) {
         try {
           // Return an Inserted Item.
-          objectId = recArray.toInteger(insRow, "DataID");
-          volumeId = recArray.toInteger(insRow, "OwnerID");
-          subType  = recArray.toInteger(insRow, "SubType");
-
-          props = new LivelinkDocument(objectId, fields.length*2);
-
-          // Collect the various properties for this row.
-          collectRecArrayProperties();
-          collectObjectInfoProperties();
-          collectVersionProperties();
-          collectCategoryAttributes();
-          collectDerivedProperties();
-          collectAclProperties();
+          objectId = dataIds[insRow];
+
+          // Collect the various properties for this row. The
+          // metadata may have been collected ahead of time, but the
+          // content is always requested here, in order.
+          prefetchContent(insRow);
+          DocumentBuilder builder = getMetadata(insRow);
+          builder.collectDerivedProperties();
+          props = builder.props;
+          if (fedItemSet != null)
+            fedItemSet.add(objectId);
         } finally {
+          cancelPrefetch(insRow);
           // Establish the checkpoint for this row.
           checkpoint.setInsertCheckpoint(insDate, objectId);
           insRow++;
@@ -439,6 +756,16 @@ class LivelinkDocumentList implements DocumentList {
           // return a Deleted Item
           objectId = delArray.toInteger(delRow, "DataID");
 
+          // Skip the items that were never fed.
+          if (fedItemSet != null && fedItemSet.isComplete()) {
+            if (!fedItemSet.contains(objectId)) {
+              if (LOGGER.isLoggable(Level.FINEST))
+                LOGGER.finest("SKIPPING DELETE OF UNFED ITEM " + objectId);
+              return null;
+            }
+            fedItemSet.remove(objectId);
+          }
+
           // LOGGER.fine("Deleted item[" + delRow + "]: DataID " +
           //     objectId + "   AuditDate " + delDate +
           //     "    EventID " +
@@ -456,6 +783,137 @@ class LivelinkDocumentList implements DocumentList {
       return props;
     }
 
+    /**
+     * Gets a builder for the given row with the metadata properties
+     * collected, either on demand or from the enrichment pool.
+     *
+     * @param row the recArray row
+     * @return a document builder for the row
+     */
+    private DocumentBuilder getMetadata(int row) throws RepositoryException {
+      if (enrichmentPool == null) {
+        DocumentBuilder builder =
+            new DocumentBuilder(client, nameHandler, categoryHandler, row);
+        builder.collectMetadata();
+        return builder;
+      }
+
+      // Keep the lookahead window full, including the current row.
+      int lookahead = enrichmentPool.getLookahead();
+      if (nextSubmitRow < row)
+        nextSubmitRow = row;
+      while (nextSubmitRow < insSize && nextSubmitRow <= row + lookahead) {
+        final int submitRow = nextSubmitRow++;
+        pending.put(submitRow, enrichmentPool.submit(
+            new Callable<DocumentBuilder>() {
+              @Override
+              public DocumentBuilder call() throws Exception {
+                Enricher enricher = enrichers.take();
+                try {
+                  DocumentBuilder builder = new DocumentBuilder(
+                      enricher.client, enricher.nameHandler,
+                      enricher.categoryHandler, submitRow);
+                  builder.collectMetadata();
+                  return builder;
+                } finally {
+                  enrichers.put(enricher);
+                }
+              }
+            }));
+      }
+
+      Future<DocumentBuilder> future = pending.remove(row);
+      try {
+        return future.get();
+      } catch (ExecutionException e) {
+        // Rethrow the original exception, so that nextDocument can
+        // distinguish transient and document failures as usual.
+        Throwable cause = e.getCause();
+        if (cause instanceof RepositoryException)
+          throw (RepositoryException) cause;
+        else if (cause instanceof RuntimeException)
+          throw (RuntimeException) cause;
+        else if (cause instanceof Error)
+          throw (Error) cause;
+        else
+          throw new LivelinkException(e, LOGGER);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new LivelinkException(e, LOGGER);
+      }
+    }
+
+    /**
+     * Announces the content for the given row and the following rows
+     * to a prefetching content handler.
+     *
+     * @param row the recArray row
+     */
+    private void prefetchContent(int row) {
+      if (!(contentHandler instanceof PrefetchingContentHandler)
+          || connector.getFeedType() == FeedType.CONTENTURL)
+        return;
+
+      PrefetchingContentHandler handler =
+          (PrefetchingContentHandler) contentHandler;
+      int lookahead = handler.getLookahead();
+      if (nextPrefetchRow < row)
+        nextPrefetchRow = row;
+      while (nextPrefetchRow < insSize && nextPrefetchRow <= row + lookahead) {
+        int prefetchRow = nextPrefetchRow++;
+        try {
+          if (isContentUnchanged(prefetchRow))
+            continue;
+          long size = getContentSize(prefetchRow,
+              recArray.toInteger(prefetchRow, "SubType"));
+          if (size > 0) {
+            Announcement announcement = new Announcement(
+                recArray.toInteger(prefetchRow, "OwnerID"),
+                recArray.toDate(prefetchRow, "ModifyDate"));
+            handler.prefetch(announcement.volumeId, dataIds[prefetchRow], 0,
+                announcement.modifyDate, Ints.saturatedCast(size));
+            prefetched.put(prefetchRow, announcement);
+          }
+        } catch (RepositoryException e) {
+          // The prefetch is only a hint. Any real problem will be
+          // reported when the row itself is processed.
+          if (LOGGER.isLoggable(Level.FINEST)) {
+            LOGGER.log(Level.FINEST, "Ignored exception announcing content "
+                + dataIds[prefetchRow], e);
+          }
+        }
+      }
+    }
+
+    /**
+     * Discards the announced content for the given row, if the
+     * content handler still has it.
+     *
+     * @param row the recArray row
+     */
+    private void cancelPrefetch(int row) {
+      Announcement announcement = prefetched.remove(row);
+      if (announcement != null) {
+        ((PrefetchingContentHandler) contentHandler).cancelPrefetch(
+            announcement.volumeId, dataIds[row], 0, announcement.modifyDate);
+      }
+    }
+
+    /**
+     * Cancels any enrichment tasks and announced content that have
+     * not been consumed. If the iteration continues, the following
+     * rows are submitted and announced again.
+     */
+    public void cancelPending() {
+      for (Future<DocumentBuilder> future : pending.values())
+        future.cancel(false);
+      pending.clear();
+      nextSubmitRow = insRow;
+      for (Integer row : new ArrayList<Integer>(prefetched.keySet()))
+        cancelPrefetch(row);
+      nextPrefetchRow = insRow;
+    }
+
     /**
      * For items to be deleted from the index, we need only supply
      * the GSA the DocId, lastModified date, and a Delete action
@@ -473,6 +931,191 @@ class LivelinkDocumentList implements DocumentList {
       props.addProperty(SpiConstants.PROPNAME_ACTION,
           Value.getStringValue(ActionType.DELETE.toString()));
     }
+  }
+
+  /**
+   * Records the version of the content in the version index once the
+   * stream has been read to the end, along with a digest of the
+   * content. Content that is not read completely is not recorded, and
+   * will be fetched again.
+   */
+  private class VersionRecordingInputStream extends FilterInputStream {
+    private final int objectId;
+    private final int versionNum;
+    private final long dataSize;
+    private final MessageDigest digest;
+    private boolean recorded = false;
+
+    VersionRecordingInputStream(InputStream in, int objectId, int versionNum,
+        long dataSize) {
+      super(in);
+      this.objectId = objectId;
+      this.versionNum = versionNum;
+      this.dataSize = dataSize;
+      MessageDigest md;
+      try {
+        md = MessageDigest.getInstance("SHA-1");
+      } catch (NoSuchAlgorithmException e) {
+        // Every Java platform is required to support SHA-1.
+        throw new AssertionError(e);
+      }
+      this.digest = md;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b == -1)
+        recordVersion();
+      else
+        digest.update((byte) b);
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int count = super.read(b, off, len);
+      if (count == -1)
+        recordVersion();
+      else
+        digest.update(b, off, count);
+      return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      // Skipped content cannot be digested, so it is not recorded.
+      recorded = true;
+      return super.skip(n);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    private void recordVersion() {
+      if (!recorded) {
+        recorded = true;
+        byte[] hash = digest.digest();
+        long value = 0;
+        for (int i = 0; i < 8; i++)
+          value = (value << 8) | (hash[i] & 0xff);
+        if (LOGGER.isLoggable(Level.FINE)
+            && value == versionIndex.getDigest(objectId)) {
+          LOGGER.fine("VERSION INDEX: Content of version " + versionNum
+              + " of " + objectId + " is the same as the content fed");
+        }
+        versionIndex.record(objectId, versionNum, dataSize, value);
+      }
+    }
+  }
+
+  /** The volume ID and ModifyDate of announced content. */
+  private static class Announcement {
+    private final int volumeId;
+    private final Date modifyDate;
+
+    Announcement(int volumeId, Date modifyDate) {
+      this.volumeId = volumeId;
+      this.modifyDate = modifyDate;
+    }
+  }
+
+  /**
+   * A client and the handlers that use it, for use by one enrichment
+   * worker thread at a time. The thread-safe name handler is shared.
+   */
+  private class Enricher {
+    private final Client client;
+    private final UserNameHandler nameHandler;
+    private final CategoryHandler categoryHandler;
+
+    Enricher(Client client) throws RepositoryException {
+      this.client = client;
+      this.nameHandler = LivelinkDocumentList.this.nameHandler;
+      this.categoryHandler = new CategoryHandler(connector, client);
+    }
+  }
+
+  /**
+   * Collects the properties for one inserted item. The metadata
+   * properties, which only require the given client and handlers,
+   * may be collected on any thread. The derived properties,
+   * including the content, are collected by the consumer, and must
+   * not use the given client, which may be in use by another thread
+   * by then.
+   */
+  private class DocumentBuilder {
+    /** The client provides access to the server. */
+    private final Client client;
+
+    /** A handler for mapping user IDs to user names. */
+    private final UserNameHandler nameHandler;
+
+    /** A handler for retrieving category attributes. */
+    private final CategoryHandler categoryHandler;
+
+    /** The row of the recArray. */
+    private final int insRow;
+
+    /** The object ID of the row. */
+    private final int objectId;
+
+    /** The volume ID of the row. */
+    private final int volumeId;
+
+    /** The object Subtype. */
+    private final int subType;
+
+    /** The ObjectInfo of the row, [fetch delayed until needed] */
+    private ClientValue objectInfo;
+
+    /** The VersionInfo of the row, [fetch delayed until needed] */
+    private ClientValue versionInfo;
+
+    /** The download filename for the display URL, may be null. */
+    private String downloadFileName;
+
+    /** The property names of the ObjectInfo and VersionInfo user IDs. */
+    private final List<String> userPropertyNames = new ArrayList<String>();
+
+    /** The ObjectInfo and VersionInfo user IDs, to resolve together. */
+    private final List<ClientValue> userIdValues =
+        new ArrayList<ClientValue>();
+
+    /** The Document Properties associated with the row. */
+    private final LivelinkDocument props;
+
+    DocumentBuilder(Client client, UserNameHandler nameHandler,
+        CategoryHandler categoryHandler, int insRow)
+        throws RepositoryException {
+      this.client = client;
+      this.nameHandler = nameHandler;
+      this.categoryHandler = categoryHandler;
+      this.insRow = insRow;
+      this.objectId = dataIds[insRow];
+      this.volumeId = recArray.toInteger(insRow, "OwnerID");
+      this.subType  = recArray.toInteger(insRow, "SubType");
+      this.props = new LivelinkDocument(objectId, fields.length*2);
+    }
+
+    /**
+     * Collects the properties that do not depend on the consumer,
+     * including everything that requires the client.
+     */
+    public void collectMetadata() throws RepositoryException {
+      collectRecArrayProperties();
+      collectObjectInfoProperties();
+      collectVersionProperties();
+      collectUserProperties();
+      collectCategoryAttributes();
+      collectAclProperties();
+
+      // Add the ExtendedData as MetaData properties.
+      collectExtendedDataProperties();
+      downloadFileName = getDownloadFileName();
+    }
 
     /** Collects the recarray-based properties. */
     /*
@@ -484,13 +1127,15 @@ class LivelinkDocumentList implements DocumentList {
     private void collectRecArrayProperties() throws RepositoryException {
       for (int i = 0; i < fields.length; i++) {
         if (fields[i].propertyNames.length > 0) {
-          ClientValue value =
-              recArray.toValue(insRow, fields[i].fieldName);
+          ClientValue value = (fieldColumns[i] == -1)
+              ? recArray.toValue(insRow, fields[i].fieldName)
+              : ((ColumnarClientValue) recArray).toValue(insRow,
+                  fieldColumns[i]);
           if (value.isDefined()) {
             if (isUserIdOrGroupId(fields[i].fieldName)) {
               // FIXME: hack knows that UserID has 1 propertyName
-              nameHandler.addUserByName(fields[i].propertyNames[0], value,
-                  props);
+              nameHandler.addUserByName(client, fields[i].propertyNames[0],
+                  value, props);
             } else
               props.addProperty(fields[i], value);
           }
@@ -499,7 +1144,7 @@ class LivelinkDocumentList implements DocumentList {
     }
 
     /** Collects additional properties derived from the recarray. */
-    private void collectDerivedProperties() throws RepositoryException {
+    public void collectDerivedProperties() throws RepositoryException {
       // Flag the document as publicly accessible (or not).
       boolean isPublic = isPublicContentUser ||
           (publicContentDocs != null &&
@@ -507,7 +1152,8 @@ class LivelinkDocumentList implements DocumentList {
       props.addProperty(SpiConstants.PROPNAME_ISPUBLIC,
           isPublic ? VALUE_TRUE : VALUE_FALSE);
 
-      if (connector.getFeedType() == FeedType.CONTENTURL) {
+      if (connector.getFeedType() == FeedType.CONTENTURL
+          || isContentUnchanged(insRow)) {
         // If we are not using content feeds, don't supply the content yet.
         // TODO: What about SkippedDocumentExceptions?
         Value value = Value.getStringValue(FeedType.CONTENTURL.toString());
@@ -517,15 +1163,12 @@ class LivelinkDocumentList implements DocumentList {
         collectContentProperty();
       }
 
-      // Add the ExtendedData as MetaData properties.
-      collectExtendedDataProperties();
-
       // DISPLAYURL
       String displayUrl = isPublic ?
           connector.getPublicContentDisplayUrl() :
           connector.getDisplayUrl();
       String url = connector.getDisplayUrl(displayUrl,
-          subType, objectId, volumeId, getDownloadFileName());
+          subType, objectId, volumeId, downloadFileName);
       props.addProperty(SpiConstants.PROPNAME_DISPLAYURL,
           Value.getStringValue(url));
     }
@@ -599,78 +1242,30 @@ class LivelinkDocumentList implements DocumentList {
      * not acceptable according to the TraversalContext, then no
      * content is generated.
      */
-    // NOTE: Some of the logic here has been replicated in
-    // Retriever.getContent().  Changes here should probably be
-    // reflected there, and vice-versa.
-    // TODO: Extract the common logic out into a shared utility method.
     private void collectContentProperty() throws RepositoryException {
-      if (LOGGER.isLoggable(Level.FINER))
-        LOGGER.finer("CONTENT WITH SUBTYPE = " + subType);
-
-      List<Integer> unsupportedTypes =
-          connector.getUnsupportedFetchVersionTypes();
-      if (unsupportedTypes.contains(subType)) {
-        if (LOGGER.isLoggable(Level.FINEST)) {
-          LOGGER.finest("NO CONTENT PROPERTY FOR FOR UNSUPPORTED SUBTYPE = "
-              + subType);
-        }
-        return;
-      }
-
-      // DataSize is the only non-nullable column from
-      // DVersData that appears in the WebNodes view,
-      // but there are cases (such as categories) where
-      // there are rows in DVersData but FetchVersion
-      // fails. So we're guessing here that if MimeType
-      // is non-null then there should be a blob.
-      ClientValue mimeType = recArray.toValue(insRow, "MimeType");
-      if (!mimeType.isDefined())
-        return;
-
-      // XXX: This value might be wrong. There are
-      // data size callbacks which can change this
-      // value. For example, the value returned by
-      // GetObjectInfo may be different than the
-      // value retrieved from the database.
-      long size = recArray.toLong(insRow, "DataSize");
-      if (LOGGER.isLoggable(Level.FINER))
-        LOGGER.finer("CONTENT DATASIZE = " + size);
-
-      // The TraversalContext Interface provides additional
-      // screening based upon content size and mimetype.
-      if (traversalContext != null) {
-        String mt = mimeType.toString2();
-        if (LOGGER.isLoggable(Level.FINER))
-          LOGGER.finer("CONTENT TYPE = " + mt);
-
-        // Is this MimeType supported?  If not, don't feed content.
-        int supportLevel = traversalContext.mimeTypeSupportLevel(mt);
-        if (supportLevel == 0)
-          return;
-
-        // Is this MimeType excluded?  If so, skip the whole document.
-        if (supportLevel < 0)
-          throw new SkippedDocumentException("Excluded by content type: " + mt);
-
-        // Is the content too large?
-        if (size > traversalContext.maxDocumentSize())
-          return;
-      } else {
-        // If there is no traversal context, we'll enforce a size
-        // limit of 30 MB. This limit is hard-coded in the GSA anyway.
-        if (size > 30 * 1024 * 1024)
-          return;
-      }
-
-      // If there is no actual data, don't feed empty content.
-      if (size <= 0)
+      long size = getContentSize(insRow, subType);
+      if (size == -1)
         return;
 
       // If we pass the gauntlet, create a content stream property and
       // add it to the property map. The size parameter is an int, but
       // it is only a hint, so cap the long value at Integer.MAX_VALUE.
-      InputStream is = contentHandler.getInputStream(volumeId, objectId, 0,
-          Ints.saturatedCast(size));
+      InputStream is;
+      if (contentHandler instanceof PrefetchingContentHandler) {
+        is = ((PrefetchingContentHandler) contentHandler).getInputStream(
+            volumeId, objectId, 0, recArray.toDate(insRow, "ModifyDate"),
+            Ints.saturatedCast(size));
+      } else {
+        is = contentHandler.getInputStream(volumeId, objectId, 0,
+            Ints.saturatedCast(size));
+      }
+      if (versionIndex != null) {
+        ClientValue versionNum = recArray.toValue(insRow, "VersionNum");
+        if (versionNum.isDefined()) {
+          is = new VersionRecordingInputStream(is, objectId,
+              versionNum.toInteger(), recArray.toLong(insRow, "DataSize"));
+        }
+      }
       Value contentValue = Value.getBinaryValue(is);
       props.addProperty(SpiConstants.PROPNAME_CONTENT, contentValue);
     }
@@ -750,7 +1345,7 @@ class LivelinkDocumentList implements DocumentList {
           if ("ExtendedData".equalsIgnoreCase(fields[i]))
             collectValueProperties(fields[i], value);
           else if (isUserIdOrGroupId(fields[i]))
-            nameHandler.addUserByName(fields[i], value, props);
+            addUserProperty(fields[i], value);
           else
             props.addProperty(fields[i], value);
         }
@@ -785,13 +1380,51 @@ class LivelinkDocumentList implements DocumentList {
         ClientValue value = versionInfo.toValue(fields[i]);
         if (value != null && value.hasValue()) {
           if (isUserIdOrGroupId(fields[i]))
-            nameHandler.addUserByName(fields[i], value, props);
+            addUserProperty(fields[i], value);
           else
             props.addProperty(fields[i], value);
         }
       }
     }
 
+    /**
+     * Defers a UserID or GroupID property from the ObjectInfo or
+     * VersionInfo, so that the names can be resolved together.
+     *
+     * @param name the property name
+     * @param value the user or group ID
+     */
+    private void addUserProperty(String name, ClientValue value) {
+      userPropertyNames.add(name);
+      userIdValues.add(value);
+    }
+
+    /**
+     * Adds the deferred UserID and GroupID properties as the user or
+     * group names, after resolving any uncached names with one query.
+     */
+    private void collectUserProperties() throws RepositoryException {
+      if (userIdValues.isEmpty())
+        return;
+
+      if (userIdValues.size() > 1) {
+        Set<Integer> ids = new HashSet<Integer>();
+        for (ClientValue value : userIdValues)
+          ids.add(value.toInteger());
+        try {
+          nameHandler.resolveUserNames(client, ids);
+        } catch (RepositoryException e) {
+          // Any names that are not resolved are looked up on demand.
+          LOGGER.log(Level.FINEST, "Failed to resolve user names for "
+              + objectId, e);
+        }
+      }
+      for (int i = 0; i < userIdValues.size(); i++) {
+        nameHandler.addUserByName(client, userPropertyNames.get(i),
+            userIdValues.get(i), props);
+      }
+    }
+
     /**
      * Collects properties in an LLValue.
      *
@@ -846,21 +1479,26 @@ class LivelinkDocumentList implements DocumentList {
       }
 
       int ownerId = recArray.toInteger(insRow, "UserID");
-      ClientValue ownerInfo =
-          client.GetUserOrGroupByIDNoThrow(ownerId);
-      ClientValue objectRightsInfo = client.GetObjectRights(objectId);
-      for (int i = 0; i < objectRightsInfo.size(); i++) {
-        int userId = objectRightsInfo.toInteger(i, "RightID");
-        int userPermissions = objectRightsInfo.toInteger(i, "Permissions");
-        boolean canRead = ((userPermissions & Client.PERM_SEECONTENTS) 
-            == Client.PERM_SEECONTENTS);
-
-        if (canRead) {
-          getPrincipals(userId, ownerInfo, userPrincipals, groupPrincipals);
-        }
-        if (LOGGER.isLoggable(Level.FINEST)) {
-          LOGGER.finest("ACE Info: UserID " + userId + ", Permissions "
-              + userPermissions + ", SeeContents " + canRead);
+      if (batchAcls) {
+        getAclTable().addPrincipals(objectId, ownerId, userPrincipals,
+            groupPrincipals);
+      } else {
+        ClientValue ownerInfo =
+            client.GetUserOrGroupByIDNoThrow(ownerId);
+        ClientValue objectRightsInfo = client.GetObjectRights(objectId);
+        for (int i = 0; i < objectRightsInfo.size(); i++) {
+          int userId = objectRightsInfo.toInteger(i, "RightID");
+          int userPermissions = objectRightsInfo.toInteger(i, "Permissions");
+          boolean canRead = ((userPermissions & Client.PERM_SEECONTENTS) 
+              == Client.PERM_SEECONTENTS);
+
+          if (canRead) {
+            getPrincipals(userId, ownerInfo, userPrincipals, groupPrincipals);
+          }
+          if (LOGGER.isLoggable(Level.FINEST)) {
+            LOGGER.finest("ACE Info: UserID " + userId + ", Permissions "
+                + userPermissions + ", SeeContents " + canRead);
+          }
         }
       }
       // Always add System Administration group since admins have bypass rights.
@@ -959,22 +1597,13 @@ class LivelinkDocumentList implements DocumentList {
      * @throws RepositoryException if an error occurs
      */
     private void collectCategoryAttributes() throws RepositoryException {
-      categoryHandler.collectCategoryAttributes(objectId, nameHandler, props);
-    }
-
-    /**
-     * Determine whether this field contains a UserID or GroupID value.
-     *
-     * @param fieldName the name of the field in the ObjectInfo or
-     * VersionInfo assoc.
-     * @return true if the field contains a UserID or a GroupID value.
-     */
-    private boolean isUserIdOrGroupId(String fieldName) {
-      for (int i = 0; i < USER_FIELD_NAMES.length; i++) {
-        if (USER_FIELD_NAMES[i].equalsIgnoreCase(fieldName))
-          return true;
+      if (batchCategoryAttributes) {
+        categoryHandler.collectCategoryAttributes(objectId, nameHandler,
+            props, getCategoryTable());
+      } else {
+        categoryHandler.collectCategoryAttributes(objectId, nameHandler,
+            props);
       }
-      return false;
     }
   }
 }
@@ -106,9 +106,12 @@ class LivelinkSession implements Session, ListerAware, RetrieverAware {
       sysadminClient = traversalClient;
     }
 
-    return new LivelinkTraversalManager(connector, traversalClient,
-        currentUsername, sysadminClient,
-        connector.getContentHandler(traversalClient));
+    LivelinkTraversalManager traversalManager =
+        new LivelinkTraversalManager(connector, traversalClient,
+            currentUsername, sysadminClient,
+            connector.getContentHandler(traversalClient));
+    connector.addTraversalManager(traversalManager);
+    return traversalManager;
   }
 
     /**
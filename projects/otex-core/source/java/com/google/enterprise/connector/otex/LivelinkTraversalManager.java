@@ -17,9 +17,13 @@ package com.google.enterprise.connector.otex;
 import static com.google.enterprise.connector.otex.SqlQueries.choice;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
+import com.google.common.collect.Iterables;
 import com.google.enterprise.connector.otex.client.Client;
 import com.google.enterprise.connector.otex.client.ClientValue;
+import com.google.enterprise.connector.otex.client.ColumnarClientValue;
 import com.google.enterprise.connector.spi.DocumentList;
 import com.google.enterprise.connector.spi.RepositoryException;
 import com.google.enterprise.connector.spi.SpiConstants;
@@ -29,9 +33,21 @@ import com.google.enterprise.connector.spi.TraversalManager;
 import com.google.enterprise.connector.util.EmptyDocumentList;
 import com.google.enterprise.connector.util.TraversalTimer;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -186,9 +202,31 @@ class LivelinkTraversalManager
   /** A concrete strategy for retrieving the content from the server. */
   private final ContentHandler contentHandler;
 
+  /**
+   * The largest number of candidates in each batch. The candidates
+   * are filtered in chunks of {@link SqlQueries#MAX_IN_LIST} to avoid
+   * the SQL syntax limits in Oracle.
+   */
+  private static final int MAX_BATCH_SIZE = 50000;
+
   /** The number of results to return in each batch. */
   private volatile int batchSize = 100;
 
+  /**
+   * Chooses the number of candidates in each batch from the observed
+   * traversal rates, or null to use the batch hint.
+   */
+  private final BatchSizeController batchSizeController;
+
+  /** Whether to probe for the next matching item in sparse regions. */
+  private final boolean skipSparseRegions;
+
+  /**
+   * Whether to query the candidates from the included subtrees, or
+   * null if that has not been decided yet.
+   */
+  private Boolean subtreeCandidates = null;
+
   /** Date formatter used to construct checkpoint dates */
   private final LivelinkDateFormat dateFormat =
       LivelinkDateFormat.getInstance();
@@ -196,6 +234,67 @@ class LivelinkTraversalManager
   /** The TraversalContext from TraversalContextAware Interface */
   private TraversalContext traversalContext = null;
 
+  /** Whether to prefetch the next batch in the background. */
+  private final boolean prefetchCandidates;
+
+  /**
+   * The clients used to prefetch the next batch, corresponding to
+   * {@code sysadminClient} and {@code traversalClient}. These are
+   * created on demand, and are only used by the prefetch thread.
+   */
+  private Client prefetchSysadminClient = null;
+  private Client prefetchTraversalClient = null;
+
+  /** The pending prefetch of the next batch, or null if there isn't one. */
+  private Prefetch prefetch = null;
+
+  /** The number of ModifyDate windows for a new traversal. */
+  private final int traversalPartitions;
+
+  /**
+   * The clients used to query the windows of a partitioned traversal,
+   * one pair for each window, corresponding to {@code sysadminClient}
+   * and {@code traversalClient}. These are created on demand.
+   */
+  private final List<Client> windowSysadminClients = new ArrayList<Client>();
+  private final List<Client> windowTraversalClients = new ArrayList<Client>();
+
+  /** The threads used to query the windows, created on demand. */
+  private ExecutorService windowExecutor = null;
+
+  /**
+   * The number of backfill batches for each batch from the tail lane,
+   * or zero to query the windows and the insert checkpoint together.
+   */
+  private final int tailLaneRatio;
+
+  /** The number of batches queried while there are windows. */
+  private int laneBatches = 0;
+
+  /**
+   * The AuditIDs of the events read by the change feed, or null if
+   * the change feed is disabled.
+   */
+  private final String changeFeedAuditIds;
+
+  /** The number of milliseconds between reconciliation passes. */
+  private final long reconciliationMillis;
+
+  /** The earliest time to start the next reconciliation pass. */
+  private long nextReconciliation = 0L;
+
+  /** Whether a reconciliation pass is in progress. */
+  private boolean reconciling = false;
+
+  /**
+   * The AuditIDs of the permission change events that trigger a
+   * re-feed, or null if the re-feed is disabled.
+   */
+  private final String aclChangeAuditIds;
+
+  /** Whether the last batch was a permission change re-feed. */
+  private boolean lastBatchAcl = false;
+
   LivelinkTraversalManager(LivelinkConnector connector,
       Client traversalClient, String traversalUsername, Client sysadminClient,
       ContentHandler contentHandler) throws RepositoryException {
@@ -216,6 +315,22 @@ class LivelinkTraversalManager
     this.fields = getFields();
     this.selectList = getSelectList();
 
+    this.prefetchCandidates = connector.getPrefetchCandidates();
+    int batchTargetTime = connector.getBatchTargetTime();
+    this.batchSizeController = (batchTargetTime == 0) ? null
+        : new BatchSizeController(batchTargetTime * 1000L, 1, MAX_BATCH_SIZE);
+    this.skipSparseRegions = connector.getSkipSparseRegions();
+    this.traversalPartitions = connector.getTraversalPartitions();
+    this.tailLaneRatio = connector.getTailLaneRatio();
+    String auditIds = connector.getChangeFeedAuditIds();
+    this.changeFeedAuditIds =
+        (Strings.isNullOrEmpty(auditIds)) ? null : auditIds;
+    this.reconciliationMillis =
+        connector.getReconciliationInterval() * 60L * 1000L;
+    String aclAuditIds = connector.getAclChangeAuditIds();
+    this.aclChangeAuditIds =
+        (Strings.isNullOrEmpty(aclAuditIds)) ? null : aclAuditIds;
+
     // Cache a Genealogist, if we need one.
     String startNodes = connector.getIncludedLocationNodes();
     String excludedNodes = connector.getExcludedLocationNodes();
@@ -231,6 +346,12 @@ class LivelinkTraversalManager
           sysadminClient, startNodes, excludedNodes,
           connector.getGenealogistMinCacheSize(),
           connector.getGenealogistMaxCacheSize());
+      genealogist.setSqlServer(isSqlServer);
+      File cacheFile = connector.getGenealogistCacheFile();
+      if (cacheFile != null) {
+        genealogist.setCacheFile(cacheFile);
+        connector.setActiveGenealogist(genealogist);
+      }
     }
   }
 
@@ -257,6 +378,11 @@ class LivelinkTraversalManager
     if (startDate != null)
       checkpoint.setInsertCheckpoint(startDate, 0);
 
+    // Split a new traversal into windows that are traversed in
+    // parallel, or that are backfilled behind a tail lane.
+    if (traversalPartitions > 1 || tailLaneRatio > 0)
+      forgeWindows(checkpoint);
+
     // We don't care about any existing Delete events in the audit
     // logs, since we're just starting the traversal.
     if (deleteSupported)
@@ -268,6 +394,79 @@ class LivelinkTraversalManager
     return startCheckpoint;
   }
 
+  /**
+   * Splits the ModifyDate range of DTree, starting from the insert
+   * checkpoint, into {@code traversalPartitions} windows of equal
+   * length. The insert checkpoint is moved to the start of the last
+   * window, and the other windows are added to the checkpoint. With a
+   * tail lane, the whole range is split into windows, and the insert
+   * checkpoint is moved to the latest ModifyDate, so that it only
+   * sees recent changes. If the range is too small to split, the
+   * checkpoint is unchanged.
+   */
+  private void forgeWindows(Checkpoint checkpoint) {
+    long start;
+    long end;
+    try {
+      ClientValue range = getModifyDateRange();
+      if (range.size() == 0) {
+        return;
+      }
+      // The first row is not necessarily the earliest item.
+      start = Long.MAX_VALUE;
+      end = Long.MIN_VALUE;
+      for (int i = 0; i < range.size(); i++) {
+        long time = range.toDate(i, "ModifyDate").getTime();
+        start = Math.min(start, time);
+        end = Math.max(end, time);
+      }
+    } catch (RepositoryException e) {
+      LOGGER.warning("Error establishing the partitioned traversal windows: "
+          + e.getMessage());
+      return;
+    }
+    if (checkpoint.insertDate != null) {
+      start = Math.max(start, checkpoint.insertDate.getTime());
+    }
+
+    // Livelink only stores timestamps to the nearest second, and the
+    // boundaries are written to the checkpoint string to the second.
+    int partitions = Math.max(traversalPartitions, 1);
+    long length = (end - start) / (partitions * 1000L) * 1000L;
+    if (length <= 0) {
+      LOGGER.fine("Too few ModifyDate values to partition the traversal.");
+      return;
+    }
+    start = (start / 1000L) * 1000L;
+    end = (end / 1000L) * 1000L;
+
+    // The tail lane starts at the end of the last window.
+    int windows = (tailLaneRatio > 0) ? partitions : partitions - 1;
+    Date windowStart = new Date(start);
+    for (int i = 1; i <= windows; i++) {
+      Date windowEnd = new Date((i == partitions) ? end : start + i * length);
+      checkpoint.addWindow(windowStart, 0, windowEnd);
+      windowStart = windowEnd;
+    }
+    checkpoint.setInsertCheckpoint(windowStart, 0);
+    if (LOGGER.isLoggable(Level.INFO)) {
+      LOGGER.info("PARTITIONED TRAVERSAL: " + windows
+          + " windows of " + (length / 1000L) + " seconds"
+          + ((tailLaneRatio > 0) ? " behind a tail lane." : "."));
+    }
+  }
+
+  /**
+   * Gets items with the earliest and latest ModifyDate in DTree.
+   * A separate method for testability, because the caller handles all
+   * exceptions.
+   */
+  @VisibleForTesting
+  ClientValue getModifyDateRange() throws RepositoryException {
+    return sqlQueries.execute(sysadminClient, null,
+        "LivelinkTraversalManager.getModifyDateRange");
+  }
+
   /**
    *  Forge a delete checkpoint from the last event in the audit log.
    */
@@ -337,10 +536,14 @@ class LivelinkTraversalManager
   Field[] getFields() {
     Map<String, String> selectExpressions =
         connector.getIncludedSelectExpressions();
-    Field[] fields =
-        new Field[DEFAULT_FIELDS.length + selectExpressions.size()];
+    // The version index compares the VersionNum of each item.
+    boolean versionIndexed = connector.getVersionIndexFile() != null;
+    Field[] fields = new Field[DEFAULT_FIELDS.length
+        + (versionIndexed ? 1 : 0) + selectExpressions.size()];
     System.arraycopy(DEFAULT_FIELDS, 0, fields, 0, DEFAULT_FIELDS.length);
     int i = DEFAULT_FIELDS.length;
+    if (versionIndexed)
+      fields[i++] = new Field("VersionNum");
     for (Map.Entry<String, String> select : selectExpressions.entrySet()) {
       // The map value is the select expression. We pick an arbitrary
       // column alias for the SQL expression (because the property name
@@ -362,7 +565,9 @@ class LivelinkTraversalManager
 
   /**
    * Sets the batch size. This implementation limits the actual
-   * batch size to 1000, due to SQL syntax limits in Oracle.
+   * batch size to {@code MAX_BATCH_SIZE}. Candidate lists longer than
+   * {@link SqlQueries#MAX_IN_LIST} are filtered in chunks, to stay
+   * within the SQL syntax limits in Oracle.
    *
    * @param hint the new batch size
    * @throws IllegalArgumentException if the hint is less than zero
@@ -373,8 +578,8 @@ class LivelinkTraversalManager
       throw new IllegalArgumentException();
     else if (hint == 0)
       batchSize = 100; // We could ignore it, but we reset the default.
-    else if (hint > 1000)
-      batchSize = 1000;
+    else if (hint > MAX_BATCH_SIZE)
+      batchSize = MAX_BATCH_SIZE;
     else
       batchSize = hint;
   }
@@ -382,6 +587,19 @@ class LivelinkTraversalManager
   /** {@inheritDoc} */
   @Override
   public DocumentList startTraversal() throws RepositoryException {
+    // A new traversal feeds all of the content again.
+    VersionIndex versionIndex = connector.getVersionIndex();
+    if (versionIndex != null)
+      versionIndex.clear();
+
+    // The fed items are covered from here on.
+    FedItemSet fedItemSet = connector.getFedItemSet();
+    if (fedItemSet != null)
+      fedItemSet.reset();
+
+    // Pick up any users and groups that were renamed.
+    connector.getUserNameHandler().clear();
+
     // startCheckpoint will either be an initial checkpoint or null
     String startCheckpoint = getStartCheckpoint();
     if (LOGGER.isLoggable(Level.INFO)) {
@@ -484,7 +702,10 @@ class LivelinkTraversalManager
   private DocumentList listNodes(String checkpointStr)
       throws RepositoryException {
     Checkpoint checkpoint = new Checkpoint(checkpointStr);
-    int batchsz = batchSize;
+    int batchsz = getCandidateBatchSize();
+    if (batchSizeController != null) {
+      batchSizeController.recordBatchStart();
+    }
 
     // If we have an old style checkpoint, or one that is missing a
     // delete stamp, and we are doing deletes, forge a delete checkpoint.
@@ -492,6 +713,50 @@ class LivelinkTraversalManager
       forgeInitialDeleteCheckpoint(checkpoint);
     }
 
+    // Permission changes do not change the ModifyDate, so the items
+    // are re-fed from the audit log, alternating with the other
+    // batches so that neither one starves the other.
+    if (aclChangeAuditIds != null) {
+      if (checkpoint.aclEventId == 0) {
+        forgeInitialAclCheckpoint(checkpoint);
+      }
+      if (!lastBatchAcl) {
+        DocumentList aclChanges = listAclChanges(checkpoint, batchsz);
+        if (aclChanges != null) {
+          lastBatchAcl = true;
+          // The re-feed does not use the candidate batch size.
+          recordBatchReturned(0);
+          return aclChanges;
+        }
+      }
+      lastBatchAcl = false;
+    }
+
+    // A partitioned traversal has its own loop until the windows are
+    // finished and only the insert checkpoint is left.
+    if (!checkpoint.getWindows().isEmpty()) {
+      return listWindows(checkpoint, batchsz);
+    }
+
+    // With the change feed, the items are traversed from the audit
+    // log, and the rest of this method is a periodic reconciliation
+    // pass that runs until it is caught up.
+    if (changeFeedAuditIds != null && !reconciling) {
+      if (checkpoint.changeEventId == 0) {
+        forgeInitialChangeCheckpoint(checkpoint);
+      }
+      DocumentList changes = listChanges(checkpoint, batchsz);
+      if (changes != null
+          || System.currentTimeMillis() < nextReconciliation) {
+        // The candidate batch size does not apply to the change feed,
+        // so the batch is not timed.
+        recordBatchReturned(0);
+        return changes;
+      }
+      LOGGER.fine("RECONCILIATION STARTED");
+      reconciling = true;
+    }
+
     // If our available content appears to be sparsely distributed
     // across the repository, we want to give ourself a chance to
     // accelerate through the sparse regions, grabbing larger sets
@@ -499,8 +764,13 @@ class LivelinkTraversalManager
     // we cannot do this indefinitely or we will run afoul of the
     // Connector Manager's thread timeout.
     TraversalTimer timer = new TraversalTimer(traversalContext);
+    boolean skipped = false;
     while (timer.isTicking()) {
-      ClientValue candidates = getCandidates(checkpoint, batchsz);
+      long queryStart = System.nanoTime();
+      Prefetch prefetched = takePrefetch(checkpoint, batchsz);
+      ClientValue candidates = (prefetched == null)
+          ? getCandidates(checkpoint, batchsz, sysadminClient)
+          : prefetched.candidates;
       ClientValue deletes = getDeletes(checkpoint, batchsz);
       ClientValue results = null;
 
@@ -512,6 +782,11 @@ class LivelinkTraversalManager
           break;      // Force a new checkpoint.
         } else {
           LOGGER.fine("RESULTSET: no rows.");
+          recordBatchReturned(0);
+          finishReconciliation();
+          FedItemSet fedItemSet = connector.getFedItemSet();
+          if (fedItemSet != null)
+            fedItemSet.markCaughtUp();
           return null;  // No new documents available.
         }
       }
@@ -532,14 +807,15 @@ class LivelinkTraversalManager
         checkpoint.setAdvanceCheckpoint(highestModifyDate,
             candidates.toInteger(numInserts - 1, "DataID"));
 
-        StringBuilder buffer = new StringBuilder();
-        for (int i = 0; i < numInserts; i++) {
-          buffer.append(candidates.toInteger(i, "DataID"));
-          buffer.append(',');
-        }
-        buffer.deleteCharAt(buffer.length() - 1);
-        results = getResults(buffer.toString(), highestModifyDate);
+        results = (prefetched == null)
+            ? getResults(getCandidatesList(candidates), highestModifyDate)
+            : prefetched.results;
         numInserts = (results == null) ? 0 : results.size();
+        if (batchSizeController != null) {
+          // The background queries of a prefetch were not timed here.
+          batchSizeController.recordQuery(candidates.size(), numInserts,
+              (prefetched == null) ? System.nanoTime() - queryStart : -1);
+        }
       }
 
       if ((numInserts + numDeletes) > 0) {
@@ -547,21 +823,41 @@ class LivelinkTraversalManager
           LOGGER.fine("RESULTSET: " + numInserts + " rows.  " +
               "DELETESET: " + numDeletes + " rows.");
         }
+
+        // If we got a full batch of candidates, there are probably
+        // more, so start on the next batch while this one is consumed.
+        int numCandidates = (candidates == null) ? 0 : candidates.size();
+        recordBatchReturned(numInserts);
+        if (prefetchCandidates && numCandidates == batchsz) {
+          startPrefetch(candidates.toDate(numCandidates - 1, "ModifyDate"),
+              candidates.toInteger(numCandidates - 1, "DataID"));
+        }
         return new LivelinkDocumentList(connector, traversalClient,
             contentHandler, results, fields, deletes,
-            traversalContext, checkpoint, currentUsername);
+            traversalContext, checkpoint, currentUsername,
+            getEnrichmentPool());
       }
 
       // If nothing is passing our filter, we probably have a
       // sparse database.  Grab larger candidate sets, hoping
-      // to run into anything interesting.
-      batchsz = Math.min(1000, batchsz * 10);
+      // to run into anything interesting. The controller may have
+      // learned that an even larger set is needed.
+      batchsz = Math.min(MAX_BATCH_SIZE,
+          Math.max(batchsz * 10, getCandidateBatchSize()));
 
       // Advance the checkpoint to the end of this batch of
       // candidates and grab the next batch.
       checkpoint.advanceToEnd();
       if (LOGGER.isLoggable(Level.FINER))
         LOGGER.finer("SKIPPING PAST " + checkpoint.toString());
+
+      // The probe is expensive, so only run it once for each batch.
+      // Since it advances the checkpoint, any EmptyDocumentList we
+      // return will still record the progress.
+      if (skipSparseRegions && !skipped) {
+        skipped = true;
+        skipToNextMatching(checkpoint);
+      }
     }
 
     // We searched for awhile, but did not find any candidates that
@@ -569,9 +865,565 @@ class LivelinkTraversalManager
     // to consider.  Indicate to the Connector Manager that this batch
     // has no documents, but to reschedule us immediately to keep looking.
     LOGGER.fine("RESULTSET: 0 rows, so far.");
+    recordBatchReturned(0);
+    return new EmptyDocumentList(checkpoint.toString());
+  }
+
+  /**
+   * Gets the next batch of items affected by audit events after the
+   * change feed checkpoint, along with the deletes. Events for items
+   * that are not indexed are skipped.
+   *
+   * @param checkpoint the checkpoint
+   * @param batchsz the number of events to read
+   * @return a batch of results, an empty batch if the checkpoint moved
+   *     without any results, or {@code null} if there were no events
+   */
+  private DocumentList listChanges(Checkpoint checkpoint, int batchsz)
+      throws RepositoryException {
+    TraversalTimer timer = new TraversalTimer(traversalContext);
+    while (timer.isTicking()) {
+      ClientValue events = getChanges(checkpoint.changeEventId,
+          changeFeedAuditIds, batchsz);
+      ClientValue deletes = getDeletes(checkpoint, batchsz);
+      int numEvents = events.size();
+      int numDeletes = (deletes == null) ? 0 : deletes.size();
+      if ((numEvents + numDeletes) == 0) {
+        break;
+      }
+
+      ClientValue results = null;
+      if (numEvents > 0) {
+        results = getResults(getChangedList(events), getUnboundedDate());
+        checkpoint.setChangeBatch(getEventIds(events),
+            ((ColumnarClientValue) events).toIntegerColumn("DataID"),
+            getResultIds(results));
+      }
+
+      int numInserts = (results == null) ? 0 : results.size();
+      if ((numInserts + numDeletes) > 0) {
+        if (LOGGER.isLoggable(Level.FINE)) {
+          LOGGER.fine("CHANGESET: " + numInserts + " rows from "
+              + numEvents + " events.  DELETESET: " + numDeletes + " rows.");
+        }
+        return new LivelinkDocumentList(connector, traversalClient,
+            contentHandler, results, fields, deletes,
+            traversalContext, checkpoint, currentUsername,
+            getEnrichmentPool());
+      }
+
+      // None of the items are indexed, so skip the events.
+      checkpoint.advanceToEnd();
+    }
+
+    if (checkpoint.hasChanged()) {
+      return new EmptyDocumentList(checkpoint.toString());
+    } else {
+      LOGGER.fine("CHANGESET: no rows.");
+      return null;
+    }
+  }
+
+  /**
+   * Gets the next batch of items affected by permission changes. The
+   * items named by the events are re-fed with their metadata and
+   * ACLs. With a content URL feed they are re-fed without their
+   * content, but a content feed re-feeds the content as well, since
+   * a document without content would replace the indexed content.
+   * With DTreeAncestors, the
+   * descendants of the items are re-fed as well, in DataID order, and
+   * the checkpoint records the last DataID if the descendants of the
+   * events take more than one batch.
+   *
+   * @param checkpoint the checkpoint
+   * @param batchsz the number of events or items to read
+   * @return a batch of results, an empty batch if the checkpoint moved
+   *     without any results, or {@code null} if there were no events
+   */
+  private DocumentList listAclChanges(Checkpoint checkpoint, int batchsz)
+      throws RepositoryException {
+    // The items are used in IN lists, and the ancestor nodes double
+    // their number, so the batch is limited to half of a chunk.
+    batchsz = Math.min(batchsz, SqlQueries.MAX_IN_LIST / 2);
+    TraversalTimer timer = new TraversalTimer(traversalContext);
+    while (timer.isTicking()) {
+      ClientValue events = getChanges(checkpoint.aclEventId,
+          aclChangeAuditIds, batchsz);
+      int numEvents = events.size();
+      if (numEvents == 0) {
+        break;
+      }
+      long lastEventId =
+          Checkpoint.toEventId(events.toValue(numEvents - 1, "EventID"));
+      String eventList = getChangedList(events);
+
+      ClientValue results;
+      if (connector.getUseDTreeAncestors()) {
+        ClientValue items = sqlQueries.execute(sysadminClient,
+            "ACL SUBTREE QUERY", "LivelinkTraversalManager.getAclSubtree",
+            checkpoint.aclDataId, eventList,
+            Genealogist.getAncestorNodes(eventList), batchsz);
+        int numItems = items.size();
+        int[] itemIds = (numItems == 0) ? new int[0]
+            : ((ColumnarClientValue) items).toIntegerColumn("DataID");
+        results = (numItems == 0)
+            ? null : getResults(getChangedList(items), getUnboundedDate());
+        if (numItems == batchsz) {
+          // There may be more descendants, so stay on these events.
+          checkpoint.setAclBatch(itemIds, getResultIds(results),
+              checkpoint.aclEventId, itemIds[numItems - 1]);
+        } else {
+          checkpoint.setAclBatch(itemIds, getResultIds(results),
+              lastEventId, 0);
+        }
+      } else {
+        results = getResults(eventList, getUnboundedDate());
+        checkpoint.setAclBatch(getEventIds(events),
+            ((ColumnarClientValue) events).toIntegerColumn("DataID"),
+            getResultIds(results));
+      }
+
+      int numResults = (results == null) ? 0 : results.size();
+      if (numResults > 0) {
+        if (LOGGER.isLoggable(Level.FINE)) {
+          LOGGER.fine("ACLSET: " + numResults + " rows from "
+              + numEvents + " events.");
+        }
+        return new LivelinkDocumentList(connector, traversalClient,
+            contentHandler, results, fields, null,
+            traversalContext, checkpoint, currentUsername,
+            getEnrichmentPool());
+      }
+
+      // None of the items are indexed, so skip them.
+      checkpoint.advanceToEnd();
+    }
+
+    if (checkpoint.hasChanged()) {
+      return new EmptyDocumentList(checkpoint.toString());
+    } else {
+      LOGGER.fine("ACLSET: no rows.");
+      return null;
+    }
+  }
+
+  /**
+   * Gets a ModifyDate limit for items that are not queried in
+   * ModifyDate order, where the limit is only needed by the query
+   * syntax. We allow for clock skew between the connector and the
+   * database.
+   */
+  private Date getUnboundedDate() {
+    return new Date(System.currentTimeMillis() + 86400L * 1000L);
+  }
+
+  /**
+   * Gets a comma-separated string of the distinct DataIDs from the
+   * change feed events, or from other query results with a DataID
+   * column.
+   *
+   * @param events the non-empty change feed query results
+   * @return a comma-separated string of object IDs
+   */
+  private String getChangedList(ClientValue events)
+      throws RepositoryException {
+    Set<Integer> dataIds = new LinkedHashSet<Integer>();
+    for (int dataId
+             : ((ColumnarClientValue) events).toIntegerColumn("DataID")) {
+      dataIds.add(dataId);
+    }
+    return Joiner.on(',').join(dataIds);
+  }
+
+  /**
+   * Gets the EventIDs of the change feed or permission change events.
+   *
+   * @param events the non-empty events query results
+   * @return the EventIDs, in order
+   */
+  private long[] getEventIds(ClientValue events) throws RepositoryException {
+    long[] eventIds = new long[events.size()];
+    for (int i = 0; i < eventIds.length; i++) {
+      eventIds[i] = Checkpoint.toEventId(events.toValue(i, "EventID"));
+    }
+    return eventIds;
+  }
+
+  /**
+   * Gets the DataIDs of the results, which may be null or empty.
+   *
+   * @param results the results query results, or {@code null}
+   * @return the DataIDs, in order
+   */
+  private int[] getResultIds(ClientValue results)
+      throws RepositoryException {
+    return (results == null || results.size() == 0) ? new int[0]
+        : ((ColumnarClientValue) results).toIntegerColumn("DataID");
+  }
+
+  /** Ends a reconciliation pass that has caught up, if there is one. */
+  private void finishReconciliation() {
+    if (reconciling) {
+      LOGGER.fine("RECONCILIATION FINISHED");
+      reconciling = false;
+      nextReconciliation = System.currentTimeMillis() + reconciliationMillis;
+    }
+  }
+
+  /**
+   * Forges a change feed checkpoint from the last event in the audit
+   * log. Any earlier changes are left to the reconciliation pass.
+   */
+  private void forgeInitialChangeCheckpoint(Checkpoint checkpoint) {
+    long eventId = getLastEventId("Change Feed");
+    if (eventId != 0) {
+      checkpoint.setChangeCheckpoint(eventId);
+    }
+  }
+
+  /**
+   * Forges a permission change checkpoint from the last event in the
+   * audit log. Earlier permission changes were fed with the items.
+   */
+  private void forgeInitialAclCheckpoint(Checkpoint checkpoint) {
+    long eventId = getLastEventId("ACL Change");
+    if (eventId != 0) {
+      checkpoint.setAclCheckpoint(eventId, 0);
+    }
+  }
+
+  /**
+   * Gets the EventID of the last event in the audit log.
+   *
+   * @param name the name of the checkpoint, for logging
+   * @return the last EventID, or 0 if there is none
+   */
+  private long getLastEventId(String name) {
+    try {
+      ClientValue results = getLastAuditEvent();
+      if (results.size() > 0) {
+        return Checkpoint.toEventId(results.toValue(0, "EventID"));
+      } else {
+        LOGGER.fine("Unable to establish initial " + name +
+            " Checkpoint: No query results.");
+      }
+    } catch (RepositoryException e) {
+      LOGGER.warning("Error establishing initial " + name +
+          " Checkpoint: " + e.getMessage());
+    }
+    return 0L;
+  }
+
+  /**
+   * Gets the next batch of a partitioned traversal. The candidates
+   * and results for each window and for the insert checkpoint are
+   * queried concurrently, each with its own clients, and combined
+   * into a single batch. The metadata for the batch is collected by
+   * the usual enrichment threads, if any. A window with no more
+   * candidates is finished, and removed from the checkpoint.
+   * <p>
+   * With a tail lane, the batches alternate between the windows,
+   * which backfill the older items, and the insert checkpoint, which
+   * follows the recent changes, rather than querying them together.
+   * The deletes are returned with every batch from either lane.
+   *
+   * @param checkpoint a checkpoint with at least one window
+   * @param batchsz the number of candidates for each window
+   * @return a batch of results
+   */
+  private DocumentList listWindows(Checkpoint checkpoint, int batchsz)
+      throws RepositoryException {
+    TraversalTimer timer = new TraversalTimer(traversalContext);
+    int emptyLanes = 0;
+    while (timer.isTicking()) {
+      long queryStart = System.nanoTime();
+      boolean tailLane = isTailLaneBatch();
+      List<Checkpoint.Window> windows = (tailLane && tailLaneRatio > 0)
+          ? new ArrayList<Checkpoint.Window>() : checkpoint.getWindows();
+      List<Future<WindowQuery>> futures = submitWindowQueries(windows,
+          batchsz);
+      WindowQuery tail = (!tailLane) ? null
+          : new WindowQuery(checkpoint.insertDate, checkpoint.insertDataId,
+              null, batchsz, sysadminClient, traversalClient).call();
+      ClientValue deletes = getDeletes(checkpoint, batchsz);
+
+      List<ClientValue> results = new ArrayList<ClientValue>();
+      int numCandidates = 0;
+      for (int i = 0; i < windows.size(); i++) {
+        Checkpoint.Window window = windows.get(i);
+        WindowQuery query = getWindowQuery(futures.get(i));
+        if (query.candidates.size() == 0) {
+          checkpoint.removeWindow(window);
+        } else {
+          numCandidates += query.candidates.size();
+          window.setAdvanceCheckpoint(query.highestModifyDate,
+              query.highestDataId);
+          results.add(query.results);
+        }
+      }
+      if (tail != null && tail.candidates.size() > 0) {
+        numCandidates += tail.candidates.size();
+        checkpoint.setAdvanceCheckpoint(tail.highestModifyDate,
+            tail.highestDataId);
+        results.add(tail.results);
+      }
+
+      int numDeletes = (deletes == null) ? 0 : deletes.size();
+      if ((numCandidates + numDeletes) == 0) {
+        // With a tail lane, try the other lane before giving up.
+        if (tailLaneRatio > 0 && ++emptyLanes < 2
+            && !checkpoint.getWindows().isEmpty()) {
+          continue;
+        }
+        if (checkpoint.hasChanged()) {
+          break;      // Force a new checkpoint.
+        } else {
+          LOGGER.fine("RESULTSET: no rows.");
+          recordBatchReturned(0);
+          return null;  // No new documents available.
+        }
+      }
+
+      emptyLanes = 0;
+
+      // The windows are in ModifyDate order, followed by the insert
+      // checkpoint, so the results are still ordered within a window.
+      ClientValue combined = ConcatenatedClientValue.concat(results);
+      int numInserts = (combined == null) ? 0 : combined.size();
+      if (batchSizeController != null && numCandidates > 0) {
+        batchSizeController.recordQuery(numCandidates, numInserts,
+            System.nanoTime() - queryStart);
+      }
+
+      if ((numInserts + numDeletes) > 0) {
+        if (LOGGER.isLoggable(Level.FINE)) {
+          LOGGER.fine("RESULTSET: " + numInserts + " rows from "
+              + windows.size() + " windows"
+              + ((tail == null) ? "" : " and the tail lane") + ".  " +
+              "DELETESET: " + numDeletes + " rows.");
+        }
+        recordBatchReturned(numInserts);
+        return new LivelinkDocumentList(connector, traversalClient,
+            contentHandler, combined, fields, deletes,
+            traversalContext, checkpoint, currentUsername,
+            getEnrichmentPool());
+      }
+
+      // Advance the windows past their candidates and try again.
+      checkpoint.advanceToEnd();
+      if (LOGGER.isLoggable(Level.FINER))
+        LOGGER.finer("SKIPPING PAST " + checkpoint.toString());
+      if (checkpoint.getWindows().isEmpty()) {
+        break;
+      }
+    }
+
+    LOGGER.fine("RESULTSET: 0 rows, so far.");
+    recordBatchReturned(0);
     return new EmptyDocumentList(checkpoint.toString());
   }
 
+  /**
+   * Gets whether the next batch of a partitioned traversal should
+   * query the insert checkpoint. Without a tail lane, every batch
+   * queries the insert checkpoint along with the windows. With a tail
+   * lane, the first batch and every {@code tailLaneRatio + 1}th batch
+   * after it query only the insert checkpoint, and the others query
+   * only the windows.
+   */
+  private synchronized boolean isTailLaneBatch() {
+    return tailLaneRatio == 0 || laneBatches++ % (tailLaneRatio + 1) == 0;
+  }
+
+  /**
+   * Submits the queries for the given windows to the window threads,
+   * creating the threads and clients if necessary.
+   *
+   * @param windows the windows to query
+   * @param batchsz the number of candidates for each window
+   * @return the futures for the queries, one for each window
+   */
+  private synchronized List<Future<WindowQuery>> submitWindowQueries(
+      List<Checkpoint.Window> windows, int batchsz)
+      throws RepositoryException {
+    while (windowSysadminClients.size() < windows.size()) {
+      Client windowSysadminClient = connector.getClientFactory().createClient();
+      windowSysadminClients.add(windowSysadminClient);
+      windowTraversalClients.add((traversalClient == sysadminClient)
+          ? windowSysadminClient : createTraversalClient());
+    }
+    if (windowExecutor == null) {
+      windowExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread thread =
+                new Thread(r, "LivelinkWindow-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    }
+
+    List<Future<WindowQuery>> futures =
+        new ArrayList<Future<WindowQuery>>(windows.size());
+    for (int i = 0; i < windows.size(); i++) {
+      Checkpoint.Window window = windows.get(i);
+      futures.add(windowExecutor.submit(new WindowQuery(window.insertDate,
+          window.insertDataId, window.endDate, batchsz,
+          windowSysadminClients.get(i), windowTraversalClients.get(i))));
+    }
+    return futures;
+  }
+
+  /**
+   * Releases the threads and clients used to query the windows. They
+   * are created again if this traversal manager is used later.
+   */
+  synchronized void shutdown() {
+    if (windowExecutor != null) {
+      windowExecutor.shutdownNow();
+      windowExecutor = null;
+    }
+    windowSysadminClients.clear();
+    windowTraversalClients.clear();
+  }
+
+  /** Waits for a window query, rethrowing any exception. */
+  private WindowQuery getWindowQuery(Future<WindowQuery> future)
+      throws RepositoryException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RepositoryException) {
+        throw (RepositoryException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else {
+        throw (Error) cause;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new LivelinkException(e, LOGGER);
+    }
+  }
+
+  /**
+   * The candidates and results queries for one window of a
+   * partitioned traversal, or for the insert checkpoint after the
+   * last window.
+   */
+  private class WindowQuery implements Callable<WindowQuery> {
+    private final Date insertDate;
+    private final int insertDataId;
+    private final Date endDate;
+    private final int batchsz;
+    private final Client sysadminClient;
+    private final Client traversalClient;
+
+    /** The candidates query results. */
+    private ClientValue candidates;
+
+    /** The main query results, or null if there are no candidates. */
+    private ClientValue results;
+
+    /** The ModifyDate and DataID of the last candidate, if any. */
+    private Date highestModifyDate;
+    private int highestDataId;
+
+    /**
+     * @param endDate the end of the window, or {@code null} for the
+     *     insert checkpoint
+     */
+    WindowQuery(Date insertDate, int insertDataId, Date endDate,
+        int batchsz, Client sysadminClient, Client traversalClient) {
+      this.insertDate = insertDate;
+      this.insertDataId = insertDataId;
+      this.endDate = endDate;
+      this.batchsz = batchsz;
+      this.sysadminClient = sysadminClient;
+      this.traversalClient = traversalClient;
+    }
+
+    @Override
+    public WindowQuery call() throws RepositoryException {
+      Checkpoint checkpoint = new Checkpoint();
+      checkpoint.setInsertCheckpoint(insertDate, insertDataId);
+      candidates = (endDate == null)
+          ? getCandidates(checkpoint, batchsz, sysadminClient)
+          : getWindowCandidates(checkpoint, endDate, batchsz, sysadminClient);
+      int numCandidates = candidates.size();
+      if (numCandidates > 0) {
+        checkCandidatesTimeWarp(candidates, checkpoint);
+        highestModifyDate = candidates.toDate(numCandidates - 1, "ModifyDate");
+        highestDataId = candidates.toInteger(numCandidates - 1, "DataID");
+        results = getResults(getCandidatesList(candidates), highestModifyDate,
+            traversalClient, sysadminClient);
+      }
+      return this;
+    }
+  }
+
+  /**
+   * Advances the checkpoint to just before the first item after it
+   * that matches the filters, skipping a sparse region in one step.
+   * Without DTreeAncestors, the included and excluded location nodes
+   * cannot be applied in SQL, so if either is set the checkpoint is
+   * not moved, and the candidates are scanned one batch at a time.
+   *
+   * @param checkpoint the checkpoint to advance
+   */
+  @VisibleForTesting
+  void skipToNextMatching(Checkpoint checkpoint)
+      throws RepositoryException {
+    if (!connector.getUseDTreeAncestors()
+        && (!Strings.isNullOrEmpty(connector.getIncludedLocationNodes())
+            || !Strings.isNullOrEmpty(connector.getExcludedLocationNodes()))) {
+      LOGGER.finest("SKIP QUERY: location nodes require DTreeAncestors.");
+      return;
+    }
+
+    String candidates = sqlQueries.getWhere(null,
+        "LivelinkTraversalManager.getSkipCandidates",
+        choice(checkpoint.insertDate != null),
+        (checkpoint.insertDate != null)
+            ? getTimestampLiteral(checkpoint.insertDate) : null,
+        checkpoint.insertDataId);
+    String sqlWhereCondition = connector.getSqlWhereCondition();
+    String view =
+        (Strings.isNullOrEmpty(sqlWhereCondition)) ? "DTree" : "WebNodes";
+    ClientValue next = sqlQueries.execute(sysadminClient, "SKIP QUERY",
+        "LivelinkTraversalManager.getNextMatching", view,
+        getMatchingQuery(candidates, new Date(), false));
+
+    if (next.size() == 0) {
+      LOGGER.fine("SKIP QUERY: no matching items.");
+    } else {
+      Date modifyDate = next.toDate(0, "ModifyDate");
+      int dataId = next.toInteger(0, "DataID");
+      if (LOGGER.isLoggable(Level.FINE)) {
+        LOGGER.fine("SKIP QUERY: next matching item " + dataId + " at "
+            + dateFormat.toSqlString(modifyDate));
+      }
+      checkpoint.skipTo(modifyDate, dataId - 1);
+    }
+  }
+
+  /** Gets the number of candidates to query for the next batch. */
+  private int getCandidateBatchSize() {
+    return (batchSizeController == null)
+        ? batchSize : batchSizeController.getCandidateSize(batchSize);
+  }
+
+  /** Tells the batch size controller, if any, that a batch was returned. */
+  private void recordBatchReturned(int numResults) {
+    if (batchSizeController != null) {
+      batchSizeController.recordBatchReturned(numResults);
+    }
+  }
+
   /** Check for bad results from the candidates query. */
   @VisibleForTesting
   void checkCandidatesTimeWarp(ClientValue candidates, Checkpoint checkpoint)
@@ -634,6 +1486,51 @@ class LivelinkTraversalManager
   @VisibleForTesting
   ClientValue getResults(String candidatesList, Date highestModifyDate)
       throws RepositoryException {
+    return getResults(candidatesList, highestModifyDate, traversalClient,
+        sysadminClient);
+  }
+
+  /**
+   * Filters the candidates down and returns the main recarray needed
+   * for the DocumentList, using the given clients. Long candidate
+   * lists are filtered in chunks of {@link SqlQueries#MAX_IN_LIST}.
+   * The candidates are in traversal order, and each chunk of results
+   * is sorted, so the combined results are also in traversal order.
+   *
+   * @param candidatesList a comma-separated string of candidate object IDs
+   * @param highestModifyDate the latest ModifyDate among the candidates
+   * @param traversalClient the client for the main query
+   * @param sysadminClient the client for the intermediate queries
+   * @return the main query results
+   */
+  private ClientValue getResults(String candidatesList, Date highestModifyDate,
+      Client traversalClient, Client sysadminClient)
+      throws RepositoryException {
+    Iterable<List<String>> chunks = Iterables.partition(
+        Splitter.on(',').split(candidatesList), SqlQueries.MAX_IN_LIST);
+    List<ClientValue> results = new ArrayList<ClientValue>();
+    for (List<String> chunk : chunks) {
+      results.add(getChunkResults(Joiner.on(',').join(chunk),
+              highestModifyDate, traversalClient, sysadminClient));
+    }
+    if (LOGGER.isLoggable(Level.FINER) && results.size() > 1) {
+      LOGGER.finer("RESULTS QUERY: " + results.size() + " chunks.");
+    }
+    return ConcatenatedClientValue.concat(results);
+  }
+
+  /**
+   * Filters a chunk of the candidates that fits in a SQL IN list.
+   *
+   * @param candidatesList a comma-separated string of candidate object IDs
+   * @param highestModifyDate the latest ModifyDate among the candidates
+   * @param traversalClient the client for the main query
+   * @param sysadminClient the client for the intermediate queries
+   * @return the main query results, or {@code null}
+   */
+  private ClientValue getChunkResults(String candidatesList,
+      Date highestModifyDate, Client traversalClient, Client sysadminClient)
+      throws RepositoryException {
     if (genealogist == null) {
       // We're either using DTreeAncestors, or we don't need it.
       return getMatching(candidatesList, highestModifyDate, true,
@@ -645,11 +1542,31 @@ class LivelinkTraversalManager
       String sqlWhereCondition = connector.getSqlWhereCondition();
       String view =
           (Strings.isNullOrEmpty(sqlWhereCondition)) ? "DTree" : "WebNodes";
+      // The ParentID lets a genealogist keep track of moved items.
       ClientValue matching = getMatching(candidatesList, highestModifyDate,
-          false, view, new String[] { "DataID" }, sysadminClient);
-      return (matching.size() == 0)
-          ? null : getMatchingDescendants(matching, highestModifyDate);
+          false, view, new String[] { "DataID", "ParentID" }, sysadminClient);
+      return (matching.size() == 0) ? null
+          : getMatchingDescendants(matching, highestModifyDate,
+              traversalClient);
+    }
+  }
+
+  /**
+   * Gets a comma-separated string of the DataIDs of the candidates.
+   *
+   * @param candidates the non-empty candidates query results
+   * @return a comma-separated string of candidate object IDs
+   */
+  private String getCandidatesList(ClientValue candidates)
+      throws RepositoryException {
+    StringBuilder buffer = new StringBuilder();
+    for (int dataId
+             : ((ColumnarClientValue) candidates).toIntegerColumn("DataID")) {
+      buffer.append(dataId);
+      buffer.append(',');
     }
+    buffer.deleteCharAt(buffer.length() - 1);
+    return buffer.toString();
   }
 
   /**
@@ -720,13 +1637,14 @@ class LivelinkTraversalManager
    *
    * @param matching the candidates matching the non-hierarchical filters
    * @param highestModifyDate the latest ModifyDate among the candidates
+   * @param client the Livelink client to use to execute the main query
    * @return the main query results
    */
   private ClientValue getMatchingDescendants(ClientValue matching,
-      Date highestModifyDate) throws RepositoryException {
+      Date highestModifyDate, Client client) throws RepositoryException {
     String descendants;
     // We are using the same genealogist for multiple traversal batches, which
-    // might be done from different threads (although never concurrently).
+    // might be done from different threads, including the prefetch thread.
     synchronized (genealogist) {
       descendants = genealogist.getMatchingDescendants(matching);
     }
@@ -734,19 +1652,196 @@ class LivelinkTraversalManager
       String query = sqlQueries.getWhere(null,
           "LivelinkTraversalManager.getMatchingDescendants", descendants,
           getTimestampLiteral(highestModifyDate));
-      return traversalClient.ListNodes(query, webnodesViewResults, selectList);
+      return client.ListNodes(query, webnodesViewResults, selectList);
     } else {
       return null;
     }
   }
 
+  /**
+   * Creates a new client that is equivalent to {@code traversalClient},
+   * impersonating the traversal user if there is one.
+   */
+  private Client createTraversalClient() throws RepositoryException {
+    Client client = connector.getClientFactory().createClient();
+    if (traversalClient != sysadminClient) {
+      client.ImpersonateUserEx(currentUsername, connector.getDomainName());
+    }
+    return client;
+  }
+
+  /**
+   * Gets the pool used to collect document metadata from the
+   * connector, which owns the pool.
+   *
+   * @return the enrichment pool, or {@code null} if the metadata
+   *     should be collected serially
+   */
+  private EnrichmentPool getEnrichmentPool() throws RepositoryException {
+    return connector.getEnrichmentPool(
+        (traversalClient == sysadminClient) ? null : currentUsername);
+  }
+
+  /**
+   * Starts a background query of the candidates and results for the
+   * batch following the given advance checkpoint. The prefetch is
+   * only used if the next call to {@code listNodes} starts from the
+   * same checkpoint with the same batch size, that is, if the current
+   * batch is consumed completely and the checkpoint is not restored.
+   *
+   * @param highestModifyDate the ModifyDate of the last candidate
+   * @param highestDataId the DataID of the last candidate
+   */
+  private synchronized void startPrefetch(Date highestModifyDate,
+      int highestDataId) throws RepositoryException {
+    discardPrefetch();
+
+    if (prefetchSysadminClient == null) {
+      prefetchSysadminClient = connector.getClientFactory().createClient();
+      if (traversalClient == sysadminClient) {
+        prefetchTraversalClient = prefetchSysadminClient;
+      } else {
+        prefetchTraversalClient = createTraversalClient();
+      }
+    }
+
+    prefetch = new Prefetch(highestModifyDate, highestDataId,
+        getCandidateBatchSize());
+    Thread thread = new Thread(prefetch.task, "LivelinkPrefetch");
+    thread.setDaemon(true);
+    thread.start();
+    if (LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.fine("PREFETCH STARTED: " + prefetch);
+    }
+  }
+
+  /**
+   * Gets the prefetched candidates and results for the given
+   * checkpoint, waiting for the prefetch to complete if necessary.
+   * Any pending prefetch is consumed or discarded by this method.
+   *
+   * @param checkpoint the checkpoint for the next batch
+   * @param batchsz the size of the next batch
+   * @return the completed prefetch, or {@code null} if there was no
+   *     prefetch for this checkpoint, or if the prefetch failed
+   */
+  private Prefetch takePrefetch(Checkpoint checkpoint, int batchsz) {
+    // Do not hold the lock while waiting, since the prefetch thread
+    // may need it, e.g., in useSubtreeCandidates.
+    Prefetch pending;
+    synchronized (this) {
+      if (prefetch == null) {
+        return null;
+      }
+      pending = prefetch;
+      prefetch = null;
+    }
+    if (!pending.matches(checkpoint, batchsz)) {
+      if (LOGGER.isLoggable(Level.FINE)) {
+        LOGGER.fine("PREFETCH DISCARDED: " + pending + " does not match "
+            + checkpoint);
+      }
+      pending.task.cancel(false);
+      return null;
+    }
+
+    try {
+      Prefetch prefetched = pending.task.get();
+      if (LOGGER.isLoggable(Level.FINE)) {
+        LOGGER.fine("PREFETCH USED: " + pending);
+      }
+      return prefetched;
+    } catch (ExecutionException e) {
+      // Fall back to running the queries on demand, which will throw
+      // the exception again if it wasn't transient.
+      LOGGER.log(Level.WARNING, "PREFETCH FAILED: " + pending, e.getCause());
+      return null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+  }
+
+  /** Discards any pending prefetch. */
+  private synchronized void discardPrefetch() {
+    if (prefetch != null) {
+      LOGGER.finer("PREFETCH DISCARDED: " + prefetch);
+      prefetch.task.cancel(false);
+      prefetch = null;
+    }
+  }
+
+  /**
+   * A background query of the candidates and results for the batch
+   * starting after a given checkpoint. The prefetch clients are
+   * thread-safe, so a discarded prefetch may continue running, which
+   * only delays any later prefetch.
+   */
+  private class Prefetch implements Callable<Prefetch> {
+    private final Date insertDate;
+    private final int insertDataId;
+    private final int batchsz;
+    private final FutureTask<Prefetch> task;
+
+    /** The candidates query results, set by the prefetch thread. */
+    private ClientValue candidates;
+
+    /** The main query results, set by the prefetch thread. */
+    private ClientValue results;
+
+    Prefetch(Date insertDate, int insertDataId, int batchsz) {
+      this.insertDate = insertDate;
+      this.insertDataId = insertDataId;
+      this.batchsz = batchsz;
+      this.task = new FutureTask<Prefetch>(this);
+    }
+
+    @Override
+    public Prefetch call() throws RepositoryException {
+      Checkpoint checkpoint = new Checkpoint();
+      checkpoint.setInsertCheckpoint(insertDate, insertDataId);
+      candidates = getCandidates(checkpoint, batchsz, prefetchSysadminClient);
+      int numInserts = candidates.size();
+      if (numInserts > 0) {
+        results = getResults(getCandidatesList(candidates),
+            candidates.toDate(numInserts - 1, "ModifyDate"),
+            prefetchTraversalClient, prefetchSysadminClient);
+      }
+      return this;
+    }
+
+    /**
+     * Checks whether this prefetch starts at the given checkpoint.
+     * Checkpoint strings only store the insert date to the second,
+     * which is also all that is used in the candidates query.
+     */
+    boolean matches(Checkpoint checkpoint, int batchsz) {
+      return checkpoint.insertDate != null
+          && checkpoint.insertDataId == insertDataId
+          && this.batchsz == batchsz
+          && dateFormat.toSqlString(checkpoint.insertDate).equals(
+              dateFormat.toSqlString(insertDate));
+    }
+
+    @Override
+    public String toString() {
+      return dateFormat.toSqlString(insertDate) + "," + insertDataId
+          + " (" + batchsz + " rows)";
+    }
+  }
+
   /**
    * This is a hack to avoid splitting queries between Oracle and SQL Server
    * in SqlQueries just to handle different timestamp literal formats.
    */
   private String getTimestampLiteral(Date value) {
+    return getTimestampLiteral(value, isSqlServer);
+  }
+
+  /** Gets a timestamp literal for the given database. */
+  static String getTimestampLiteral(Date value, boolean isSqlServer) {
     return ((isSqlServer) ? "" : "TIMESTAMP")
-        + '\'' + dateFormat.toSqlString(value) + '\'';
+        + '\'' + LivelinkDateFormat.getInstance().toSqlString(value) + '\'';
   }
 
   /*
@@ -754,14 +1849,86 @@ class LivelinkTraversalManager
    * candidates when the traversal user does not have permission for
    * any of the potential candidates.
    */
-  private ClientValue getCandidates(Checkpoint checkpoint,
-      int batchsz) throws RepositoryException {
+  @VisibleForTesting
+  ClientValue getCandidates(Checkpoint checkpoint,
+      int batchsz, Client sysadminClient) throws RepositoryException {
     String insertDate = (checkpoint.insertDate != null)
         ? dateFormat.toSqlString(checkpoint.insertDate) : null;
+    if (useSubtreeCandidates(sysadminClient)) {
+      String startNodes = connector.getIncludedLocationNodes();
+      return sqlQueries.execute(sysadminClient, "CANDIDATES QUERY",
+          "LivelinkTraversalManager.getSubtreeCandidates",
+          choice(checkpoint.insertDate != null), insertDate,
+          checkpoint.insertDataId, batchsz, startNodes,
+          Genealogist.getAncestorNodes(startNodes));
+    } else {
+      return sqlQueries.execute(sysadminClient, "CANDIDATES QUERY",
+          "LivelinkTraversalManager.getCandidates",
+          choice(checkpoint.insertDate != null), insertDate,
+          checkpoint.insertDataId, batchsz);
+    }
+  }
+
+  /**
+   * Gets the candidates from one window of a partitioned traversal.
+   *
+   * @param checkpoint the starting point of the window
+   * @param endDate the end of the window, exclusive
+   * @param batchsz the maximum number of candidates
+   * @param sysadminClient the client to use for the query
+   */
+  @VisibleForTesting
+  ClientValue getWindowCandidates(Checkpoint checkpoint, Date endDate,
+      int batchsz, Client sysadminClient) throws RepositoryException {
     return sqlQueries.execute(sysadminClient, "CANDIDATES QUERY",
-        "LivelinkTraversalManager.getCandidates",
-        choice(checkpoint.insertDate != null), insertDate,
-        checkpoint.insertDataId, batchsz);
+        "LivelinkTraversalManager.getWindowCandidates",
+        dateFormat.toSqlString(checkpoint.insertDate),
+        checkpoint.insertDataId, dateFormat.toSqlString(endDate), batchsz);
+  }
+
+  /**
+   * Gets whether to query the candidates from the included subtrees
+   * rather than from all of DTree. The candidates are in the same
+   * order either way, so the checkpoints are compatible. This
+   * requires DTreeAncestors, and is decided once, when the included
+   * subtrees are estimated to be a small enough fraction of DTree.
+   *
+   * @param client the client to use for the estimate
+   * @return {@code true} to query the candidates from the subtrees
+   */
+  private synchronized boolean useSubtreeCandidates(Client client)
+      throws RepositoryException {
+    if (subtreeCandidates == null) {
+      String startNodes = connector.getIncludedLocationNodes();
+      int threshold = connector.getSubtreeCandidatesThreshold();
+      if (threshold == 0 || !connector.getUseDTreeAncestors()
+          || Strings.isNullOrEmpty(startNodes)) {
+        subtreeCandidates = false;
+      } else {
+        ClientValue startNodesIfSmall = sqlQueries.execute(client,
+            "SUBTREE SIZE QUERY", "LivelinkTraversalManager.isSmallSubtree",
+            startNodes, Genealogist.getAncestorNodes(startNodes), threshold);
+        subtreeCandidates = startNodesIfSmall.size() > 0;
+      }
+      if (LOGGER.isLoggable(Level.CONFIG))
+        LOGGER.config("SUBTREE CANDIDATES: " + subtreeCandidates);
+    }
+    return subtreeCandidates;
+  }
+
+  /**
+   * Fetches the next events from the audit log for the change feed or
+   * the permission change re-feed.
+   *
+   * @param eventId the EventID of the last event read
+   * @param auditIds a comma-separated list of AuditIDs
+   * @param batchsz the maximum number of events to read
+   */
+  @VisibleForTesting
+  ClientValue getChanges(long eventId, String auditIds, int batchsz)
+      throws RepositoryException {
+    return sqlQueries.execute(sysadminClient, "CHANGES QUERY",
+        "LivelinkTraversalManager.getChanges", eventId, auditIds, batchsz);
   }
 
   /** Fetches the list of Deleted Items candidates for SQL Server. */
@@ -14,22 +14,20 @@
 
 package com.google.enterprise.connector.otex;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.enterprise.connector.otex.client.Client;
 import com.google.enterprise.connector.spi.RepositoryException;
 
-import java.io.IOException;
 import java.io.InputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * This content handler implementation uses <code>FetchVersion</code>
- * with a <code>PipedOutputStream</code> and returns the paired
- * instance of a <code>PipedInputStream</code> subclass that uses a
- * larger pipe buffer and that rethrows exceptions that were thrown by
+ * with the output stream of a {@link ContentPipe}, and returns the
+ * paired input stream, which rethrows exceptions that were thrown by
  * <code>FetchVersion</code>.
  * <p>
  * Pipes must be used from two threads, a consumer and a producer. In
@@ -40,31 +38,42 @@ import java.util.logging.Logger;
  * <code>Runnable</code> interface to the created producer thread. The
  * producer thread runs in the background waiting for calls to (@link
  * #getInputStream} to queue requests.
+ * <p>
+ * If the consumer closes the input stream before EOF is reached, the
+ * next write by the producer fails, and the producer moves on to the
+ * next request rather than blocking on a full pipe.
  * 
  * @see ContentHandler
  */
-/*
- * FIXME: This implementation deadlocks, especially when the producer
- * thread throws exceptions. One example occurs when the consumer
- * thread closes the input stream before EOF is reached.
- */
 class PipedContentHandler implements ContentHandler, Runnable {
   /** The logger for this class. */
   private static final Logger LOGGER =
       Logger.getLogger(PipedContentHandler.class.getName());
 
-  /** A larger pipe size for a tenfold increase in performance. */
-  private static final int PIPE_SIZE = 32768;
-    
+  /** The default pipe size, large enough for a tenfold performance gain. */
+  private static final int DEFAULT_PIPE_SIZE = 32768;
+
   /** The connector contains configuration information. */
   private LivelinkConnector connector;
 
   /** The client provides access to the server. */
   private Client client;
 
+  /** The size of the pipe buffer, in bytes. */
+  private int pipeSize = DEFAULT_PIPE_SIZE;
+
   /** Is the producer thread running? */
   private volatile boolean isRunning = false;
-    
+
+  /** The total number of bytes written by the producer thread. */
+  private final AtomicLong totalBytes = new AtomicLong();
+
+  /** The total time spent in <code>FetchVersion</code>, in nanoseconds. */
+  private final AtomicLong totalFetchNanos = new AtomicLong();
+
+  /** The total time the producer was blocked on a full pipe. */
+  private final AtomicLong totalWaitNanos = new AtomicLong();
+
   /** Queued requests. */
   /*
    * The queue is necessary because this content handler might
@@ -73,27 +82,44 @@ class PipedContentHandler implements ContentHandler, Runnable {
    * "queueing" a single request would suffice.
    */
   private final LinkedList<Request> queue = new LinkedList<Request>();
-    
+
   /** Represents queue entries. */
   private static class Request {
     private final int volumeId;
     private final int objectId;
     private final int versionNumber;
-    private final PipedOutputStream out;
-    private final SafePipedInputStream in;
+    private final ContentPipe pipe;
     private Request(int volumeId, int objectId, int versionNumber,
-        PipedOutputStream out, SafePipedInputStream in) {
+        ContentPipe pipe) {
       this.volumeId = volumeId;
       this.objectId = objectId;
       this.versionNumber = versionNumber;
-      this.out = out;
-      this.in = in;
+      this.pipe = pipe;
     }
   }
-    
+
   PipedContentHandler() {
   }
 
+  /**
+   * Sets the size of the pipe buffer. Larger buffers let the producer
+   * thread get further ahead of the consumer.
+   *
+   * @param pipeSize the pipe size, in bytes
+   */
+  public void setPipeSize(int pipeSize) {
+    LOGGER.log(Level.CONFIG, "CONTENT HANDLER PIPE SIZE: {0}", pipeSize);
+    if (pipeSize <= 0) {
+      throw new IllegalArgumentException("pipeSize must be positive");
+    }
+    this.pipeSize = pipeSize;
+  }
+
+  @VisibleForTesting
+  int getPipeSize() {
+    return pipeSize;
+  }
+
   /**
    * {@inheritDoc}
    * <p>
@@ -119,14 +145,9 @@ class PipedContentHandler implements ContentHandler, Runnable {
     if (!isRunning)
       throw new LivelinkException("No producer thread.", LOGGER);
 
-    try {
-      SafePipedInputStream in = new SafePipedInputStream(PIPE_SIZE);
-      PipedOutputStream out = new PipedOutputStream(in);
-      queueRequest(new Request(volumeId, objectId, versionNumber, out, in));
-      return in;
-    } catch (IOException e) {
-      throw new LivelinkException(e, LOGGER);
-    }
+    ContentPipe pipe = new ContentPipe(pipeSize);
+    queueRequest(new Request(volumeId, objectId, versionNumber, pipe));
+    return pipe.getInputStream();
   }
 
   /** The producer thread processes requests for item content. */
@@ -169,7 +190,7 @@ class PipedContentHandler implements ContentHandler, Runnable {
     }
     return queue.removeFirst();
   }
-    
+
   /**
    * Waits for a request and calls <code>FetchVersion</code> to fill
    * the pipe.
@@ -178,97 +199,34 @@ class PipedContentHandler implements ContentHandler, Runnable {
     Request request = dequeueRequest();
     if (LOGGER.isLoggable(Level.FINE))
       LOGGER.fine("PROCESSING REQUEST: " + request.objectId);
+    ContentPipe pipe = request.pipe;
+    long start = System.nanoTime();
     try {
       client.FetchVersion(request.volumeId, request.objectId,
-          request.versionNumber, request.out);
+          request.versionNumber, pipe.getOutputStream());
+      pipe.getOutputStream().close();
     } catch (Throwable t) {
       LOGGER.log(Level.FINE, "CAUGHT EXCEPTION", t);
-      try {
-        request.in.setException(t, request.out);
-      } catch (Throwable tt) {
-        LOGGER.log(Level.WARNING,
-            "CAUGHT EXCEPTION SETTING EXCEPTION", tt);
-      }
+      pipe.setException(t);
+    } finally {
+      updateStatistics(request.objectId, pipe, System.nanoTime() - start);
     }
   }
 
-  /**
-   * Enables a larger pipe buffer for performance, and supports
-   * rethrowing exceptions from the producer of the pipe content to
-   * the consumer.
-   * <p>
-   * <strong>WARNING:</strong> This implementation depends heavily
-   * on the implementation details of <code>PipedInputStream</code>.
-   * The <code>buffer</code> field is protected, not final, and is
-   * never reassigned to, and the <code>PIPE_SIZE<code> constant is
-   * only used to construct the buffer. Also, we're assuming that
-   * closing the output stream and calling notify on the input
-   * stream will unblock a blocked call to read.
-   */
-  /*
-   * FIXME: Do we need a stand-alone implementation to avoid
-   * depending on implementation details?
-   */
-  private static class SafePipedInputStream extends PipedInputStream {
-    private Throwable throwable = null;
-
-    public SafePipedInputStream(int size) {
-      buffer = new byte[size];
-    }
-
-    public synchronized int read() throws IOException {
-      checkException();
-      int b = super.read();
-      if (b == -1)
-        checkException();
-      return b;
-    }
-
-    @Override
-    public int read(byte[] buffer) throws IOException {
-      return read(buffer, 0, buffer.length);
-    }
-
-    @Override
-    public synchronized int read(byte[] buffer, int offset, int length)
-        throws IOException {
-      checkException();
-      int count = super.read(buffer, offset, length);
-      if (count == -1)
-        checkException();
-      return count;
-    }
-
-    public synchronized void setException(Throwable t,
-        PipedOutputStream out) {
-      if (throwable == null) {
-        throwable = t;
-
-        // If the reader is blocked, we need to unblock it.
-        // XXX: This code depends on the implementation of
-        // PipedInputStream.read. First we close the output
-        // stream so that the unblocked reader doesn't
-        // immediately block again, and then we notify the
-        // reader to wake up.
-        try {
-          out.close();
-        } catch (IOException e) {
-          // This can't happen because
-          // PipedOutputStream.close doesn't really throw
-          // IOExceptions.
-          throw new RuntimeException(e);
-        } finally {
-          notify(); // Only the one reader can be waiting.
-        }
-      }
-    }
-
-    private void checkException() throws IOException {
-      if (throwable != null) {
-        IOException e = new IOException(throwable.getMessage(), throwable);
-        throwable = null;
-        throw e;
-      }
+  /** Accumulates and logs the producer throughput. */
+  private void updateStatistics(int objectId, ContentPipe pipe,
+      long fetchNanos) {
+    long bytes = pipe.getBytesWritten();
+    long waitNanos = pipe.getWriterWaitNanos();
+    long allBytes = totalBytes.addAndGet(bytes);
+    long allFetchNanos = totalFetchNanos.addAndGet(fetchNanos);
+    long allWaitNanos = totalWaitNanos.addAndGet(waitNanos);
+    if (LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.fine("FETCHED " + bytes + " BYTES FOR " + objectId + " IN "
+          + fetchNanos / 1000000 + " ms (BLOCKED " + waitNanos / 1000000
+          + " ms); TOTAL " + allBytes + " BYTES IN "
+          + allFetchNanos / 1000000 + " ms (BLOCKED "
+          + allWaitNanos / 1000000 + " ms)");
     }
   }
 }
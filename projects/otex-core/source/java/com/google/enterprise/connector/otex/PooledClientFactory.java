@@ -0,0 +1,726 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.enterprise.connector.otex.client.Client;
+import com.google.enterprise.connector.otex.client.ClientFactory;
+import com.google.enterprise.connector.otex.client.ClientValue;
+import com.google.enterprise.connector.otex.client.ClientValueFactory;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A client factory that shares a bounded pool of clients from another
+ * factory. The clients returned by {@link #createClient()} do not
+ * hold a client of their own. Instead, each call borrows an idle
+ * client from the pool, or creates one if there are none, and
+ * returns it to the pool afterwards. That lets threads that share a
+ * client make calls concurrently, and avoids creating a new session
+ * for each short-lived client.
+ * <p/>
+ * Impersonation is tracked by the returned clients, and the pooled
+ * clients are keyed by the impersonated user, so a call only ever
+ * borrows a client that is impersonating the same user. Clients that
+ * have been idle for a while are checked before they are used.
+ * Clients that throw a {@code LivelinkIOException} or a runtime
+ * exception are discarded, since the session might be broken, but
+ * other exceptions, such as errors for a particular document, do not
+ * affect the session.
+ * <p/>
+ * Clients created with a username and password, which are used for
+ * authentication, are not pooled. Fetches that write the content to a
+ * stream are not pooled either, because the consumer of the stream
+ * controls how long they take. If they held a pooled client, a small
+ * pool could be exhausted by fetches that are blocked on consumers
+ * waiting for other pooled clients.
+ *
+ * @see LivelinkConnector#setClientPoolSize
+ */
+class PooledClientFactory implements ClientFactory {
+  /** The logger for this class. */
+  private static final Logger LOGGER =
+      Logger.getLogger(PooledClientFactory.class.getName());
+
+  /** The pool key for clients that are not impersonating anyone. */
+  private static final String NO_IMPERSONATION = "";
+
+  /** How long a client can be idle before it is checked, in milliseconds. */
+  @VisibleForTesting
+  static final long IDLE_CHECK_INTERVAL = 60 * 1000L;
+
+  /** The factory used to create the pooled clients. */
+  private final ClientFactory factory;
+
+  /** The maximum number of clients, both idle and borrowed. */
+  private final int maxSize;
+
+  /** The permits for borrowing clients. */
+  private final Semaphore permits;
+
+  /** The idle clients, most recently returned first. */
+  private final LinkedList<PoolEntry> idle = new LinkedList<PoolEntry>();
+
+  /** For logging statistics, the number of clients created. */
+  private int createdCount = 0;
+
+  /** For logging statistics, the number of clients borrowed. */
+  private int borrowedCount = 0;
+
+  /** For logging statistics, the number of times a caller waited. */
+  private int waitCount = 0;
+
+  /** For logging statistics, the number of clients discarded. */
+  private int discardedCount = 0;
+
+  /** Whether the pool has been shut down. */
+  private boolean isShutdown = false;
+
+  /**
+   * Constructs a pool of clients.
+   *
+   * @param factory the factory used to create the pooled clients
+   * @param maxSize the maximum number of clients
+   */
+  PooledClientFactory(ClientFactory factory, int maxSize) {
+    Preconditions.checkArgument(maxSize > 0, "maxSize must be positive");
+    this.factory = factory;
+    this.maxSize = maxSize;
+    this.permits = new Semaphore(maxSize, true);
+  }
+
+  /** {@inheritDoc} */
+  public void setServer(String value) {
+    factory.setServer(value);
+  }
+
+  /** {@inheritDoc} */
+  public void setPort(int value) {
+    factory.setPort(value);
+  }
+
+  /** {@inheritDoc} */
+  public void setUsername(String value) {
+    factory.setUsername(value);
+  }
+
+  /** {@inheritDoc} */
+  public void setPassword(String value) {
+    factory.setPassword(value);
+  }
+
+  /** {@inheritDoc} */
+  public void setConnection(String value) {
+    factory.setConnection(value);
+  }
+
+  /** {@inheritDoc} */
+  public void setDomainName(String value) {
+    factory.setDomainName(value);
+  }
+
+  /** {@inheritDoc} */
+  public void setEncoding(String value) {
+    factory.setEncoding(value);
+  }
+
+  /** {@inheritDoc} */
+  public void setLivelinkCgi(String value) {
+    factory.setLivelinkCgi(value);
+  }
+
+  /** {@inheritDoc} */
+  public void setHttps(boolean value) {
+    factory.setHttps(value);
+  }
+
+  /** {@inheritDoc} */
+  public void setHttpUsername(String value) {
+    factory.setHttpUsername(value);
+  }
+
+  /** {@inheritDoc} */
+  public void setHttpPassword(String value) {
+    factory.setHttpPassword(value);
+  }
+
+  /** {@inheritDoc} */
+  public void setVerifyServer(boolean value) {
+    factory.setVerifyServer(value);
+  }
+
+  /** {@inheritDoc} */
+  public void setCaRootCerts(List<String> value) {
+    factory.setCaRootCerts(value);
+  }
+
+  /** {@inheritDoc} */
+  public void setEnableNtlm(boolean value) {
+    factory.setEnableNtlm(value);
+  }
+
+  /** {@inheritDoc} */
+  public void setUseUsernamePasswordWithWebServer(boolean value) {
+    factory.setUseUsernamePasswordWithWebServer(value);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>
+   * The returned client borrows a pooled client for each call.
+   */
+  public Client createClient() {
+    return new PooledClient();
+  }
+
+  /** {@inheritDoc} */
+  public Client createClient(String username, String password) {
+    return factory.createClient(username, password);
+  }
+
+  /**
+   * Borrows a client from the pool, waiting if the maximum number of
+   * clients are already borrowed.
+   *
+   * @param username the impersonated user, or {@code null}
+   * @param domain the domain of the impersonated user, or {@code null}
+   * @return a pool entry holding the borrowed client
+   */
+  private PoolEntry borrow(String username, String domain)
+      throws RepositoryException {
+    if (!permits.tryAcquire()) {
+      synchronized (this) {
+        waitCount++;
+      }
+      try {
+        permits.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new LivelinkException(
+            "Interrupted while waiting for a Livelink client", e, LOGGER);
+      }
+    }
+
+    synchronized (this) {
+      borrowedCount++;
+    }
+
+    try {
+      String key = getKey(username, domain);
+      PoolEntry entry;
+      while ((entry = takeIdle(key)) != null) {
+        if (isHealthy(entry)) {
+          return entry;
+        }
+        discard(entry);
+      }
+      return newEntry(key, username, domain);
+    } catch (RepositoryException e) {
+      permits.release();
+      throw e;
+    } catch (RuntimeException e) {
+      permits.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Removes an idle client for the given key from the pool. If there
+   * is none, and the pool is full, the least recently used idle
+   * client is discarded to make room for a new one.
+   *
+   * @return an idle client, or {@code null} if there is none
+   */
+  private synchronized PoolEntry takeIdle(String key) {
+    Iterator<PoolEntry> it = idle.iterator();
+    while (it.hasNext()) {
+      PoolEntry entry = it.next();
+      if (entry.key.equals(key)) {
+        it.remove();
+        return entry;
+      }
+    }
+    int borrowed = maxSize - permits.availablePermits();
+    if (!idle.isEmpty() && idle.size() + borrowed > maxSize) {
+      idle.removeLast();
+      discardedCount++;
+    }
+    return null;
+  }
+
+  /**
+   * Checks whether a client that has been idle for a while can still
+   * talk to the server.
+   */
+  private boolean isHealthy(PoolEntry entry) {
+    if (System.currentTimeMillis() - entry.lastUsed < IDLE_CHECK_INTERVAL) {
+      return true;
+    }
+    try {
+      entry.client.GetCurrentUserID();
+      return true;
+    } catch (RepositoryException e) {
+      LOGGER.log(Level.FINE, "CLIENT POOL: Discarding idle client", e);
+      return false;
+    } catch (RuntimeException e) {
+      LOGGER.log(Level.FINE, "CLIENT POOL: Discarding idle client", e);
+      return false;
+    }
+  }
+
+  private PoolEntry newEntry(String key, String username, String domain)
+      throws RepositoryException {
+    Client client = factory.createClient();
+    if (username != null) {
+      client.ImpersonateUserEx(username, domain);
+    }
+    synchronized (this) {
+      createdCount++;
+    }
+    if (LOGGER.isLoggable(Level.FINER)) {
+      LOGGER.finer("CLIENT POOL: Created client for \"" + key + "\": "
+          + statistics());
+    }
+    return new PoolEntry(key, client);
+  }
+
+  /**
+   * Returns a borrowed client to the pool.
+   *
+   * @param entry the pool entry holding the client
+   * @param healthy {@code false} if the client threw an exception and
+   *     should be discarded
+   */
+  private void release(PoolEntry entry, boolean healthy) {
+    try {
+      synchronized (this) {
+        if (healthy && !isShutdown) {
+          entry.lastUsed = System.currentTimeMillis();
+          idle.addFirst(entry);
+          while (idle.size() > maxSize) {
+            idle.removeLast();
+            discardedCount++;
+          }
+        } else {
+          discard(entry);
+        }
+      }
+    } finally {
+      permits.release();
+    }
+  }
+
+  private synchronized void discard(PoolEntry entry) {
+    discardedCount++;
+  }
+
+  /**
+   * Discards the idle clients. Clients that are borrowed when the pool
+   * is shut down are discarded when they are returned, and later
+   * calls still work, but their clients are not pooled.
+   */
+  synchronized void shutdown() {
+    isShutdown = true;
+    discardedCount += idle.size();
+    idle.clear();
+    if (LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.fine("CLIENT POOL: Shut down: " + statistics());
+    }
+  }
+
+  /**
+   * Creates a client that is not pooled, impersonating the given user.
+   *
+   * @param impersonation the impersonated user and domain, or
+   *     {@code null}
+   */
+  private Client createUnpooledClient(String[] impersonation)
+      throws RepositoryException {
+    Client client = factory.createClient();
+    if (impersonation != null) {
+      client.ImpersonateUserEx(impersonation[0], impersonation[1]);
+    }
+    return client;
+  }
+
+  private static String getKey(String username, String domain) {
+    if (username == null) {
+      return NO_IMPERSONATION;
+    } else if (domain == null || domain.length() == 0) {
+      return username;
+    } else {
+      return domain + '\\' + username;
+    }
+  }
+
+  /** Returns a snapshot of the current pool statistics. */
+  public synchronized Statistics statistics() {
+    return new Statistics(idle.size(), maxSize - permits.availablePermits(),
+        createdCount, borrowedCount, waitCount, discardedCount);
+  }
+
+  /* Used for testing and instrumentation. */
+  public static class Statistics {
+    public final int idle;       // Number of idle clients in the pool.
+    public final int borrowed;   // Number of clients currently in use.
+    public final int created;    // Number of clients created.
+    public final int borrows;    // Number of calls that borrowed a client.
+    public final int waits;      // Number of calls that waited for a client.
+    public final int discarded;  // Number of clients discarded.
+
+    Statistics(int idle, int borrowed, int created, int borrows, int waits,
+        int discarded) {
+      this.idle = idle;
+      this.borrowed = borrowed;
+      this.created = created;
+      this.borrows = borrows;
+      this.waits = waits;
+      this.discarded = discarded;
+    }
+
+    public String toString() {
+      return idle + " idle, " + borrowed + " borrowed, " + created
+          + " created, " + borrows + " borrows, " + waits + " waits, "
+          + discarded + " discarded";
+    }
+  }
+
+  /** A pooled client and its impersonation key. */
+  private static final class PoolEntry {
+    final String key;
+    final Client client;
+    long lastUsed;
+
+    PoolEntry(String key, Client client) {
+      this.key = key;
+      this.client = client;
+      this.lastUsed = System.currentTimeMillis();
+    }
+  }
+
+  /** A call to make using a borrowed client. */
+  private static interface Call<T> {
+    T call(Client client) throws RepositoryException;
+  }
+
+  /**
+   * A client that borrows a pooled client for each call, using the
+   * impersonated user set on this client.
+   */
+  private class PooledClient implements Client {
+    /** The impersonated user and domain, or {@code null}. */
+    private volatile String[] impersonation = null;
+
+    private <T> T execute(Call<T> call) throws RepositoryException {
+      String[] current = impersonation;
+      PoolEntry entry = (current == null)
+          ? borrow(null, null) : borrow(current[0], current[1]);
+      boolean healthy = false;
+      try {
+        T result = call.call(entry.client);
+        healthy = true;
+        return result;
+      } catch (LivelinkIOException e) {
+        throw e;
+      } catch (RepositoryException e) {
+        // The server returned an error, but the session is fine.
+        healthy = true;
+        throw e;
+      } finally {
+        release(entry, healthy);
+      }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public ClientValueFactory getClientValueFactory()
+        throws RepositoryException {
+      return execute(new Call<ClientValueFactory>() {
+          public ClientValueFactory call(Client client)
+              throws RepositoryException {
+            return client.getClientValueFactory();
+          }
+        });
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public ClientValue GetServerInfo() throws RepositoryException {
+      return execute(new Call<ClientValue>() {
+          public ClientValue call(Client client) throws RepositoryException {
+            return client.GetServerInfo();
+          }
+        });
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int GetCurrentUserID() throws RepositoryException {
+      return execute(new Call<Integer>() {
+          public Integer call(Client client) throws RepositoryException {
+            return client.GetCurrentUserID();
+          }
+        });
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public ClientValue GetCookieInfo() throws RepositoryException {
+      return execute(new Call<ClientValue>() {
+          public ClientValue call(Client client) throws RepositoryException {
+            return client.GetCookieInfo();
+          }
+        });
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public ClientValue GetUserOrGroupByIDNoThrow(final int id)
+        throws RepositoryException {
+      return execute(new Call<ClientValue>() {
+          public ClientValue call(Client client) throws RepositoryException {
+            return client.GetUserOrGroupByIDNoThrow(id);
+          }
+        });
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public ClientValue GetUserInfo(final String username)
+        throws RepositoryException {
+      return execute(new Call<ClientValue>() {
+          public ClientValue call(Client client) throws RepositoryException {
+            return client.GetUserInfo(username);
+          }
+        });
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public ClientValue ListUsers() throws RepositoryException {
+      return execute(new Call<ClientValue>() {
+          public ClientValue call(Client client) throws RepositoryException {
+            return client.ListUsers();
+          }
+        });
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public ClientValue ListGroups() throws RepositoryException {
+      return execute(new Call<ClientValue>() {
+          public ClientValue call(Client client) throws RepositoryException {
+            return client.ListGroups();
+          }
+        });
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public ClientValue ListMembers(final String groupName)
+        throws RepositoryException {
+      return execute(new Call<ClientValue>() {
+          public ClientValue call(Client client) throws RepositoryException {
+            return client.ListMembers(groupName);
+          }
+        });
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public ClientValue AccessEnterpriseWS() throws RepositoryException {
+      return execute(new Call<ClientValue>() {
+          public ClientValue call(Client client) throws RepositoryException {
+            return client.AccessEnterpriseWS();
+          }
+        });
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public ClientValue ListNodes(final String query, final String view,
+        final String[] columns) throws RepositoryException {
+      return execute(new Call<ClientValue>() {
+          public ClientValue call(Client client) throws RepositoryException {
+            return client.ListNodes(query, view, columns);
+          }
+        });
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public ClientValue ListNodesNoThrow(final String query, final String view,
+        final String[] columns) throws RepositoryException {
+      return execute(new Call<ClientValue>() {
+          public ClientValue call(Client client) throws RepositoryException {
+            return client.ListNodesNoThrow(query, view, columns);
+          }
+        });
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public ClientValue GetObjectInfo(final int volumeId, final int objectId)
+        throws RepositoryException {
+      return execute(new Call<ClientValue>() {
+          public ClientValue call(Client client) throws RepositoryException {
+            return client.GetObjectInfo(volumeId, objectId);
+          }
+        });
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public ClientValue GetObjectAttributesEx(final ClientValue objectIdAssoc,
+        final ClientValue categoryIdAssoc) throws RepositoryException {
+      return execute(new Call<ClientValue>() {
+          public ClientValue call(Client client) throws RepositoryException {
+            return client.GetObjectAttributesEx(objectIdAssoc,
+                categoryIdAssoc);
+          }
+        });
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public ClientValue AttrListNames(final ClientValue categoryVersion,
+        final ClientValue attributeSetPath) throws RepositoryException {
+      return execute(new Call<ClientValue>() {
+          public ClientValue call(Client client) throws RepositoryException {
+            return client.AttrListNames(categoryVersion, attributeSetPath);
+          }
+        });
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public ClientValue AttrGetInfo(final ClientValue categoryVersion,
+        final String attributeName, final ClientValue attributeSetPath)
+        throws RepositoryException {
+      return execute(new Call<ClientValue>() {
+          public ClientValue call(Client client) throws RepositoryException {
+            return client.AttrGetInfo(categoryVersion, attributeName,
+                attributeSetPath);
+          }
+        });
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public ClientValue AttrGetValues(final ClientValue categoryVersion,
+        final String attributeName, final ClientValue attributeSetPath)
+        throws RepositoryException {
+      return execute(new Call<ClientValue>() {
+          public ClientValue call(Client client) throws RepositoryException {
+            return client.AttrGetValues(categoryVersion, attributeName,
+                attributeSetPath);
+          }
+        });
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public ClientValue ListObjectCategoryIDs(final ClientValue objectIdAssoc)
+        throws RepositoryException {
+      return execute(new Call<ClientValue>() {
+          public ClientValue call(Client client) throws RepositoryException {
+            return client.ListObjectCategoryIDs(objectIdAssoc);
+          }
+        });
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void FetchVersion(final int volumeId, final int objectId,
+        final int versionNumber, final File path) throws RepositoryException {
+      execute(new Call<Void>() {
+          public Void call(Client client) throws RepositoryException {
+            client.FetchVersion(volumeId, objectId, versionNumber, path);
+            return null;
+          }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     * This uses a client that is not pooled, because the call lasts
+     * until the consumer of the stream has read the content.
+     */
+    @Override
+    public void FetchVersion(int volumeId, int objectId, int versionNumber,
+        OutputStream out) throws RepositoryException {
+      createUnpooledClient(impersonation).FetchVersion(volumeId, objectId,
+          versionNumber, out);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public ClientValue GetVersionInfo(final int volumeId, final int objectId,
+        final int versionNumber) throws RepositoryException {
+      return execute(new Call<ClientValue>() {
+          public ClientValue call(Client client) throws RepositoryException {
+            return client.GetVersionInfo(volumeId, objectId, versionNumber);
+          }
+        });
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public ClientValue GetObjectRights(final int objectId)
+        throws RepositoryException {
+      return execute(new Call<ClientValue>() {
+          public ClientValue call(Client client) throws RepositoryException {
+            return client.GetObjectRights(objectId);
+          }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     * This only records the user. Subsequent calls borrow a pooled
+     * client that is impersonating the same user.
+     */
+    @Override
+    public void ImpersonateUser(String username) {
+      impersonation = new String[] { username, null };
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     * This only records the user. Subsequent calls borrow a pooled
+     * client that is impersonating the same user.
+     */
+    @Override
+    public void ImpersonateUserEx(String username, String domain) {
+      impersonation = new String[] { username, domain };
+    }
+  }
+}
@@ -0,0 +1,83 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.io.InputStream;
+import java.util.Date;
+
+/**
+ * An optional extension of {@link ContentHandler} that can start
+ * fetching content before it is requested. A document list announces
+ * the content it expects to request for the next few documents, and
+ * later calls {@link #getInputStream(int, int, int, Date, int)} for
+ * each of them in order. The content is identified by the object and
+ * its ModifyDate, so that announced content is only used for the
+ * same version of the object.
+ */
+interface PrefetchingContentHandler extends ContentHandler {
+  /**
+   * Gets the number of documents past the current one for which
+   * content should be announced.
+   */
+  int getLookahead();
+
+  /**
+   * Announces that the given content will be requested soon. This is
+   * only a hint, and implementations may ignore it.
+   *
+   * @param volumeId the volume ID of the object to fetch
+   * @param objectId the object ID of the object to fetch
+   * @param versionNumber the version number to fetch
+   * @param modifyDate the ModifyDate of the object
+   * @param size the size of the contents, as a hint to the implementation
+   */
+  void prefetch(int volumeId, int objectId, int versionNumber,
+      Date modifyDate, int size) throws RepositoryException;
+
+  /**
+   * Gets the content of an object, using the announced content if it
+   * was announced with the same arguments.
+   *
+   * @param volumeId the volume ID of the object to fetch
+   * @param objectId the object ID of the object to fetch
+   * @param versionNumber the version number to fetch
+   * @param modifyDate the ModifyDate of the object
+   * @param size the size of the contents, as a hint to the implementation
+   * @return an input stream for the contents
+   */
+  InputStream getInputStream(int volumeId, int objectId, int versionNumber,
+      Date modifyDate, int size) throws RepositoryException;
+
+  /**
+   * Discards the announced content, if it has not been requested yet.
+   * This method does nothing if the content was not announced or has
+   * already been requested.
+   *
+   * @param volumeId the volume ID of the object
+   * @param objectId the object ID of the object
+   * @param versionNumber the version number
+   * @param modifyDate the ModifyDate of the object
+   */
+  void cancelPrefetch(int volumeId, int objectId, int versionNumber,
+      Date modifyDate);
+
+  /**
+   * Discards any announced content and stops any background work.
+   * This is called when the connector is shut down.
+   */
+  void shutdown();
+}
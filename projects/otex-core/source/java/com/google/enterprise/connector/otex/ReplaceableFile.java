@@ -0,0 +1,130 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * A file that is replaced as a whole. The new contents are written
+ * to a temporary file and synced, then the original is renamed to a
+ * backup, and the temporary file is renamed to the original. The
+ * target of a rename cannot exist on Windows, so there is a moment
+ * when only the backup exists; readers use the backup in that case.
+ */
+class ReplaceableFile {
+  /** Writes the contents of a file. */
+  interface Contents {
+    void writeTo(DataOutputStream out) throws IOException;
+  }
+
+  /** The file. */
+  private final File file;
+
+  /** The temporary file that is written. */
+  private final File temp;
+
+  /** The previous file, while it is being replaced. */
+  private final File backup;
+
+  ReplaceableFile(File file) {
+    this.file = file;
+    this.temp = new File(file.getPath() + ".tmp");
+    this.backup = new File(file.getPath() + ".bak");
+  }
+
+  File getFile() {
+    return file;
+  }
+
+  /**
+   * Gets the file to read, which is the backup if a replacement was
+   * interrupted after the original was renamed.
+   *
+   * @return the file to read, or {@code null} if neither exists
+   */
+  File getReadableFile() {
+    if (file.exists()) {
+      return file;
+    } else if (backup.exists()) {
+      return backup;
+    } else {
+      return null;
+    }
+  }
+
+  /**
+   * Writes new contents to a temporary file, and replaces the file
+   * with it. If the file cannot be replaced, the previous contents
+   * are left in the file or the backup.
+   *
+   * @param contents the new contents
+   * @throws IOException if the file cannot be written or replaced
+   */
+  void write(Contents contents) throws IOException {
+    FileOutputStream fileOut = new FileOutputStream(temp);
+    DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(fileOut));
+    boolean written = false;
+    try {
+      contents.writeTo(out);
+      out.flush();
+      fileOut.getFD().sync();
+      written = true;
+    } finally {
+      out.close();
+      if (!written) {
+        temp.delete();
+      }
+    }
+    replace();
+  }
+
+  private void replace() throws IOException {
+    // Keep a backup left by an interrupted replacement until the
+    // original has been restored.
+    if (file.exists()) {
+      if (backup.exists() && !backup.delete()) {
+        throw new IOException("Unable to delete " + backup);
+      }
+      if (!file.renameTo(backup)) {
+        throw new IOException("Unable to rename " + file + " to " + backup);
+      }
+    }
+    if (!temp.renameTo(file)) {
+      backup.renameTo(file);
+      throw new IOException("Unable to replace " + file + " with " + temp);
+    }
+    backup.delete();
+  }
+
+  /**
+   * Deletes the file, along with any backup or temporary file.
+   *
+   * @return {@code true} if none of the files exist afterwards
+   */
+  boolean delete() {
+    boolean deleted = true;
+    for (File f : new File[] { file, backup, temp }) {
+      if (f.exists() && !f.delete()) {
+        deleted = false;
+      }
+    }
+    return deleted;
+  }
+}
@@ -0,0 +1,279 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import static com.google.enterprise.connector.otex.SqlQueries.choice;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.enterprise.connector.otex.client.Client;
+import com.google.enterprise.connector.otex.client.ClientValue;
+import com.google.enterprise.connector.otex.client.ColumnarClientValue;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A class that knows about the node hierarchy in DTree. This
+ * implementation loads the ParentID of every node in DTree into
+ * memory the first time it is used, so that walking up the hierarchy
+ * does not run any queries. Before each batch, the snapshot is
+ * refreshed with the nodes added or modified since the last refresh,
+ * which includes nodes that have been moved, and the parents of the
+ * matching nodes are updated as well.
+ */
+class SnapshotGenealogist extends Genealogist {
+  /** The logger for this class. */
+  private static final Logger LOGGER =
+      Logger.getLogger(SnapshotGenealogist.class.getName());
+
+  /** The range of DataIDs to load with each query. */
+  @VisibleForTesting
+  static final int LOAD_WINDOW = 100000;
+
+  /** The DTree parents, or null if they have not been loaded yet. */
+  @VisibleForTesting
+  ParentIndex index = null;
+
+  /** The highest DataID in the snapshot. */
+  private int highestDataId;
+
+  /**
+   * The latest ModifyDate in the snapshot, or null if DTree has no
+   * ModifyDate values.
+   */
+  private Date highestModifyDate;
+
+  public SnapshotGenealogist(Client client, String startNodes,
+      String excludedNodes, int minCacheSize, int maxCacheSize) {
+    super(client, startNodes, excludedNodes, minCacheSize, maxCacheSize);
+  }
+
+  /**
+   * Finds the included nodes from among the matching candidates,
+   * after loading or refreshing the snapshot.
+   *
+   * @param matching the matching nodes to check for inclusion
+   * @param descendants a buffer to write a comma-separated list of
+   * included node IDs to
+   */
+  @Override
+  protected void matchDescendants(ClientValue matching,
+      StringBuilder descendants) throws RepositoryException {
+    if (index == null) {
+      loadSnapshot();
+    } else {
+      refreshSnapshot();
+    }
+
+    // The matching nodes have changed, so they might have been moved.
+    // This does not update highestDataId, which would skip any
+    // unrefreshed nodes below the matching nodes.
+    ColumnarClientValue columns = (ColumnarClientValue) matching;
+    if (columns.getColumnIndex("ParentID") != -1) {
+      int[] dataIds = columns.toIntegerColumn("DataID");
+      int[] parentIds = columns.toIntegerColumn("ParentID");
+      for (int i = 0; i < dataIds.length; i++) {
+        index.put(dataIds[i], parentIds[i]);
+      }
+    }
+
+    super.matchDescendants(matching, descendants);
+  }
+
+  /**
+   * Gets the ParentID of the given node from the snapshot. If the
+   * node is not in the snapshot, it is looked up with a query.
+   *
+   * @param matchingId the original descendent node or nodes
+   * @param objectID the object ID of the node
+   * @return the parent ID of the node
+   */
+  @Override
+  protected Integer getParent(Object matchingId, int objectId)
+      throws RepositoryException {
+    // Handle stepparents, as in Genealogist.getParent.
+    int parentId = index.get(objectId);
+    int stepParentId = (objectId == 0) ? ParentIndex.MISSING
+        : index.get(-objectId);
+    if (parentId == ParentIndex.MISSING) {
+      parentId = stepParentId;
+    } else if (parentId == -1 && stepParentId != ParentIndex.MISSING) {
+      parentId = stepParentId;
+    }
+
+    if (parentId != ParentIndex.MISSING) {
+      return parentId;
+    } else {
+      Integer parent = super.getParent(matchingId, objectId);
+      if (parent != null) {
+        index.put(objectId, parent);
+      }
+      return parent;
+    }
+  }
+
+  /** Loads every node in DTree, in order by DataID. */
+  private void loadSnapshot() throws RepositoryException {
+    long start = System.currentTimeMillis();
+    highestDataId = 0;
+    highestModifyDate = null;
+
+    queryCount++;
+    ClientValue range = sqlQueries.execute(client, null,
+        "SnapshotGenealogist.getRange");
+    if (range.size() == 0) {
+      index = new ParentIndex(0);
+      return;
+    }
+    int maxDataId = range.toInteger(0, "DataID");
+    index = new ParentIndex(range.toInteger(0, "NodeCount"));
+
+    // Nodes modified while the snapshot is loading are refreshed by
+    // the next batch.
+    if (range.isDefined(0, "ModifyDate")) {
+      highestModifyDate = range.toDate(0, "ModifyDate");
+    }
+
+    // Negative DataIDs are rare, and only exist for volumes.
+    queryCount++;
+    addNodes(sqlQueries.execute(client, null,
+            "SnapshotGenealogist.getNegativeNodes"));
+    for (int low = -1; low < maxDataId; low += LOAD_WINDOW) {
+      queryCount++;
+      addNodes(sqlQueries.execute(client, null,
+              "SnapshotGenealogist.getNodes", low,
+              Math.min((long) low + LOAD_WINDOW, maxDataId)));
+    }
+
+    if (LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.fine("DESCENDANTS: Loaded " + index.size() + " nodes in "
+          + (System.currentTimeMillis() - start) + " ms");
+    }
+  }
+
+  /**
+   * Adds or updates the nodes created or modified since the snapshot
+   * was loaded or last refreshed. New nodes have higher DataIDs, or
+   * for volumes, lower negative DataIDs. Moving a node updates its
+   * ModifyDate, so moved nodes are found by ModifyDate. The nodes
+   * with the latest ModifyDate are read again by the next refresh, in
+   * case other nodes with the same ModifyDate are committed later.
+   */
+  private void refreshSnapshot() throws RepositoryException {
+    queryCount++;
+    ClientValue nodes = sqlQueries.execute(client, null,
+        "SnapshotGenealogist.getChangedNodes", highestDataId,
+        choice(highestModifyDate != null),
+        (highestModifyDate == null) ? null
+        : LivelinkTraversalManager.getTimestampLiteral(highestModifyDate,
+            isSqlServer));
+    addNodes(nodes);
+    for (int i = 0; i < nodes.size(); i++) {
+      if (nodes.isDefined(i, "ModifyDate")) {
+        Date modifyDate = nodes.toDate(i, "ModifyDate");
+        if (highestModifyDate == null || modifyDate.after(highestModifyDate)) {
+          highestModifyDate = modifyDate;
+        }
+      }
+    }
+    if (LOGGER.isLoggable(Level.FINEST)) {
+      LOGGER.finest("DESCENDANTS: Refreshed " + nodes.size()
+          + " nodes in the snapshot");
+    }
+  }
+
+  private void addNodes(ClientValue nodes) throws RepositoryException {
+    ColumnarClientValue columns = (ColumnarClientValue) nodes;
+    int[] dataIds = columns.toIntegerColumn("DataID");
+    int[] parentIds = columns.toIntegerColumn("ParentID");
+    for (int i = 0; i < dataIds.length; i++) {
+      index.put(dataIds[i], parentIds[i]);
+      if (dataIds[i] > highestDataId) {
+        highestDataId = dataIds[i];
+      }
+    }
+  }
+
+  /**
+   * A compact map from DataID to ParentID. The nodes are stored in
+   * sorted parallel arrays, with nodes that arrive out of order
+   * stored in a small overflow map. This uses about eight bytes per
+   * node, since the nodes are loaded in DataID order and new nodes
+   * have higher DataIDs.
+   */
+  @VisibleForTesting
+  static final class ParentIndex {
+    /** The value returned for nodes that are not in the index. */
+    static final int MISSING = Integer.MIN_VALUE;
+
+    private int[] dataIds;
+    private int[] parentIds;
+    private int size = 0;
+
+    /** The nodes that could not be appended in order. */
+    private final Map<Integer, Integer> overflow =
+        new HashMap<Integer, Integer>();
+
+    ParentIndex(int expectedSize) {
+      dataIds = new int[Math.max(expectedSize, 16)];
+      parentIds = new int[dataIds.length];
+    }
+
+    /** Gets the number of nodes in the index. */
+    int size() {
+      return size + overflow.size();
+    }
+
+    /**
+     * Gets the parent of a node.
+     *
+     * @return the ParentID, or {@code MISSING} if the node is not known
+     */
+    int get(int dataId) {
+      int i = Arrays.binarySearch(dataIds, 0, size, dataId);
+      if (i >= 0) {
+        return parentIds[i];
+      }
+      Integer parentId = overflow.get(dataId);
+      return (parentId == null) ? MISSING : parentId;
+    }
+
+    /** Adds or replaces the parent of a node. */
+    void put(int dataId, int parentId) {
+      if (size == 0 || dataId > dataIds[size - 1]) {
+        if (size == dataIds.length) {
+          int capacity = dataIds.length + (dataIds.length >> 1);
+          dataIds = Arrays.copyOf(dataIds, capacity);
+          parentIds = Arrays.copyOf(parentIds, capacity);
+        }
+        dataIds[size] = dataId;
+        parentIds[size] = parentId;
+        size++;
+      } else {
+        int i = Arrays.binarySearch(dataIds, 0, size, dataId);
+        if (i >= 0) {
+          parentIds[i] = parentId;
+        } else {
+          overflow.put(dataId, parentId);
+        }
+      }
+    }
+  }
+}
@@ -29,6 +29,12 @@ class SqlQueries {
   private static final Logger LOGGER =
       Logger.getLogger(SqlQueries.class.getName());
 
+  /**
+   * The maximum number of IDs in a single SQL IN list. Oracle limits
+   * IN lists to 1000 expressions.
+   */
+  static final int MAX_IN_LIST = 1000;
+
   /** Transforms a boolean into a 0/1 value for use in a ChoiceFormat. */
   public static int choice(boolean selector) {
     return selector ? 1 : 0;
@@ -98,6 +104,14 @@ class SqlQueries {
   private static final String DAUDITNEW_VIEW_ORACLE = "(select b.*, "
       + AUDIT_DATE_ORACLE + " from DAuditNew b" + DELETE_ORDER_BY + ")";
 
+  /** The ordered view for the change feed on Oracle. */
+  private static final String DAUDITNEW_EVENTS_VIEW_ORACLE =
+      "(select * from DAuditNew order by EventID)";
+
+  /** The view ordered by DataID for the permission changes on Oracle. */
+  private static final String DTREE_ID_VIEW_ORACLE =
+      "(select * from DTree order by DataID)";
+
   /** The derived view for DAuditNew on SQL Server. */
   private static final String DAUDITNEW_VIEW_SQL_SERVER = "(select b.*, "
       + AUDIT_DATE_SQL_SERVER + " from DAuditNew b)";
@@ -129,6 +143,50 @@ class SqlQueries {
         { "HybridGenealogist.getParents.where",
           "DataID in ({0})" },
 
+        { "SnapshotGenealogist.getRange.select",
+          new String[] {
+            "DataID",
+            "NodeCount",
+            "ModifyDate" } },
+        { "SnapshotGenealogist.getRange.from",
+          "(select max(DataID) as DataID, count(*) as NodeCount, "
+          + "max(ModifyDate) as ModifyDate from DTree)" },
+        { "SnapshotGenealogist.getRange.where",
+          // The aggregate DataID is null if DTree is empty.
+          "DataID is not null" },
+
+        { "SnapshotGenealogist.getNegativeNodes.select",
+          new String[] {
+            "DataID",
+            "ParentID" } },
+        { "SnapshotGenealogist.getNegativeNodes.from",
+          "DTree" },
+        { "SnapshotGenealogist.getNegativeNodes.where",
+          "DataID < 0 order by DataID" },
+
+        { "SnapshotGenealogist.getNodes.select",
+          new String[] {
+            "DataID",
+            "ParentID" } },
+        { "SnapshotGenealogist.getNodes.from",
+          "DTree" },
+        { "SnapshotGenealogist.getNodes.where",
+          "DataID > {0,number,#} and DataID <= {1,number,#} order by DataID" },
+
+        { "SnapshotGenealogist.getChangedNodes.select",
+          new String[] {
+            "DataID",
+            "ParentID",
+            "ModifyDate" } },
+        { "SnapshotGenealogist.getChangedNodes.from",
+          "DTree" },
+        { "SnapshotGenealogist.getChangedNodes.where",
+          // New volumes also have a negated DataID node. Moved nodes
+          // are modified at or after the timestamp literal {2}.
+          "(DataID > {0,number,#} or DataID < -{0,number,#}"
+          + "{1,choice,0#|1# or ModifyDate >= {2}}) "
+          + "order by DataID" },
+
         { "LivelinkTraversalManager.getDescendants.where",
           "(DataID in ({0}) or "
           + "DataID in (select DataID from DTreeAncestors where "
@@ -165,6 +223,41 @@ class SqlQueries {
 
           + "{13,choice,0#|1#" + ORDER_BY + "}" },
 
+        { "LivelinkTraversalManager.getSkipCandidates.where",
+          // This is a subquery used in place of the candidates list
+          // for getMatching. The correct timestamp literal syntax
+          // must be supplied by the caller.
+          "select DataID from DTree{0,choice,0#|1#' where "
+          + "(ModifyDate > {1} or (ModifyDate = {1} "
+          + "and DataID > {2,number,#}))'}" },
+
+        { "LivelinkTraversalManager.isSmallSubtree.select",
+          new String[] {
+            "DataID" } },
+        { "LivelinkTraversalManager.isSmallSubtree.from",
+          "DTree" },
+        { "LivelinkTraversalManager.isSmallSubtree.where",
+          // Returns the start nodes if their descendants are at most
+          // the given percentage of DTree, and nothing otherwise.
+          "DataID in ({0}) and (select count(*) from DTreeAncestors "
+          + "where AncestorID in ({1})) * 100 <= "
+          + "(select count(*) from DTree) * {2,number,#}" },
+
+        { "LivelinkTraversalManager.getModifyDateRange.select",
+          new String[] {
+            "ModifyDate",
+            "DataID" } },
+        { "LivelinkTraversalManager.getModifyDateRange.from",
+          "DTree" },
+        { "LivelinkTraversalManager.getModifyDateRange.where",
+          // One item with the earliest ModifyDate, and one with the
+          // latest. ListNodes requires the DataID, so we cannot just
+          // select the aggregates.
+          "DataID in (select min(DataID) from DTree where ModifyDate = "
+          + "(select min(ModifyDate) from DTree)) or "
+          + "DataID in (select min(DataID) from DTree where ModifyDate = "
+          + "(select max(ModifyDate) from DTree))" },
+
         { "LivelinkTraversalManager.getMatchingDescendants.where",
           // The correct timestamp literal syntax must be supplied by
           // the caller.
@@ -214,6 +307,85 @@ class SqlQueries {
           + "and Anc.AncestorID not in (select AncestorID from DTreeAncestors "
           + "where DataID in ({9}))}"
           + ")'}" },
+
+        { "AclTable.getAcls.select",
+          new String[] {
+            "DataID",
+            "RightID",
+            "Permissions",
+            "UserName",
+            "UserType",
+            "GroupID",
+            "UserData" } },
+        { "AclTable.getAcls.from",
+          // The outer join keeps the entries for the special RightID
+          // values, which are not in KUAF.
+          "(select b.DataID, b.RightID, b.Permissions, k.Name as UserName, "
+          + "k.Type as UserType, k.GroupID, k.UserData from DTreeACL b "
+          + "left outer join KUAF k on b.RightID = k.ID)" },
+        { "AclTable.getAcls.where",
+          "DataID in ({0})" },
+
+        { "AclTable.getOwners.select",
+          new String[] {
+            "DataID",
+            "UserName",
+            "UserType",
+            "GroupID",
+            "UserData" } },
+        { "AclTable.getOwners.from",
+          "(select ID as DataID, Name as UserName, Type as UserType, "
+          + "GroupID, UserData from KUAF)" },
+        { "AclTable.getOwners.where",
+          // The owners and their default groups.
+          "DataID in ({0}) or "
+          + "DataID in (select GroupID from KUAF where ID in ({0}))" },
+
+        { "UserNameHandler.resolveUserNames.select",
+          new String[] {
+            "DataID",
+            "Name" } },
+        { "UserNameHandler.resolveUserNames.from",
+          "(select ID as DataID, Name from KUAF)" },
+        { "UserNameHandler.resolveUserNames.where",
+          "DataID in ({0})" },
+
+        { "CategoryTable.getAttrData.select",
+          new String[] {
+            "DataID",
+            "DefID",
+            "DefVerN",
+            "AttrID",
+            "AttrType",
+            "ValInt",
+            "ValReal",
+            "ValDate",
+            "ValStr",
+            "ValLong" } },
+        { "CategoryTable.getAttrData.from",
+          "(select b.ID as DataID, b.DefID, b.DefVerN, b.VerNum, b.AttrID, "
+          + "b.AttrType, b.ParentKeyID, b.EntryNum, b.ValInt, b.ValReal, "
+          + "b.ValDate, b.ValStr, b.ValLong from LLAttrData b)" },
+        { "CategoryTable.getAttrData.where",
+          // Only the attribute values for the current object version,
+          // ordered by category, and then by attribute, set row, and
+          // value index, to match the order returned by AttrGetValues.
+          "DataID in ({0}) and VerNum = (select max(c.VerNum) from "
+          + "LLAttrData c where c.ID = a.DataID and c.DefID = a.DefID) "
+          + "order by DataID, DefID, AttrID, ParentKeyID, EntryNum" },
+
+        { "CategoryTable.getAttrNames.select",
+          new String[] {
+            "DataID",
+            "CatName",
+            "SetName",
+            "AttrName",
+            "RegionName" } },
+        { "CategoryTable.getAttrNames.from",
+          "(select CatID as DataID, CatName, SetName, AttrName, RegionName "
+          + "from CatRegionMap)" },
+        { "CategoryTable.getAttrNames.where",
+          "DataID in ({0})" },
       };
     }
   }
@@ -302,6 +474,80 @@ class SqlQueries {
           + "and DataID > {2,number,#}))'}"
           + ORDER_BY + ")" + ORDER_BY },
 
+        { "LivelinkTraversalManager.getSubtreeCandidates.select",
+          new String[] {
+            "ModifyDate",
+            "DataID" } },
+        { "LivelinkTraversalManager.getSubtreeCandidates.from",
+          "DTree" },
+        { "LivelinkTraversalManager.getSubtreeCandidates.where",
+          // The getCandidates query, limited to the start nodes {4}
+          // and the descendants of the ancestor nodes {5}.
+          "DataID in (select top {3,number,#} DataID from DTree where "
+          + "{0,choice,0#|1#'"
+          + "(ModifyDate > ''''{1}'''' or (ModifyDate = ''''{1}'''' "
+          + "and DataID > {2,number,#})) and '}"
+          + "(DataID in ({4}) or DataID in (select DataID "
+          + "from DTreeAncestors where AncestorID in ({5})))"
+          + ORDER_BY + ")" + ORDER_BY },
+
+        { "LivelinkTraversalManager.getWindowCandidates.select",
+          new String[] {
+            "ModifyDate",
+            "DataID" } },
+        { "LivelinkTraversalManager.getWindowCandidates.from",
+          "DTree" },
+        { "LivelinkTraversalManager.getWindowCandidates.where",
+          // The getCandidates query, limited to items modified before
+          // the end of a partitioned traversal window {2}.
+          "DataID in (select top {3,number,#} DataID from DTree where "
+          + "(ModifyDate > ''{0}'' or (ModifyDate = ''{0}'' "
+          + "and DataID > {1,number,#})) and ModifyDate < ''{2}''"
+          + ORDER_BY + ")" + ORDER_BY },
+
+        { "LivelinkTraversalManager.getNextMatching.select",
+          new String[] {
+            "ModifyDate",
+            "DataID" } },
+        { "LivelinkTraversalManager.getNextMatching.from",
+          "DTree" },
+        { "LivelinkTraversalManager.getNextMatching.where",
+          // The first item in DTree order that matches the getMatching
+          // conditions in {1} on {0}. Aggregates are used rather than
+          // top 1, because the order of a subquery is not reliable,
+          // and because the checkpoint uses DTree's ModifyDate rather
+          // than the view's.
+          "DataID in (select min(DataID) from DTree where "
+          + "DataID in (select DataID from {0} where {1}) and "
+          + "ModifyDate = (select min(ModifyDate) from DTree where "
+          + "DataID in (select DataID from {0} where {1})))" },
+
+        { "LivelinkTraversalManager.getChanges.select",
+          new String[] {
+            "EventID",
+            "DataID" } },
+        { "LivelinkTraversalManager.getChanges.from",
+          "DAuditNew" },
+        { "LivelinkTraversalManager.getChanges.where",
+          // The next events with the given AuditIDs after the change
+          // feed checkpoint, in the order they occurred.
+          "EventID in (select top {2,number,#} EventID from DAuditNew "
+          + "where EventID > {0,number,#} and AuditID in ({1}) "
+          + "order by EventID) order by EventID" },
+
+        { "LivelinkTraversalManager.getAclSubtree.select",
+          new String[] {
+            "DataID" } },
+        { "LivelinkTraversalManager.getAclSubtree.from",
+          "DTree" },
+        { "LivelinkTraversalManager.getAclSubtree.where",
+          // The next items after DataID {0} among the items {1} and
+          // the descendants of the ancestor nodes {2}.
+          "DataID in (select top {3,number,#} DataID from DTree "
+          + "where DataID > {0,number,#} and (DataID in ({1}) or DataID in "
+          + "(select DataID from DTreeAncestors where AncestorID in ({2}))) "
+          + "order by DataID) order by DataID" },
+
         { "LivelinkTraversalManager.getDeletes.select",
           new String[] {
             "GoogleAuditDate as AuditDate",
@@ -401,6 +647,75 @@ class SqlQueries {
           + "and '}"
           + "rownum <= {3,number,#}" },
 
+        { "LivelinkTraversalManager.getSubtreeCandidates.select",
+          new String[] {
+            "ModifyDate",
+            "DataID" } },
+        { "LivelinkTraversalManager.getSubtreeCandidates.from",
+          DTREE_VIEW_ORACLE },
+        { "LivelinkTraversalManager.getSubtreeCandidates.where",
+          // The getCandidates query, limited to the start nodes {4}
+          // and the descendants of the ancestor nodes {5}.
+          "{0,choice,0#|1#'"
+          + "(ModifyDate > TIMESTAMP''''{1}'''' or "
+          + "(ModifyDate = TIMESTAMP''''{1}'''' and DataID > {2,number,#})) "
+          + "and '}"
+          + "(DataID in ({4}) or DataID in (select DataID "
+          + "from DTreeAncestors where AncestorID in ({5}))) "
+          + "and rownum <= {3,number,#}" },
+
+        { "LivelinkTraversalManager.getWindowCandidates.select",
+          new String[] {
+            "ModifyDate",
+            "DataID" } },
+        { "LivelinkTraversalManager.getWindowCandidates.from",
+          DTREE_VIEW_ORACLE },
+        { "LivelinkTraversalManager.getWindowCandidates.where",
+          // The getCandidates query, limited to items modified before
+          // the end of a partitioned traversal window {2}.
+          "(ModifyDate > TIMESTAMP''{0}'' or "
+          + "(ModifyDate = TIMESTAMP''{0}'' and DataID > {1,number,#})) "
+          + "and ModifyDate < TIMESTAMP''{2}'' "
+          + "and rownum <= {3,number,#}" },
+
+        { "LivelinkTraversalManager.getNextMatching.select",
+          new String[] {
+            "ModifyDate",
+            "DataID" } },
+        { "LivelinkTraversalManager.getNextMatching.from",
+          "DTree" },
+        { "LivelinkTraversalManager.getNextMatching.where",
+          // The first item in DTree order that matches the getMatching
+          // conditions in {1} on {0}, as for SQL Server.
+          "DataID in (select min(DataID) from DTree where "
+          + "DataID in (select DataID from {0} where {1}) and "
+          + "ModifyDate = (select min(ModifyDate) from DTree where "
+          + "DataID in (select DataID from {0} where {1})))" },
+
+        { "LivelinkTraversalManager.getChanges.select",
+          new String[] {
+            "EventID",
+            "DataID" } },
+        { "LivelinkTraversalManager.getChanges.from",
+          DAUDITNEW_EVENTS_VIEW_ORACLE },
+        { "LivelinkTraversalManager.getChanges.where",
+          // The next events with the given AuditIDs after the change
+          // feed checkpoint, in the order they occurred.
+          "EventID > {0,number,#} and AuditID in ({1}) "
+          + "and rownum <= {2,number,#}" },
+
+        { "LivelinkTraversalManager.getAclSubtree.select",
+          new String[] {
+            "DataID" } },
+        { "LivelinkTraversalManager.getAclSubtree.from",
+          DTREE_ID_VIEW_ORACLE },
+        { "LivelinkTraversalManager.getAclSubtree.where",
+          // The next items after DataID {0} among the items {1} and
+          // the descendants of the ancestor nodes {2}.
+          "DataID > {0,number,#} and (DataID in ({1}) or DataID in "
+          + "(select DataID from DTreeAncestors where AncestorID in ({2}))) "
+          + "and rownum <= {3,number,#}" },
+
         { "LivelinkTraversalManager.getDeletes.select",
           new String[] {
             "GoogleAuditDate as AuditDate",
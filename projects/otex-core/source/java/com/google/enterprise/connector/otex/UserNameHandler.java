@@ -14,41 +14,130 @@
 
 package com.google.enterprise.connector.otex;
 
+import com.google.common.base.Joiner;
+import com.google.common.collect.Iterables;
 import com.google.enterprise.connector.otex.client.Client;
 import com.google.enterprise.connector.otex.client.ClientValue;
 import com.google.enterprise.connector.spi.RepositoryException;
 
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Resolves user and group IDs to names. The names for a batch of
+ * documents may be resolved in bulk using {@link #resolveUserNames},
+ * and any remaining IDs are resolved on demand. This class is
+ * thread-safe, so that it can be shared by the threads that collect
+ * the document metadata, and one instance is kept by the connector,
+ * so that the cached names are reused across batches. The cache is
+ * cleared when a new traversal starts, to pick up renamed users and
+ * groups. Each caller supplies its own client, since the clients
+ * are not thread-safe.
+ *
+ * @see LivelinkConnector#getUserNameHandler
+ */
 class UserNameHandler {
   /** The logger for this class. */
   private static final Logger LOGGER =
       Logger.getLogger(UserNameHandler.class.getName());
 
-  /** The client provides access to the server. */
-  private final Client client;
+  /**
+   * The maximum number of cached names. This is large enough to hold
+   * every user and group referenced by the largest batch, and the
+   * most frequently referenced ones across batches.
+   */
+  private static final int MAX_CACHE_SIZE = 10000;
+
+  /** The SQL queries used to resolve names in bulk. */
+  private final SqlQueries sqlQueries;
+
+  /** The cache of UserID and GroupID name resolutions, in LRU order. */
+  private final Map<Integer, ClientValue> userNameCache =
+      new LinkedHashMap<Integer, ClientValue>(200, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(
+            Map.Entry<Integer, ClientValue> eldest) {
+          return size() > MAX_CACHE_SIZE;
+        }
+      };
+
+  /** The IDs that were not found by {@link #resolveUserNames}. */
+  private final Set<Integer> missingIds = new HashSet<Integer>();
+
+  UserNameHandler(LivelinkConnector connector) {
+    this.sqlQueries = new SqlQueries(connector.isSqlServer());
+  }
+
+  /**
+   * Resolves the names of the given users and groups with bulk
+   * queries, and caches them for {@link #addUserByName}.
+   *
+   * @param client the client to query with
+   * @param ids the UserIDs and GroupIDs to resolve
+   * @throws RepositoryException if an error occurs
+   */
+  public void resolveUserNames(Client client, Collection<Integer> ids)
+      throws RepositoryException {
+    Set<Integer> uncached = new LinkedHashSet<Integer>();
+    synchronized (this) {
+      for (Integer id : ids) {
+        if (id.intValue() != 0 && !userNameCache.containsKey(id)
+            && !missingIds.contains(id)) {
+          uncached.add(id);
+        }
+      }
+    }
 
-  /** This is a small cache of UserID and GroupID name resolutions. */
-  private final HashMap<Integer, ClientValue> userNameCache =
-      new HashMap<Integer, ClientValue>(200);
+    for (List<Integer> chunk :
+             Iterables.partition(uncached, SqlQueries.MAX_IN_LIST)) {
+      ClientValue names = sqlQueries.execute(client, "USER NAMES QUERY",
+          "UserNameHandler.resolveUserNames", Joiner.on(',').join(chunk));
+      synchronized (this) {
+        for (int i = 0; i < names.size(); i++) {
+          if (names.isDefined(i, "Name")) {
+            Integer id = names.toInteger(i, "DataID");
+            userNameCache.put(id, names.toValue(i, "Name"));
+            uncached.remove(id);
+          }
+        }
+      }
+    }
 
-  UserNameHandler(Client client) throws RepositoryException {
-    this.client = client;
+    synchronized (this) {
+      missingIds.addAll(uncached);
+    }
+    if (LOGGER.isLoggable(Level.FINEST)) {
+      LOGGER.finest("RESOLVED USER NAMES: " + ids.size() + " IDs, "
+          + uncached.size() + " not found");
+    }
+  }
+
+  /** Removes all of the cached names. */
+  public synchronized void clear() {
+    userNameCache.clear();
+    missingIds.clear();
   }
 
   /**
    * Add a UserID or GroupID property value as the name of the user or
    * group, rather than the integral ID.
    *
+   * @param client the client to look up an uncached name with
    * @param propertyName  the property key to use when adding the value
    * to the map.
    * @param idValue ClientValue containing  the UserID or GroupID to
    * resolve to a name.
    */
-  public void addUserByName(String propertyName, ClientValue idValue,
-      LivelinkDocument props) throws RepositoryException {
+  public void addUserByName(Client client, String propertyName,
+      ClientValue idValue, LivelinkDocument props)
+      throws RepositoryException {
     // If the UserID or GroupID is 0, then ignore it.
     // For reason why, see ObjectInfo Reserved and ReservedBy fields.
     int id = idValue.toInteger();
@@ -56,12 +145,20 @@ class UserNameHandler {
       return;
 
     // Check the userName cache (if we recently looked up this user).
-    ClientValue userName = userNameCache.get(new Integer(id));
+    ClientValue userName;
+    boolean isMissing;
+    synchronized (this) {
+      userName = userNameCache.get(id);
+      isMissing = missingIds.contains(id);
+    }
     if (userName == null) {
-      // User is not in the cache, get the name from the server.
-      ClientValue userInfo = client.GetUserOrGroupByIDNoThrow(id);
-      if (userInfo != null)
-        userName = userInfo.toValue("Name");
+      // User is not in the cache, get the name from the server,
+      // unless we already know that it is not there.
+      if (!isMissing) {
+        ClientValue userInfo = client.GetUserOrGroupByIDNoThrow(id);
+        if (userInfo != null)
+          userName = userInfo.toValue("Name");
+      }
       if (userName == null || !userName.isDefined()) {
         if (LOGGER.isLoggable(Level.WARNING)) {
           LOGGER.warning("No user or group name found for ID " + id);
@@ -69,13 +166,10 @@ class UserNameHandler {
         return;
       }
 
-      // If the cache was full, flush it. Not sophisticated MRU, but
-      // good enough for our needs.
-      if (userNameCache.size() > 100)
-        userNameCache.clear();
-
       // Cache this userId to userName mapping for later reference.
-      userNameCache.put(new Integer(id), userName);
+      synchronized (this) {
+        userNameCache.put(id, userName);
+      }
     }
 
     // Finally, add the userName property to the map.
@@ -0,0 +1,375 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An index of the content that has been fed, by DataID. Each entry
+ * holds the version number, the DataSize, and a digest of the
+ * content. A document whose version number and DataSize match its
+ * entry does not need its content fed again. The digest is the first
+ * 64 bits of the SHA-1 hash of the content, and identifies new
+ * versions whose content is the same as the content already fed.
+ * <p/>
+ * The entries are kept in an open addressing hash table with linear
+ * probing, and stored in a file as a header followed by a log of
+ * fixed-size records, where later records replace earlier ones. New
+ * entries are pending until they are flushed, which appends them to
+ * the file. The file is compacted when most of its records have been
+ * replaced, by replacing it as a whole.
+ *
+ * @see LivelinkConnector#setVersionIndexFile
+ * @see ReplaceableFile
+ */
+class VersionIndex {
+  /** The logger for this class. */
+  private static final Logger LOGGER =
+      Logger.getLogger(VersionIndex.class.getName());
+
+  /** The first int in the file, "LLVI". */
+  private static final int MAGIC = 0x4C4C5649;
+
+  /** The file format version. */
+  private static final int VERSION = 3;
+
+  /** The size of the file header in bytes. */
+  private static final int HEADER_SIZE = 8;
+
+  /**
+   * The size of a record in bytes: the DataID, version number,
+   * DataSize, and digest.
+   */
+  private static final int RECORD_SIZE = 24;
+
+  /** The DataID stored in empty slots. */
+  private static final int EMPTY = 0;
+
+  /** The initial size of the table. */
+  private static final int MIN_TABLE_SIZE = 1024;
+
+  /** The file. */
+  private final ReplaceableFile file;
+
+  /** The DataIDs, or {@code EMPTY}. */
+  private int[] dataIds;
+
+  /** The version numbers, by slot. */
+  private int[] versionNums;
+
+  /** The DataSize values, by slot. */
+  private long[] dataSizes;
+
+  /** The content digests, by slot. */
+  private long[] digests;
+
+  /** The number of entries in the table. */
+  private int size = 0;
+
+  /** The number of records in the file. */
+  private int records = 0;
+
+  /** Whether the file must be rewritten rather than appended to. */
+  private boolean rewrite = false;
+
+  /** The pending records, in the file format. */
+  private ByteBuffer pending = ByteBuffer.allocate(RECORD_SIZE * 64);
+
+  /**
+   * Constructs an index stored in the given file, and reads the
+   * existing entries from the file.
+   *
+   * @param file the index file
+   */
+  VersionIndex(File file) {
+    this.file = new ReplaceableFile(file);
+    allocate(MIN_TABLE_SIZE);
+    try {
+      read();
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Ignoring unreadable version index file "
+          + file, e);
+      clearTable();
+      rewrite = true;
+    }
+  }
+
+  File getFile() {
+    return file.getFile();
+  }
+
+  private void allocate(int tableSize) {
+    dataIds = new int[tableSize];
+    versionNums = new int[tableSize];
+    dataSizes = new long[tableSize];
+    digests = new long[tableSize];
+  }
+
+  /** Gets the home slot of a DataID. */
+  private int slot(int dataId) {
+    int h = dataId * 0x9E3779B9;
+    return (h ^ (h >>> 16)) & (dataIds.length - 1);
+  }
+
+  /** Gets the slot containing a DataID, or the empty slot it belongs in. */
+  private int find(int dataId) {
+    int mask = dataIds.length - 1;
+    int i = slot(dataId);
+    while (dataIds[i] != EMPTY && dataIds[i] != dataId) {
+      i = (i + 1) & mask;
+    }
+    return i;
+  }
+
+  /** Adds or replaces an entry in the table. */
+  private void put(int dataId, int versionNum, long dataSize, long digest) {
+    int i = find(dataId);
+    if (dataIds[i] == EMPTY) {
+      if (size + 1 > dataIds.length - (dataIds.length >> 2)) {
+        resize(dataIds.length << 1);
+        i = find(dataId);
+      }
+      dataIds[i] = dataId;
+      size++;
+    }
+    versionNums[i] = versionNum;
+    dataSizes[i] = dataSize;
+    digests[i] = digest;
+  }
+
+  private void resize(int tableSize) {
+    int[] oldDataIds = dataIds;
+    int[] oldVersionNums = versionNums;
+    long[] oldDataSizes = dataSizes;
+    long[] oldDigests = digests;
+    allocate(tableSize);
+    for (int i = 0; i < oldDataIds.length; i++) {
+      if (oldDataIds[i] != EMPTY) {
+        int j = find(oldDataIds[i]);
+        dataIds[j] = oldDataIds[i];
+        versionNums[j] = oldVersionNums[i];
+        dataSizes[j] = oldDataSizes[i];
+        digests[j] = oldDigests[i];
+      }
+    }
+  }
+
+  private void clearTable() {
+    allocate(MIN_TABLE_SIZE);
+    size = 0;
+    records = 0;
+  }
+
+  /** Gets the number of entries in the index. */
+  synchronized int size() {
+    return size;
+  }
+
+  /**
+   * Checks whether the content of a document matches its entry, so
+   * that it does not need to be fed again.
+   *
+   * @param dataId the DataID of the document
+   * @param versionNum the current version number
+   * @param dataSize the current DataSize
+   * @return {@code true} if the document has an entry with the same
+   *     version number and DataSize
+   */
+  synchronized boolean isUnchanged(int dataId, int versionNum,
+      long dataSize) {
+    if (dataId == EMPTY) {
+      return false;
+    }
+    int i = find(dataId);
+    return dataIds[i] == dataId && versionNums[i] == versionNum
+        && dataSizes[i] == dataSize;
+  }
+
+  /**
+   * Gets the digest of the content that was fed for a document.
+   *
+   * @param dataId the DataID of the document
+   * @return the digest, or 0 if the document has no entry
+   */
+  synchronized long getDigest(int dataId) {
+    if (dataId == EMPTY) {
+      return 0L;
+    }
+    int i = find(dataId);
+    return (dataIds[i] == dataId) ? digests[i] : 0L;
+  }
+
+  /**
+   * Records the content fed for a document. The entry is pending
+   * until the index is flushed.
+   *
+   * @param dataId the DataID of the document
+   * @param versionNum the version number of the content
+   * @param dataSize the DataSize of the content
+   * @param digest a digest of the content
+   */
+  synchronized void record(int dataId, int versionNum, long dataSize,
+      long digest) {
+    if (dataId == EMPTY) {
+      return;
+    }
+    if (pending.remaining() < RECORD_SIZE) {
+      ByteBuffer larger = ByteBuffer.allocate(pending.capacity() * 2);
+      pending.flip();
+      larger.put(pending);
+      pending = larger;
+    }
+    pending.putInt(dataId);
+    pending.putInt(versionNum);
+    pending.putLong(dataSize);
+    pending.putLong(digest);
+  }
+
+  /**
+   * Adds the pending entries to the index, and appends them to the
+   * file. The index is only an optimization, so errors writing the
+   * file are logged rather than thrown, and the whole index is
+   * written on the next flush.
+   */
+  synchronized void flush() {
+    if (pending.position() == 0) {
+      return;
+    }
+    pending.flip();
+    int count = pending.remaining() / RECORD_SIZE;
+    ByteBuffer entries = pending.duplicate();
+    while (entries.hasRemaining()) {
+      put(entries.getInt(), entries.getInt(), entries.getLong(),
+          entries.getLong());
+    }
+
+    try {
+      if (rewrite || !file.getFile().exists()
+          || records + count > 2 * size + MIN_TABLE_SIZE) {
+        compact();
+      } else {
+        append(pending);
+        records += count;
+      }
+      if (LOGGER.isLoggable(Level.FINE)) {
+        LOGGER.fine("VERSION INDEX: Wrote " + count + " entries to "
+            + file.getFile() + "; " + size + " entries total");
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Unable to write version index file "
+          + file.getFile(), e);
+      rewrite = true;
+    } finally {
+      pending.clear();
+    }
+  }
+
+  /** Removes all of the entries, and deletes the file. */
+  synchronized void clear() {
+    clearTable();
+    pending.clear();
+    delete(file.getFile());
+  }
+
+  /**
+   * Deletes an index file, if it exists.
+   *
+   * @param file the index file
+   */
+  static void delete(File file) {
+    if (!new ReplaceableFile(file).delete()) {
+      LOGGER.warning("Unable to delete version index file " + file);
+    }
+  }
+
+  /** Reads the records from the file into the table. */
+  private void read() throws IOException {
+    File source = file.getReadableFile();
+    if (source == null) {
+      return;
+    }
+    // Records are only appended to the file, not to a backup.
+    rewrite = (source != file.getFile());
+    DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(source)));
+    try {
+      if (source.length() < HEADER_SIZE || in.readInt() != MAGIC
+          || in.readInt() != VERSION) {
+        LOGGER.warning("Ignoring invalid version index file " + source);
+        rewrite = true;
+        return;
+      }
+      // A partial record at the end was interrupted while writing.
+      long complete = (source.length() - HEADER_SIZE) / RECORD_SIZE;
+      for (long n = 0; n < complete; n++) {
+        put(in.readInt(), in.readInt(), in.readLong(), in.readLong());
+        records++;
+      }
+    } finally {
+      in.close();
+    }
+    if (LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.fine("VERSION INDEX: Read " + size + " entries from " + source);
+    }
+  }
+
+  /** Appends the given records to the file. */
+  private void append(ByteBuffer buffer) throws IOException {
+    // Drop any partial record before appending.
+    long length = HEADER_SIZE + (long) records * RECORD_SIZE;
+    RandomAccessFile raf = new RandomAccessFile(file.getFile(), "rw");
+    try {
+      FileChannel channel = raf.getChannel();
+      channel.truncate(length);
+      channel.position(length);
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      channel.force(true);
+    } finally {
+      raf.close();
+    }
+  }
+
+  /** Writes the entries in the table to a new file. */
+  private void compact() throws IOException {
+    file.write(new ReplaceableFile.Contents() {
+        public void writeTo(DataOutputStream out) throws IOException {
+          out.writeInt(MAGIC);
+          out.writeInt(VERSION);
+          for (int i = 0; i < dataIds.length; i++) {
+            if (dataIds[i] != EMPTY) {
+              out.writeInt(dataIds[i]);
+              out.writeInt(versionNums[i]);
+              out.writeLong(dataSizes[i]);
+              out.writeLong(digests[i]);
+            }
+          }
+        }
+      });
+    records = size;
+    rewrite = false;
+  }
+}
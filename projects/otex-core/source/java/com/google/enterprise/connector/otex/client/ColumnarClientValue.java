@@ -0,0 +1,134 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex.client;
+
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.util.Date;
+
+/**
+ * An extension of {@code ClientValue} for record arrays that supports
+ * accessing fields by column index, and decoding whole columns into
+ * arrays. Looking up a field by name on every access is much slower
+ * than looking up the column index once per record array. The record
+ * arrays returned by the {@code Client} implementations implement
+ * this interface.
+ */
+public interface ColumnarClientValue extends ClientValue {
+  /** The epoch seconds used for undefined dates in a date column. */
+  long UNDEFINED_DATE = Long.MIN_VALUE;
+
+  /**
+   * Gets the index of the named column.
+   *
+   * @param field a field name
+   * @return a zero-based column index, or -1 if there is no such field
+   */
+  int getColumnIndex(String field) throws RepositoryException;
+
+  /**
+   * Gets whether the given column in the given row has a defined value.
+   *
+   * @param row a zero-based row index
+   * @param column a zero-based column index
+   * @return <code>true</code> if the value is defined, or
+   * <code>false</code> if the value is <code>Undefined</code>.
+   */
+  boolean isDefined(int row, int column) throws RepositoryException;
+
+  /**
+   * Gets the given column from the given row as a
+   * <code>ClientValue</code> value.
+   *
+   * @param row a zero-based row index
+   * @param column a zero-based column index
+   * @return a <code>ClientValue</code> field value
+   */
+  ClientValue toValue(int row, int column) throws RepositoryException;
+
+  /**
+   * Gets the given column from the given row as a
+   * <code>java.util.Date</code> value.
+   *
+   * @param row a zero-based row index
+   * @param column a zero-based column index
+   * @return a <code>Date</code> field value
+   */
+  Date toDate(int row, int column) throws RepositoryException;
+
+  /**
+   * Gets the given column from the given row as an integer value.
+   *
+   * @param row a zero-based row index
+   * @param column a zero-based column index
+   * @return an integer field value
+   */
+  int toInteger(int row, int column) throws RepositoryException;
+
+  /**
+   * Gets the given column from the given row as a long value.
+   *
+   * @param row a zero-based row index
+   * @param column a zero-based column index
+   * @return a long field value
+   */
+  long toLong(int row, int column) throws RepositoryException;
+
+  /**
+   * Gets the given column from the given row as a string value.
+   *
+   * @param row a zero-based row index
+   * @param column a zero-based column index
+   * @return a string field value
+   */
+  String toString(int row, int column) throws RepositoryException;
+
+  /**
+   * Decodes the named column as integer values. The column is
+   * expected to be an ID column, which is always defined.
+   *
+   * @param field a field name
+   * @return an array with one value for each row
+   * @throws IllegalArgumentException if a value is undefined
+   */
+  int[] toIntegerColumn(String field) throws RepositoryException;
+
+  /**
+   * Decodes the named column as long values. Undefined values are
+   * decoded as zero.
+   *
+   * @param field a field name
+   * @return an array with one value for each row
+   */
+  long[] toLongColumn(String field) throws RepositoryException;
+
+  /**
+   * Decodes the named date column as seconds since the epoch.
+   * Undefined values are decoded as {@link #UNDEFINED_DATE}.
+   *
+   * @param field a field name
+   * @return an array with one value for each row
+   */
+  long[] toEpochSecondColumn(String field) throws RepositoryException;
+
+  /**
+   * Decodes the named column as string values. Undefined values are
+   * decoded as {@code null}.
+   *
+   * @param field a field name
+   * @return an array with one value for each row
+   */
+  String[] toStringColumn(String field) throws RepositoryException;
+}
@@ -0,0 +1,105 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import junit.framework.TestCase;
+
+/** Tests the {@link BatchSizeController} class. */
+public class BatchSizeControllerTest extends TestCase {
+  private BatchSizeController out;
+
+  protected void setUp() {
+    out = new BatchSizeController(10000, 1, 1000);
+  }
+
+  public void testInvalidArgs() {
+    try {
+      new BatchSizeController(0, 1, 1000);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      new BatchSizeController(10000, 10, 1);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  /** Tests that the batch hint is used until there is a yield. */
+  public void testNoObservations() {
+    assertEquals(100, out.getCandidateSize(100));
+    assertEquals(1000, out.getCandidateSize(5000));
+
+    out.recordQuery(0, 0, 1000000);
+    assertEquals(100, out.getCandidateSize(100));
+  }
+
+  public void testYield() {
+    out.recordQuery(100, 50, -1);
+    assertEquals(0.5, out.getYield(), 0.0001);
+    out.recordQuery(100, 100, -1);
+    assertEquals(0.5 + BatchSizeController.ALPHA * 0.5, out.getYield(),
+        0.0001);
+  }
+
+  /** Tests that more candidates are queried in sparse regions. */
+  public void testSparse() {
+    out.recordQuery(100, 10, -1);
+    assertEquals(1000, out.getCandidateSize(100));
+
+    out = new BatchSizeController(10000, 1, 1000);
+    out.recordQuery(100, 50, -1);
+    assertEquals(200, out.getCandidateSize(100));
+  }
+
+  /** Tests that nothing passing the filters does not divide by zero. */
+  public void testZeroYield() {
+    out.recordQuery(100, 0, 1000000);
+    assertEquals(1000, out.getCandidateSize(100));
+  }
+
+  /** Tests that slow consumption limits the batch size. */
+  public void testDense() {
+    // Ten seconds at one second per document.
+    out.recordQuery(100, 100, 0);
+    out.recordConsumption(100, 1000 * 100);
+    assertEquals(10, out.getCandidateSize(200));
+  }
+
+  /** Tests that the query time counts against the target. */
+  public void testQueryTime() {
+    // Five seconds for 100 candidates, and no consumption time.
+    out.recordQuery(100, 100, 5000L * 1000000);
+    out.recordConsumption(100, 0);
+    assertEquals(200, out.getCandidateSize(500));
+  }
+
+  /** Tests that a long idle time is not taken as consumption time. */
+  public void testIdle() throws InterruptedException {
+    out = new BatchSizeController(1, 1, 1000);
+    out.recordQuery(100, 100, 0);
+    out.recordBatchReturned(100);
+    Thread.sleep(50);
+    out.recordBatchStart();
+    assertEquals(100, out.getCandidateSize(100));
+  }
+
+  public void testMinimum() {
+    out = new BatchSizeController(10, 5, 1000);
+    out.recordQuery(100, 100, 0);
+    out.recordConsumption(100, 1000 * 100);
+    assertEquals(5, out.getCandidateSize(100));
+  }
+}
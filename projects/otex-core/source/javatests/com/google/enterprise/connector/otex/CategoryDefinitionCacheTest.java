@@ -0,0 +1,146 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.enterprise.connector.otex.CacheMap.CacheStatistics;
+import com.google.enterprise.connector.otex.CategoryDefinitionCache.AttributeDefinition;
+import com.google.enterprise.connector.otex.CategoryDefinitionCache.CategoryDefinition;
+import com.google.enterprise.connector.otex.client.Client;
+import com.google.enterprise.connector.otex.client.ClientValue;
+import com.google.enterprise.connector.otex.client.ClientValueFactory;
+import com.google.enterprise.connector.otex.client.mock.MockClient;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import junit.framework.TestCase;
+
+/** Tests the {@link CategoryDefinitionCache} class. */
+public class CategoryDefinitionCacheTest extends TestCase {
+  /**
+   * A client that defines every category with an integer attribute
+   * and an attribute set containing a string attribute.
+   */
+  private static class DefinitionClient extends MockClient {
+    private int infoCount = 0;
+
+    public int getInfoCount() {
+      return infoCount;
+    }
+
+    @Override
+    public ClientValue AttrListNames(ClientValue categoryVersion,
+        ClientValue attributeSetPath) throws RepositoryException {
+      ClientValue names = getClientValueFactory().createList();
+      if (attributeSetPath == null) {
+        names.add("myint");
+        names.add("myset");
+      } else {
+        names.add("mystr");
+      }
+      return names;
+    }
+
+    @Override
+    public ClientValue AttrGetInfo(ClientValue categoryVersion,
+        String attributeName, ClientValue attributeSetPath)
+        throws RepositoryException {
+      infoCount++;
+      ClientValue info = getClientValueFactory().createAssoc();
+      if (attributeName.equals("myint")) {
+        info.add("Type", Client.ATTR_TYPE_INT);
+        info.add("Search", true);
+      } else if (attributeName.equals("myset")) {
+        info.add("Type", Client.ATTR_TYPE_SET);
+      } else {
+        info.add("Type", Client.ATTR_TYPE_STRFIELD);
+        info.add("Search", false);
+      }
+      return info;
+    }
+  }
+
+  private DefinitionClient client;
+
+  private ClientValue categoryVersion;
+
+  protected void setUp() throws RepositoryException {
+    client = new DefinitionClient();
+    ClientValueFactory valueFactory = client.getClientValueFactory();
+    categoryVersion = valueFactory.createAssoc();
+  }
+
+  public void testLoad() throws RepositoryException {
+    CategoryDefinitionCache cache = new CategoryDefinitionCache(10);
+    CategoryDefinition definition = cache.load(client, 42, 3, categoryVersion);
+
+    assertEquals(42, definition.categoryId);
+    assertEquals(3, definition.version);
+    assertEquals(2, definition.attributes.size());
+    AttributeDefinition myint = definition.attributes.get(0);
+    assertEquals("myint", myint.name);
+    assertEquals(Client.ATTR_TYPE_INT, myint.type);
+    assertNull(myint.members);
+    AttributeDefinition myset = definition.attributes.get(1);
+    assertEquals("myset", myset.name);
+    assertEquals(Client.ATTR_TYPE_SET, myset.type);
+    assertEquals(1, myset.members.size());
+    assertEquals("mystr", myset.members.get(0).name);
+
+    assertSame(myint, definition.getAttribute(null, "myint"));
+    assertSame(myset.members.get(0),
+        definition.getAttribute("myset", "mystr"));
+    assertNull(definition.getAttribute(null, "mystr"));
+    assertNull(definition.getAttribute(null, "myset"));
+    assertTrue(definition.getAttribute(null, "myint").info.toBoolean("Search"));
+  }
+
+  public void testGet() throws RepositoryException {
+    CategoryDefinitionCache cache = new CategoryDefinitionCache(10);
+    assertNull(cache.get(42, 3));
+    CategoryDefinition definition = cache.load(client, 42, 3, categoryVersion);
+    assertEquals(3, client.getInfoCount());
+
+    assertSame(definition, cache.get(42, 3));
+    assertSame(definition, cache.get(42, 3));
+    assertNull(cache.get(42, 4));
+    assertNull(cache.get(43, 3));
+    assertEquals(3, client.getInfoCount());
+
+    CacheStatistics stats = cache.statistics();
+    assertEquals(1, stats.entries);
+    assertEquals(2, stats.hits);
+    assertEquals(3, stats.misses);
+  }
+
+  /** Tests that definitions with an unknown version are not cached. */
+  public void testUnknownVersion() throws RepositoryException {
+    CategoryDefinitionCache cache = new CategoryDefinitionCache(10);
+    cache.load(client, 42, -1, categoryVersion);
+    assertNull(cache.get(42, -1));
+    assertEquals(0, cache.statistics().entries);
+  }
+
+  public void testEviction() throws RepositoryException {
+    CategoryDefinitionCache cache = new CategoryDefinitionCache(2);
+    cache.load(client, 42, 1, categoryVersion);
+    cache.load(client, 43, 1, categoryVersion);
+    assertNotNull(cache.get(42, 1));
+    cache.load(client, 44, 1, categoryVersion);
+
+    assertEquals(2, cache.statistics().entries);
+    assertNotNull(cache.get(42, 1));
+    assertNull(cache.get(43, 1));
+    assertNotNull(cache.get(44, 1));
+  }
+}
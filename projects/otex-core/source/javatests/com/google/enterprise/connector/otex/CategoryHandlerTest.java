@@ -20,11 +20,17 @@ import com.google.enterprise.connector.otex.client.ClientValue;
 import com.google.enterprise.connector.otex.client.ClientValueFactory;
 import com.google.enterprise.connector.otex.client.mock.MockClientFactory;
 import com.google.enterprise.connector.otex.client.mock.MockClientValueFactory;
+import com.google.enterprise.connector.spi.Property;
 import com.google.enterprise.connector.spi.RepositoryException;
+import com.google.enterprise.connector.spi.Value;
 
 import junit.framework.TestCase;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 public class CategoryHandlerTest extends TestCase {
   private static final Integer CATEGORY_ID = new Integer(42);
@@ -41,6 +47,11 @@ public class CategoryHandlerTest extends TestCase {
 
   private CategoryHandler getObjectUnderTest(String includedCategories)
       throws RepositoryException {
+    return getObjectUnderTest(includedCategories, "none");
+  }
+
+  private CategoryHandler getObjectUnderTest(String includedCategories,
+      String excludedCategories) throws RepositoryException {
     LivelinkConnector connector = new LivelinkConnector(
         "com.google.enterprise.connector.otex.client.mock.MockClientFactory");
     connector.setServer(System.getProperty("connector.server"));
@@ -50,7 +61,7 @@ public class CategoryHandlerTest extends TestCase {
     connector.setShowHiddenItems("true");
 
     connector.setIncludedCategories(includedCategories);
-    connector.setExcludedCategories("none");
+    connector.setExcludedCategories(excludedCategories);
     connector.login();
 
     ClientFactory clientFactory = connector.getClientFactory();
@@ -133,4 +144,147 @@ public class CategoryHandlerTest extends TestCase {
     getAttributeValue(categoryHandler, attrInfo);
     assertNull(categoryHandler.searchableCache);
   }
+
+  /** Inserts the CatRegionMap and LLAttrData rows for the tests. */
+  private void insertCategories() throws SQLException {
+    jdbcFixture.executeUpdate(
+        "insert into CatRegionMap(CatID, CatName, SetName, AttrName, "
+            + "RegionName) values(42, 'Cat42', '', 'myint', 'Attr_42_2')",
+        "insert into CatRegionMap(CatID, CatName, SetName, AttrName, "
+            + "RegionName) values(42, 'Cat42', '', 'myuser', 'Attr_42_3')",
+        "insert into CatRegionMap(CatID, CatName, SetName, AttrName, "
+            + "RegionName) values(42, 'Cat42', 'myset', 'mystr', "
+            + "'Attr_42_4_5')",
+        "insert into CatRegionMap(CatID, CatName, SetName, AttrName, "
+            + "RegionName) values(43, 'Cat43', '', 'mybool', 'Attr_43_2')",
+        insertAttrData(21, 42, 1, 2, Client.ATTR_TYPE_INT, 0, "ValInt", "7"),
+        insertAttrData(21, 42, 1, 2, Client.ATTR_TYPE_INT, 1, "ValInt", "8"),
+        insertAttrData(21, 42, 2, 2, Client.ATTR_TYPE_INT, 0, "ValInt", "17"),
+        insertAttrData(21, 42, 2, 3, Client.ATTR_TYPE_USER, 0, "ValInt",
+            "1000"),
+        insertAttrData(21, 42, 2, 4, Client.ATTR_TYPE_SET, 0, "ValInt", "1"),
+        insertAttrData(21, 42, 2, 5, Client.ATTR_TYPE_STRFIELD, 0, "ValStr",
+            "'hello'"),
+        insertAttrData(21, 43, 1, 2, Client.ATTR_TYPE_BOOL, 0, "ValInt", "1"),
+        insertAttrData(22, 43, 1, 2, Client.ATTR_TYPE_BOOL, 0, "ValInt", "0"));
+  }
+
+  private String insertAttrData(int objectId, int categoryId, int version,
+      int attrId, int attrType, int entryNum, String column, String value) {
+    return "insert into LLAttrData(ID, DefID, DefVerN, AttrID, AttrType, "
+        + "EntryNum, ParentKeyID, KeyID, VerNum, " + column + ") values("
+        + objectId + ", " + categoryId + ", 1, " + attrId + ", " + attrType
+        + ", " + entryNum + ", 0, 0, " + version + ", " + value + ")";
+  }
+
+  /** Collects the category attributes using a CategoryTable. */
+  private LivelinkDocument collectCategoryAttributes(
+      CategoryHandler categoryHandler, int objectId)
+      throws RepositoryException {
+    LivelinkConnector connector = new LivelinkConnector(
+        "com.google.enterprise.connector.otex.client.mock.MockClientFactory");
+    Client client = new MockClientFactory().createClient();
+    CategoryTable categoryTable = new CategoryTable(client,
+        new SqlQueries(true), Arrays.asList(21, 22, 23));
+    UserNameHandler nameHandler = new UserNameHandler(connector);
+
+    LivelinkDocument props = new LivelinkDocument(objectId, 10);
+    categoryHandler.collectCategoryAttributes(objectId, nameHandler, props,
+        categoryTable);
+    return props;
+  }
+
+  private List<String> getValues(LivelinkDocument props, String name)
+      throws RepositoryException {
+    List<String> values = new ArrayList<String>();
+    Property property = props.findProperty(name);
+    if (property != null) {
+      Value value;
+      while ((value = property.nextValue()) != null) {
+        values.add(value.toString());
+      }
+    }
+    return values;
+  }
+
+  public void testCategoryTable_all() throws RepositoryException,
+      SQLException {
+    insertCategories();
+    CategoryHandler categoryHandler = getObjectUnderTest("all,name");
+
+    LivelinkDocument props = collectCategoryAttributes(categoryHandler, 21);
+    assertEquals(Arrays.asList("Cat42", "Cat43"),
+        getValues(props, "Category"));
+    assertEquals(Arrays.asList("17"), getValues(props, "myint"));
+    assertEquals(Arrays.asList("Admin"), getValues(props, "myuser"));
+    assertEquals(Arrays.asList("hello"), getValues(props, "mystr"));
+    assertEquals(Arrays.asList("true"), getValues(props, "mybool"));
+
+    props = collectCategoryAttributes(categoryHandler, 22);
+    assertEquals(Arrays.asList("false"), getValues(props, "mybool"));
+    assertEquals(Arrays.asList(), getValues(props, "myint"));
+
+    props = collectCategoryAttributes(categoryHandler, 23);
+    assertEquals(Arrays.asList(), getValues(props, "mybool"));
+  }
+
+  /** Tests resolving the names of the user attributes in bulk. */
+  public void testCategoryTable_userIds() throws RepositoryException,
+      SQLException {
+    insertCategories();
+    Client client = new MockClientFactory().createClient();
+    CategoryTable categoryTable = new CategoryTable(client,
+        new SqlQueries(true), Arrays.asList(21, 22, 23));
+    assertEquals(Collections.singleton(1000), categoryTable.getUserIds());
+
+    LivelinkConnector connector = new LivelinkConnector(
+        "com.google.enterprise.connector.otex.client.mock.MockClientFactory");
+    UserNameHandler nameHandler = new UserNameHandler(connector);
+    nameHandler.resolveUserNames(client, categoryTable.getUserIds());
+
+    // The name is cached, so no client is needed to look it up.
+    LivelinkDocument props = new LivelinkDocument(21, 10);
+    for (CategoryTable.AttributeValue attr
+             : categoryTable.getCategories(21).get(0).values) {
+      if (attr.attrType == Client.ATTR_TYPE_USER)
+        nameHandler.addUserByName(null, attr.attrName, attr.value, props);
+    }
+    assertEquals(Arrays.asList("Admin"), getValues(props, "myuser"));
+  }
+
+  public void testCategoryTable_excluded() throws RepositoryException,
+      SQLException {
+    insertCategories();
+    CategoryHandler categoryHandler = getObjectUnderTest("all", "42");
+
+    LivelinkDocument props = collectCategoryAttributes(categoryHandler, 21);
+    assertEquals(Arrays.asList(), getValues(props, "Category"));
+    assertEquals(Arrays.asList(), getValues(props, "myint"));
+    assertEquals(Arrays.asList("true"), getValues(props, "mybool"));
+  }
+
+  public void testCategoryTable_none() throws RepositoryException,
+      SQLException {
+    insertCategories();
+    CategoryHandler categoryHandler = getObjectUnderTest("none");
+
+    LivelinkDocument props = collectCategoryAttributes(categoryHandler, 21);
+    assertEquals(Arrays.asList(), getValues(props, "myint"));
+    assertEquals(Arrays.asList(), getValues(props, "mybool"));
+  }
+
+  /**
+   * Tests the searchable attributes. The mock client does not return
+   * any category definitions, so no attributes are searchable.
+   */
+  public void testCategoryTable_searchable() throws RepositoryException,
+      SQLException {
+    insertCategories();
+    CategoryHandler categoryHandler = getObjectUnderTest("all,searchable");
+
+    LivelinkDocument props = collectCategoryAttributes(categoryHandler, 21);
+    assertEquals(Arrays.asList(), getValues(props, "myint"));
+    assertEquals(Arrays.asList(), getValues(props, "mybool"));
+    assertNull(categoryHandler.searchableCache);
+  }
 }
@@ -0,0 +1,93 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.enterprise.connector.otex.client.ClientValue;
+import com.google.enterprise.connector.otex.client.ColumnarClientValue;
+import com.google.enterprise.connector.otex.client.mock.MockClientValue;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+/** Tests the {@link ConcatenatedClientValue} class. */
+public class ConcatenatedClientValueTest extends TestCase {
+  private static final String[] FIELDS = { "DataID", "Name" };
+
+  private static ClientValue getRecArray(int... dataIds) {
+    Object[][] values = new Object[dataIds.length][];
+    for (int i = 0; i < dataIds.length; i++) {
+      values[i] = new Object[] { dataIds[i], "Name" + dataIds[i] };
+    }
+    return new MockClientValue(FIELDS, values);
+  }
+
+  public void testConcatNone() {
+    assertNull(ConcatenatedClientValue.concat(
+        Collections.<ClientValue>emptyList()));
+    assertNull(ConcatenatedClientValue.concat(
+        Arrays.<ClientValue>asList(null, null)));
+  }
+
+  public void testConcatOne() {
+    ClientValue empty = getRecArray();
+    ClientValue one = getRecArray(1);
+    assertSame(empty, ConcatenatedClientValue.concat(
+        Arrays.asList(null, empty, getRecArray())));
+    assertSame(one, ConcatenatedClientValue.concat(
+        Arrays.asList(empty, one, null)));
+  }
+
+  public void testRows() throws RepositoryException {
+    ClientValue value = ConcatenatedClientValue.concat(Arrays.asList(
+            getRecArray(1, 2), getRecArray(), null, getRecArray(3),
+            getRecArray(4, 5, 6)));
+    assertEquals(6, value.size());
+    for (int row = 0; row < 6; row++) {
+      assertEquals(row + 1, value.toInteger(row, "DataID"));
+      assertEquals("Name" + (row + 1), value.toString(row, "Name"));
+    }
+    try {
+      value.toInteger(6, "DataID");
+      fail("Expected an IndexOutOfBoundsException");
+    } catch (IndexOutOfBoundsException expected) {
+    }
+  }
+
+  public void testColumns() throws RepositoryException {
+    ColumnarClientValue value =
+        (ColumnarClientValue) ConcatenatedClientValue.concat(Arrays.asList(
+                getRecArray(1, 2), getRecArray(3)));
+    assertTrue(Arrays.equals(new int[] { 1, 2, 3 },
+            value.toIntegerColumn("DataID")));
+    assertTrue(Arrays.equals(new String[] { "Name1", "Name2", "Name3" },
+            value.toStringColumn("Name")));
+
+    int column = value.getColumnIndex("Name");
+    assertEquals("Name3", value.toString(2, column));
+  }
+
+  public void testReadOnly() throws RepositoryException {
+    ClientValue value = ConcatenatedClientValue.concat(Arrays.asList(
+            getRecArray(1), getRecArray(2)));
+    try {
+      value.add("DataID", 3);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+}
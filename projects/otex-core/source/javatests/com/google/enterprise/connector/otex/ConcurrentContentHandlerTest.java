@@ -0,0 +1,188 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.enterprise.connector.otex.client.Client;
+import com.google.enterprise.connector.otex.client.mock.MockConstants;
+import com.google.enterprise.connector.spi.RepositoryDocumentException;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+
+/** Tests the {@link ConcurrentContentHandler} class. */
+public class ConcurrentContentHandlerTest extends TestCase {
+  private static final int OBJECT_ID = MockConstants.HARMLESS_OBJECT_ID;
+
+  private static final Date DATE = new Date(1400000000000L);
+
+  private LivelinkConnector connector;
+  private Client client;
+  private ConcurrentContentHandler out;
+
+  @Override
+  protected void setUp() throws RepositoryException {
+    connector = LivelinkConnectorFactory.getConnector("connector.");
+    client = connector.getClientFactory().createClient();
+    out = new ConcurrentContentHandler();
+    out.setMaxBytesInFlight(8192);
+  }
+
+  private void assertEmpty(InputStream in) throws IOException {
+    try {
+      assertEquals(-1, in.read());
+    } finally {
+      in.close();
+    }
+  }
+
+  /** Waits for a canceled prefetch to release its budget. */
+  private void assertBudgetReleased() throws InterruptedException {
+    for (int i = 0; i < 100 && out.getAvailableBudget() != 8; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(8, out.getAvailableBudget());
+  }
+
+  public void testInvalidArgs() {
+    try {
+      out.setFetchThreads(0);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      out.setLookahead(-1);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      out.setMaxBytesInFlight(1023);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testOnDemand() throws Exception {
+    out.initialize(connector, client);
+    assertEmpty(out.getInputStream(0, OBJECT_ID, 0, 100));
+    assertEquals(8, out.getAvailableBudget());
+  }
+
+  /** Tests that the budget is held until the content is consumed. */
+  public void testPrefetch() throws Exception {
+    out.initialize(connector, client);
+    out.prefetch(0, OBJECT_ID, 0, DATE, 2048);
+    assertEquals(6, out.getAvailableBudget());
+
+    InputStream in = out.getInputStream(0, OBJECT_ID, 0, DATE, 2048);
+    assertEquals(6, out.getAvailableBudget());
+    assertEmpty(in);
+    assertEquals(8, out.getAvailableBudget());
+  }
+
+  /** Tests that content announced for another version is not used. */
+  public void testPrefetchOtherVersion() throws Exception {
+    out.initialize(connector, client);
+    out.prefetch(0, OBJECT_ID, 0, DATE, 2048);
+    Date newDate = new Date(DATE.getTime() + 1000);
+    assertEmpty(out.getInputStream(0, OBJECT_ID, 0, newDate, 2048));
+    assertEquals(6, out.getAvailableBudget());
+
+    out.cancelPrefetch(0, OBJECT_ID, 0, DATE);
+    assertBudgetReleased();
+  }
+
+  /** Tests that the plain getInputStream ignores announced content. */
+  public void testPrefetchNotUsedOnDemand() throws Exception {
+    out.initialize(connector, client);
+    out.prefetch(0, OBJECT_ID, 0, DATE, 2048);
+    assertEmpty(out.getInputStream(0, OBJECT_ID, 0, 2048));
+    assertEquals(6, out.getAvailableBudget());
+  }
+
+  /** Tests that a duplicate announcement is ignored. */
+  public void testPrefetchTwice() throws Exception {
+    out.initialize(connector, client);
+    out.prefetch(0, OBJECT_ID, 0, DATE, 2048);
+    out.prefetch(0, OBJECT_ID, 0, DATE, 2048);
+    assertEquals(6, out.getAvailableBudget());
+  }
+
+  /** Tests that prefetches that do not fit in the budget are skipped. */
+  public void testBudget() throws Exception {
+    out.initialize(connector, client);
+    out.prefetch(0, OBJECT_ID, 0, DATE, 8192 + 1);
+    assertEquals(8, out.getAvailableBudget());
+
+    out.prefetch(0, OBJECT_ID, 0, DATE, 6000);
+    out.prefetch(0, OBJECT_ID + 1, 0, DATE, 6000);
+    assertEquals(2, out.getAvailableBudget());
+
+    assertEmpty(out.getInputStream(0, OBJECT_ID + 1, 0, DATE, 6000));
+    assertEquals(2, out.getAvailableBudget());
+    assertEmpty(out.getInputStream(0, OBJECT_ID, 0, DATE, 6000));
+    assertEquals(8, out.getAvailableBudget());
+  }
+
+  public void testCancelPrefetch() throws Exception {
+    out.initialize(connector, client);
+    out.prefetch(0, OBJECT_ID, 0, DATE, 2048);
+    out.cancelPrefetch(0, OBJECT_ID, 0, DATE);
+    assertBudgetReleased();
+
+    // Canceling again, or canceling unknown content, does nothing.
+    out.cancelPrefetch(0, OBJECT_ID, 0, DATE);
+    out.cancelPrefetch(0, OBJECT_ID + 1, 0, DATE);
+    assertEquals(8, out.getAvailableBudget());
+  }
+
+  public void testShutdown() throws Exception {
+    out.initialize(connector, client);
+    out.prefetch(0, OBJECT_ID, 0, DATE, 2048);
+    out.shutdown();
+    assertBudgetReleased();
+
+    // The content is fetched on demand after a shutdown.
+    assertEmpty(out.getInputStream(0, OBJECT_ID, 0, DATE, 2048));
+  }
+
+  public void testLookaheadZero() throws Exception {
+    out.setLookahead(0);
+    out.initialize(connector, client);
+    out.prefetch(0, OBJECT_ID, 0, DATE, 2048);
+    assertEmpty(out.getInputStream(0, OBJECT_ID, 0, DATE, 2048));
+  }
+
+  /** Tests that the original exception is rethrown to the consumer. */
+  public void testException() throws Exception {
+    out.initialize(connector, client);
+    out.prefetch(0, MockConstants.DOCUMENT_OBJECT_ID, 0, DATE, 2048);
+    try {
+      out.getInputStream(0, MockConstants.DOCUMENT_OBJECT_ID, 0, DATE, 2048);
+      fail("Expected a RepositoryDocumentException");
+    } catch (RepositoryDocumentException expected) {
+    }
+    assertEquals(8, out.getAvailableBudget());
+
+    try {
+      out.getInputStream(0, MockConstants.IO_OBJECT_ID, 0, DATE, 2048);
+      fail("Expected a LivelinkIOException");
+    } catch (LivelinkIOException expected) {
+    }
+  }
+}
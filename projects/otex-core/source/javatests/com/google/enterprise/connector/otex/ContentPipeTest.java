@@ -0,0 +1,152 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/** Tests the {@link ContentPipe} class. */
+public class ContentPipeTest extends TestCase {
+  /** Writes the given content to the pipe from another thread. */
+  private static class Producer extends Thread {
+    private final ContentPipe pipe;
+    private final byte[] content;
+    private final int chunkSize;
+    private final Throwable throwable;
+    volatile IOException exception = null;
+
+    Producer(ContentPipe pipe, byte[] content, int chunkSize,
+        Throwable throwable) {
+      this.pipe = pipe;
+      this.content = content;
+      this.chunkSize = chunkSize;
+      this.throwable = throwable;
+    }
+
+    @Override
+    public void run() {
+      OutputStream out = pipe.getOutputStream();
+      try {
+        for (int i = 0; i < content.length; i += chunkSize) {
+          out.write(content, i, Math.min(chunkSize, content.length - i));
+        }
+        if (throwable == null) {
+          out.close();
+        } else {
+          pipe.setException(throwable);
+        }
+      } catch (IOException e) {
+        exception = e;
+      }
+    }
+  }
+
+  private static byte[] getContent(int length) {
+    byte[] content = new byte[length];
+    for (int i = 0; i < length; i++) {
+      content[i] = (byte) (i * 31);
+    }
+    return content;
+  }
+
+  private static byte[] readAll(InputStream in, int bufferSize)
+      throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[bufferSize];
+    int count;
+    while ((count = in.read(buffer)) != -1) {
+      out.write(buffer, 0, count);
+    }
+    return out.toByteArray();
+  }
+
+  public void testInvalidSize() {
+    try {
+      new ContentPipe(0);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testEmpty() throws IOException {
+    ContentPipe pipe = new ContentPipe(16);
+    pipe.getOutputStream().close();
+    assertEquals(-1, pipe.getInputStream().read());
+    assertEquals(0, pipe.getBytesWritten());
+  }
+
+  /** Tests single byte reads and writes within the buffer size. */
+  public void testSingleBytes() throws IOException {
+    ContentPipe pipe = new ContentPipe(16);
+    OutputStream out = pipe.getOutputStream();
+    out.write(1);
+    out.write(255);
+    out.close();
+
+    InputStream in = pipe.getInputStream();
+    assertEquals(2, in.available());
+    assertEquals(1, in.read());
+    assertEquals(255, in.read());
+    assertEquals(-1, in.read());
+  }
+
+  /** Tests content much larger than the buffer, with wraparound. */
+  public void testWraparound() throws Exception {
+    ContentPipe pipe = new ContentPipe(17);
+    byte[] content = getContent(100000);
+    Producer producer = new Producer(pipe, content, 13, null);
+    producer.start();
+    byte[] actual = readAll(pipe.getInputStream(), 11);
+    producer.join();
+
+    assertNull(producer.exception);
+    assertTrue(Arrays.equals(content, actual));
+    assertEquals(content.length, pipe.getBytesWritten());
+  }
+
+  /** Tests that a producer exception is rethrown after the content. */
+  public void testException() throws Exception {
+    ContentPipe pipe = new ContentPipe(64);
+    RuntimeException cause = new RuntimeException("fetch failed");
+    Producer producer = new Producer(pipe, getContent(1000), 100, cause);
+    producer.start();
+    try {
+      readAll(pipe.getInputStream(), 50);
+      fail("Expected an IOException");
+    } catch (IOException expected) {
+      assertSame(cause, expected.getCause());
+    }
+    producer.join();
+  }
+
+  /** Tests that closing the input stream early unblocks the producer. */
+  public void testReaderClose() throws Exception {
+    ContentPipe pipe = new ContentPipe(64);
+    Producer producer = new Producer(pipe, getContent(10000), 100, null);
+    producer.start();
+    InputStream in = pipe.getInputStream();
+    assertTrue(in.read(new byte[10]) > 0);
+    in.close();
+    producer.join(10000L);
+
+    assertFalse(producer.isAlive());
+    assertNotNull(producer.exception);
+  }
+}
@@ -0,0 +1,183 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/** Tests the {@link FedItemSet} class. */
+public class FedItemSetTest extends TestCase {
+  private File file;
+
+  protected void setUp() throws IOException {
+    file = File.createTempFile("fed", ".items");
+    assertTrue(file.delete());
+  }
+
+  protected void tearDown() {
+    file.delete();
+    new File(file.getPath() + ".tmp").delete();
+    new File(file.getPath() + ".bak").delete();
+  }
+
+  public void testMissingFile() {
+    FedItemSet items = new FedItemSet(file);
+    assertEquals(0, items.size());
+    assertFalse(items.isComplete());
+  }
+
+  /** Tests that the set is only complete after a whole traversal. */
+  public void testComplete() {
+    FedItemSet items = new FedItemSet(file);
+    items.markCaughtUp();
+    assertFalse(items.isComplete());
+
+    items.reset();
+    assertFalse(items.isComplete());
+    items.markCaughtUp();
+    assertTrue(items.isComplete());
+  }
+
+  public void testPendingRemovals() {
+    FedItemSet items = new FedItemSet(file);
+    items.add(42);
+    assertTrue(items.contains(42));
+    items.remove(42);
+    assertTrue(items.contains(42));
+    items.flush();
+    assertFalse(items.contains(42));
+  }
+
+  public void testReadWrite() {
+    FedItemSet items = new FedItemSet(file);
+    items.reset();
+    items.add(42);
+    items.add(2901);
+    items.markCaughtUp();
+    assertFalse(file.exists());
+    items.flush();
+    assertTrue(file.exists());
+
+    FedItemSet reread = new FedItemSet(file);
+    assertEquals(2, reread.size());
+    assertTrue(reread.contains(42));
+    assertTrue(reread.contains(2901));
+    assertTrue(reread.isComplete());
+  }
+
+  public void testReset() {
+    FedItemSet items = new FedItemSet(file);
+    items.add(42);
+    items.remove(42);
+    items.reset();
+    items.add(24);
+    items.flush();
+    assertEquals(1, items.size());
+    assertFalse(items.contains(42));
+  }
+
+  /** Tests that changes are appended to the file, not rewritten. */
+  public void testAppend() throws IOException {
+    FedItemSet items = new FedItemSet(file);
+    items.reset();
+    for (int i = 1; i <= 1000; i++) {
+      items.add(i);
+    }
+    items.flush();
+    long length = file.length();
+
+    items.add(2901);
+    items.remove(42);
+    items.markCaughtUp();
+    items.flush();
+    assertEquals(length + 24, file.length());
+
+    FedItemSet reread = new FedItemSet(file);
+    assertEquals(1000, reread.size());
+    assertTrue(reread.contains(2901));
+    assertFalse(reread.contains(42));
+    assertTrue(reread.isComplete());
+  }
+
+  public void testPartialRecord() throws IOException {
+    FedItemSet items = new FedItemSet(file);
+    items.reset();
+    items.add(42);
+    items.flush();
+    items.add(2901);
+    items.flush();
+
+    // Simulate an interrupted append.
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(raf.length() - 4);
+    } finally {
+      raf.close();
+    }
+
+    FedItemSet reread = new FedItemSet(file);
+    assertEquals(1, reread.size());
+    reread.add(66);
+    reread.flush();
+    FedItemSet last = new FedItemSet(file);
+    assertEquals(2, last.size());
+    assertTrue(last.contains(66));
+  }
+
+  /** Tests reading the backup left by an interrupted replacement. */
+  public void testBackup() {
+    FedItemSet items = new FedItemSet(file);
+    items.reset();
+    items.add(42);
+    items.flush();
+    assertTrue(file.renameTo(new File(file.getPath() + ".bak")));
+
+    FedItemSet reread = new FedItemSet(file);
+    assertTrue(reread.contains(42));
+    reread.add(2901);
+    reread.flush();
+    assertTrue(file.exists());
+    assertEquals(2, new FedItemSet(file).size());
+  }
+
+  public void testInvalidFile() throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write("not a fed items file".getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+    FedItemSet items = new FedItemSet(file);
+    assertEquals(0, items.size());
+    assertFalse(items.isComplete());
+
+    // The invalid file is replaced.
+    items.flush();
+    assertEquals(0, new FedItemSet(file).size());
+  }
+
+  public void testDelete() {
+    FedItemSet items = new FedItemSet(file);
+    items.add(42);
+    items.flush();
+    assertTrue(file.exists());
+    FedItemSet.delete(file);
+    assertFalse(file.exists());
+  }
+}
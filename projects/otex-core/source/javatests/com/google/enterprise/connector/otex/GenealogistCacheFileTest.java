@@ -0,0 +1,138 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * Tests the {@link GenealogistCacheFile} class, and saving and
+ * loading the {@code Genealogist} caches.
+ */
+public class GenealogistCacheFileTest extends TestCase {
+  private File file;
+
+  protected void setUp() throws IOException {
+    file = File.createTempFile("genealogist", ".cache");
+    assertTrue(file.delete());
+  }
+
+  protected void tearDown() {
+    file.delete();
+    new File(file.getPath() + ".tmp").delete();
+    new File(file.getPath() + ".bak").delete();
+  }
+
+  public void testMissingFile() throws IOException {
+    assertNull(new GenealogistCacheFile(file).read(2));
+  }
+
+  public void testReadWrite() throws IOException {
+    GenealogistCacheFile cacheFile = new GenealogistCacheFile(file);
+    cacheFile.write(new int[] { -1, 1, 2 }, new int[0]);
+    assertEquals(32, file.length());
+
+    int[][] sections = cacheFile.read(2);
+    assertEquals(2, sections.length);
+    assertTrue(Arrays.equals(new int[] { -1, 1, 2 }, sections[0]));
+    assertEquals(0, sections[1].length);
+
+    // Overwrite the existing file.
+    cacheFile.write(new int[] { 3 }, new int[] { 4, 5 });
+    sections = cacheFile.read(2);
+    assertTrue(Arrays.equals(new int[] { 3 }, sections[0]));
+    assertTrue(Arrays.equals(new int[] { 4, 5 }, sections[1]));
+  }
+
+  public void testWrongSectionCount() throws IOException {
+    GenealogistCacheFile cacheFile = new GenealogistCacheFile(file);
+    cacheFile.write(new int[] { 1 });
+    assertNull(cacheFile.read(2));
+  }
+
+  public void testInvalidFile() throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write("not a cache file".getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+    assertNull(new GenealogistCacheFile(file).read(2));
+  }
+
+  public void testTruncatedFile() throws IOException {
+    GenealogistCacheFile cacheFile = new GenealogistCacheFile(file);
+    cacheFile.write(new int[] { 1, 2, 3 }, new int[] { 4 });
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(raf.length() - 4);
+    } finally {
+      raf.close();
+    }
+    assertNull(cacheFile.read(2));
+  }
+
+  public void testDelete() throws IOException {
+    GenealogistCacheFile cacheFile = new GenealogistCacheFile(file);
+    cacheFile.write(new int[] { 1 });
+    assertTrue(file.exists());
+    cacheFile.delete();
+    assertFalse(file.exists());
+  }
+
+  private Genealogist getGenealogist(String includedNodes,
+      String excludedNodes) {
+    Genealogist genealogist =
+        new Genealogist(null, includedNodes, excludedNodes, 10, 10);
+    genealogist.setCacheFile(file);
+    return genealogist;
+  }
+
+  /** Tests that the caches are restored by a new Genealogist. */
+  public void testSaveCaches() {
+    Genealogist genealogist = getGenealogist("1", "101");
+    genealogist.includedCache.addAll(Arrays.asList(10, 100));
+    genealogist.excludedCache.addAll(Arrays.asList(1010));
+    genealogist.saveCaches();
+
+    genealogist = getGenealogist("1", "101");
+    assertEquals(2, genealogist.includedCache.statistics().entries);
+    assertTrue(genealogist.includedCache.contains(10));
+    assertTrue(genealogist.includedCache.contains(100));
+    assertEquals(1, genealogist.excludedCache.statistics().entries);
+    assertTrue(genealogist.excludedCache.contains(1010));
+  }
+
+  /** Tests that the caches are discarded when the roots change. */
+  public void testChangedNodes() {
+    Genealogist genealogist = getGenealogist("1", "101");
+    genealogist.includedCache.addAll(Arrays.asList(10, 100));
+    genealogist.saveCaches();
+
+    genealogist = getGenealogist("1", "");
+    assertEquals(0, genealogist.includedCache.statistics().entries);
+
+    genealogist = getGenealogist("2", "101");
+    assertEquals(0, genealogist.includedCache.statistics().entries);
+
+    genealogist = getGenealogist("1", "101");
+    assertEquals(2, genealogist.includedCache.statistics().entries);
+  }
+}
@@ -44,7 +44,7 @@ public class GenealogistTest extends TestCase {
     { 10100, 1010 } };
 
   /** The mock client used by the Genealogist classes under test. */
-  private Client client;
+  protected Client client;
 
   /** The database connection. */
   private JdbcFixture jdbcFixture = new JdbcFixture();
@@ -57,7 +57,7 @@ public class GenealogistTest extends TestCase {
     client = new MockClient();
   }
 
-  private void insertRows(int[][] rows) throws SQLException {
+  protected void insertRows(int[][] rows) throws SQLException {
     String[] sqls = new String[rows.length];
     int i = 0;
     for (int[] row : rows) {
@@ -67,6 +67,10 @@ public class GenealogistTest extends TestCase {
     jdbcFixture.executeUpdate(sqls);
   }
 
+  protected void executeUpdate(String... sqls) throws SQLException {
+    jdbcFixture.executeUpdate(sqls);
+  }
+
   protected void tearDown() throws SQLException {
     jdbcFixture.tearDown();
   }
@@ -87,7 +91,7 @@ public class GenealogistTest extends TestCase {
   }
 
   /** Helper method to test matching nodes. */
-  private void testMatching(Genealogist genealogist,
+  protected void testMatching(Genealogist genealogist,
       Integer[] matchingNodes, String matchingDescendants)
       throws RepositoryException {
     Integer[][] matchingValues = new Integer[matchingNodes.length][];
@@ -24,11 +24,18 @@ import com.sun.net.httpserver.HttpServer;
 
 import junit.framework.TestCase;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class HttpURLContentHandlerTest extends TestCase {
   private LivelinkConnector connector;
@@ -130,22 +137,205 @@ public class HttpURLContentHandlerTest extends TestCase {
     }
   }
 
+  /** Tests that a 401 response gets a new cookie value. */
+  public void testCookieRenewal() throws RepositoryException, IOException {
+    CookieHandler handler = new CookieHandler();
+    HttpServer server = createServer(handler);
+    server.start();
+
+    try {
+      out.getInputStream(0, 0, 0, 0).close();
+      String cookie = handler.getCookie();
+      assertTrue(cookie, cookie.startsWith("LLCookie="));
+
+      out.getInputStream(0, 0, 0, 0).close();
+      assertEquals(cookie, handler.getCookie());
+
+      handler.reject(cookie);
+      assertEquals("hello, world", readAll(out.getInputStream(0, 0, 0, 0)));
+      assertFalse(handler.getCookie(), cookie.equals(handler.getCookie()));
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  /**
+   * Tests that a redirect to the login page for an expired cookie gets
+   * a new cookie value, and that the login page is not returned as the
+   * document content.
+   */
+  public void testLoginRedirect() throws RepositoryException, IOException {
+    CookieHandler handler = new CookieHandler();
+    HttpServer server = createServer(handler);
+    server.start();
+
+    try {
+      out.getInputStream(0, 0, 0, 0).close();
+      String cookie = handler.getCookie();
+
+      handler.redirect(cookie);
+      assertEquals("hello, world", readAll(out.getInputStream(0, 0, 0, 0)));
+      assertFalse(handler.getCookie(), cookie.equals(handler.getCookie()));
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  /** Tests that repeated redirects are errors rather than content. */
+  public void testRedirectLoop() throws RepositoryException, IOException {
+    CookieHandler handler = new CookieHandler();
+    handler.redirect(null);
+    HttpServer server = createServer(handler);
+    server.start();
+
+    try {
+      readAll(out.getInputStream(0, 0, 0, 0));
+      fail("Expected an exception");
+    } catch (LivelinkException expected) {
+    } catch (IOException expected) {
+    } finally {
+      server.stop(0);
+    }
+  }
+
   /** Tests that refresh gets a new cookie value. */
   public void testRefresh() throws RepositoryException, IOException {
     CookieHandler handler = new CookieHandler();
     HttpServer server = createServer(handler);
     server.start();
 
-    out.getInputStream(0, 0, 0, 0).close();
-    String cookie = handler.getCookie();
-    assertTrue(cookie, cookie.startsWith("LLCookie="));
+    try {
+      out.getInputStream(0, 0, 0, 0).close();
+      String cookie = handler.getCookie();
+
+      out.refresh();
+      out.getInputStream(0, 0, 0, 0).close();
+      assertFalse(handler.getCookie(), cookie.equals(handler.getCookie()));
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  /** Tests that large documents are downloaded in ranges. */
+  public void testRanges() throws RepositoryException, IOException {
+    byte[] content = getContent(100000);
+    RangeHandler handler = new RangeHandler(content, true, false);
+    out.setRangeThreshold(1000);
+    out.setRangeConnections(3);
+    HttpServer server = createServer(handler);
+    server.start();
+
+    try {
+      InputStream in = out.getInputStream(0, 0, 0, content.length);
+      assertTrue(Arrays.equals(content, readBytes(in)));
+      assertEquals(handler.getRanges().toString(),
+          3, handler.getRanges().size());
+      assertTrue(handler.getRanges().toString(),
+          handler.getRanges().contains("bytes=0-33333"));
+    } finally {
+      server.stop(0);
+    }
+  }
 
-    out.getInputStream(0, 0, 0, 0).close();
-    assertEquals(cookie, handler.getCookie());
+  /**
+   * Tests that the number of ranges is bounded when the document is
+   * much larger than the size hint.
+   */
+  public void testRanges_staleSize() throws RepositoryException, IOException {
+    byte[] content = getContent(100000);
+    RangeHandler handler = new RangeHandler(content, true, false);
+    out.setRangeThreshold(1000);
+    out.setRangeConnections(3);
+    HttpServer server = createServer(handler);
+    server.start();
 
-    out.refresh();
-    out.getInputStream(0, 0, 0, 0).close();
-    assertFalse(handler.getCookie(), cookie.equals(handler.getCookie()));
+    try {
+      InputStream in = out.getInputStream(0, 0, 0, 3000);
+      assertTrue(Arrays.equals(content, readBytes(in)));
+      assertEquals(handler.getRanges().toString(),
+          3, handler.getRanges().size());
+      assertTrue(handler.getRanges().toString(),
+          handler.getRanges().contains("bytes=0-999"));
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  /** Tests that servers that ignore ranges still work. */
+  public void testRangesIgnored() throws RepositoryException, IOException {
+    byte[] content = getContent(100000);
+    RangeHandler handler = new RangeHandler(content, false, false);
+    out.setRangeThreshold(1000);
+    HttpServer server = createServer(handler);
+    server.start();
+
+    try {
+      InputStream in = out.getInputStream(0, 0, 0, content.length);
+      assertTrue(Arrays.equals(content, readBytes(in)));
+      assertEquals(1, handler.getRanges().size());
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  /** Tests that a download that stops early is resumed. */
+  public void testResume() throws RepositoryException, IOException {
+    byte[] content = getContent(100000);
+    RangeHandler handler = new RangeHandler(content, true, true);
+    HttpServer server = createServer(handler);
+    server.start();
+
+    try {
+      InputStream in = out.getInputStream(0, 0, 0, content.length);
+      assertTrue(Arrays.equals(content, readBytes(in)));
+      assertEquals(handler.getRanges().toString(),
+          2, handler.getRanges().size());
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  /** Tests that a download that stops early fails without retries. */
+  public void testNoRetries() throws RepositoryException, IOException {
+    byte[] content = getContent(100000);
+    RangeHandler handler = new RangeHandler(content, true, true);
+    out.setMaxRetries(0);
+    HttpServer server = createServer(handler);
+    server.start();
+
+    try {
+      readBytes(out.getInputStream(0, 0, 0, content.length));
+      fail("Expected an IOException");
+    } catch (IOException expected) {
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  private static byte[] getContent(int length) {
+    byte[] content = new byte[length];
+    for (int i = 0; i < length; i++) {
+      content[i] = (byte) (i * 31);
+    }
+    return content;
+  }
+
+  private static byte[] readBytes(InputStream in) throws IOException {
+    try {
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+      byte[] bytes = new byte[4096];
+      int count;
+      while ((count = in.read(bytes)) != -1) {
+        buffer.write(bytes, 0, count);
+      }
+      return buffer.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+  private static String readAll(InputStream in) throws IOException {
+    return new String(readBytes(in), "UTF-8");
   }
 
   public enum SleepyLocation { HEADERS, BODY };
@@ -165,17 +355,15 @@ public class HttpURLContentHandlerTest extends TestCase {
    */
   private HttpServer createServer(HttpHandler handler)
       throws RepositoryException, IOException {
-    // TODO(jlacey): Get an unused port.
     String host = "localhost";
-    int port = 58080;
     String path = "/";
 
-    out.setUrlBase("http://" + host + ":" + port);
+    HttpServer server = HttpServer.create(new InetSocketAddress(host, 0), 0);
+    server.createContext(path, handler);
+
+    out.setUrlBase("http://" + host + ":" + server.getAddress().getPort());
     out.setUrlPath(path);
     out.initialize(connector, client);
-
-    HttpServer server = HttpServer.create(new InetSocketAddress(host, port), 0);
-    server.createContext(path, handler);
     return server;
   }
 
@@ -215,14 +403,44 @@ public class HttpURLContentHandlerTest extends TestCase {
 
   static class CookieHandler implements HttpHandler {
     private String cookie;
+    private String rejected;
+    private String redirected;
+    private boolean redirectAll = false;
 
     public String getCookie() {
       return cookie;
     }
 
+    /** Responds with a 401 error to requests with the given cookie. */
+    public void reject(String cookie) {
+      rejected = cookie;
+    }
+
+    /**
+     * Redirects requests with the given cookie, or all requests if the
+     * cookie is null, to a login page.
+     */
+    public void redirect(String cookie) {
+      redirected = cookie;
+      redirectAll = (cookie == null);
+    }
+
     @Override
     public void handle(HttpExchange exchange) throws IOException {
       cookie = exchange.getRequestHeaders().getFirst("Cookie");
+      if (cookie.equals(rejected)) {
+        exchange.sendResponseHeaders(401, -1);
+        exchange.close();
+        return;
+      }
+      if (redirectAll || cookie.equals(redirected)) {
+        byte[] response = "<html>Log-in</html>".getBytes();
+        exchange.getResponseHeaders().set("Location", "/?func=ll.login");
+        exchange.sendResponseHeaders(302, response.length);
+        exchange.getResponseBody().write(response);
+        exchange.close();
+        return;
+      }
 
       byte[] response = "hello, world".getBytes();
       exchange.sendResponseHeaders(200, response.length);
@@ -231,4 +449,65 @@ public class HttpURLContentHandlerTest extends TestCase {
       exchange.close();
     }
   }
+
+  /**
+   * Serves the given content, optionally honoring Range headers, and
+   * optionally ending the first response halfway through.
+   */
+  static class RangeHandler implements HttpHandler {
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+    private final byte[] content;
+    private final boolean acceptRanges;
+    private boolean truncate;
+    private final List<String> ranges =
+        Collections.synchronizedList(new ArrayList<String>());
+
+    public RangeHandler(byte[] content, boolean acceptRanges,
+        boolean truncate) {
+      this.content = content;
+      this.acceptRanges = acceptRanges;
+      this.truncate = truncate;
+    }
+
+    /** Gets the Range headers of the requests, or "" for none. */
+    public List<String> getRanges() {
+      return ranges;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      String range = exchange.getRequestHeaders().getFirst("Range");
+      ranges.add((range == null) ? "" : range);
+
+      int start = 0;
+      int end = content.length - 1;
+      Matcher matcher = (range == null) ? null : RANGE.matcher(range);
+      if (acceptRanges && matcher != null && matcher.matches()) {
+        start = Integer.parseInt(matcher.group(1));
+        if (matcher.group(2).length() > 0) {
+          end = Math.min(end, Integer.parseInt(matcher.group(2)));
+        }
+        exchange.getResponseHeaders().add("Content-Range",
+            "bytes " + start + "-" + end + "/" + content.length);
+        exchange.sendResponseHeaders(206, end - start + 1);
+      } else {
+        exchange.sendResponseHeaders(200, content.length);
+      }
+
+      OutputStream body = exchange.getResponseBody();
+      try {
+        if (truncate) {
+          truncate = false;
+          body.write(content, start, (end - start + 1) / 2);
+          body.flush();
+          // Drop the connection without sending the rest.
+          throw new IOException("Simulated connection failure");
+        }
+        body.write(content, start, end - start + 1);
+      } finally {
+        exchange.close();
+      }
+    }
+  }
 }
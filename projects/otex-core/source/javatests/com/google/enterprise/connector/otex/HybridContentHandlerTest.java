@@ -0,0 +1,121 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.enterprise.connector.otex.client.Client;
+import com.google.enterprise.connector.otex.client.mock.MockConstants;
+import com.google.enterprise.connector.spi.RepositoryDocumentException;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/** Tests the {@link HybridContentHandler} class. */
+public class HybridContentHandlerTest extends TestCase {
+  private static final int OBJECT_ID = MockConstants.HARMLESS_OBJECT_ID;
+
+  private LivelinkConnector connector;
+  private Client client;
+  private HybridContentHandler out;
+
+  protected void setUp() throws RepositoryException {
+    connector = LivelinkConnectorFactory.getConnector("connector.");
+    client = connector.getClientFactory().createClient();
+    out = new HybridContentHandler();
+  }
+
+  private void assertEmpty(InputStream in) throws IOException {
+    assertEquals(-1, in.read());
+  }
+
+  public void testInvalidArgs() {
+    try {
+      out.setMemoryThreshold(-1);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      out.setTempFileCount(-1);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testTempDirectory() {
+    out.setTempDirectory("");
+    assertNull(out.getTempDirectory());
+    out.setTempDirectory("/tmp");
+    assertEquals("/tmp", out.getTempDirectory().getPath());
+  }
+
+  /** Tests that small documents reuse the pooled buffers. */
+  public void testMemory() throws Exception {
+    out.initialize(connector, client);
+    InputStream in = out.getInputStream(0, OBJECT_ID, 0, 100);
+    assertEmpty(in);
+    assertEquals(0, out.getIdleBufferCount());
+    in.close();
+    assertEquals(1, out.getIdleBufferCount());
+
+    // Closing the stream twice does not return the buffer twice.
+    in.close();
+    assertEquals(1, out.getIdleBufferCount());
+
+    in = out.getInputStream(0, OBJECT_ID, 0, 100);
+    assertEquals(0, out.getIdleBufferCount());
+    in.close();
+    assertEquals(1, out.getIdleBufferCount());
+  }
+
+  /** Tests that large documents reuse the temporary files. */
+  public void testFile() throws Exception {
+    out.setMemoryThreshold(10);
+    out.setTempFileCount(1);
+    out.initialize(connector, client);
+
+    InputStream first = out.getInputStream(0, OBJECT_ID, 0, 100);
+    assertEquals(0, out.getIdleFileCount());
+    InputStream second = out.getInputStream(0, OBJECT_ID, 0, 100);
+    assertEquals(0, out.getIdleFileCount());
+    assertEmpty(first);
+    assertEmpty(second);
+    first.close();
+    second.close();
+    assertEquals(1, out.getIdleFileCount());
+    assertEquals(0, out.getIdleBufferCount());
+  }
+
+  /** Tests that the pooled resources are returned on errors. */
+  public void testException() throws Exception {
+    out.setTempFileCount(1);
+    out.initialize(connector, client);
+    try {
+      out.getInputStream(0, MockConstants.DOCUMENT_OBJECT_ID, 0, 100);
+      fail("Expected a RepositoryDocumentException");
+    } catch (RepositoryDocumentException expected) {
+    }
+    assertEquals(1, out.getIdleBufferCount());
+
+    out.setMemoryThreshold(10);
+    try {
+      out.getInputStream(0, MockConstants.DOCUMENT_OBJECT_ID, 0, 100);
+      fail("Expected a RepositoryDocumentException");
+    } catch (RepositoryDocumentException expected) {
+    }
+    assertEquals(1, out.getIdleFileCount());
+  }
+}
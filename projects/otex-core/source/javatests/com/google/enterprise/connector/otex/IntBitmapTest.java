@@ -0,0 +1,136 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/** Tests the {@link IntBitmap} class, a compressed set of ints. */
+public class IntBitmapTest extends TestCase {
+  private IntBitmap bitmap;
+
+  protected void setUp() {
+    bitmap = new IntBitmap();
+  }
+
+  public void testEmpty() {
+    assertEquals(0, bitmap.size());
+    assertFalse(bitmap.contains(0));
+    assertFalse(bitmap.remove(0));
+  }
+
+  public void testAddRemove() {
+    assertTrue(bitmap.add(42));
+    assertFalse(bitmap.add(42));
+    assertTrue(bitmap.add(-1));
+    assertTrue(bitmap.add(Integer.MAX_VALUE));
+    assertEquals(3, bitmap.size());
+    assertTrue(bitmap.contains(42));
+    assertTrue(bitmap.contains(-1));
+    assertTrue(bitmap.contains(Integer.MAX_VALUE));
+    assertFalse(bitmap.contains(43));
+
+    assertTrue(bitmap.remove(42));
+    assertFalse(bitmap.remove(42));
+    assertFalse(bitmap.contains(42));
+    assertEquals(2, bitmap.size());
+  }
+
+  /** Tests the conversion between array and bitmap chunks. */
+  public void testDenseChunk() {
+    for (int i = 0; i < 10000; i++) {
+      assertTrue(bitmap.add(65536 + i * 2));
+    }
+    assertEquals(10000, bitmap.size());
+    for (int i = 0; i < 10000; i++) {
+      assertTrue(bitmap.contains(65536 + i * 2));
+      assertFalse(bitmap.contains(65536 + i * 2 + 1));
+    }
+    for (int i = 0; i < 9000; i++) {
+      assertTrue(bitmap.remove(65536 + i * 2));
+    }
+    assertEquals(1000, bitmap.size());
+    for (int i = 9000; i < 10000; i++) {
+      assertTrue(bitmap.contains(65536 + i * 2));
+    }
+    assertFalse(bitmap.contains(65536));
+  }
+
+  public void testClear() {
+    bitmap.add(1);
+    bitmap.add(100000);
+    bitmap.clear();
+    assertEquals(0, bitmap.size());
+    assertFalse(bitmap.contains(1));
+    assertFalse(bitmap.contains(100000));
+  }
+
+  /** Tests against a HashSet with random values in a few chunks. */
+  public void testRandom() {
+    Set<Integer> expected = new HashSet<Integer>();
+    Random random = new Random(42);
+    for (int i = 0; i < 50000; i++) {
+      int value = random.nextInt(4 * 65536);
+      if (random.nextInt(4) == 0) {
+        assertEquals(expected.remove(value), bitmap.remove(value));
+      } else {
+        assertEquals(expected.add(value), bitmap.add(value));
+      }
+    }
+    assertEquals(expected.size(), bitmap.size());
+    for (int value = 0; value < 4 * 65536; value++) {
+      assertEquals(expected.contains(value), bitmap.contains(value));
+    }
+  }
+
+  public void testWriteRead() throws IOException {
+    for (int i = 0; i < 5000; i++) {
+      bitmap.add(i);
+    }
+    bitmap.add(1000000);
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    bitmap.writeTo(new DataOutputStream(bytes));
+    // Two chunks: a bitmap and an array with one value.
+    assertEquals(4 + 6 + 8192 + 6 + 2, bytes.size());
+
+    IntBitmap copy = new IntBitmap();
+    copy.add(7000000);
+    copy.readFrom(new DataInputStream(
+        new ByteArrayInputStream(bytes.toByteArray())));
+    assertEquals(5001, copy.size());
+    assertTrue(copy.contains(4999));
+    assertTrue(copy.contains(1000000));
+    assertFalse(copy.contains(5000));
+    assertFalse(copy.contains(7000000));
+  }
+
+  public void testReadInvalid() {
+    try {
+      new IntBitmap().readFrom(new DataInputStream(
+          new ByteArrayInputStream(new byte[] { 0x7f, 0, 0, 0 })));
+      fail("Expected an IOException");
+    } catch (IOException expected) {
+    }
+  }
+}
@@ -0,0 +1,130 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/** Tests the {@link IntCache} class, a primitive CLOCK cache. */
+public class IntCacheTest extends TestCase {
+  private IntCache cache;
+
+  protected void setUp() {
+    cache = new IntCache(3, 3);
+    addAll(cache, 1, 2, 3);
+  }
+
+  private boolean addAll(IntCache cache, Integer... entries) {
+    return cache.addAll(Arrays.asList(entries));
+  }
+
+  public void testInvalidArgs() {
+    try {
+      cache = new IntCache(0, 1);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+
+    try {
+      cache = new IntCache(2, 1);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+
+    try {
+      cache = new IntCache(1, CacheMap.MAXIMUM_CAPACITY + 1);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testCacheHit() {
+    assertTrue(cache.toString(), cache.contains(2));
+  }
+
+  public void testCacheMiss() {
+    assertFalse(cache.toString(), cache.contains(5));
+  }
+
+  public void testCacheOverflow() {
+    addAll(cache, 4);
+    assertEquals(3, cache.statistics().entries);
+    assertTrue(cache.toString(), cache.contains(4));
+  }
+
+  public void testCacheAccessOrder() {
+    // Touch all but one entry and add a new entry.
+    assertTrue(cache.toString(), cache.contains(1));
+    assertTrue(cache.toString(), cache.contains(3));
+    addAll(cache, 4);
+
+    assertTrue(cache.toString(), cache.contains(1));
+    assertFalse(cache.toString(), cache.contains(2));
+    assertTrue(cache.toString(), cache.contains(3));
+    assertTrue(cache.toString(), cache.contains(4));
+  }
+
+  public void testModified() {
+    // Cache contains 1, 2, 3.
+    assertFalse(cache.toString(), addAll(cache, 1, 2, 3));
+    assertTrue(cache.toString(), addAll(cache, 4));
+    assertFalse(cache.toString(), addAll(cache, 4));
+  }
+
+  public void testStatistics() {
+    cache.contains(1);
+    cache.contains(2);
+    cache.contains(5);
+    assertEquals("3 entries, 2 hits, 1 misses",
+        cache.statistics().toString());
+  }
+
+  public void testMinValue() {
+    assertFalse(addAll(cache, Integer.MIN_VALUE));
+    assertFalse(cache.contains(Integer.MIN_VALUE));
+  }
+
+  /**
+   * Tests growing the table and evicting values, with negative
+   * values and values that collide, against a simple model of the
+   * cache contents.
+   */
+  public void testGrowAndEvict() {
+    cache = new IntCache(4, 100);
+    Random random = new Random(42);
+    for (int i = 0; i < 10000; i++) {
+      int value = random.nextInt(400) - 200;
+      boolean present = cache.contains(value);
+      if (!present) {
+        cache.add(value);
+        assertTrue(value + " " + cache, cache.contains(value));
+      }
+      assertTrue(cache.statistics().entries <= 100);
+    }
+    assertEquals(100, cache.statistics().entries);
+
+    // Every value that is reported as present must still be found
+    // after the removals shifted values around.
+    int found = 0;
+    for (int value = -200; value < 200; value++) {
+      if (cache.contains(value)) {
+        found++;
+      }
+    }
+    assertEquals(100, found);
+  }
+}
@@ -23,6 +23,10 @@ import java.sql.Statement;
 
 /** Manages an in-memory H2 database modeling the Livelink database. */
 class JdbcFixture {
+  private static final String CREATE_TABLE_CATREGIONMAP =
+      "create table CatRegionMap (CatID int, CatName varchar, "
+      + "SetName varchar, AttrName varchar, RegionName varchar)";
+
   private static final String CREATE_TABLE_DAUDITNEW = "create table DAuditNew "
       + "(EventID bigint primary key, AuditID int, DataID int, "
       + "SubType int, AuditDate timestamp)";
@@ -43,6 +47,12 @@ class JdbcFixture {
   private static final String CREATE_TABLE_KDUAL =
       "create table KDual (dummy int primary key)";
 
+  private static final String CREATE_TABLE_LLATTRDATA =
+      "create table LLAttrData (ID int, DefID int, DefVerN int, "
+      + "AttrID int, AttrType int, EntryNum int, ParentKeyID int, "
+      + "KeyID int, VerNum int, ValInt int, ValReal double, "
+      + "ValDate timestamp, ValStr varchar, ValLong varchar)";
+
   private static final String CREATE_TABLE_KUAF =
       "create table KUAF "
       + "(ID int, Name varchar, Type int, GroupID int, UserData varchar," +
@@ -71,6 +81,7 @@ class JdbcFixture {
     jdbcConnection = MockClient.getConnection();
 
     executeUpdate(
+        CREATE_TABLE_CATREGIONMAP,
         CREATE_TABLE_DAUDITNEW,
         CREATE_TABLE_DTREE,
         CREATE_TABLE_DTREEACL,
@@ -78,6 +89,7 @@ class JdbcFixture {
         CREATE_TABLE_KDUAL,
         CREATE_TABLE_KUAF,
         CREATE_TABLE_KUAFCHILDREN,
+        CREATE_TABLE_LLATTRDATA,
         CREATE_TABLE_WEBNODES);
 
     executeUpdate(
@@ -290,6 +290,15 @@ public class LivelinkConnectorTest extends TestCase {
     connector.login();
   }
 
+  /** Tests versionIndexFile, which is supported by every feed type. */
+  public void testVersionIndexFile() throws RepositoryException {
+    for (String feedType : new String[] { "content", "contenturl" }) {
+      connector.setFeedType(feedType);
+      connector.setVersionIndexFile("version.index");
+      connector.login();
+    }
+  }
+
   /**
    * Tests the check for System Administration rights.
    */
@@ -38,14 +38,19 @@ import com.google.enterprise.connector.spi.SimpleTraversalContext;
 import com.google.enterprise.connector.spi.SpiConstants;
 import com.google.enterprise.connector.spi.TraversalContext;
 import com.google.enterprise.connector.spi.Value;
+import com.google.enterprise.connector.spiimpl.BinaryValue;
 import com.google.enterprise.connector.spiimpl.PrincipalValue;
 
 import junit.framework.TestCase;
 
+import java.io.File;
+import java.io.InputStream;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 public class LivelinkDocumentListTest extends TestCase {
@@ -129,6 +134,12 @@ public class LivelinkDocumentListTest extends TestCase {
             new LivelinkAuthorizationManager());
       } else if (property.equals("unsupportedFetchVersionTypes")) {
         connector.setUnsupportedFetchVersionTypes(value);
+      } else if (property.equals("batchAcls")) {
+        connector.setBatchAcls(Boolean.parseBoolean(value));
+      } else if (property.equals("versionIndexFile")) {
+        connector.setVersionIndexFile(value);
+      } else if (property.equals("fedItemsFile")) {
+        connector.setFedItemsFile(value);
       }
     }
 
@@ -231,6 +242,36 @@ public class LivelinkDocumentListTest extends TestCase {
       Client client, ContentHandler contentHandler,
       TraversalContext traversalContext, Object... docInfo)
       throws RepositoryException {
+    return getObjectUnderTest(connector, client, contentHandler,
+        traversalContext, null, docInfo);
+  }
+
+  /**
+   * Creates a LivelinkDocumentList containing documents for the tests,
+   * collecting the document metadata using an enrichment pool.
+   *
+   * @param threads the number of enrichment threads
+   * @param docInfo a sequence of triplets as described above
+   */
+  private DocumentList getEnrichedObjectUnderTest(int threads,
+      Object... docInfo) throws RepositoryException {
+    LivelinkConnector connector = getConnector();
+    ClientFactory clientFactory = connector.getClientFactory();
+    Client client = clientFactory.createClient();
+    List<Client> clients = new ArrayList<Client>();
+    for (int i = 0; i < threads; i++) {
+      clients.add(clientFactory.createClient());
+    }
+
+    return getObjectUnderTest(connector, client, new FileContentHandler(),
+        null, new EnrichmentPool(clients), docInfo);
+  }
+
+  /** Helper method for the other helper methods. */
+  private DocumentList getObjectUnderTest(LivelinkConnector connector,
+      Client client, ContentHandler contentHandler,
+      TraversalContext traversalContext, EnrichmentPool enrichmentPool,
+      Object... docInfo) throws RepositoryException {
     contentHandler.initialize(connector, client);
 
     final String[] FIELDS = {
@@ -255,9 +296,136 @@ public class LivelinkDocumentListTest extends TestCase {
 
     return new LivelinkDocumentList(connector, client,
         contentHandler, recArray, fields, null, traversalContext, checkpoint,
+        connector.getUsername(), enrichmentPool);
+  }
+
+  /**
+   * Creates a LivelinkDocumentList containing one document with the
+   * given version number, for the version index tests.
+   */
+  private DocumentList getVersionedObjectUnderTest(
+      LivelinkConnector connector, ContentHandler contentHandler,
+      int versionNum) throws RepositoryException {
+    Client client = connector.getClientFactory().createClient();
+    contentHandler.initialize(connector, client);
+
+    final String[] FIELDS = {
+      "ModifyDate", "DataID", "OwnerID", "SubType", "MimeType", "DataSize",
+      "UserID", "UserData", "VersionNum" };
+    ClientValue recArray = new MockClientValue(FIELDS, new Object[][] {
+        { new Date(), MockConstants.HARMLESS_OBJECT_ID, 2000, 144,
+          "text/plain", 1729L, USER_ID, null, versionNum } });
+
+    Field[] fields = new Field[FIELDS.length];
+    for (int i = 0; i < fields.length; i++) {
+      fields[i] = new Field(FIELDS[i], FIELDS[i]);
+    }
+    return new LivelinkDocumentList(connector, client,
+        contentHandler, recArray, fields, null, null, new Checkpoint(),
         connector.getUsername());
   }
 
+  /** Counts the content fetched by a {@code FileContentHandler}. */
+  private static class CountingContentHandler extends FileContentHandler {
+    private int count = 0;
+
+    @Override
+    public InputStream getInputStream(int volumeId, int objectId,
+        int versionNumber, int size) throws RepositoryException {
+      count++;
+      return super.getInputStream(volumeId, objectId, versionNumber, size);
+    }
+  }
+
+  /**
+   * Tests that content is fed once for each version, and that the
+   * same version is fed again as a metadata-only update, without
+   * fetching the content.
+   */
+  public void testVersionIndex() throws Exception {
+    File indexFile = File.createTempFile("version", ".index");
+    assertTrue(indexFile.delete());
+    try {
+      LivelinkConnector connector =
+          getConnector("versionIndexFile", indexFile.getPath());
+      CountingContentHandler contentHandler = new CountingContentHandler();
+
+      // The content is recorded once it has been read and the batch
+      // is checkpointed.
+      DocumentList list =
+          getVersionedObjectUnderTest(connector, contentHandler, 1);
+      Document doc = list.nextDocument();
+      Property content = doc.findProperty(SpiConstants.PROPNAME_CONTENT);
+      assertNotNull(content);
+      assertEquals(1, contentHandler.count);
+      InputStream in = ((BinaryValue) content.nextValue()).getInputStream();
+      while (in.read() != -1) {
+      }
+      in.close();
+      assertNull(list.nextDocument());
+      list.checkpoint();
+      assertTrue(connector.getVersionIndex().isUnchanged(
+          MockConstants.HARMLESS_OBJECT_ID, 1, 1729L));
+
+      doc = getVersionedObjectUnderTest(connector, contentHandler, 1)
+          .nextDocument();
+      assertNull(doc.findProperty(SpiConstants.PROPNAME_CONTENT));
+      assertEquals("CONTENTURL",
+          doc.findProperty(SpiConstants.PROPNAME_FEEDTYPE).nextValue()
+          .toString());
+      assertEquals(1, contentHandler.count);
+
+      doc = getVersionedObjectUnderTest(connector, contentHandler, 2)
+          .nextDocument();
+      assertNotNull(doc.findProperty(SpiConstants.PROPNAME_CONTENT));
+      assertNull(doc.findProperty(SpiConstants.PROPNAME_FEEDTYPE));
+      assertEquals(2, contentHandler.count);
+    } finally {
+      VersionIndex.delete(indexFile);
+    }
+  }
+
+  /**
+   * Tests that delete actions are only sent for items that were fed,
+   * while the checkpoint moves past all of the delete events.
+   */
+  public void testFedItemSet() throws Exception {
+    File itemsFile = File.createTempFile("fed", ".items");
+    assertTrue(itemsFile.delete());
+    try {
+      LivelinkConnector connector =
+          getConnector("fedItemsFile", itemsFile.getPath());
+      FedItemSet fedItemSet = connector.getFedItemSet();
+      fedItemSet.reset();
+      fedItemSet.add(42);
+      fedItemSet.markCaughtUp();
+
+      ClientValue delArray = new MockClientValue(
+          new String[] { "AuditDate", "DataID", "EventID" },
+          new Object[][] {
+            { "2013-05-01 00:00:00", 24, 10050L },
+            { "2013-05-01 00:00:01", 42, 10051L },
+            { "2013-05-01 00:00:02", 66, 10052L } });
+      Client client = connector.getClientFactory().createClient();
+      DocumentList list = new LivelinkDocumentList(connector, client,
+          new FileContentHandler(), null, new Field[0], delArray, null,
+          new Checkpoint(), connector.getUsername());
+
+      Document doc = list.nextDocument();
+      assertNotNull(doc);
+      assertEquals("42",
+          doc.findProperty(SpiConstants.PROPNAME_DOCID).nextValue()
+          .toString());
+      assertNull(list.nextDocument());
+      assertEquals(",0,2013-05-01 00:00:02.000,10052", list.checkpoint());
+
+      // The deleted item is removed from the set.
+      assertFalse(fedItemSet.contains(42));
+    } finally {
+      itemsFile.delete();
+    }
+  }
+
   public void testContentHandler() throws RepositoryException {
     ContentHandler contentHandler = createMock(ContentHandler.class);
     contentHandler.initialize(isA(LivelinkConnector.class), isA(Client.class));
@@ -448,6 +616,45 @@ public class LivelinkDocumentListTest extends TestCase {
     }
   }
 
+  /** Records the IDs looked up individually by GetUserOrGroupByID. */
+  private static class UserLookupClient extends MockClient {
+    private final Set<Integer> lookups = new HashSet<Integer>();
+
+    public Set<Integer> getLookups() {
+      return lookups;
+    }
+
+    @Override
+    public ClientValue GetUserOrGroupByIDNoThrow(int id)
+        throws RepositoryException {
+      lookups.add(id);
+      return super.GetUserOrGroupByIDNoThrow(id);
+    }
+  }
+
+  /**
+   * Tests that the user names in the recarray are resolved in bulk,
+   * without looking up each user, including missing users.
+   */
+  public void testNextDocument_resolveUserNames()
+      throws RepositoryException {
+    UserLookupClient client = new UserLookupClient();
+    DocumentList list = getObjectUnderTest(getConnector("batchAcls", "true"),
+        client, 21, 0, 1001, 22, 0, 1002, 23, 0, 1555, 24, 0, 1001);
+
+    Document doc = list.nextDocument();
+    assertEquals("user1", Value.getSingleValueString(doc, "UserID"));
+    doc = list.nextDocument();
+    assertEquals("user2", Value.getSingleValueString(doc, "UserID"));
+    doc = list.nextDocument();
+    assertNull(doc.findProperty("UserID"));
+    doc = list.nextDocument();
+    assertEquals("user1", Value.getSingleValueString(doc, "UserID"));
+    assertNull(list.nextDocument());
+
+    assertEquals(ImmutableSet.of(), client.getLookups());
+  }
+
   /**
    * Tests a pair of documents where FetchVersion should throw a
    * RepositoryDocumentException on the first and a repository
@@ -553,6 +760,53 @@ public class LivelinkDocumentListTest extends TestCase {
     assertNull(next);
   }
 
+  /**
+   * Tests that the documents are returned in order with their own
+   * ACLs when the metadata is collected by multiple threads.
+   */
+  public void testEnrichment_order() throws RepositoryException, SQLException {
+    insertDTreeAcl(21, 1001, Client.PERM_SEECONTENTS);
+    insertDTreeAcl(22, 1002, Client.PERM_SEECONTENTS);
+    insertDTreeAcl(23, 1003, Client.PERM_SEECONTENTS);
+    insertDTreeAcl(24, 2001, Client.PERM_SEECONTENTS);
+    insertDTreeAcl(25, 2002, Client.PERM_SEECONTENTS);
+
+    DocumentList list = getEnrichedObjectUnderTest(2,
+        21, 0, 1001, 22, 0, 1001, 23, 0, 1001, 24, 0, 1001, 25, 0, 1001);
+
+    String[] users = { "user1", "user2", "user3" };
+    for (int i = 0; i < users.length; i++) {
+      Document doc = list.nextDocument();
+      assertNotNull(doc);
+      assertEquals(String.valueOf(21 + i),
+          Value.getSingleValueString(doc, "DataID"));
+      assertEquals(ImmutableSet.of(users[i]),
+          getPrincipalsNames(doc, SpiConstants.PROPNAME_ACLUSERS));
+      assertAclGroupsEquals(doc);
+    }
+    String[] groups = { "group1", "group2" };
+    for (int i = 0; i < groups.length; i++) {
+      Document doc = list.nextDocument();
+      assertNotNull(doc);
+      assertEquals(String.valueOf(24 + i),
+          Value.getSingleValueString(doc, "DataID"));
+      assertAclGroupsEquals(doc, groups[i]);
+    }
+    assertNull(list.nextDocument());
+    assertTrue(list.checkpoint(), list.checkpoint().endsWith(",25"));
+  }
+
+  /**
+   * Tests that exceptions are handled as usual when the metadata is
+   * collected by multiple threads.
+   */
+  public void testEnrichment_repository_fail() throws RepositoryException {
+    DocumentList list = getEnrichedObjectUnderTest(2,
+        MockConstants.REPOSITORY_OBJECT_ID, 1, USER_ID,
+        MockConstants.IO_OBJECT_ID, 1, USER_ID);
+    testNextDocument_skipped_fail(list, MockConstants.REPOSITORY_OBJECT_ID);
+  }
+
   private void insertDTreeAcl(int dataID, int rightID, int permissions)
       throws SQLException {
     jdbcFixture.executeUpdate(
@@ -877,4 +1131,90 @@ public class LivelinkDocumentListTest extends TestCase {
             EVERYTHING_CASE_SENSITIVE),
         getAclPrincipal(doc, SpiConstants.PROPNAME_ACLUSERS, "user1"));
   }
+
+  public void testBatchAcls_usersAndGroups()
+      throws RepositoryException, SQLException {
+    insertDTreeAcl(21, 1002, Client.PERM_MODIFY);
+    insertDTreeAcl(21, 1003, Client.PERM_SEECONTENTS);
+    insertDTreeAcl(21, 2002, Client.PERM_SEECONTENTS);
+    insertDTreeAcl(21, 2666, Client.PERM_SEECONTENTS);
+    insertDTreeAcl(21, Client.RIGHT_OWNER, Client.PERM_FULL);
+    insertDTreeAcl(21, Client.RIGHT_GROUP, Client.PERM_SEECONTENTS);
+    insertDTreeAcl(21, Client.RIGHT_WORLD, Client.PERM_SEE);
+
+    DocumentList list = getObjectUnderTest(
+        getConnector("batchAcls", "true"), 21, 0, 1001);
+    Document doc = list.nextDocument();
+
+    assertNotNull(doc);
+    assertEquals(ImmutableSet.of("user1", "user3"),
+        getPrincipalsNames(doc, SpiConstants.PROPNAME_ACLUSERS));
+    assertAclGroupsEquals(doc, "group1", "group2");
+  }
+
+  /** Tests that each document gets its own ACL from the batch. */
+  public void testBatchAcls_multipleDocuments()
+      throws RepositoryException, SQLException {
+    insertDTreeAcl(21, 1002, Client.PERM_SEECONTENTS);
+    insertDTreeAcl(22, Client.RIGHT_OWNER, Client.PERM_SEECONTENTS);
+    insertDTreeAcl(23, Client.RIGHT_GROUP, Client.PERM_SEECONTENTS);
+    insertDTreeAcl(23, Client.RIGHT_WORLD, Client.PERM_SEECONTENTS);
+
+    DocumentList list = getObjectUnderTest(
+        getConnector("batchAcls", "true"),
+        21, 0, 1001, 22, 0, 1003, 23, 0, 1003, 24, 0, 1001);
+
+    Document doc = list.nextDocument();
+    assertNotNull(doc);
+    assertEquals(ImmutableSet.of("user2"),
+        getPrincipalsNames(doc, SpiConstants.PROPNAME_ACLUSERS));
+    assertAclGroupsEquals(doc);
+
+    doc = list.nextDocument();
+    assertNotNull(doc);
+    assertEquals(ImmutableSet.of("user3"),
+        getPrincipalsNames(doc, SpiConstants.PROPNAME_ACLUSERS));
+    assertAclGroupsEquals(doc);
+
+    doc = list.nextDocument();
+    assertNotNull(doc);
+    assertEquals(ImmutableSet.of(),
+        getPrincipalsNames(doc, SpiConstants.PROPNAME_ACLUSERS));
+    assertAclGroupsEquals(doc, "group2", Client.PUBLIC_ACCESS_GROUP);
+
+    doc = list.nextDocument();
+    assertNotNull(doc);
+    assertEquals(ImmutableSet.of(),
+        getPrincipalsNames(doc, SpiConstants.PROPNAME_ACLUSERS));
+    assertAclGroupsEquals(doc);
+
+    assertNull(list.nextDocument());
+  }
+
+  public void testBatchAcls_namespace()
+      throws RepositoryException, SQLException {
+    insertDTreeAcl(39, 1002, Client.PERM_SEECONTENTS);
+    insertDTreeAcl(39, 2001, Client.PERM_SEECONTENTS);
+    insertDTreeAcl(39, Client.RIGHT_OWNER, Client.PERM_SEECONTENTS);
+    setUserData(1001, "ExternalAuthentication=false,ldap=vizdom.com");
+    setUserData(1002, "ExternalAuthentication=false");
+    setUserData(2001, "ExternalAuthentication=true");
+
+    DocumentList list = getObjectUnderTest(
+        getConnector("batchAcls", "true"), 39, 0, 1001);
+    Document doc = list.nextDocument();
+    assertNotNull(doc);
+    assertEquals(
+        new Principal(UNKNOWN, GLOBAL_NAMESPACE, "user1",
+            EVERYTHING_CASE_SENSITIVE),
+        getAclPrincipal(doc, SpiConstants.PROPNAME_ACLUSERS, "user1"));
+    assertEquals(
+        new Principal(UNKNOWN, LOCAL_NAMESPACE, "user2",
+            EVERYTHING_CASE_SENSITIVE),
+        getAclPrincipal(doc, SpiConstants.PROPNAME_ACLUSERS, "user2"));
+    assertEquals(
+        new Principal(UNKNOWN, GLOBAL_NAMESPACE, "group1",
+            EVERYTHING_CASE_SENSITIVE),
+        getAclPrincipal(doc, SpiConstants.PROPNAME_ACLGROUPS, "group1"));
+  }
 }
@@ -574,6 +574,23 @@ public class LivelinkTraversalManagerTest extends TestCase {
     assertEquals(2, results.size());
   }
 
+  /** Tests that long candidate lists are split into IN lists. */
+  public void testGetResultsChunks() throws RepositoryException {
+    Session sess = conn.login();
+    LivelinkTraversalManager ltm =
+        (LivelinkTraversalManager) sess.getTraversalManager();
+
+    StringBuilder candidates = new StringBuilder("24");
+    for (int i = 0; i < 2 * SqlQueries.MAX_IN_LIST; i++) {
+      candidates.append(',').append(100000 + i);
+    }
+    candidates.append(",42");
+    ClientValue results = ltm.getResults(candidates.toString(), new Date());
+    assertEquals(2, results.size());
+    assertEquals(24, results.toInteger(0, "DataID"));
+    assertEquals(42, results.toInteger(1, "DataID"));
+  }
+
   private LivelinkTraversalManager getObjectUnderTest(Client traversalClient)
       throws RepositoryException {
     conn.login();
@@ -696,6 +713,262 @@ public class LivelinkTraversalManagerTest extends TestCase {
     }
   }
 
+  /** Tests that the checkpoint skips to the next matching item. */
+  public void testSkipToNextMatching() throws Exception {
+    LivelinkTraversalManager ltm = getObjectUnderTest(true, null);
+
+    // 2000 and 2901 are not under the included node 6.
+    Checkpoint checkpoint = new Checkpoint("2001-01-01 00:00:00,42");
+    ltm.skipToNextMatching(checkpoint);
+    assertEquals("2002-02-02 00:00:00,5", checkpoint.toString());
+    assertTrue(checkpoint.hasChanged());
+  }
+
+  /** Tests that the checkpoint is unchanged if nothing matches. */
+  public void testSkipToNextMatching_none() throws Exception {
+    LivelinkTraversalManager ltm = getObjectUnderTest(true, null);
+
+    Checkpoint checkpoint = new Checkpoint("2002-02-02 00:00:00,66");
+    ltm.skipToNextMatching(checkpoint);
+    assertEquals("2002-02-02 00:00:00,66", checkpoint.toString());
+    assertFalse(checkpoint.hasChanged());
+  }
+
+  /**
+   * Tests that the checkpoint is unchanged without DTreeAncestors,
+   * since the included node cannot be applied to the probe.
+   */
+  public void testSkipToNextMatching_noDTreeAncestors() throws Exception {
+    LivelinkTraversalManager ltm = getObjectUnderTest(false, null);
+
+    Checkpoint checkpoint = new Checkpoint("2001-01-01 00:00:00,42");
+    ltm.skipToNextMatching(checkpoint);
+    assertEquals("2001-01-01 00:00:00,42", checkpoint.toString());
+    assertFalse(checkpoint.hasChanged());
+  }
+
+  private int[] getCandidateIds(int subtreeCandidatesThreshold)
+      throws Exception {
+    conn.setSubtreeCandidatesThreshold(subtreeCandidatesThreshold);
+    LivelinkTraversalManager ltm = getObjectUnderTest(true, null);
+    Checkpoint checkpoint = new Checkpoint("2001-01-01 00:00:00,42");
+    ClientValue candidates = ltm.getCandidates(checkpoint, 10,
+        new MockClient());
+    int[] ids = new int[candidates.size()];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = candidates.toInteger(i, "DataID");
+    }
+    return ids;
+  }
+
+  /** Tests that all of DTree is scanned by default. */
+  public void testGetCandidates() throws Exception {
+    assertTrue(Arrays.equals(new int[] { 2000, 2901, 6, 66 },
+            getCandidateIds(1)));
+  }
+
+  /** Tests that candidates can come from the included subtree. */
+  public void testGetCandidates_subtree() throws Exception {
+    assertTrue(Arrays.equals(new int[] { 6, 66 }, getCandidateIds(100)));
+  }
+
+  public void testGetCandidates_disabled() throws Exception {
+    assertTrue(Arrays.equals(new int[] { 2000, 2901, 6, 66 },
+            getCandidateIds(0)));
+  }
+
+  /**
+   * Tests that the items in a window move the window's checkpoint,
+   * and that the window field survives a round trip.
+   */
+  public void testWindowCheckpoint() throws Exception {
+    Checkpoint checkpoint = new Checkpoint("2002-02-02 00:00:00,66,,,"
+        + "w=2001-01-01 00:00:00;24;2001-06-01 00:00:00");
+    assertEquals(1, checkpoint.getWindows().size());
+
+    checkpoint.setInsertCheckpoint(
+        dateFormat.parse("2001-01-01 00:00:00"), 42);
+    assertEquals("2002-02-02 00:00:00,66,,,"
+        + "w=2001-01-01 00:00:00;42;2001-06-01 00:00:00",
+        checkpoint.toString());
+    assertTrue(checkpoint.hasChanged());
+
+    checkpoint.restore();
+    assertEquals("2002-02-02 00:00:00,66,,,"
+        + "w=2001-01-01 00:00:00;24;2001-06-01 00:00:00",
+        checkpoint.toString());
+
+    checkpoint.removeWindow(checkpoint.getWindows().get(0));
+    assertEquals("2002-02-02 00:00:00,66", checkpoint.toString());
+    assertTrue(checkpoint.hasChanged());
+  }
+
+  /**
+   * Tests a partitioned traversal, and that the checkpoint reverts to
+   * the original format when the window is finished, across a
+   * shutdown of the traversal manager.
+   */
+  public void testPartitionedTraversal() throws Exception {
+    conn.setTraversalPartitions(2);
+    LivelinkTraversalManager ltm = getObjectUnderTest(true, null);
+
+    // 24 and 42 are in the first window, and 66 is in the second.
+    DocumentList list = ltm.startTraversal();
+    assertDocumentListEquals(ImmutableList.of("24", "42"), list);
+    String checkpoint = list.checkpoint();
+    assertTrue(checkpoint, checkpoint.startsWith(
+            "2002-02-02 00:00:00,66,2013-04-24 08:00:00.000,10042,"
+            + "w=2001-01-01 00:00:00;2901;"));
+
+    // The window threads and clients are created again after shutdown.
+    ltm.shutdown();
+    list = ltm.resumeTraversal(checkpoint);
+    assertNull(list.nextDocument());
+    assertEquals("2002-02-02 00:00:00,66,2013-04-24 08:00:00.000,10042",
+        list.checkpoint());
+  }
+
+  /**
+   * Tests that a tail lane starts at the latest ModifyDate, and that
+   * the backfill window still returns the older items.
+   */
+  public void testTailLane() throws Exception {
+    conn.setTailLaneRatio(1);
+    LivelinkTraversalManager ltm = getObjectUnderTest(true, null);
+
+    // The first batch from the tail lane has 6 and 66 as candidates,
+    // but no results, so the backfill batch is returned.
+    DocumentList list = ltm.startTraversal();
+    assertDocumentListEquals(ImmutableList.of("24", "42"), list);
+    String checkpoint = list.checkpoint();
+    assertEquals("2002-02-02 00:00:00,66,2013-04-24 08:00:00.000,10042,"
+        + "w=2001-01-01 00:00:00;2901;2002-02-02 00:00:00", checkpoint);
+
+    list = ltm.resumeTraversal(checkpoint);
+    assertNull(list.nextDocument());
+    assertEquals("2002-02-02 00:00:00,66,2013-04-24 08:00:00.000,10042",
+        list.checkpoint());
+  }
+
+  /**
+   * Tests that the change feed returns the indexed items from the
+   * audit events without moving the insert checkpoint.
+   */
+  public void testChangeFeed() throws Exception {
+    jdbcFixture.executeUpdate(
+        "insert into DAuditNew(EventID, AuditID, DataID, AuditDate) "
+        + "values(10050, 1, 42, timestamp'2013-05-01 00:00:00')",
+        "insert into DAuditNew(EventID, AuditID, DataID, AuditDate) "
+        + "values(10051, 1, 2901, timestamp'2013-05-01 00:00:00')",
+        "insert into DAuditNew(EventID, AuditID, DataID, AuditDate) "
+        + "values(10052, 3, 24, timestamp'2013-05-01 00:00:00')");
+    conn.setChangeFeedAuditIds("1");
+    LivelinkTraversalManager ltm = getObjectUnderTest(true, null);
+
+    // 2901 is not under the included node 6, and the event for 24 does
+    // not have a configured AuditID.
+    DocumentList list = ltm.resumeTraversal(
+        "2002-02-02 00:00:00,66,2013-04-24 08:00:00.000,10042,c=10042");
+    assertDocumentListEquals(ImmutableList.of("42"), list);
+    assertEquals("2002-02-02 00:00:00,66,2013-04-24 08:00:00.000,10042,"
+        + "c=10051", list.checkpoint());
+  }
+
+  /**
+   * Tests that the change feed checkpoint advances as the items are
+   * returned, so that an abandoned batch does not repeat the events
+   * whose items have already been fed.
+   */
+  public void testChangeFeed_partial() throws Exception {
+    jdbcFixture.executeUpdate(
+        "insert into DAuditNew(EventID, AuditID, DataID, AuditDate) "
+        + "values(10050, 1, 24, timestamp'2013-05-01 00:00:00')",
+        "insert into DAuditNew(EventID, AuditID, DataID, AuditDate) "
+        + "values(10051, 1, 2901, timestamp'2013-05-01 00:00:00')",
+        "insert into DAuditNew(EventID, AuditID, DataID, AuditDate) "
+        + "values(10052, 1, 42, timestamp'2013-05-01 00:00:00')",
+        "insert into DAuditNew(EventID, AuditID, DataID, AuditDate) "
+        + "values(10053, 1, 24, timestamp'2013-05-01 00:00:00')");
+    conn.setChangeFeedAuditIds("1");
+    LivelinkTraversalManager ltm = getObjectUnderTest(true, null);
+
+    DocumentList list = ltm.resumeTraversal(
+        "2002-02-02 00:00:00,66,2013-04-24 08:00:00.000,10042,c=10042");
+    String prefix = "2002-02-02 00:00:00,66,2013-04-24 08:00:00.000,10042,";
+    assertEquals(prefix + "c=10042", list.checkpoint());
+
+    // After 24, the event for 2901 is done, since it is not indexed,
+    // but the event for 42 is not.
+    Document doc = list.nextDocument();
+    assertEquals("24",
+        Value.getSingleValueString(doc, SpiConstants.PROPNAME_DOCID));
+    assertEquals(prefix + "c=10051", list.checkpoint());
+
+    doc = list.nextDocument();
+    assertEquals("42",
+        Value.getSingleValueString(doc, SpiConstants.PROPNAME_DOCID));
+    assertEquals(prefix + "c=10053", list.checkpoint());
+  }
+
+  /**
+   * Tests that the items affected by permission change events are
+   * re-fed, including the descendants of containers, without moving
+   * the insert checkpoint.
+   */
+  public void testAclChanges() throws Exception {
+    jdbcFixture.executeUpdate(
+        "insert into DAuditNew(EventID, AuditID, DataID, AuditDate) "
+        + "values(10060, 5, 6, timestamp'2013-05-01 00:00:00')",
+        "insert into DAuditNew(EventID, AuditID, DataID, AuditDate) "
+        + "values(10061, 1, 24, timestamp'2013-05-01 00:00:00')");
+    conn.setAclChangeAuditIds("5");
+    LivelinkTraversalManager ltm = getObjectUnderTest(true, null);
+
+    // The descendants of 6 are re-fed, but 6 is not in WebNodes, and
+    // the event for 24 does not have a configured AuditID. The insert
+    // checkpoint does not move.
+    DocumentList list = ltm.resumeTraversal(
+        "2002-02-02 00:00:00,66,2013-04-24 08:00:00.000,10042,a=10042;0");
+    assertDocumentListEquals(ImmutableList.of("24", "42", "66"), list);
+    assertEquals("2002-02-02 00:00:00,66,2013-04-24 08:00:00.000,10042,"
+        + "a=10060;0", list.checkpoint());
+  }
+
+  /**
+   * Tests that the permission change checkpoint records the last
+   * DataID re-fed as the items are returned, so that an abandoned
+   * batch does not repeat the items that have already been fed.
+   */
+  public void testAclChanges_partial() throws Exception {
+    jdbcFixture.executeUpdate(
+        "insert into DAuditNew(EventID, AuditID, DataID, AuditDate) "
+        + "values(10060, 5, 6, timestamp'2013-05-01 00:00:00')");
+    conn.setAclChangeAuditIds("5");
+    LivelinkTraversalManager ltm = getObjectUnderTest(true, null);
+
+    DocumentList list = ltm.resumeTraversal(
+        "2002-02-02 00:00:00,66,2013-04-24 08:00:00.000,10042,a=10042;0");
+    String prefix = "2002-02-02 00:00:00,66,2013-04-24 08:00:00.000,10042,";
+
+    // 6 is done before 24, since it is not in WebNodes.
+    Document doc = list.nextDocument();
+    assertEquals("24",
+        Value.getSingleValueString(doc, SpiConstants.PROPNAME_DOCID));
+    assertEquals(prefix + "a=10042;24", list.checkpoint());
+
+    doc = list.nextDocument();
+    assertEquals("42",
+        Value.getSingleValueString(doc, SpiConstants.PROPNAME_DOCID));
+    assertEquals(prefix + "a=10042;42", list.checkpoint());
+
+    // The following batch starts after 42. A new traversal manager is
+    // used, since the ACL batches alternate with the others.
+    ltm = getObjectUnderTest(true, null);
+    list = ltm.resumeTraversal(prefix + "a=10042;42");
+    assertDocumentListEquals(ImmutableList.of("66"), list);
+    assertEquals(prefix + "a=10060;0", list.checkpoint());
+  }
+
   private void assertNullOrEmpty(ClientValue value) {
     if (value != null) {
       assertEquals(0, value.size());
@@ -735,4 +1008,39 @@ public class LivelinkTraversalManagerTest extends TestCase {
   public void testSqlWhereCondition_webnodes_gen() throws Exception {
     testSqlWhereCondition(false, "MimeType is not null", 1);
   }
+
+  /**
+   * Tests that a prefetched batch is used when the previous batch is
+   * consumed completely.
+   */
+  public void testPrefetchCandidates() throws Exception {
+    conn.setPrefetchCandidates(true);
+    LivelinkTraversalManager ltm = getObjectUnderTest(true, null);
+    ltm.setBatchHint(1);
+
+    DocumentList list = ltm.startTraversal();
+    assertDocumentListEquals(ImmutableList.of("24"), list);
+    String checkpoint = list.checkpoint();
+    assertTrue(checkpoint, checkpoint.startsWith("2001-01-01 00:00:00,24,"));
+
+    list = ltm.resumeTraversal(checkpoint);
+    assertDocumentListEquals(ImmutableList.of("42"), list);
+  }
+
+  /**
+   * Tests that a prefetched batch is discarded when the traversal
+   * resumes from a different checkpoint.
+   */
+  public void testPrefetchCandidates_discarded() throws Exception {
+    conn.setPrefetchCandidates(true);
+    LivelinkTraversalManager ltm = getObjectUnderTest(true, null);
+    ltm.setBatchHint(1);
+
+    DocumentList list = ltm.startTraversal();
+    assertDocumentListEquals(ImmutableList.of("24"), list);
+
+    // Simulate a restored checkpoint by starting over.
+    list = ltm.resumeTraversal("2001-01-01 00:00:00,0");
+    assertDocumentListEquals(ImmutableList.of("24"), list);
+  }
 }
@@ -0,0 +1,243 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.enterprise.connector.otex.client.Client;
+import com.google.enterprise.connector.otex.client.ClientValue;
+import com.google.enterprise.connector.otex.client.mock.MockClient;
+import com.google.enterprise.connector.otex.client.mock.MockClientFactory;
+import com.google.enterprise.connector.otex.client.mock.MockConstants;
+import com.google.enterprise.connector.spi.RepositoryDocumentException;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Tests the {@link PooledClientFactory} class. */
+public class PooledClientFactoryTest extends TestCase {
+  /** A client that records the impersonated user. */
+  private static class ImpersonatingClient extends MockClient {
+    String impersonatedUser = null;
+    boolean broken = false;
+
+    @Override
+    public void ImpersonateUserEx(String username, String domain) {
+      impersonatedUser = username;
+    }
+
+    @Override
+    public ClientValue GetServerInfo() {
+      if (broken) {
+        throw new IllegalStateException("broken");
+      }
+      return super.GetServerInfo();
+    }
+  }
+
+  /** A factory that records the clients it creates. */
+  private static class RecordingClientFactory extends MockClientFactory {
+    final List<ImpersonatingClient> clients =
+        new ArrayList<ImpersonatingClient>();
+
+    @Override
+    public Client createClient() {
+      ImpersonatingClient client = new ImpersonatingClient();
+      clients.add(client);
+      return client;
+    }
+  }
+
+  private RecordingClientFactory factory;
+
+  protected void setUp() {
+    factory = new RecordingClientFactory();
+  }
+
+  public void testInvalidArgs() {
+    try {
+      new PooledClientFactory(factory, 0);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testProperties() {
+    PooledClientFactory pool = new PooledClientFactory(factory, 2);
+    pool.setServer("example.com");
+    assertEquals("example.com", factory.getValues().get("setServer"));
+  }
+
+  /** Tests that clients are only created on demand and are reused. */
+  public void testReuse() throws RepositoryException {
+    PooledClientFactory pool = new PooledClientFactory(factory, 2);
+    Client first = pool.createClient();
+    Client second = pool.createClient();
+    assertEquals(0, factory.clients.size());
+
+    first.GetServerInfo();
+    second.GetServerInfo();
+    first.GetCurrentUserID();
+    assertEquals(1, factory.clients.size());
+    assertEquals("1 idle, 0 borrowed, 1 created, 3 borrows, 0 waits, "
+        + "0 discarded", pool.statistics().toString());
+  }
+
+  /** Tests that calls only borrow clients impersonating the same user. */
+  public void testImpersonation() throws RepositoryException {
+    PooledClientFactory pool = new PooledClientFactory(factory, 3);
+    Client traversal = pool.createClient();
+    Client user = pool.createClient();
+    user.ImpersonateUserEx("joe", "");
+    Client other = pool.createClient();
+    other.ImpersonateUser("joe");
+
+    traversal.GetServerInfo();
+    user.GetServerInfo();
+    other.GetServerInfo();
+    assertEquals(2, factory.clients.size());
+    assertNull(factory.clients.get(0).impersonatedUser);
+    assertEquals("joe", factory.clients.get(1).impersonatedUser);
+  }
+
+  /** Tests that the least recently used idle client is discarded. */
+  public void testMaxSize() throws RepositoryException {
+    PooledClientFactory pool = new PooledClientFactory(factory, 1);
+    Client client = pool.createClient();
+    client.GetServerInfo();
+    client.ImpersonateUser("joe");
+    client.GetServerInfo();
+    assertEquals(2, factory.clients.size());
+
+    PooledClientFactory.Statistics stats = pool.statistics();
+    assertEquals(1, stats.idle);
+    assertEquals(1, stats.discarded);
+  }
+
+  /** Tests that a client that throws an exception is not reused. */
+  public void testDiscardOnException() throws RepositoryException {
+    PooledClientFactory pool = new PooledClientFactory(factory, 2);
+    Client client = pool.createClient();
+    client.GetServerInfo();
+    factory.clients.get(0).broken = true;
+    try {
+      client.GetServerInfo();
+      fail("Expected an IllegalStateException");
+    } catch (IllegalStateException expected) {
+    }
+
+    client.GetServerInfo();
+    assertEquals(2, factory.clients.size());
+    assertEquals(1, pool.statistics().discarded);
+    assertEquals(0, pool.statistics().borrowed);
+  }
+
+  /** Tests that a client is only discarded for transport errors. */
+  public void testDocumentException() throws RepositoryException {
+    PooledClientFactory pool = new PooledClientFactory(factory, 2);
+    Client client = pool.createClient();
+    File path = new File("unused");
+    try {
+      client.FetchVersion(0, MockConstants.DOCUMENT_OBJECT_ID, 1, path);
+      fail("Expected a RepositoryDocumentException");
+    } catch (RepositoryDocumentException expected) {
+    }
+    try {
+      client.FetchVersion(0, MockConstants.REPOSITORY_OBJECT_ID, 1, path);
+      fail("Expected a LivelinkException");
+    } catch (LivelinkException expected) {
+    }
+    assertEquals(0, pool.statistics().discarded);
+    assertEquals(1, pool.statistics().idle);
+
+    try {
+      client.FetchVersion(0, MockConstants.IO_OBJECT_ID, 1, path);
+      fail("Expected a LivelinkIOException");
+    } catch (LivelinkIOException expected) {
+    }
+    assertEquals(1, pool.statistics().discarded);
+    assertEquals(0, pool.statistics().idle);
+    assertEquals(1, factory.clients.size());
+  }
+
+  /** Tests that streaming fetches do not borrow a pooled client. */
+  public void testStreamingFetch() throws RepositoryException {
+    PooledClientFactory pool = new PooledClientFactory(factory, 1);
+    Client client = pool.createClient();
+    client.ImpersonateUser("joe");
+    client.FetchVersion(0, 42, 1, new ByteArrayOutputStream());
+    assertEquals(1, factory.clients.size());
+    assertEquals("joe", factory.clients.get(0).impersonatedUser);
+    assertEquals(0, pool.statistics().borrows);
+    assertEquals(0, pool.statistics().idle);
+  }
+
+  /** Tests that shutting down the pool discards the clients. */
+  public void testShutdown() throws RepositoryException {
+    PooledClientFactory pool = new PooledClientFactory(factory, 2);
+    Client client = pool.createClient();
+    client.GetServerInfo();
+    assertEquals(1, pool.statistics().idle);
+
+    pool.shutdown();
+    assertEquals(0, pool.statistics().idle);
+    assertEquals(1, pool.statistics().discarded);
+
+    // Later calls still work, without pooling.
+    client.GetServerInfo();
+    assertEquals(0, pool.statistics().idle);
+    assertEquals(2, factory.clients.size());
+  }
+
+  /** Tests that authentication clients are not pooled. */
+  public void testAuthenticationClient() {
+    PooledClientFactory pool = new PooledClientFactory(factory, 2);
+    Client client = pool.createClient("joe", "password");
+    assertTrue(client instanceof MockClient);
+    assertEquals("joe", factory.getUsername());
+  }
+
+  /** Tests that concurrent calls share the pool without exceeding it. */
+  public void testConcurrentCalls() throws Exception {
+    final PooledClientFactory pool = new PooledClientFactory(factory, 2);
+    final Client client = pool.createClient();
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+          public void run() {
+            try {
+              for (int j = 0; j < 100; j++) {
+                client.GetServerInfo();
+              }
+            } catch (RepositoryException e) {
+              throw new AssertionError(e);
+            }
+          }
+        };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    PooledClientFactory.Statistics stats = pool.statistics();
+    assertTrue(stats.toString(), stats.created <= 2);
+    assertEquals(400, stats.borrows);
+    assertEquals(0, stats.borrowed);
+  }
+}
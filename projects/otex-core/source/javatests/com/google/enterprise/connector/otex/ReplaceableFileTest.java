@@ -0,0 +1,115 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import junit.framework.TestCase;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/** Tests the {@link ReplaceableFile} class. */
+public class ReplaceableFileTest extends TestCase {
+  private File file;
+  private File temp;
+  private File backup;
+
+  protected void setUp() throws IOException {
+    file = File.createTempFile("replaceable", ".file");
+    assertTrue(file.delete());
+    temp = new File(file.getPath() + ".tmp");
+    backup = new File(file.getPath() + ".bak");
+  }
+
+  protected void tearDown() {
+    file.delete();
+    temp.delete();
+    backup.delete();
+  }
+
+  private static ReplaceableFile.Contents contents(final int value) {
+    return new ReplaceableFile.Contents() {
+        public void writeTo(DataOutputStream out) throws IOException {
+          out.writeInt(value);
+        }
+      };
+  }
+
+  private static int read(File source) throws IOException {
+    DataInputStream in = new DataInputStream(new FileInputStream(source));
+    try {
+      return in.readInt();
+    } finally {
+      in.close();
+    }
+  }
+
+  public void testMissingFile() {
+    assertNull(new ReplaceableFile(file).getReadableFile());
+  }
+
+  public void testWrite() throws IOException {
+    ReplaceableFile replaceable = new ReplaceableFile(file);
+    replaceable.write(contents(42));
+    assertEquals(file, replaceable.getReadableFile());
+    assertEquals(42, read(file));
+
+    replaceable.write(contents(24));
+    assertEquals(24, read(file));
+    assertFalse(temp.exists());
+    assertFalse(backup.exists());
+  }
+
+  /** Tests a replacement interrupted after the file was renamed. */
+  public void testInterruptedReplace() throws IOException {
+    ReplaceableFile replaceable = new ReplaceableFile(file);
+    replaceable.write(contents(42));
+    assertTrue(file.renameTo(backup));
+    assertEquals(backup, replaceable.getReadableFile());
+    assertEquals(42, read(replaceable.getReadableFile()));
+
+    replaceable.write(contents(24));
+    assertEquals(file, replaceable.getReadableFile());
+    assertEquals(24, read(file));
+    assertFalse(backup.exists());
+  }
+
+  /** Tests that a failed write leaves the previous file intact. */
+  public void testFailedWrite() throws IOException {
+    ReplaceableFile replaceable = new ReplaceableFile(file);
+    replaceable.write(contents(42));
+    try {
+      replaceable.write(new ReplaceableFile.Contents() {
+          public void writeTo(DataOutputStream out) throws IOException {
+            throw new IOException("failed");
+          }
+        });
+      fail("Expected an IOException");
+    } catch (IOException e) {
+    }
+    assertEquals(42, read(file));
+    assertFalse(temp.exists());
+  }
+
+  public void testDelete() throws IOException {
+    ReplaceableFile replaceable = new ReplaceableFile(file);
+    replaceable.write(contents(42));
+    assertTrue(file.renameTo(backup));
+    assertTrue(replaceable.delete());
+    assertNull(replaceable.getReadableFile());
+  }
+}
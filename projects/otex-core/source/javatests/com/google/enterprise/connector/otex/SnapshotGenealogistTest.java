@@ -0,0 +1,134 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.enterprise.connector.otex.SnapshotGenealogist.ParentIndex;
+import com.google.enterprise.connector.otex.client.mock.MockClientValue;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.sql.SQLException;
+
+/**
+ * Runs the tests in {@code GenealogistTest} using the
+ * {@code SnapshotGenealogist} implementation.
+ */
+public class SnapshotGenealogistTest extends GenealogistTest {
+  @Override
+  protected Class<? extends Genealogist> getClassUnderTest() {
+    return SnapshotGenealogist.class;
+  }
+
+  private SnapshotGenealogist getObjectUnderTest(String includedNodes,
+      String excludedNodes) throws RepositoryException {
+    return (SnapshotGenealogist) Genealogist.getGenealogist(
+        getClassUnderTest().getName(), client, includedNodes, excludedNodes,
+        10, 10);
+  }
+
+  /**
+   * Tests that the snapshot is loaded by the first batch, and that
+   * later batches only run one query to refresh the snapshot.
+   */
+  @Override
+  public void testCaching()
+      throws SQLException, RepositoryException {
+    SnapshotGenealogist genealogist = getObjectUnderTest("1", "");
+    assertNull(genealogist.index);
+
+    // The range, the negative nodes, and one window of nodes.
+    testMatching(genealogist, new Integer[] { 10100 }, "10100");
+    assertEquals(3, genealogist.queryCount);
+    assertEquals(23, genealogist.index.size());
+
+    testMatching(genealogist, new Integer[] { 1000, 2000, 3100 }, "1000");
+    assertEquals(4, genealogist.queryCount);
+    assertEquals(23, genealogist.index.size());
+  }
+
+  /** Tests that nodes added after the snapshot is loaded are found. */
+  public void testNewNodes()
+      throws SQLException, RepositoryException {
+    SnapshotGenealogist genealogist = getObjectUnderTest("10", "");
+    testMatching(genealogist, new Integer[] { 1000 }, "1000");
+    assertEquals(3, genealogist.queryCount);
+
+    // New nodes have higher DataIDs, including a new volume.
+    insertRows(new int[][] {
+        { 10200, 10 }, { 10201, 10200 },
+        { 10300, -1 }, { -10300, -1 }, { 10301, -10300 } });
+    testMatching(genealogist, new Integer[] { 10201, 10301 }, "10201");
+    assertEquals(4, genealogist.queryCount);
+    assertEquals(28, genealogist.index.size());
+  }
+
+  /** Tests that the ParentID of the matching nodes is used. */
+  public void testMovedNodes()
+      throws SQLException, RepositoryException {
+    SnapshotGenealogist genealogist = getObjectUnderTest("1", "");
+    testMatching(genealogist, new Integer[] { 1000 }, "1000");
+
+    // Node 301 has been moved from 30 to 10, along with its child.
+    MockClientValue matching = new MockClientValue(
+        new String[] { "DataID", "ParentID" },
+        new Integer[][] { { 301, 10 }, { 3010, 301 }, { 3000, 300 } });
+    assertEquals("301,3010", genealogist.getMatchingDescendants(matching));
+    assertEquals(10, genealogist.index.get(301));
+    assertEquals(4, genealogist.queryCount);
+  }
+
+  /**
+   * Tests that a node moved after the snapshot is loaded is found by
+   * its ModifyDate, so that its unmodified descendants are matched.
+   */
+  public void testModifiedNodes()
+      throws SQLException, RepositoryException {
+    executeUpdate("update DTree set ModifyDate = '2015-01-01 00:00:00'");
+    SnapshotGenealogist genealogist = getObjectUnderTest("1", "");
+    testMatching(genealogist, new Integer[] { 1000 }, "1000");
+    assertEquals(3, genealogist.queryCount);
+    assertEquals(30, genealogist.index.get(300));
+
+    // Node 300 has been moved from 30 to 10, but its child has not
+    // been modified.
+    executeUpdate("update DTree set ParentID = 10, "
+        + "ModifyDate = '2015-01-02 00:00:00' where DataID = 300");
+    testMatching(genealogist, new Integer[] { 3000 }, "3000");
+    assertEquals(4, genealogist.queryCount);
+    assertEquals(10, genealogist.index.get(300));
+    assertEquals(23, genealogist.index.size());
+  }
+
+  /** Tests the ParentIndex with nodes in and out of order. */
+  public void testParentIndex() {
+    ParentIndex index = new ParentIndex(2);
+    assertEquals(ParentIndex.MISSING, index.get(1));
+
+    for (int i = 1; i <= 100; i++) {
+      index.put(i * 10, i);
+    }
+    index.put(-20, -1);
+    index.put(15, 1);
+    index.put(30, 1);
+
+    assertEquals(102, index.size());
+    assertEquals(1, index.get(10));
+    assertEquals(1, index.get(30));
+    assertEquals(100, index.get(1000));
+    assertEquals(-1, index.get(-20));
+    assertEquals(1, index.get(15));
+    assertEquals(ParentIndex.MISSING, index.get(21));
+    assertEquals(ParentIndex.MISSING, index.get(-30));
+  }
+}
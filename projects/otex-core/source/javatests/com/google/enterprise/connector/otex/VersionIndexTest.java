@@ -0,0 +1,165 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/** Tests the {@link VersionIndex} class. */
+public class VersionIndexTest extends TestCase {
+  private File file;
+
+  protected void setUp() throws IOException {
+    file = File.createTempFile("version", ".index");
+    assertTrue(file.delete());
+  }
+
+  protected void tearDown() {
+    file.delete();
+    new File(file.getPath() + ".tmp").delete();
+    new File(file.getPath() + ".bak").delete();
+  }
+
+  public void testMissingFile() {
+    VersionIndex index = new VersionIndex(file);
+    assertEquals(0, index.size());
+    assertFalse(index.isUnchanged(42, 1, 1729));
+  }
+
+  public void testPendingUntilFlushed() {
+    VersionIndex index = new VersionIndex(file);
+    index.record(42, 1, 1729, 99L);
+    assertFalse(index.isUnchanged(42, 1, 1729));
+    assertFalse(file.exists());
+
+    index.flush();
+    assertTrue(index.isUnchanged(42, 1, 1729));
+    assertEquals(99L, index.getDigest(42));
+    assertEquals(0L, index.getDigest(24));
+    assertTrue(file.exists());
+  }
+
+  public void testChanged() {
+    VersionIndex index = new VersionIndex(file);
+    index.record(42, 1, 1729, 99L);
+    index.flush();
+    assertFalse(index.isUnchanged(42, 2, 1729));
+    assertFalse(index.isUnchanged(42, 1, 1730));
+    assertFalse(index.isUnchanged(24, 1, 1729));
+  }
+
+  public void testReadWrite() {
+    VersionIndex index = new VersionIndex(file);
+    index.record(42, 1, 1729, 99L);
+    index.flush();
+    index.record(24, 3, 100, 7L);
+    index.record(42, 2, 2000, 8L);
+    index.flush();
+
+    VersionIndex reread = new VersionIndex(file);
+    assertEquals(2, reread.size());
+    assertTrue(reread.isUnchanged(24, 3, 100));
+    assertTrue(reread.isUnchanged(42, 2, 2000));
+    assertFalse(reread.isUnchanged(42, 1, 1729));
+    assertEquals(8L, reread.getDigest(42));
+  }
+
+  public void testManyEntries() {
+    VersionIndex index = new VersionIndex(file);
+    for (int i = 1; i <= 5000; i++) {
+      index.record(i, 1, i, i);
+    }
+    index.flush();
+    for (int i = 1; i <= 5000; i++) {
+      index.record(i, 2, i, i);
+    }
+    index.flush();
+    assertEquals(5000, index.size());
+
+    VersionIndex reread = new VersionIndex(file);
+    assertEquals(5000, reread.size());
+    for (int i = 1; i <= 5000; i++) {
+      assertTrue(Integer.toString(i), reread.isUnchanged(i, 2, i));
+    }
+  }
+
+  public void testPartialRecord() throws IOException {
+    VersionIndex index = new VersionIndex(file);
+    index.record(42, 1, 1729, 99L);
+    index.flush();
+    index.record(24, 3, 100, 7L);
+    index.flush();
+
+    // Simulate an interrupted append.
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(raf.length() - 4);
+    } finally {
+      raf.close();
+    }
+
+    VersionIndex reread = new VersionIndex(file);
+    assertEquals(1, reread.size());
+    assertTrue(reread.isUnchanged(42, 1, 1729));
+    reread.record(66, 1, 1, 1L);
+    reread.flush();
+    assertEquals(2, new VersionIndex(file).size());
+  }
+
+  /** Tests reading the backup left by an interrupted replacement. */
+  public void testBackup() {
+    VersionIndex index = new VersionIndex(file);
+    index.record(42, 1, 1729, 99L);
+    index.flush();
+    assertTrue(file.renameTo(new File(file.getPath() + ".bak")));
+
+    VersionIndex reread = new VersionIndex(file);
+    assertTrue(reread.isUnchanged(42, 1, 1729));
+    reread.record(24, 3, 100, 7L);
+    reread.flush();
+    assertTrue(file.exists());
+    assertEquals(2, new VersionIndex(file).size());
+  }
+
+  public void testInvalidFile() throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write("not an index file".getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+    VersionIndex index = new VersionIndex(file);
+    assertEquals(0, index.size());
+
+    // The invalid file is replaced.
+    index.record(42, 1, 1729, 99L);
+    index.flush();
+    assertTrue(new VersionIndex(file).isUnchanged(42, 1, 1729));
+  }
+
+  public void testClear() {
+    VersionIndex index = new VersionIndex(file);
+    index.record(42, 1, 1729, 99L);
+    index.flush();
+    index.clear();
+    assertEquals(0, index.size());
+    assertFalse(index.isUnchanged(42, 1, 1729));
+    assertFalse(file.exists());
+  }
+}
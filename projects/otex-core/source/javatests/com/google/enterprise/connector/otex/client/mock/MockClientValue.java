@@ -15,6 +15,7 @@
 package com.google.enterprise.connector.otex.client.mock;
 
 import com.google.enterprise.connector.otex.client.ClientValue;
+import com.google.enterprise.connector.otex.client.ColumnarClientValue;
 import com.google.enterprise.connector.spi.RepositoryException;
 
 import java.util.ArrayList;
@@ -29,7 +30,7 @@ import java.util.Vector;
  * of the methods are not implemented and throw an
  * <code>IllegalArgumentException</code>.
  */
-public final class MockClientValue implements ClientValue {
+public final class MockClientValue implements ColumnarClientValue {
   private final int type;
   private final List<String> fieldNames;
   private final Vector<List<Object>> tableValues;
@@ -123,11 +124,19 @@ public final class MockClientValue implements ClientValue {
       throws RepositoryException {
     if (type != TABLE)
       throw new IllegalArgumentException("ClientValue is not a table.");
-    if (row < 0 || row > tableValues.size())
+    if (row < 0 || row >= tableValues.size())
       throw new IllegalArgumentException(String.valueOf(row));
     return getField(tableValues.get(row), field);
   }
 
+  private Object getValue(int row, int column) {
+    if (type != TABLE)
+      throw new IllegalArgumentException("ClientValue is not a table.");
+    if (row < 0 || row >= tableValues.size())
+      throw new IllegalArgumentException(String.valueOf(row));
+    return tableValues.get(row).get(column);
+  }
+
   private Object getValue(String field)
       throws RepositoryException {
     if (type != ASSOC)
@@ -224,7 +233,10 @@ public final class MockClientValue implements ClientValue {
 
   @Override
   public ClientValue toValue(int row, String field) throws RepositoryException {
-    Object obj = getValue(row, field);
+    return toClientValue(getValue(row, field));
+  }
+
+  private ClientValue toClientValue(Object obj) {
     if (obj instanceof String && ((String) obj).contains("=")) {
       //These are fake assoc strings.
       String strValue = obj.toString();
@@ -381,7 +393,7 @@ public final class MockClientValue implements ClientValue {
 
   @Override
   public String toString(int index) {
-    throw new IllegalArgumentException();
+    return getValue(index).toString();
   }
 
   @Override
@@ -452,6 +464,13 @@ public final class MockClientValue implements ClientValue {
     return assocValues.size();
   }
 
+  private int addElement(Object obj) {
+    if (type != LIST)
+      throw new IllegalArgumentException("ClientValue is not a list.");
+    listValues.add(obj);
+    return listValues.size();
+  }
+
   @Override
   public int add(String key, boolean obj) {
     return addField(key, Boolean.valueOf(obj));
@@ -574,11 +593,113 @@ public final class MockClientValue implements ClientValue {
 
   @Override
   public int add(String obj) {
-    throw new IllegalArgumentException();
+    return addElement(obj);
   }
 
   @Override
   public int add(java.util.Date obj) {
     throw new IllegalArgumentException();
   }
+
+  @Override
+  public int getColumnIndex(String field) {
+    return fieldNames.indexOf(field);
+  }
+
+  private int getExistingColumnIndex(String field)
+      throws RepositoryException {
+    int column = getColumnIndex(field);
+    if (column == -1)
+      throw new RepositoryException("LLValue unknown field name: " + field);
+    return column;
+  }
+
+  @Override
+  public boolean isDefined(int row, int column) {
+    return getValue(row, column) != null;
+  }
+
+  @Override
+  public ClientValue toValue(int row, int column) {
+    return toClientValue(getValue(row, column));
+  }
+
+  @Override
+  public Date toDate(int row, int column) {
+    Object v = getValue(row, column);
+    if (v instanceof Date)
+      return (Date) v;
+    else
+      throw new IllegalArgumentException();
+  }
+
+  @Override
+  public int toInteger(int row, int column) {
+    Object v = getValue(row, column);
+    if (v instanceof Number)
+      return ((Number) v).intValue();
+    else
+      return Integer.parseInt(v.toString());
+  }
+
+  @Override
+  public long toLong(int row, int column) {
+    Object v = getValue(row, column);
+    if (v instanceof Number)
+      return ((Number) v).longValue();
+    else
+      return Long.parseLong(v.toString());
+  }
+
+  @Override
+  public String toString(int row, int column) {
+    Object v = getValue(row, column);
+    return (v == null) ? "?" : v.toString();
+  }
+
+  @Override
+  public int[] toIntegerColumn(String field) throws RepositoryException {
+    int column = getExistingColumnIndex(field);
+    int[] values = new int[size()];
+    for (int row = 0; row < values.length; row++) {
+      if (!isDefined(row, column))
+        throw new IllegalArgumentException(field + " is undefined in row "
+            + row);
+      values[row] = toInteger(row, column);
+    }
+    return values;
+  }
+
+  @Override
+  public long[] toLongColumn(String field) throws RepositoryException {
+    int column = getExistingColumnIndex(field);
+    long[] values = new long[size()];
+    for (int row = 0; row < values.length; row++) {
+      if (isDefined(row, column))
+        values[row] = toLong(row, column);
+    }
+    return values;
+  }
+
+  @Override
+  public long[] toEpochSecondColumn(String field) throws RepositoryException {
+    int column = getExistingColumnIndex(field);
+    long[] values = new long[size()];
+    for (int row = 0; row < values.length; row++) {
+      values[row] = isDefined(row, column)
+          ? toDate(row, column).getTime() / 1000 : UNDEFINED_DATE;
+    }
+    return values;
+  }
+
+  @Override
+  public String[] toStringColumn(String field) throws RepositoryException {
+    int column = getExistingColumnIndex(field);
+    String[] values = new String[size()];
+    for (int row = 0; row < values.length; row++) {
+      if (isDefined(row, column))
+        values[row] = getValue(row, column).toString();
+    }
+    return values;
+  }
 }
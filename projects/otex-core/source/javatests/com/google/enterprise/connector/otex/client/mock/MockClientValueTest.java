@@ -0,0 +1,94 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex.client.mock;
+
+import com.google.enterprise.connector.otex.client.ColumnarClientValue;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Date;
+
+/** Tests the {@code ColumnarClientValue} methods of MockClientValue. */
+public class MockClientValueTest extends TestCase {
+  private static final Date DATE = new Date(1400000000000L);
+
+  private ColumnarClientValue recArray;
+
+  protected void setUp() {
+    recArray = new MockClientValue(
+        new String[] { "DataID", "ModifyDate", "Name", "DataSize" },
+        new Object[][] {
+          { 10, DATE, "ten", 100L },
+          { 20, null, null, null } });
+  }
+
+  public void testGetColumnIndex() throws RepositoryException {
+    assertEquals(0, recArray.getColumnIndex("DataID"));
+    assertEquals(2, recArray.getColumnIndex("Name"));
+    assertEquals(-1, recArray.getColumnIndex("ParentID"));
+  }
+
+  public void testIndexedAccess() throws RepositoryException {
+    int column = recArray.getColumnIndex("DataID");
+    for (int row = 0; row < recArray.size(); row++) {
+      assertEquals(recArray.toInteger(row, "DataID"),
+          recArray.toInteger(row, column));
+    }
+    assertEquals(DATE, recArray.toDate(0, 1));
+    assertEquals("ten", recArray.toString(0, 2));
+    assertEquals(100L, recArray.toLong(0, 3));
+    assertTrue(recArray.isDefined(0, 2));
+    assertFalse(recArray.isDefined(1, 2));
+    assertEquals("?", recArray.toString(1, 2));
+  }
+
+  public void testColumns() throws RepositoryException {
+    assertTrue(Arrays.equals(new int[] { 10, 20 },
+            recArray.toIntegerColumn("DataID")));
+    assertTrue(Arrays.equals(new long[] { 100L, 0L },
+            recArray.toLongColumn("DataSize")));
+    assertTrue(Arrays.equals(
+            new long[] { 1400000000L, ColumnarClientValue.UNDEFINED_DATE },
+            recArray.toEpochSecondColumn("ModifyDate")));
+    assertTrue(Arrays.equals(new String[] { "ten", null },
+            recArray.toStringColumn("Name")));
+  }
+
+  public void testRowOutOfBounds() throws RepositoryException {
+    try {
+      recArray.toInteger(2, 0);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testUndefinedIntegerColumn() throws RepositoryException {
+    try {
+      recArray.toIntegerColumn("DataSize");
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testUnknownColumn() {
+    try {
+      recArray.toIntegerColumn("ParentID");
+      fail("Expected a RepositoryException");
+    } catch (RepositoryException expected) {
+    }
+  }
+}
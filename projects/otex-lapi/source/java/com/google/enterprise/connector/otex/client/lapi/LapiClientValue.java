@@ -17,6 +17,7 @@ package com.google.enterprise.connector.otex.client.lapi;
 import com.google.common.base.Charsets;
 import com.google.enterprise.connector.otex.LivelinkException;
 import com.google.enterprise.connector.otex.client.ClientValue;
+import com.google.enterprise.connector.otex.client.ColumnarClientValue;
 import com.google.enterprise.connector.spi.RepositoryException;
 
 import com.opentext.api.LLIllegalOperationException;
@@ -27,6 +28,8 @@ import java.io.ByteArrayInputStream;
 import java.io.PushbackInputStream;
 import java.util.Date;
 import java.util.Enumeration;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -34,11 +37,12 @@ import java.util.logging.Logger;
  * A wrapper implementation on an <code>LLValue</code>.
  */
 /*
- * TODO: Retrieving values by index rather than by string is about ten
- * times faster. Even building a map and doing a map lookup before
- * each call is five times faster.
+ * Retrieving values by index rather than by string is about ten times
+ * faster. Even building a map and doing a map lookup before each call
+ * is five times faster. The ColumnarClientValue methods look up the
+ * column indexes once, and retrieve the values by index.
  */
-public final class LapiClientValue implements ClientValue {
+public final class LapiClientValue implements ColumnarClientValue {
     /** The logger for this class. */
     private static final Logger LOGGER =
         Logger.getLogger(LapiClientValue.class.getName());
@@ -65,6 +69,9 @@ public final class LapiClientValue implements ClientValue {
     /** The Actual LAPI Value object encapsulated by this ClientValue */
     private final LLValue value;
 
+    /** The column indexes by field name, or null if not computed yet. */
+    private Map<String, Integer> columnIndexes = null;
+
     /**
      * Wraps an <code>LLValue</code>.
      *
@@ -863,4 +870,194 @@ public final class LapiClientValue implements ClientValue {
         }
     }
 
+    /** {@inheritDoc} */
+    @Override
+    public synchronized int getColumnIndex(String field)
+            throws RepositoryException {
+        if (columnIndexes == null) {
+            // Livelink field names are not case-sensitive.
+            Map<String, Integer> indexes =
+                new TreeMap<String, Integer>(String.CASE_INSENSITIVE_ORDER);
+            try {
+                Enumeration<?> names = value.enumerateNames();
+                for (int i = 0; names.hasMoreElements(); i++) {
+                    indexes.put(names.nextElement().toString(), i);
+                }
+            } catch (RuntimeException e) {
+                throw new LivelinkException(e, LOGGER);
+            }
+            columnIndexes = indexes;
+        }
+        Integer index = columnIndexes.get(field);
+        return (index == null) ? -1 : index;
+    }
+
+    /**
+     * Gets the column index of the named field, which must exist.
+     */
+    private int getExistingColumnIndex(String field)
+            throws RepositoryException {
+        int column = getColumnIndex(field);
+        if (column == -1) {
+            throw new LivelinkException("Unknown field name: " + field,
+                LOGGER);
+        }
+        return column;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean isDefined(int row, int column) throws RepositoryException {
+        try {
+            return value.toValue(row).toValue(column).isDefined();
+        } catch (LLIllegalOperationException e) {
+            throw new IllegalArgumentException(e);
+        } catch (RuntimeException e) {
+            throw new LivelinkException(e, LOGGER);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public ClientValue toValue(int row, int column)
+            throws RepositoryException {
+        try {
+            return new LapiClientValue(value.toValue(row).toValue(column));
+        } catch (LLIllegalOperationException e) {
+            throw new IllegalArgumentException(e);
+        } catch (RuntimeException e) {
+            throw new LivelinkException(e, LOGGER);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Date toDate(int row, int column) throws RepositoryException {
+        try {
+            return value.toValue(row).toDate(column);
+        } catch (LLIllegalOperationException e) {
+            throw new IllegalArgumentException(e);
+        } catch (RuntimeException e) {
+            throw new LivelinkException(e, LOGGER);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int toInteger(int row, int column) throws RepositoryException {
+        try {
+            return value.toValue(row).toInteger(column);
+        } catch (LLIllegalOperationException e) {
+            throw new IllegalArgumentException(e);
+        } catch (RuntimeException e) {
+            throw new LivelinkException(e, LOGGER);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * This method requires LAPI 9.7.1.
+     */
+    @Override
+    public long toLong(int row, int column) throws RepositoryException {
+        try {
+            return value.toValue(row).toLong(column);
+        } catch (LLIllegalOperationException e) {
+            throw new IllegalArgumentException(e);
+        } catch (RuntimeException e) {
+            throw new LivelinkException(e, LOGGER);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString(int row, int column) throws RepositoryException {
+        try {
+            return value.toValue(row).toString(column);
+        } catch (LLIllegalOperationException e) {
+            throw new IllegalArgumentException(e);
+        } catch (RuntimeException e) {
+            throw new LivelinkException(e, LOGGER);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int[] toIntegerColumn(String field) throws RepositoryException {
+        int column = getExistingColumnIndex(field);
+        try {
+            int[] values = new int[value.size()];
+            for (int row = 0; row < values.length; row++) {
+                LLValue cell = value.toValue(row).toValue(column);
+                if (!cell.isDefined()) {
+                    throw new IllegalArgumentException(
+                        field + " is undefined in row " + row);
+                }
+                values[row] = cell.toInteger();
+            }
+            return values;
+        } catch (LLIllegalOperationException e) {
+            throw new IllegalArgumentException(e);
+        } catch (RuntimeException e) {
+            throw new LivelinkException(e, LOGGER);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long[] toLongColumn(String field) throws RepositoryException {
+        int column = getExistingColumnIndex(field);
+        try {
+            long[] values = new long[value.size()];
+            for (int row = 0; row < values.length; row++) {
+                LLValue cell = value.toValue(row).toValue(column);
+                if (cell.isDefined())
+                    values[row] = cell.toLong();
+            }
+            return values;
+        } catch (LLIllegalOperationException e) {
+            throw new IllegalArgumentException(e);
+        } catch (RuntimeException e) {
+            throw new LivelinkException(e, LOGGER);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long[] toEpochSecondColumn(String field)
+            throws RepositoryException {
+        int column = getExistingColumnIndex(field);
+        try {
+            long[] values = new long[value.size()];
+            for (int row = 0; row < values.length; row++) {
+                LLValue cell = value.toValue(row).toValue(column);
+                values[row] = cell.isDefined()
+                    ? cell.toDate().getTime() / 1000 : UNDEFINED_DATE;
+            }
+            return values;
+        } catch (LLIllegalOperationException e) {
+            throw new IllegalArgumentException(e);
+        } catch (RuntimeException e) {
+            throw new LivelinkException(e, LOGGER);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String[] toStringColumn(String field) throws RepositoryException {
+        int column = getExistingColumnIndex(field);
+        try {
+            String[] values = new String[value.size()];
+            for (int row = 0; row < values.length; row++) {
+                LLValue cell = value.toValue(row).toValue(column);
+                if (cell.isDefined())
+                    values[row] = cell.toString();
+            }
+            return values;
+        } catch (LLIllegalOperationException e) {
+            throw new IllegalArgumentException(e);
+        } catch (RuntimeException e) {
+            throw new LivelinkException(e, LOGGER);
+        }
+    }
 }